@@ -17,6 +17,7 @@
 package plugins;
 
 import whitebox.geospatialfiles.WhiteboxRaster;
+import whitebox.geospatialfiles.WhiteboxRasterInfo;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
 /**
@@ -196,7 +197,8 @@ public class ChangeDataScale implements WhiteboxPlugin {
                 updateProgress("Loop " + (i + 1) + " of " + numImages + ":", progress);
                 
                 inputHeader = imageFiles[i];
-                WhiteboxRaster wbr = new WhiteboxRaster(inputHeader, "r");
+                // only the header changes, so the data file isn't opened
+                WhiteboxRasterInfo wbr = new WhiteboxRasterInfo(inputHeader);
                 if (dataScale == WhiteboxRaster.DataScale.RGB 
                         && wbr.getDataType() != WhiteboxRaster.DataType.FLOAT) {
                     showFeedback("Data scale RGB is only compatible with data type 'float'. "
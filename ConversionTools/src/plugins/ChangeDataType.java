@@ -16,7 +16,9 @@
  */
 package plugins;
 
+import whitebox.geospatialfiles.RasterTranscoder;
 import whitebox.geospatialfiles.WhiteboxRaster;
+import whitebox.geospatialfiles.WhiteboxRasterInfo;
 import whitebox.geospatialfiles.WhiteboxRasterBase.DataType;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
@@ -160,7 +162,6 @@ public class ChangeDataType implements WhiteboxPlugin {
         String[] imageFiles;
         int numImages = 0;
         int i;
-        int col, row;
         int progress;
         
         if (args.length <= 0) {
@@ -198,68 +199,29 @@ public class ChangeDataType implements WhiteboxPlugin {
                 updateProgress("Loop " + (i + 1) + " of " + numImages + ":", progress);
                 
                 inputHeader = imageFiles[i];
-                WhiteboxRaster image = new WhiteboxRaster(inputHeader, "r");
-                int rows = image.getNumberRows();
-                int cols = image.getNumberColumns();
+                WhiteboxRasterInfo image = new WhiteboxRasterInfo(inputHeader);
                 double inputNoData = image.getNoDataValue();
+                image.close();
+                
+                // keep the NoData value if the new data type can hold it
+                double outputNoData = inputNoData;
+                if ((dataType == DataType.FLOAT && (float) inputNoData != inputNoData)
+                        || (dataType == DataType.INTEGER && (short) inputNoData != inputNoData)) {
+                    outputNoData = -32768;
+                }
                 
                 outputHeader = inputHeader.replace(".dep", suffix + ".dep");
-                WhiteboxRaster output = new WhiteboxRaster(outputHeader, "rw", inputHeader, dataType, inputNoData);
-                double[] data = null;
-                if (dataType == DataType.DOUBLE) { // any no data value will fit
-                    for (row = 0; row < rows; row++) {
-                        data = image.getRowValues(row);
-                        for (col = 0; col < cols; col++) {
-                            output.setValue(row, col, data[col]);                            
-                        }
-                        if (cancelOp) {
-                            cancelOperation();
-                            return;
-                        }
-                        progress = (int) (100f * row / (rows - 1));
-                        updateProgress("Loop " + (i + 1) + " of " + numImages + ":", progress);
-                    }
-                } else if (dataType == DataType.FLOAT) {
-                    double outputNoData = -32768;
-                    for (row = 0; row < rows; row++) {
-                        data = image.getRowValues(row);
-                        for (col = 0; col < cols; col++) {
-                            if (data[col] != inputNoData) {
-                                output.setValue(row, col, data[col]);
-                            } else {
-                                output.setValue(row, col, outputNoData);
-                            }
-                        }
-                        if (cancelOp) {
-                            cancelOperation();
-                            return;
-                        }
-                        progress = (int) (100f * row / (rows - 1));
-                        updateProgress("Loop " + (i + 1) + " of " + numImages + ":", progress);
-                    }
-                } else if (dataType == DataType.INTEGER) {
-                    double outputNoData = -32768;
-                    double z;
-                    for (row = 0; row < rows; row++) {
-                        data = image.getRowValues(row);
-                        for (col = 0; col < cols; col++) {
-                            if (data[col] != inputNoData) {
-                                z = Math.round(data[col]);
-                                output.setValue(row, col, (int)z);
-                            } else {
-                                output.setValue(row, col, outputNoData);
-                            }
-                        }
-                        if (cancelOp) {
-                            cancelOperation();
-                            return;
-                        }
-                        progress = (int) (100f * row / (rows - 1));
-                        updateProgress("Loop " + (i + 1) + " of " + numImages + ":", progress);
+                RasterTranscoder output = new RasterTranscoder(inputHeader, outputHeader);
+                output.setDataType(dataType);
+                output.setNoDataValue(outputNoData);
+                while (output.transcodeNextChunk()) {
+                    if (cancelOp) {
+                        output.close();
+                        cancelOperation();
+                        return;
                     }
+                    updateProgress("Loop " + (i + 1) + " of " + numImages + ":", output.getProgress());
                 }
-                
-                image.close();
                 output.close();
             }
             
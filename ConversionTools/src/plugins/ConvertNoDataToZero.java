@@ -17,7 +17,9 @@
 package plugins;
 
 import java.util.Date;
+import whitebox.geospatialfiles.RasterTranscoder;
 import whitebox.geospatialfiles.WhiteboxRaster;
+import whitebox.geospatialfiles.WhiteboxRasterBase;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
 /**
@@ -156,12 +158,7 @@ public class ConvertNoDataToZero implements WhiteboxPlugin {
 
         String inputHeader = null;
         String outputHeader = null;
-        int col;
-        int row;
-        int numCols;
-        int numRows;
         int i;
-        int progress;
         
         if (args.length <= 0) {
             showFeedback("Plugin parameters have not been set.");
@@ -183,40 +180,25 @@ public class ConvertNoDataToZero implements WhiteboxPlugin {
         }
 
         try {
-            WhiteboxRaster image = new WhiteboxRaster(inputHeader, "r");
-
-            numRows = image.getNumberRows();
-            numCols = image.getNumberColumns();
-            double noData = image.getNoDataValue();
-            
-            WhiteboxRaster output = new WhiteboxRaster(outputHeader, "rw", inputHeader, WhiteboxRaster.DataType.FLOAT, noData);
+            RasterTranscoder transcoder = new RasterTranscoder(inputHeader, outputHeader);
+            transcoder.setDataType(WhiteboxRaster.DataType.FLOAT);
+            WhiteboxRasterBase output = transcoder.getOutput();
+            transcoder.replaceValue(output.getNoDataValue(), 0);
             output.setPreferredPalette("spectrum.pal");
             output.setDataScale(WhiteboxRaster.DataScale.CONTINUOUS);
+            output.addMetadataEntry("Created by the "
+                    + getDescriptiveName() + " tool.");
+            output.addMetadataEntry("Created on " + new Date());
 
-            double[] data;
-            for (row = 0; row < numRows; row++) {
-                data = image.getRowValues(row);
-                for (col = 0; col < numCols; col++) {
-                    if (data[col] == noData) {
-                        output.setValue(row, col, 0);
-                    } else {
-                        output.setValue(row, col, data[col]);
-                    }
-                }
+            while (transcoder.transcodeNextChunk()) {
                 if (cancelOp) {
+                    transcoder.close();
                     cancelOperation();
                     return;
                 }
-                progress = (int) (100f * row / (numRows - 1));
-                updateProgress(progress);
+                updateProgress(transcoder.getProgress());
             }
-            
-            output.addMetadataEntry("Created by the "
-                    + getDescriptiveName() + " tool.");
-            output.addMetadataEntry("Created on " + new Date());
-
-            image.close();
-            output.close();
+            transcoder.close();
 
             // returning a header file string displays the image.
             returnData(outputHeader);
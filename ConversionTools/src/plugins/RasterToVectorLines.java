@@ -17,6 +17,7 @@
 package plugins;
 
 import java.io.File;
+import whitebox.geospatialfiles.MemoryRaster;
 import whitebox.geospatialfiles.ShapeFile;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.geospatialfiles.shapefile.attributes.DBFField;
@@ -264,8 +265,7 @@ public class RasterToVectorLines implements WhiteboxPlugin {
 
             // create a temporary raster image.
             String tempHeader1 = inputFile.replace(".dep", "_temp1.dep");
-            WhiteboxRaster temp1 = new WhiteboxRaster(tempHeader1, "rw", inputFile, WhiteboxRaster.DataType.INTEGER, 0);
-            temp1.isTemporaryFile = true;
+            WhiteboxRaster temp1 = new MemoryRaster(tempHeader1, inputFile, WhiteboxRaster.DataType.INTEGER, 0);
             //String tempHeader2 = inputFile.replace(".dep", "_temp2.dep");
             //WhiteboxRaster temp2 = new WhiteboxRaster(tempHeader2, "rw", inputFile, WhiteboxRaster.DataType.INTEGER, 0);
             //temp2.isTemporaryFile = true;
@@ -23,6 +23,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import whitebox.algorithms.Clump;
+import whitebox.geospatialfiles.MemoryRaster;
 import whitebox.geospatialfiles.ShapeFile;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.geospatialfiles.shapefile.attributes.DBFField;
@@ -303,8 +304,7 @@ public class RasterToVectorPolygons implements WhiteboxPlugin {
             
             // create a temporary raster image.
             String tempHeader1 = inputFile.replace(".dep", "_temp1.dep");
-            WhiteboxRaster temp1 = new WhiteboxRaster(tempHeader1, "rw", inputFile, WhiteboxRaster.DataType.INTEGER, 0);
-            temp1.isTemporaryFile = true;
+            WhiteboxRaster temp1 = new MemoryRaster(tempHeader1, inputFile, WhiteboxRaster.DataType.INTEGER, 0);
 
             GeometryFactory factory = new GeometryFactory();
             List<com.vividsolutions.jts.geom.Polygon> polyList = new ArrayList<>();
@@ -16,7 +16,10 @@
  */
 package plugins;
 
+import whitebox.geospatialfiles.RasterTranscoder;
 import whitebox.geospatialfiles.WhiteboxRaster;
+import whitebox.geospatialfiles.WhiteboxRasterBase.Compression;
+import whitebox.geospatialfiles.WhiteboxRasterInfo;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
 
@@ -207,9 +210,28 @@ public class SetNoData implements WhiteboxPlugin {
 
         try {
             int row, col;
-            int progress = 0;
             double[] data;
             for (int a = 0; a < numFiles; a++) {
+                WhiteboxRasterInfo info = new WhiteboxRasterInfo(imageFiles[a]);
+                Compression compression = info.getCompression();
+                info.close();
+                if (compression == Compression.NONE) {
+                    // the cells are changed in place, rewriting only the parts
+                    // of the data file that hold the background value
+                    RasterTranscoder transcoder = new RasterTranscoder(imageFiles[a], imageFiles[a]);
+                    transcoder.replaceValue(backgroundValue, transcoder.getOutput().getNoDataValue());
+                    while (transcoder.transcodeNextChunk()) {
+                        if (cancelOp) {
+                            transcoder.close();
+                            cancelOperation();
+                            return;
+                        }
+                        updateProgress("Processing image " + (a + 1) + " of " + numFiles + ":", transcoder.getProgress());
+                    }
+                    transcoder.close();
+                    continue;
+                }
+
                 WhiteboxRaster inputFile = new WhiteboxRaster(imageFiles[a], "rw");
 
                 int rows = inputFile.getNumberRows();
@@ -228,7 +250,7 @@ public class SetNoData implements WhiteboxPlugin {
                         cancelOperation();
                         return;
                     }
-                    progress = (int) (100f * row / (rows - 1));
+                    int progress = (int) (100f * row / (rows - 1));
                     updateProgress("Processing image " + (a + 1) + " of " + numFiles + ":", progress);
                 }
 
@@ -17,6 +17,7 @@
 package plugins;
 
 import java.util.Date;
+import whitebox.geospatialfiles.MemoryRaster;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
@@ -212,13 +213,10 @@ public class Buffer implements WhiteboxPlugin {
             WhiteboxRaster outputImage = new WhiteboxRaster(outputHeader, "rw", inputHeader, WhiteboxRaster.DataType.FLOAT, infVal);
             outputImage.setPreferredPalette(image.getPreferredPalette());
            
-            WhiteboxRaster allocation = new WhiteboxRaster(outputHeader.replace(".dep", "_temp1.dep"), "rw", inputHeader, WhiteboxRaster.DataType.FLOAT, infVal);
-            allocation.isTemporaryFile = true;
+            WhiteboxRaster allocation = new MemoryRaster(outputHeader.replace(".dep", "_temp1.dep"), inputHeader, WhiteboxRaster.DataType.FLOAT, infVal);
             
-            WhiteboxRaster Rx = new WhiteboxRaster(outputHeader.replace(".dep", "_temp2.dep"), "rw", inputHeader, WhiteboxRaster.DataType.FLOAT, 0);
-            Rx.isTemporaryFile = true;
-            WhiteboxRaster Ry = new WhiteboxRaster(outputHeader.replace(".dep", "_temp3.dep"), "rw", inputHeader, WhiteboxRaster.DataType.FLOAT, 0);
-            Ry.isTemporaryFile = true;
+            WhiteboxRaster Rx = new MemoryRaster(outputHeader.replace(".dep", "_temp2.dep"), inputHeader, WhiteboxRaster.DataType.FLOAT, 0);
+            WhiteboxRaster Ry = new MemoryRaster(outputHeader.replace(".dep", "_temp3.dep"), inputHeader, WhiteboxRaster.DataType.FLOAT, 0);
             
             double[] data;
             for (row = 0; row < rows; row++) {
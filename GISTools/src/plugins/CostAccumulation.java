@@ -268,10 +268,12 @@ public class CostAccumulation implements WhiteboxPlugin {
             output = new WhiteboxRaster(outputHeader, "rw", sourceHeader, WhiteboxRaster.DataType.FLOAT, largeVal);
             output.setPreferredPalette("spectrum.pal");
             output.setDataScale(WhiteboxRaster.DataScale.CONTINUOUS);
+            output.setUseTileCache(true);
            
             backLink = new WhiteboxRaster(backLinkHeader, "rw", sourceHeader, WhiteboxRaster.DataType.INTEGER, noData);
             backLink.setPreferredPalette("spectrum.pal");
             backLink.setDataScale(WhiteboxRaster.DataScale.CONTINUOUS);
+            backLink.setUseTileCache(true);
            
             updateProgress("Calculating Cost Accumulation Surface:", 0);
             double[] data;
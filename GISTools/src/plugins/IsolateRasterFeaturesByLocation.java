@@ -17,6 +17,7 @@
 package plugins;
 
 import java.util.Date;
+import whitebox.geospatialfiles.MemoryRaster;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
@@ -369,12 +370,9 @@ public class IsolateRasterFeaturesByLocation implements WhiteboxPlugin {
                 int[] Gx = new int[]{1, 1, 0, 1, 1, 1, 0, 1};
                 int[] Gy = new int[]{0, 1, 1, 1, 0, 1, 1, 1};
                 double gridRes = (features.getCellSizeX() + features.getCellSizeY()) / 2;
-                WhiteboxRaster Rx = new WhiteboxRaster(outputHeader.replace(".dep", "_temp1.dep"), "rw", featureHeader, WhiteboxRaster.DataType.FLOAT, 0);
-                Rx.isTemporaryFile = true;
-                WhiteboxRaster Ry = new WhiteboxRaster(outputHeader.replace(".dep", "_temp2.dep"), "rw", featureHeader, WhiteboxRaster.DataType.FLOAT, 0);
-                Ry.isTemporaryFile = true;
-                WhiteboxRaster bufferedData = new WhiteboxRaster(outputHeader.replace(".dep", "_temp3.dep"), "rw", featureHeader, WhiteboxRaster.DataType.FLOAT, infVal);
-                bufferedData.isTemporaryFile = true;
+                WhiteboxRaster Rx = new MemoryRaster(outputHeader.replace(".dep", "_temp1.dep"), featureHeader, WhiteboxRaster.DataType.FLOAT, 0);
+                WhiteboxRaster Ry = new MemoryRaster(outputHeader.replace(".dep", "_temp2.dep"), featureHeader, WhiteboxRaster.DataType.FLOAT, 0);
+                WhiteboxRaster bufferedData = new MemoryRaster(outputHeader.replace(".dep", "_temp3.dep"), featureHeader, WhiteboxRaster.DataType.FLOAT, infVal);
 
 
                 double[] data;
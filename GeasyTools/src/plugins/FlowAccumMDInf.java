@@ -21,6 +21,7 @@
 package plugins;
 
 import java.util.Date;
+import whitebox.geospatialfiles.MemoryRaster;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.geospatialfiles.WhiteboxRasterBase;
 import whitebox.interfaces.WhiteboxPlugin;
@@ -252,11 +253,9 @@ public class FlowAccumMDInf implements WhiteboxPlugin {
             localIn.setDataScale(WhiteboxRasterBase.DataScale.CONTINUOUS);
             localIn.setZUnits("dimensionless");
             
-            tmpArea = new WhiteboxRaster(upSlopeHeader.replace(".dep", "_tmp1.dep"), "rw", demHeader, WhiteboxRaster.DataType.FLOAT, noData);
-            tmpArea.isTemporaryFile = true;
+            tmpArea = new MemoryRaster(upSlopeHeader.replace(".dep", "_tmp1.dep"), demHeader, WhiteboxRaster.DataType.FLOAT, noData);
             
-            tmpCount = new WhiteboxRaster(upSlopeHeader.replace(".dep", "_tmp2.dep"), "rw", demHeader, WhiteboxRaster.DataType.FLOAT, noData);
-            tmpCount.isTemporaryFile = true;
+            tmpCount = new MemoryRaster(upSlopeHeader.replace(".dep", "_tmp2.dep"), demHeader, WhiteboxRaster.DataType.FLOAT, noData);
             
             // Calculate the number of inflowing neighbours to each cell and initialize the output grids
             updateProgress("Loop 1 of 4:", 0);
@@ -21,6 +21,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import whitebox.geospatialfiles.MemoryRaster;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.geospatialfiles.WhiteboxRasterBase;
 import whitebox.interfaces.WhiteboxPlugin;
@@ -277,8 +278,7 @@ public class MedianUpstreamArea implements WhiteboxPlugin {
             medianUpstreamArea.setDataScale(WhiteboxRasterBase.DataScale.CONTINUOUS);
             medianUpstreamArea.setZUnits("dimensionless");
             
-            tmpDirectUpstreamCreekCellCount = new WhiteboxRaster(outputHeader.replace(".dep", "_tmp1.dep"), "rw", demHeader, WhiteboxRaster.DataType.FLOAT, 0);
-            tmpDirectUpstreamCreekCellCount.isTemporaryFile = true;
+            tmpDirectUpstreamCreekCellCount = new MemoryRaster(outputHeader.replace(".dep", "_tmp1.dep"), demHeader, WhiteboxRaster.DataType.FLOAT, 0);
             
             // Initialize output grid values
             updateProgress("Loop 1 of 3:", 0);
@@ -18,6 +18,7 @@
 package plugins;
 
 import java.util.Date;
+import whitebox.geospatialfiles.MemoryRaster;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.geospatialfiles.WhiteboxRasterBase;
 import whitebox.interfaces.WhiteboxPlugin;
@@ -234,11 +235,9 @@ public class StreamHeadsMDInf implements WhiteboxPlugin {
             output.setDataScale(WhiteboxRasterBase.DataScale.CONTINUOUS);
             output.setZUnits("dimensionless");
             
-            tmpArea = new WhiteboxRaster(outputHeader.replace(".dep", "_tmp1.dep"), "rw", demHeader, WhiteboxRaster.DataType.FLOAT, noData);
-            tmpArea.isTemporaryFile = true;
+            tmpArea = new MemoryRaster(outputHeader.replace(".dep", "_tmp1.dep"), demHeader, WhiteboxRaster.DataType.FLOAT, noData);
             
-            tmpCount = new WhiteboxRaster(outputHeader.replace(".dep", "_tmp1.dep"), "rw", demHeader, WhiteboxRaster.DataType.FLOAT, noData);
-            tmpCount.isTemporaryFile = true;
+            tmpCount = new MemoryRaster(outputHeader.replace(".dep", "_tmp1.dep"), demHeader, WhiteboxRaster.DataType.FLOAT, noData);
 
             switch (caThresholdType) {
                 case "specific catchment area (sca)":
@@ -21,6 +21,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.PriorityQueue;
+import whitebox.geospatialfiles.MemoryRaster;
 import whitebox.geospatialfiles.ShapeFile;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.geospatialfiles.WhiteboxRasterBase;
@@ -278,10 +279,7 @@ public class BurnStreams implements WhiteboxPlugin {
                 }
 
                 // initialize the output raster
-                streams = new WhiteboxRaster(streamsHeader, "rw",
-                        demHeader, WhiteboxRasterBase.DataType.INTEGER, 0);
-
-                streams.isTemporaryFile = true;
+                streams = new MemoryRaster(streamsHeader, demHeader, WhiteboxRasterBase.DataType.INTEGER, 0);
 
 
                 // first sort the records based on their maxY coordinate. This will
@@ -536,10 +534,8 @@ public class BurnStreams implements WhiteboxPlugin {
             int[] Gx = new int[]{1, 1, 0, 1, 1, 1, 0, 1};
             int[] Gy = new int[]{0, 1, 1, 1, 0, 1, 1, 1};
 
-            WhiteboxRaster Rx = new WhiteboxRaster(outputHeader.replace(".dep", "_temp1.dep"), "rw", demHeader, WhiteboxRaster.DataType.FLOAT, 0);
-            Rx.isTemporaryFile = true;
-            WhiteboxRaster Ry = new WhiteboxRaster(outputHeader.replace(".dep", "_temp2.dep"), "rw", demHeader, WhiteboxRaster.DataType.FLOAT, 0);
-            Ry.isTemporaryFile = true;
+            WhiteboxRaster Rx = new MemoryRaster(outputHeader.replace(".dep", "_temp1.dep"), demHeader, WhiteboxRaster.DataType.FLOAT, 0);
+            WhiteboxRaster Ry = new MemoryRaster(outputHeader.replace(".dep", "_temp2.dep"), demHeader, WhiteboxRaster.DataType.FLOAT, 0);
 
             double[] data;
             for (row = 0; row < rows; row++) {
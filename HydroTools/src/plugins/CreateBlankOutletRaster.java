@@ -190,7 +190,9 @@ public class CreateBlankOutletRaster implements WhiteboxPlugin {
             
             WhiteboxRaster output = new WhiteboxRaster(outputHeader, "rw", 
                     inputHeader, WhiteboxRaster.DataType.FLOAT, noData);
-            output.createNewDataFile();
+            // the raster will hold only a few outlets, and so every tile but
+            // those few is stored as a NoData flag
+            output.setCompression(WhiteboxRaster.Compression.SPARSE);
             output.setPreferredPalette("qual.pal");
             output.setDataScale(WhiteboxRaster.DataScale.CATEGORICAL);
             output.setDisplayMaximum(1);
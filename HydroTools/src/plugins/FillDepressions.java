@@ -16,11 +16,14 @@
  */
 package plugins;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Date;
 import java.util.PriorityQueue;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
+import whitebox.structures.OffHeapDoubleArray2D;
 
 /**
  * This tool can be used to fill all of the depressions in a digital elevation model (DEM) and to remove the flat areas.
@@ -213,6 +216,8 @@ public class FillDepressions implements WhiteboxPlugin {
 
 //        long startTime = System.nanoTime();
         
+        OffHeapDoubleArray2D output = null;
+        OffHeapDoubleArray2D input = null;
         try {
             updateProgress("Initializing: ", -1);
             int row_n, col_n;
@@ -235,24 +240,18 @@ public class FillDepressions implements WhiteboxPlugin {
 
             double noData = image.getNoDataValue();
 
-            double[][] output = new double[rows][cols];
-            double[][] input = new double[rows + 2][cols + 2];
-            for (row = 0; row < rows + 2; row++) {
-                input[row][0] = noData;
-                input[row][cols + 1] = noData;
-            }
-
-            for (col = 0; col < cols + 2; col++) {
-                input[0][col] = noData;
-                input[rows + 1][col] = noData;
-            }
+            // the grids are held off the heap, so that they may exceed 2^31
+            // cells and don't add to garbage collection pauses.
+            File tempDirectory = new File(outputHeader).getAbsoluteFile().getParentFile();
+            output = createGrid(rows, cols, -999, tempDirectory);
+            // the input is bordered by NoData cells
+            input = createGrid(rows + 2, cols + 2, noData, tempDirectory);
 
             double[] data;
             for (row = 0; row < rows; row++) {
                 data = image.getRowValues(row);
                 for (col = 0; col < cols; col++) {
-                    output[row][col] = -999;
-                    input[row + 1][col + 1] = data[col];
+                    input.setValue(row + 1, col + 1, data[col]);
                 }
             }
             image.close();
@@ -267,18 +266,18 @@ public class FillDepressions implements WhiteboxPlugin {
             oldProgress = -1;
             for (row = 0; row < rows; row++) {
                 for (col = 0; col < cols; col++) {
-                    z = input[row + 1][col + 1];
+                    z = input.getValue(row + 1, col + 1);
                     if (z != noData) {
                         numCells++;
                         for (int i = 0; i < 8; i++) {
                             row_n = row + Dy[i];
                             col_n = col + Dx[i];
-                            z_n = input[row_n + 1][col_n + 1];
+                            z_n = input.getValue(row_n + 1, col_n + 1);
                             if (z_n == noData) {
                                 // it's an edge cell.
                                 gc = new GridCell(row, col, z);
                                 queue.add(gc);
-                                output[row][col] = z;
+                                output.setValue(row, col, z);
                                 numCellsTotal++;
                                 break;
                             }
@@ -286,7 +285,7 @@ public class FillDepressions implements WhiteboxPlugin {
                     } else {
                         numSolvedCells++;
                         //k++;
-                        output[row][col] = noData;
+                        output.setValue(row, col, noData);
                     }
 
                 }
@@ -312,12 +311,12 @@ public class FillDepressions implements WhiteboxPlugin {
                 for (int i = 0; i < 8; i++) {
                     row_n = row + Dy[i];
                     col_n = col + Dx[i];
-                    z_n = input[row_n + 1][col_n + 1];
-                    if ((z_n != noData) && (output[row_n][col_n] == -999)) {
+                    z_n = input.getValue(row_n + 1, col_n + 1);
+                    if ((z_n != noData) && (output.getValue(row_n, col_n) == -999)) {
                         if (z_n <= z) {
                             z_n = z + SMALL_NUM;
                         }
-                        output[row_n][col_n] = z_n;
+                        output.setValue(row_n, col_n, z_n);
                         numSolvedCells++;
                         gc = new GridCell(row_n, col_n, z_n);
                         queue.add(gc);
@@ -334,14 +333,18 @@ public class FillDepressions implements WhiteboxPlugin {
                     }
                 }
             } while (queue.isEmpty() == false);
+            input.release();
+            input = null;
 
             updateProgress("Saving Data: ", 0);
             WhiteboxRaster outputFile = new WhiteboxRaster(outputHeader, "rw",
                     inputHeader, WhiteboxRaster.DataType.DOUBLE, -999);
             outputFile.setPreferredPalette(preferredPalette);
             oldProgress = -1;
+            data = new double[cols];
             for (row = 0; row < rows; row++) {
-                outputFile.setRowValues(row, output[row]);
+                output.getRow(row, data);
+                outputFile.setRowValues(row, data);
                 progress = (int)(100f * row / rowsLessOne);
                 if (progress > oldProgress) {
                     updateProgress(progress);
@@ -370,6 +373,12 @@ public class FillDepressions implements WhiteboxPlugin {
             myHost.showFeedback("An error has occurred during operation. See log file for details.");
             myHost.logException("Error in " + getDescriptiveName(), e);
         } finally {
+            if (input != null) {
+                input.release();
+            }
+            if (output != null) {
+                output.release();
+            }
             updateProgress("Progress: ", 0);
             // tells the main application that this process is completed.
             amIActive = false;
@@ -377,6 +386,19 @@ public class FillDepressions implements WhiteboxPlugin {
         }
     }
 
+    /**
+     * Creates an off-heap grid in direct memory or, should there not be enough
+     * direct memory available, mapped from a temporary file.
+     */
+    private OffHeapDoubleArray2D createGrid(int rows, int cols, double initialValue,
+            File tempDirectory) throws IOException {
+        try {
+            return new OffHeapDoubleArray2D(rows, cols, initialValue);
+        } catch (OutOfMemoryError e) {
+            return new OffHeapDoubleArray2D(rows, cols, initialValue, tempDirectory);
+        }
+    }
+
     class GridCell implements Comparable<GridCell> {
 
         public int row;
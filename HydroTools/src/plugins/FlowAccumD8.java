@@ -17,6 +17,7 @@
 package plugins;
 
 import java.util.Date;
+import whitebox.geospatialfiles.MemoryRaster;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
@@ -244,9 +245,8 @@ public class FlowAccumD8 implements WhiteboxPlugin {
             output.setDataScale(WhiteboxRaster.DataScale.CONTINUOUS);
             output.setZUnits("dimensionless");
 
-            WhiteboxRaster tmpGrid = new WhiteboxRaster(outputHeader.replace(".dep",
-                    "_temp.dep"), "rw", inputHeader, WhiteboxRaster.DataType.FLOAT, noData);
-            tmpGrid.isTemporaryFile = true;
+            WhiteboxRaster tmpGrid = new MemoryRaster(outputHeader.replace(".dep",
+                    "_temp.dep"), inputHeader, WhiteboxRaster.DataType.FLOAT, noData);
 
             updateProgress("Loop 1 of 3:", 0);
             oldProgress = -1;
@@ -17,6 +17,7 @@
 package plugins;
 
 import java.util.Date;
+import whitebox.geospatialfiles.MemoryRaster;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
@@ -246,9 +247,8 @@ public class FlowAccumDinf implements WhiteboxPlugin {
             output.setDataScale(WhiteboxRaster.DataScale.CONTINUOUS);
             output.setZUnits("dimensionless");
 
-            tmpGrid = new WhiteboxRaster(outputHeader.replace(".dep",
-                    "_temp.dep"), "rw", inputHeader, WhiteboxRaster.DataType.FLOAT, noData);
-            tmpGrid.isTemporaryFile = true;
+            tmpGrid = new MemoryRaster(outputHeader.replace(".dep",
+                    "_temp.dep"), inputHeader, WhiteboxRaster.DataType.FLOAT, noData);
 
             // Calculate the number of inflowing neighbours to each cell.
             int loopNum = 1;
@@ -17,6 +17,7 @@
 package plugins;
 
 import java.util.Date;
+import whitebox.geospatialfiles.MemoryRaster;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
@@ -235,9 +236,8 @@ public class MassFluxD8 implements WhiteboxPlugin {
             output.setDataScale(WhiteboxRaster.DataScale.CONTINUOUS);
             output.setZUnits("dimensionless");
             
-            WhiteboxRaster tmpGrid = new WhiteboxRaster(outputHeader.replace(".dep", 
-                    "_temp.dep"), "rw", pointerHeader, WhiteboxRaster.DataType.FLOAT, outputNoData);
-            tmpGrid.isTemporaryFile = true;
+            WhiteboxRaster tmpGrid = new MemoryRaster(outputHeader.replace(".dep", 
+                    "_temp.dep"), pointerHeader, WhiteboxRaster.DataType.FLOAT, outputNoData);
             
             updateProgress("Loop 1 of 3:", 0);
             for (row = 0; row < rows; row++) {
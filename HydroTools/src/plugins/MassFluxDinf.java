@@ -17,6 +17,7 @@
 package plugins;
 
 import java.util.Date;
+import whitebox.geospatialfiles.MemoryRaster;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
@@ -238,9 +239,8 @@ public class MassFluxDinf implements WhiteboxPlugin {
             output.setDataScale(WhiteboxRaster.DataScale.CONTINUOUS);
             output.setZUnits("dimensionless");
             
-            tmpGrid = new WhiteboxRaster(outputHeader.replace(".dep", 
-                    "_temp.dep"), "rw", pointerHeader, WhiteboxRaster.DataType.FLOAT, outputNoData);
-            tmpGrid.isTemporaryFile = true;
+            tmpGrid = new MemoryRaster(outputHeader.replace(".dep", 
+                    "_temp.dep"), pointerHeader, WhiteboxRaster.DataType.FLOAT, outputNoData);
             
             // Calculate the number of inflowing neighbours to each cell.
             updateProgress("Loop 1 of 2:", 0);
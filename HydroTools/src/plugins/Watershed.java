@@ -18,7 +18,9 @@ package plugins;
 
 import java.util.ArrayList;
 import java.util.Date;
+import whitebox.geospatialfiles.MemoryRaster;
 import whitebox.geospatialfiles.ShapeFile;
+import whitebox.geospatialfiles.ValidCellIterator;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.geospatialfiles.WhiteboxRasterBase;
 import whitebox.geospatialfiles.shapefile.MultiPoint;
@@ -237,6 +239,7 @@ public class Watershed implements WhiteboxPlugin {
         try {
             WhiteboxRaster outlet;
             WhiteboxRaster pntr = new WhiteboxRaster(inputHeader, "r");
+            pntr.setUseTileCache(true);
             int rows = pntr.getNumberRows();
             int cols = pntr.getNumberColumns();
             double noData = pntr.getNoDataValue();
@@ -303,9 +306,7 @@ public class Watershed implements WhiteboxPlugin {
                     }
                 }
 
-                outlet = new WhiteboxRaster(outletHeader.replace(".shp", ".dep"), "rw",
-                    inputHeader, WhiteboxRaster.DataType.FLOAT, 0);
-                outlet.isTemporaryFile = true;
+                outlet = new MemoryRaster(outletHeader.replace(".shp", ".dep"), inputHeader, WhiteboxRaster.DataType.FLOAT, 0);
                 
                 int numOutlets = outletXs.size();
                 double outletX, outletY;
@@ -340,20 +341,28 @@ public class Watershed implements WhiteboxPlugin {
                     inputHeader, WhiteboxRaster.DataType.FLOAT, -999);
             output.setDataScale(WhiteboxRasterBase.DataScale.CATEGORICAL);
             output.setPreferredPalette("categorical1.pal");
+            output.setUseTileCache(true);
             
-            for (row = 0; row < rows; row++) {
-                for (col = 0; col < cols; col++) {
-                    z = outlet.getValue(row, col);
-                    if (z != 0 && z != noData) {
-                        output.setValue(row, col, z);
+            // outlet rasters are mostly NoData, and so only their valid
+            // cells are visited
+            ValidCellIterator outletCells = outlet.getValidCellIterator();
+            int oldRow = -1;
+            while (outletCells.next()) {
+                row = outletCells.getRow();
+                col = outletCells.getColumn();
+                if (row != oldRow) {
+                    if (cancelOp) {
+                        cancelOperation();
+                        return;
                     }
+                    progress = (float) (100f * row / (rows - 1));
+                    updateProgress("Loop 1 of 2:", (int) progress);
+                    oldRow = row;
                 }
-                if (cancelOp) {
-                    cancelOperation();
-                    return;
+                z = outletCells.getValue();
+                if (z != 0 && z != noData) {
+                    output.setValue(row, col, z);
                 }
-                progress = (float) (100f * row / (rows - 1));
-                updateProgress("Loop 1 of 2:", (int) progress);
             }
 
             for (row = 0; row < rows; row++) {
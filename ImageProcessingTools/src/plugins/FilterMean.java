@@ -160,7 +160,7 @@ public class FilterMean implements WhiteboxPlugin {
         
         String inputHeader = null;
         String outputHeader = null;
-        int row, col, x, y;
+        int row, col;
         double z;
         float progress = 0;
         int a;
@@ -267,16 +267,28 @@ public class FilterMean implements WhiteboxPlugin {
                 }
             }
             
+            // each row of output is calculated from a window spanning the
+            // filter's rows, padded on either side by half the filter width.
+            WhiteboxRaster.HaloPolicy haloPolicy = reflectAtBorders
+                    ? WhiteboxRaster.HaloPolicy.REFLECT : WhiteboxRaster.HaloPolicy.NODATA;
+            int windowWidth = cols + 2 * midPointX;
+            double[] window = null;
+            int[] offsets = new int[numPixelsInFilter];
+            for (a = 0; a < numPixelsInFilter; a++) {
+                offsets[a] = (dY[a] + midPointY) * windowWidth + dX[a] + midPointX;
+            }
+            int centre = midPointY * windowWidth + midPointX;
+
             for (row = 0; row < rows; row++) {
+                window = inputFile.readWindow(row - midPointY, -midPointX,
+                        filterSizeY, windowWidth, haloPolicy, window);
                 for (col = 0; col < cols; col++) {
-                    z = inputFile.getValue(row, col);
+                    z = window[col + centre];
                     if (z != noData) {
                         n = 0;
                         sum = 0;
                         for (a = 0; a < numPixelsInFilter; a++) {
-                            x = col + dX[a];
-                            y = row + dY[a];
-                            z = inputFile.getValue(y, x);
+                            z = window[col + offsets[a]];
                             if (z != noData) {
                                 n += filterShape[a];
                                 sum += z * filterShape[a];
@@ -16,8 +16,7 @@
  */
 package plugins;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Date;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
@@ -162,7 +161,7 @@ public class FilterMedian implements WhiteboxPlugin {
         
         String inputHeader = null;
         String outputHeader = null;
-        int row, col, x, y;
+        int row, col;
         double z;
         float progress = 0;
         int a;
@@ -177,7 +176,7 @@ public class FilterMedian implements WhiteboxPlugin {
         boolean filterRounded = false;
         double[] filterShape;
         boolean reflectAtBorders = false;
-        ArrayList<Double> data = new ArrayList<Double>();
+        double[] data;
     
         if (args.length <= 0) {
             showFeedback("Plugin parameters have not been set.");
@@ -231,6 +230,7 @@ public class FilterMedian implements WhiteboxPlugin {
             }
 
             numPixelsInFilter = filterSizeX * filterSizeY;
+            data = new double[numPixelsInFilter];
             dX = new int[numPixelsInFilter];
             dY = new int[numPixelsInFilter];
             filterShape = new double[numPixelsInFilter];
@@ -269,27 +269,39 @@ public class FilterMedian implements WhiteboxPlugin {
                 }
             }
             
+            // each row of output is calculated from a window spanning the
+            // filter's rows, padded on either side by half the filter width.
+            WhiteboxRaster.HaloPolicy haloPolicy = reflectAtBorders
+                    ? WhiteboxRaster.HaloPolicy.REFLECT : WhiteboxRaster.HaloPolicy.NODATA;
+            int windowWidth = cols + 2 * midPointX;
+            double[] window = null;
+            int[] offsets = new int[numPixelsInFilter];
+            for (a = 0; a < numPixelsInFilter; a++) {
+                offsets[a] = (dY[a] + midPointY) * windowWidth + dX[a] + midPointX;
+            }
+            int centre = midPointY * windowWidth + midPointX;
+
             for (row = 0; row < rows; row++) {
+                window = inputFile.readWindow(row - midPointY, -midPointX,
+                        filterSizeY, windowWidth, haloPolicy, window);
                 for (col = 0; col < cols; col++) {
-                    z = inputFile.getValue(row, col);
+                    z = window[col + centre];
                     if (z != noData) {
-                        data.clear();
+                        dataSize = 0;
                         for (a = 0; a < numPixelsInFilter; a++) {
-                            x = col + dX[a];
-                            y = row + dY[a];
-                            z = inputFile.getValue(y, x);
+                            z = window[col + offsets[a]];
                             if (z != noData && filterShape[a] == 1) {
-                                data.add(z);
+                                data[dataSize] = z;
+                                dataSize++;
                             }
                         }
                        
-                        Collections.sort(data);
-                        dataSize = data.size();
+                        Arrays.sort(data, 0, dataSize);
                         if (dataSize % 2 == 1) {
-                            z = data.get((dataSize + 1) / 2 - 1);
+                            z = data[(dataSize + 1) / 2 - 1];
                         } else {
-                            double lower = data.get(dataSize / 2 - 1);
-                            double upper = data.get(dataSize / 2);
+                            double lower = data[dataSize / 2 - 1];
+                            double upper = data[dataSize / 2];
                             z = (lower + upper) / 2.0;
                         }
                         
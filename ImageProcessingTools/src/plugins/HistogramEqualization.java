@@ -211,53 +211,29 @@ public class HistogramEqualization implements WhiteboxPlugin {
 
                 double minValue = image.getMinimumValue();
                 double maxValue = image.getMaximumValue();
-                double binSize = (maxValue - minValue) / numBins;
-                long[] histogram = new long[numBins];
+                double binSize;
+                long[] histogram;
                 int binNum;
                 int numBinsLessOne = numBins - 1;
                 double[] data;
 
                 if (image.getDataScale() != WhiteboxRaster.DataScale.RGB) {
 
-                    updateProgress("Loop 1 of 2:", 0);
-                    for (row = 0; row < rows; row++) {
-                        data = image.getRowValues(row);
-                        for (col = 0; col < cols; col++) {
-                            if (data[col] != noData) {
-                                numCells++;
-                                binNum = (int) ((data[col] - minValue) / binSize);
-                                if (binNum > numBinsLessOne) {
-                                    binNum = numBinsLessOne;
-                                }
-                                histogram[binNum]++;
-                            }
-
-                        }
-                        if (cancelOp) {
-                            cancelOperation();
-                            return;
-                        }
-                        progress = (float) (100f * row / (rows - 1));
-                        updateProgress("Loop 1 of 2:", (int) progress);
+                    // the cumulative distribution is looked up in the image's
+                    // statistics, which hold a quantile sketch of its values,
+                    // rather than found by counting the values in a histogram.
+                    double cdfMin = image.getCumulativeProbability(minValue);
+                    double cdfRange = 1 - cdfMin;
+                    if (cdfRange <= 0) {
+                        cdfRange = 1;
                     }
 
-                    double[] cdf = new double[numBins];
-                    cdf[0] = histogram[0];
-                    for (int j = 1; j < numBins; j++) {
-                        cdf[j] = cdf[j - 1] + histogram[j];
-                    }
-                    histogram = null;
-
-                    updateProgress("Loop 2 of 2:", 0);
+                    updateProgress("Progress:", 0);
                     for (row = 0; row < rows; row++) {
                         data = image.getRowValues(row);
                         for (col = 0; col < cols; col++) {
                             if (data[col] != noData) {
-                                binNum = (int) ((data[col] - minValue) / binSize);
-                                if (binNum > numBinsLessOne) {
-                                    binNum = numBinsLessOne;
-                                }
-                                z = Math.round((cdf[binNum] - cdf[0]) / (numCells - cdf[0]) * numBinsLessOne);
+                                z = Math.round((image.getCumulativeProbability(data[col]) - cdfMin) / cdfRange * numBinsLessOne);
                                 output.setValue(row, col, z);
                             }
 
@@ -267,7 +243,7 @@ public class HistogramEqualization implements WhiteboxPlugin {
                             return;
                         }
                         progress = (float) (100f * row / (rows - 1));
-                        updateProgress("Loop 2 of 2:", (int) progress);
+                        updateProgress("Progress:", (int) progress);
                     }
                 } else {
                     output = new WhiteboxRaster(outputHeader, "rw", imageFiles[i], 
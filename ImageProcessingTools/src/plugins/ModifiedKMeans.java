@@ -16,11 +16,13 @@
  */
 package plugins;
 
+import java.io.File;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Random;
 import whitebox.geospatialfiles.WhiteboxRaster;
+import whitebox.geospatialfiles.WhiteboxRasterBase;
 import whitebox.geospatialfiles.WhiteboxRasterBase.DataScale;
 import whitebox.geospatialfiles.WhiteboxRasterInfo;
 import whitebox.interfaces.WhiteboxPlugin;
@@ -173,7 +175,10 @@ public class ModifiedKMeans implements WhiteboxPlugin {
         int progress = 0;
         int col, row;
         int a, i, j;
-        double[][] data;
+        double[] data = null;
+        int p;
+        WhiteboxRasterInfo bands = null;
+        String stackHeader = null;
         double noData = -32768;
         double[][] classCentres = null;
         double[] classCentre;
@@ -245,12 +250,20 @@ public class ModifiedKMeans implements WhiteboxPlugin {
                 imageMetaData[i][0] = images[i].getNoDataValue();
                 imageMetaData[i][1] = images[i].getMinimumValue();
                 imageMetaData[i][2] = images[i].getMaximumValue();
-
+                images[i].close();
             }
 
+            // the images are stacked into a temporary pixel-interleaved
+            // raster, so that each pass reads the values of every image for
+            // a row with a single read of a single file. NoData in any image
+            // becomes the stack's NoData value.
+            stackHeader = File.createTempFile("ModifiedKMeansBands", ".dep",
+                    new File(outputHeader).getAbsoluteFile().getParentFile()).getPath();
+            WhiteboxRasterBase.createStack(stackHeader, imageFiles, WhiteboxRasterBase.Interleave.BIP);
+            bands = new WhiteboxRasterInfo(stackHeader);
+
             numClasses = initialNumClasses;
             
-            data = new double[numImages][];
             numPixelsInEachClass = new long[numImages];
 
             // now set up the output image
@@ -400,14 +413,13 @@ public class ModifiedKMeans implements WhiteboxPlugin {
                 numPixelsChanged = 0;
                 
                 for (row = 0; row < nRows; row++) {
-                    for (i = 0; i < numImages; i++) {
-                        data[i] = images[i].getRowValues(row);
-                    }
+                    data = bands.getInterleavedRowValues(row, data);
                     for (col = 0; col < nCols; col++) {
+                        p = col * numImages;
                         // check to see if the cell is a nodata value in any of the input images
                         isNoDataPixel = false;
                         for (i = 0; i < numImages; i++) {
-                            if (data[i][col] == imageMetaData[i][0]) { 
+                            if (data[p + i] == noData) { 
                                 isNoDataPixel = true; 
                                 break;
                             }
@@ -423,7 +435,7 @@ public class ModifiedKMeans implements WhiteboxPlugin {
                             for (a = 0; a < numClasses; a++) {
                                 dist = 0;
                                 for (i = 0; i < numImages; i++) {
-                                    dist += (data[i][col] - classCentres[a][i]) * (data[i][col] - classCentres[a][i]);
+                                    dist += (data[p + i] - classCentres[a][i]) * (data[p + i] - classCentres[a][i]);
                                 }
                                 if (dist < minDist && dist <= maxDist) {
                                     minDist = dist;
@@ -443,7 +455,7 @@ public class ModifiedKMeans implements WhiteboxPlugin {
                                 numPixelsInEachClass[whichClass]++;
 
                                 for (i = 0; i < numImages; i++) {
-                                    classCentreData[whichClass][i] += (data[i][col] - imageMetaData[i][1]);
+                                    classCentreData[whichClass][i] += (data[p + i] - imageMetaData[i][1]);
                                 }
                             }
                             
@@ -482,13 +494,12 @@ public class ModifiedKMeans implements WhiteboxPlugin {
             double[] totalDeviations = new double[numClasses];
             int numberOfUnassignedPixels = 0;
             for (row = 0; row < nRows; row++) {
-                for (i = 0; i < numImages; i++) {
-                    data[i] = images[i].getRowValues(row);
-                }
+                data = bands.getInterleavedRowValues(row, data);
                 for (col = 0; col < nCols; col++) {
+                    p = col * numImages;
                     isNoDataPixel = false;
                     for (i = 0; i < numImages; i++) {
-                        if (data[i][col] == imageMetaData[i][0]) {
+                        if (data[p + i] == noData) {
                             isNoDataPixel = true;
                             break;
                         }
@@ -498,7 +509,7 @@ public class ModifiedKMeans implements WhiteboxPlugin {
                         if (whichClass != unassignedClass) {
                             dist = 0;
                             for (i = 0; i < numImages; i++) {
-                                dist += (data[i][col] - classCentres[whichClass][i]) * (data[i][col] - classCentres[whichClass][i]);
+                                dist += (data[p + i] - classCentres[whichClass][i]) * (data[p + i] - classCentres[whichClass][i]);
                             }
                             totalDeviations[whichClass] += dist;
                         } else {
@@ -587,11 +598,6 @@ public class ModifiedKMeans implements WhiteboxPlugin {
             Dendrogram plot = new Dendrogram(classCentres, numPixelsInEachClass);
             returnData(plot);
             
-            for (i = 0; i < numImages; i++) {
-                images[i].close();
-            }
-            
-            
             output.addMetadataEntry("Created by the "
                     + getDescriptiveName() + " tool.");
             output.addMetadataEntry("Created on " + new Date());
@@ -606,6 +612,13 @@ public class ModifiedKMeans implements WhiteboxPlugin {
             myHost.showFeedback("An error has occurred during operation. See log file for details.");
             myHost.logException("Error in " + getDescriptiveName(), e);
         } finally {
+            if (bands != null) {
+                bands.close();
+                new File(bands.getDataFile()).delete();
+            }
+            if (stackHeader != null) {
+                new File(stackHeader).delete();
+            }
             updateProgress("Progress: ", 0);
             // tells the main application that this process is completed.
             amIActive = false;
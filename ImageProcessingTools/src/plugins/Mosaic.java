@@ -20,6 +20,7 @@ import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.PrintWriter;
 import java.util.Date;
+import whitebox.geospatialfiles.VirtualMosaic;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.geospatialfiles.WhiteboxRasterBase;
 import whitebox.geospatialfiles.WhiteboxRasterInfo;
@@ -197,7 +198,8 @@ public class Mosaic implements WhiteboxPlugin {
         resampleMethod = args[2].toLowerCase().trim();
         if (!resampleMethod.equals("nearest neighbour")
                 && !resampleMethod.equals("bilinear")
-                && !resampleMethod.equals("cubic convolution")) {
+                && !resampleMethod.equals("cubic convolution")
+                && !resampleMethod.equals("virtual")) {
             showFeedback("Resample method not recognized");
             return;
         }
@@ -214,6 +216,14 @@ public class Mosaic implements WhiteboxPlugin {
 
         try {
             
+            if (resampleMethod.equals("virtual")) {
+                // only a header listing the images is written; the values
+                // are read from the images, by nearest neighbour, as needed
+                VirtualMosaic.create(destHeader, imageFiles);
+                returnData(destHeader);
+                return;
+            }
+            
             boolean eastGreaterThanWest = true;
             boolean northGreaterThanSouth = true;
             double[][] imageData = new double[numImages][11];
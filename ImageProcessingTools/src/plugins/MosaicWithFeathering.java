@@ -18,6 +18,7 @@ package plugins;
 
 import java.util.Date;
 import java.io.File;
+import whitebox.geospatialfiles.MemoryRaster;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.geospatialfiles.WhiteboxRasterBase;
 import whitebox.geospatialfiles.WhiteboxRasterInfo;
@@ -353,10 +354,8 @@ public class MosaicWithFeathering implements WhiteboxPlugin {
             // distance to edge images
             String distToEdgeBaseHeader =
                     StringUtilities.replaceLast(inputBaseHeader, ".dep", "_temp1.dep");
-            WhiteboxRaster distToEdgeBase = new WhiteboxRaster(distToEdgeBaseHeader,
-                    "rw", inputBaseHeader, WhiteboxRaster.DataType.FLOAT,
-                    Float.POSITIVE_INFINITY);
-            distToEdgeBase.isTemporaryFile = true;
+            WhiteboxRaster distToEdgeBase = new MemoryRaster(distToEdgeBaseHeader,
+                    inputBaseHeader, WhiteboxRaster.DataType.FLOAT, Float.POSITIVE_INFINITY);
 
             double[] data;
             for (row = 0; row < baseRows; row++) {
@@ -383,10 +382,8 @@ public class MosaicWithFeathering implements WhiteboxPlugin {
             calculateDistance(distToEdgeBase);
 
             String distToEdgeAppendHeader = whitebox.utilities.StringUtilities.replaceLast(inputBaseHeader, ".dep", "_temp2.dep");
-            WhiteboxRaster distToEdgeAppend = new WhiteboxRaster(distToEdgeAppendHeader,
-                    "rw", inputHeader, WhiteboxRaster.DataType.FLOAT,
-                    Float.POSITIVE_INFINITY);
-            distToEdgeAppend.isTemporaryFile = true;
+            WhiteboxRaster distToEdgeAppend = new MemoryRaster(distToEdgeAppendHeader,
+                    inputHeader, WhiteboxRaster.DataType.FLOAT, Float.POSITIVE_INFINITY);
 
             for (row = 0; row < appendRows; row++) {
                 data = appendRaster.getRowValues(row);
@@ -864,10 +861,8 @@ public class MosaicWithFeathering implements WhiteboxPlugin {
         double noData = outputImage.getNoDataValue();
         double gridRes = (outputImage.getCellSizeX() + outputImage.getCellSizeY()) / 2;
 
-        WhiteboxRaster Rx = new WhiteboxRaster(outputHeader.replace(".dep", "_temp1.dep"), "rw", outputHeader, WhiteboxRaster.DataType.FLOAT, 0);
-        Rx.isTemporaryFile = true;
-        WhiteboxRaster Ry = new WhiteboxRaster(outputHeader.replace(".dep", "_temp2.dep"), "rw", outputHeader, WhiteboxRaster.DataType.FLOAT, 0);
-        Ry.isTemporaryFile = true;
+        WhiteboxRaster Rx = new MemoryRaster(outputHeader.replace(".dep", "_temp1.dep"), outputHeader, WhiteboxRaster.DataType.FLOAT, 0);
+        WhiteboxRaster Ry = new MemoryRaster(outputHeader.replace(".dep", "_temp2.dep"), outputHeader, WhiteboxRaster.DataType.FLOAT, 0);
 
 
         for (row = 0; row < rows; row++) {
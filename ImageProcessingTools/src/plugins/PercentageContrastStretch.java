@@ -164,7 +164,7 @@ public class PercentageContrastStretch implements WhiteboxPlugin {
         double z;
         double noData;
         int progress;
-        int i, bin;
+        int i;
         int numImages = 0;
         double minVal, maxVal;
         int numBins = 1024;
@@ -200,79 +200,20 @@ public class PercentageContrastStretch implements WhiteboxPlugin {
                 noData = image.getNoDataValue();
                 double[] data = null;
                 
-                // first create the histogram
+                // the clip values are looked up in the image's statistics,
+                // which hold a quantile sketch of its values, rather than
+                // found by counting the values in a histogram.
+                updateProgress("Calculating clip values:", 0);
                 double inputImageMin = image.getMinimumValue();
                 double inputImageMax = image.getMaximumValue();
-                int inputImageBins = (int)(inputImageMax - inputImageMin + 1);
-                double inputImageRange = inputImageMax - inputImageMin;
-                double[] histo = new double[inputImageBins];
-                
-                for (row = 0; row < nRows; row++) {
-                    data = image.getRowValues(row);
-                    for (col = 0; col < nCols; col++) {
-                        if (data[col] != noData) {
-                            bin = (int) (data[col] - inputImageMin);
-                            if (bin < 0) {
-                                bin = 0;
-                            }
-                            if (bin > (inputImageBins - 1)) {
-                                bin = (inputImageBins - 1);
-                            }
-                            histo[bin]++;
-                        }
-                    }
-                    if (cancelOp) {
-                        cancelOperation();
-                        return;
-                    }
-                    progress = (int) (100f * row / (nRows - 1));
-                    updateProgress("Calculating clip values:", progress);
-                }
-
-                // convert the histogram into a cumulative prob.
-                for (int a = 1; a < inputImageBins; a++) {
-                    histo[a] = histo[a] + histo[a - 1];
-                }
-                // convert the histogram into a cumulative prob.
-                for (int a = 0; a < inputImageBins; a++) {
-                    histo[a] = histo[a] / histo[inputImageBins - 1] * 100;
-                }
-                
-                // find the upper and lower tails.
-                boolean lowerTailFound = false;
-                boolean upperTailFound = false;
-                minVal = -1;
-                maxVal = -1;
                 if (whichTailsToClip.contains("both")) {
-                    for (int a = 1; a < inputImageBins; a++) {
-                        if (histo[a] >= clipPercentage && !lowerTailFound) {
-                            minVal = (a - 1 + inputImageMin) + (clipPercentage - histo[a - 1]) / (histo[a] - histo[a - 1]);
-                            lowerTailFound = true;
-                        }
-
-                        if (histo[a] >= (100 - clipPercentage) && !upperTailFound) {
-                            maxVal = (a - 1 + inputImageMin) + ((100 - clipPercentage) - histo[a - 1]) / (histo[a] - histo[a - 1]);
-                            upperTailFound = true;
-                            break;
-                        }
-                    }
+                    minVal = image.getPercentileValue(clipPercentage);
+                    maxVal = image.getPercentileValue(100 - clipPercentage);
                 } else if (whichTailsToClip.contains("lower")) {
-                    for (int a = 1; a < inputImageBins; a++) {
-                        if (histo[a] >= clipPercentage && !lowerTailFound) {
-                            minVal = (a - 1 + inputImageMin) + (clipPercentage - histo[a - 1]) / (histo[a] - histo[a - 1]);
-                            lowerTailFound = true;
-                            break;
-                        }
-                    }
+                    minVal = image.getPercentileValue(clipPercentage);
                     maxVal = inputImageMax;
                 } else {
-                    for (int a = 1; a < inputImageBins; a++) {
-                        if (histo[a] >= (100 - clipPercentage) && !upperTailFound) {
-                            maxVal = (a - 1 + inputImageMin) + ((100 - clipPercentage) - histo[a - 1]) / (histo[a] - histo[a - 1]);
-                            upperTailFound = true;
-                            break;
-                        }
-                    }
+                    maxVal = image.getPercentileValue(100 - clipPercentage);
                     minVal = inputImageMin;
                 }
                 
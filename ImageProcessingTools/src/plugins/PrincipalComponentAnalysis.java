@@ -17,6 +17,7 @@
 package plugins;
 
 import whitebox.geospatialfiles.WhiteboxRaster;
+import whitebox.geospatialfiles.WhiteboxRasterBase;
 import whitebox.geospatialfiles.WhiteboxRasterInfo;
 import whitebox.interfaces.WhiteboxPluginHost;
 import whitebox.interfaces.WhiteboxPlugin;
@@ -194,8 +195,11 @@ public class PrincipalComponentAnalysis implements WhiteboxPlugin {
         double[] imageAverages;
         double[] imageTotals;
         double[] imageNumPixels;
-        double[][] data;
-        double[] noDataValues;
+        double[] data = null;
+        int p;
+        double noData;
+        WhiteboxRasterInfo bands = null;
+        String stackHeader = null;
         String pathSep = File.separator;
         boolean standardizedPCA = false;
         int numberOfComponentImagesToCreate = 0;
@@ -227,12 +231,10 @@ public class PrincipalComponentAnalysis implements WhiteboxPlugin {
             imageAverages = new double[numImages];
             imageTotals = new double[numImages];
             imageNumPixels = new double[numImages];
-            noDataValues = new double[numImages];
-            data = new double[numImages][];
             
             for (i = 0; i < numImages; i++) {
                 images[i] = new WhiteboxRasterInfo(imageFiles[i]);
-                noDataValues[i] = images[i].getNoDataValue();
+                images[i].close();
                 if (i == 0) {
                     nCols = images[i].getNumberColumns();
                     nRows = images[i].getNumberRows();
@@ -247,15 +249,24 @@ public class PrincipalComponentAnalysis implements WhiteboxPlugin {
                 }
             }
 
+            // the images are stacked into a temporary pixel-interleaved
+            // raster, so that each pass reads the values of every image for
+            // a row with a single read of a single file. NoData in any image
+            // becomes the stack's NoData value.
+            stackHeader = File.createTempFile("PCABands", ".dep",
+                    new File(imageFiles[0]).getAbsoluteFile().getParentFile()).getPath();
+            WhiteboxRasterBase.createStack(stackHeader, imageFiles, WhiteboxRasterBase.Interleave.BIP);
+            bands = new WhiteboxRasterInfo(stackHeader);
+            noData = bands.getNoDataValue();
+
             // Calculate the means
             for (row = 0; row < nRows; row++) {
-                for (i = 0; i < numImages; i++) {
-                    data[i] = images[i].getRowValues(row);
-                }
+                data = bands.getInterleavedRowValues(row, data);
                 for (col = 0; col < nCols; col++) {
+                    p = col * numImages;
                     for (i = 0; i < numImages; i++) {
-                        if (data[i][col] != noDataValues[i]) {
-                            imageTotals[i] += data[i][col];
+                        if (data[p + i] != noData) {
+                            imageTotals[i] += data[p + i];
                             imageNumPixels[i]++;
                         }
 
@@ -278,18 +289,17 @@ public class PrincipalComponentAnalysis implements WhiteboxPlugin {
             double[][] covariances = new double[numImages][numImages];
             double[][] correlationMatrix = new double[numImages][numImages];
             for (row = 0; row < nRows; row++) {
-                for (i = 0; i < numImages; i++) {
-                    data[i] = images[i].getRowValues(row);
-                }
+                data = bands.getInterleavedRowValues(row, data);
                 for (col = 0; col < nCols; col++) {
+                    p = col * numImages;
                     for (i = 0; i < numImages; i++) {
-                        if (data[i][col] != noDataValues[i]) {
-                            imageTotalDeviation[i] += (data[i][col] - imageAverages[i])
-                                    * (data[i][col] - imageAverages[i]);
+                        if (data[p + i] != noData) {
+                            imageTotalDeviation[i] += (data[p + i] - imageAverages[i])
+                                    * (data[p + i] - imageAverages[i]);
                             for (a = 0; a < numImages; a++) {
-                                if (data[a][col] != noDataValues[a]) {
-                                    covariances[i][a] += (data[i][col] - imageAverages[i]) 
-                                            * (data[a][col] - imageAverages[a]);
+                                if (data[p + a] != noData) {
+                                    covariances[i][a] += (data[p + i] - imageAverages[i]) 
+                                            * (data[p + a] - imageAverages[a]);
                                 }
                             }
                         }
@@ -388,18 +398,17 @@ public class PrincipalComponentAnalysis implements WhiteboxPlugin {
                     output.setDataScale(DataScale.CONTINUOUS);
 
                     for (row = 0; row < nRows; row++) {
-                        for (i = 0; i < numImages; i++) {
-                            data[i] = images[i].getRowValues(row);
-                        }
+                        data = bands.getInterleavedRowValues(row, data);
                         for (col = 0; col < nCols; col++) {
-                            if (data[0][col] != noDataValues[0]) {
+                            p = col * numImages;
+                            if (data[p] != noData) {
                                 z = 0;
                                 for (i = 0; i < numImages; i++) {
-                                    z += data[i][col] * eigenvector[i];
+                                    z += data[p + i] * eigenvector[i];
                                 }
                                 output.setValue(row, col, z);
                             } else {
-                                output.setValue(row, col, noDataValues[0]);
+                                output.setValue(row, col, noData);
                             }
                         }
                         if (cancelOp) {
@@ -469,10 +478,6 @@ public class PrincipalComponentAnalysis implements WhiteboxPlugin {
             }
     
             
-            for (i = 0; i < numImages; i++) {
-                images[i].close();
-            }
-            
             returnData(ret);
             //System.out.println(ret);
             
@@ -503,6 +508,13 @@ public class PrincipalComponentAnalysis implements WhiteboxPlugin {
             myHost.showFeedback("An error has occurred during operation. See log file for details.");
             myHost.logException("Error in " + getDescriptiveName(), e);
         } finally {
+            if (bands != null) {
+                bands.close();
+                new File(bands.getDataFile()).delete();
+            }
+            if (stackHeader != null) {
+                new File(stackHeader).delete();
+            }
             updateProgress("Progress: ", 0);
             // tells the main application that this process is completed.
             amIActive = false;
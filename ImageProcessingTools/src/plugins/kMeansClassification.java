@@ -16,10 +16,12 @@
  */
 package plugins;
 
+import java.io.File;
 import java.text.DecimalFormat;
 import java.util.Date;
 import java.util.Random;
 import whitebox.geospatialfiles.WhiteboxRaster;
+import whitebox.geospatialfiles.WhiteboxRasterBase;
 import whitebox.geospatialfiles.WhiteboxRasterBase.DataScale;
 import whitebox.geospatialfiles.WhiteboxRasterInfo;
 import whitebox.interfaces.WhiteboxPlugin;
@@ -163,6 +165,8 @@ public class kMeansClassification implements WhiteboxPlugin {
         String[] imageFiles = null;
         String outputHeader = null;
         WhiteboxRasterInfo[] images = null;
+        WhiteboxRasterInfo bands = null;
+        String stackHeader = null;
         WhiteboxRaster ouptut = null;
         int nCols = 0;
         int nRows = 0;
@@ -172,7 +176,8 @@ public class kMeansClassification implements WhiteboxPlugin {
         int progress = 0;
         int col, row;
         int a, i, j;
-        double[][] data;
+        double[] data = null;
+        int p;
         double noData = -32768;
         double[][] classCentres;
         double[][] imageMetaData;
@@ -227,10 +232,17 @@ public class kMeansClassification implements WhiteboxPlugin {
                 imageMetaData[i][0] = images[i].getNoDataValue();
                 imageMetaData[i][1] = images[i].getMinimumValue();
                 imageMetaData[i][2] = images[i].getMaximumValue();
-
+                images[i].close();
             }
 
-            data = new double[numImages][];
+            // the images are stacked into a temporary pixel-interleaved
+            // raster, so that each pass reads the values of every image for
+            // a row with a single read of a single file.
+            stackHeader = File.createTempFile("kMeansBands", ".dep",
+                    new File(outputHeader).getAbsoluteFile().getParentFile()).getPath();
+            WhiteboxRasterBase.createStack(stackHeader, imageFiles, WhiteboxRasterBase.Interleave.BIP);
+            bands = new WhiteboxRasterInfo(stackHeader);
+
             numPixelsInEachClass = new long[numImages];
 
             // now set up the output image
@@ -273,11 +285,10 @@ public class kMeansClassification implements WhiteboxPlugin {
 
                 numCellsChanged = 0;
                 for (row = 0; row < nRows; row++) {
-                    for (i = 0; i < numImages; i++) {
-                        data[i] = images[i].getRowValues(row);
-                    }
+                    data = bands.getInterleavedRowValues(row, data);
                     for (col = 0; col < nCols; col++) {
-                        if (data[0][col] != noData) {
+                        p = col * numImages;
+                        if (data[p] != noData) {
                             if (!totalNumCellsCounted) {
                                 totalNumCells++;
                             }
@@ -287,7 +298,7 @@ public class kMeansClassification implements WhiteboxPlugin {
                             for (a = 0; a < numClasses; a++) {
                                 dist = 0;
                                 for (i = 0; i < numImages; i++) {
-                                    dist += (data[i][col] - classCentres[a][i]) * (data[i][col] - classCentres[a][i]);
+                                    dist += (data[p + i] - classCentres[a][i]) * (data[p + i] - classCentres[a][i]);
                                 }
                                 if (dist < minDist) {
                                     minDist = dist;
@@ -302,7 +313,7 @@ public class kMeansClassification implements WhiteboxPlugin {
 
                             numPixelsInEachClass[whichClass]++;
                             for (i = 0; i < numImages; i++) {
-                                classCentreData[whichClass][i] += data[i][col];
+                                classCentreData[whichClass][i] += data[p + i];
                             }
                         } else {
                             output.setValue(row, col, noData);
@@ -337,15 +348,14 @@ public class kMeansClassification implements WhiteboxPlugin {
             // prepare the report
             double[] totalDeviations = new double[numClasses];
             for (row = 0; row < nRows; row++) {
-                for (i = 0; i < numImages; i++) {
-                    data[i] = images[i].getRowValues(row);
-                }
+                data = bands.getInterleavedRowValues(row, data);
                 for (col = 0; col < nCols; col++) {
-                    if (data[0][col] != noData) {
+                    p = col * numImages;
+                    if (data[p] != noData) {
                         whichClass = (int)(output.getValue(row, col));
                         dist = 0;
                         for (i = 0; i < numImages; i++) {
-                            dist += (data[i][col] - classCentres[whichClass][i]) * (data[i][col] - classCentres[whichClass][i]);
+                            dist += (data[p + i] - classCentres[whichClass][i]) * (data[p + i] - classCentres[whichClass][i]);
                         }
                         totalDeviations[whichClass] += dist;
                     }
@@ -414,11 +424,6 @@ public class kMeansClassification implements WhiteboxPlugin {
             Dendrogram plot = new Dendrogram(classCentres, numPixelsInEachClass);
             returnData(plot);
             
-            for (i = 0; i < numImages; i++) {
-                images[i].close();
-            }
-            
-            
             output.addMetadataEntry("Created by the "
                     + getDescriptiveName() + " tool.");
             output.addMetadataEntry("Created on " + new Date());
@@ -433,6 +438,13 @@ public class kMeansClassification implements WhiteboxPlugin {
             myHost.showFeedback("An error has occurred during operation. See log file for details.");
             myHost.logException("Error in " + getDescriptiveName(), e);
         } finally {
+            if (bands != null) {
+                bands.close();
+                new File(bands.getDataFile()).delete();
+            }
+            if (stackHeader != null) {
+                new File(stackHeader).delete();
+            }
             updateProgress("Progress: ", 0);
             // tells the main application that this process is completed.
             amIActive = false;
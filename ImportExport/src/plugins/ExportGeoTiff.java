@@ -17,29 +17,11 @@
 
 package plugins;
 
-import java.nio.ByteOrder;
-import java.io.*;
-import java.util.Date;
-import whitebox.geospatialfiles.GeoTiff;
-import whitebox.geospatialfiles.WhiteboxRaster;
-import whitebox.geospatialfiles.WhiteboxRasterBase;
+import java.io.File;
+import whitebox.geospatialfiles.GeoTiffWriter;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
 import whitebox.interfaces.InteropPlugin;
-//import org.geotools.gce.geotiff.*;
-//import org.geotools.coverage.grid.GridCoverage2D;
-//import org.geotools.coverage.grid.GridGeometry2D;
-//import org.geotools.coverage.grid.io.GridFormatFinder;
-//import org.geotools.coverage.grid.io.AbstractGridFormat;
-//import org.geotools.coverage.grid.io.GridCoverage2DReader;
-//import org.geotools.coverage.grid.io.imageio.GeoToolsWriteParams;
-//import org.geotools.coverage.grid.io.imageio.IIOMetadataDumper;
-//import org.geotools.coverage.grid.io.imageio.geotiff.GeoTiffIIOMetadataDecoder;
-//import org.geotools.coverage.grid.io.imageio.geotiff.GeoTiffIIOMetadataEncoder.TagSet;
-//import org.geotools.coverage.processing.CoverageProcessor;
-//import org.geotools.coverage.processing.Operations;
-//import org.geotools.gce.geotiff.GeoTiffReader;
-//import org.geotools.factory.Hints;
 
 /**
  * This tool can be used to export a Whitebox GAT raster file to a GeoTIFF file (*.tif)
@@ -209,19 +191,13 @@ public class ExportGeoTiff implements WhiteboxPlugin, InteropPlugin {
         amIActive = true;
 
         String inputFilesString = null;
-        String whiteboxHeaderFile = null;
-        String whiteboxDataFile = null;
-        WhiteboxRaster output = null;
-        int i = 0;
         String[] imageFiles;
         int numImages = 0;
-        double noData = -32768;
-        int progress = 0;
-
-        String str1 = null;
-        FileWriter fw = null;
-        BufferedWriter bw = null;
-        PrintWriter out = null;
+        GeoTiffWriter.Compression compression = GeoTiffWriter.Compression.DEFLATE;
+        int tileSize = GeoTiffWriter.DEFAULT_TILE_SIZE;
+        boolean bigTiff = false;
+        boolean overviews = false;
+        GeoTiffWriter writer = null;
 
         if (args.length <= 0) {
             showFeedback("Plugin parameters have not been set.");
@@ -236,138 +212,66 @@ public class ExportGeoTiff implements WhiteboxPlugin, InteropPlugin {
             return;
         }
 
+        // the remaining parameters are optional, e.g. when the tool is run
+        // from the export menu
+        if (args.length > 1) {
+            String str = args[1].toLowerCase();
+            if (str.contains("none")) {
+                compression = GeoTiffWriter.Compression.NONE;
+            } else if (str.contains("lzw")) {
+                compression = GeoTiffWriter.Compression.LZW;
+            }
+        }
+        if (args.length > 2) {
+            String str = args[2].toLowerCase();
+            if (str.contains("strip")) {
+                tileSize = 0;
+            } else if (str.contains("512")) {
+                tileSize = 512;
+            }
+        }
+        if (args.length > 3) {
+            bigTiff = Boolean.parseBoolean(args[3]);
+        }
+        if (args.length > 4) {
+            overviews = Boolean.parseBoolean(args[4]);
+        }
+
         imageFiles = inputFilesString.split(";");
         numImages = imageFiles.length;
 
         try {
-            String returnedHeader = "";
-            for (i = 0; i < numImages; i++) {
-                //int progress = (int) (100f * i / (numImages - 1));
+            for (int i = 0; i < numImages; i++) {
+                String label = "Exporting GeoTiff file...";
                 if (numImages > 1) {
-                    updateProgress("Loop " + (i + 1) + " of " + numImages + ":", progress);
-                }
-                
-//                File file = new File("test.tiff");
-//    
-//                AbstractGridFormat format = GridFormatFinder.findFormat(file);
-//                GridCoverage2DReader reader = format.getReader(file);
-    
-//                try {
-//                GridCoverage2D coverage = reader.read(null);
-//                } catch (Exception e) {
-//                    
-//                }
-                
-                
-                
-//                File file = new File(imageFiles[i]);
-//
-//                GeoTiffReader reader = new GeoTiffReader(file, new Hints(Hints.FORCE_LONGITUDE_FIRST_AXIS_ORDER, Boolean.TRUE));
-//GridCoverage2D coverage = reader.read(null);
-                
-                GeoTiff gt = new GeoTiff(imageFiles[i]);
-                gt.read();
-
-                int compressionType = gt.getCompressionType();
-                if (compressionType != 1) {
-                    showFeedback("GeoTiff import does not currently support compressed files.");
-                    return;
-                }
-
-                boolean hasNoDataValue = gt.hasNoDataTag();
-                double nodata; // = -32768.0;
-                if (hasNoDataValue) {
-                    nodata = gt.getNoData();
-                } else {
-                    nodata = -32768;
+                    label = "Loop " + (i + 1) + " of " + numImages + ":";
                 }
 
-                int nRows = gt.getNumberRows();
-                int nCols = gt.getNumberColumns();
-
-                int dot = imageFiles[i].lastIndexOf(".");
-                String tiffExtension = imageFiles[i].substring(dot + 1); // either .tif or .tiff
-                whiteboxHeaderFile = imageFiles[i].replace(tiffExtension, "dep");
-                if (i == 0) {
-                    returnedHeader = whiteboxHeaderFile;
-                }
-                whiteboxDataFile = imageFiles[i].replace(tiffExtension, "tas");
-
-                // see if they exist, and if so, delete them.
-                (new File(whiteboxHeaderFile)).delete();
-                (new File(whiteboxDataFile)).delete();
-
-                ByteOrder byteOrder = gt.getByteOrder();
-
-                WhiteboxRasterBase.DataScale myDataScale = WhiteboxRasterBase.DataScale.CONTINUOUS;
-                if (gt.getPhotometricInterpretation() == 2) {
-                    myDataScale = WhiteboxRasterBase.DataScale.RGB;
+                String whiteboxHeaderFile = imageFiles[i];
+                // check to see if the file exists.
+                if (!((new File(whiteboxHeaderFile)).exists())) {
+                    showFeedback("Whitebox raster file does not exist.");
+                    break;
                 }
-                final WhiteboxRaster wbr = new WhiteboxRaster(whiteboxHeaderFile, gt.getNorth(), gt.getSouth(), gt.getEast(),
-                        gt.getWest(), nRows, nCols, myDataScale,
-                        WhiteboxRasterBase.DataType.FLOAT, nodata, nodata);
-
-                wbr.setByteOrder(byteOrder.toString());
-
-                double z;
-                int oldProgress = -1;
-                for (int row = 0; row < nRows; row++) {
-                    for (int col = 0; col < nCols; col++) {
-                        z = gt.getValue(row, col);
-                        if (!hasNoDataValue && (z == -32768 || z == -Float.MAX_VALUE)) {
-                            nodata = z;
-                            hasNoDataValue = true;
-                            wbr.setNoDataValue(nodata);
-                        }
-                        //if (z != nodata) {
-                        wbr.setValue(row, col, z);
-                        //}
-                    }
-                    progress = (int) (100f * row / (nRows - 1));
-                    if (progress != oldProgress) {
-                        oldProgress = progress;
-                        updateProgress("Exporting GeoTiff file...", progress);
+                String tiffFile = whiteboxHeaderFile.replace(".dep", ".tif");
+
+                writer = new GeoTiffWriter(whiteboxHeaderFile, tiffFile);
+                writer.setCompression(compression);
+                writer.setTileSize(tileSize);
+                writer.setBigTiff(bigTiff);
+                writer.setOverviews(overviews);
+                while (writer.writeNextBand()) {
+                    if (cancelOp) {
+                        cancelOperation();
+                        return;
                     }
+                    updateProgress(label, writer.getProgress());
                 }
-
-//                WhiteboxRasterBase.DataScale myDataScale = WhiteboxRasterBase.DataScale.CONTINUOUS;
-//                if (gt.getPhotometricInterpretation() == 2) {
-//                    myDataScale = WhiteboxRasterBase.DataScale.RGB;
-//                }
-//                WhiteboxRaster wbr = new WhiteboxRaster(whiteboxHeaderFile, gt.getNorth(), gt.getSouth(), gt.getEast(),
-//                        gt.getWest(), nRows, nCols, myDataScale,
-//                        WhiteboxRasterBase.DataType.FLOAT, gt.getNoData(), gt.getNoData());
-//
-//                wbr.setByteOrder(byteOrder.toString());
-//
-//                double z;
-//                for (int row = 0; row < nRows; row++) {
-//                    for (int col = 0; col < nCols; col++) {
-//                        z = gt.getValue(row, col);
-//                        wbr.setValue(row, col, z);
-//                    }
-//                    progress = (int) (100f * row / (nRows - 1));
-//                    updateProgress(progress);
-//                }
-                //wbr.flush();
-                wbr.addMetadataEntry("Created by the "
-                        + getDescriptiveName() + " tool.");
-                wbr.addMetadataEntry("Created on " + new Date());
-                String[] metaData = gt.showInfo();
-                for (int a = 0; a < metaData.length; a++) {
-                    wbr.addMetadataEntry(metaData[a]);
-                }
-                //wbr.writeHeaderFile();
-                wbr.close();
-
-                gt.close();
-
+                writer.close();
+                writer = null;
             }
 
-//            showFeedback("Operation complete");
-            if (!returnedHeader.isEmpty()) {
-                returnData(returnedHeader);
-            }
+            showFeedback("Operation complete");
 
         } catch (OutOfMemoryError oe) {
             myHost.showFeedback("An out-of-memory error has occurred during operation.");
@@ -375,9 +279,12 @@ public class ExportGeoTiff implements WhiteboxPlugin, InteropPlugin {
             myHost.showFeedback("An error has occurred during operation. See log file for details.");
             myHost.logException("Error in " + getDescriptiveName(), e);
         } finally {
-            if (out != null || bw != null) {
-                out.flush();
-                out.close();
+            if (writer != null) {
+                // an unfinished file is deleted
+                try {
+                    writer.close();
+                } catch (Exception e) {
+                }
             }
 
             updateProgress("Progress: ", 0);
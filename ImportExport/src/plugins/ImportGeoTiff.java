@@ -234,9 +234,9 @@ public class ImportGeoTiff implements WhiteboxPlugin, InteropPlugin {
                 GeoTiff gt = new GeoTiff(imageFiles[i]);
                 gt.read();
 
-                int compressionType = gt.getCompressionType();
-                if (compressionType != 1) {
-                    showFeedback("GeoTiff import does not currently support compressed files.");
+                if (!gt.isCompressionSupported()) {
+                    showFeedback("GeoTiff import does not currently support files with compression type "
+                            + gt.getCompressionType() + ", e.g. JPEG.");
                     return;
                 }
 
@@ -276,19 +276,22 @@ public class ImportGeoTiff implements WhiteboxPlugin, InteropPlugin {
                 wbr.setByteOrder(byteOrder.toString());
 
                 double z;
+                double[] data = new double[nCols];
                 int oldProgress = -1;
                 for (int row = 0; row < nRows; row++) {
-                    for (int col = 0; col < nCols; col++) {
-                        z = gt.getValue(row, col);
-                        if (!hasNoDataValue && (z == -32768 || z == -Float.MAX_VALUE)) {
-                            nodata = z;
-                            hasNoDataValue = true;
-                            wbr.setNoDataValue(nodata);
+                    gt.readRow(row, data);
+                    if (!hasNoDataValue) {
+                        for (int col = 0; col < nCols; col++) {
+                            z = data[col];
+                            if (z == -32768 || z == -Float.MAX_VALUE) {
+                                nodata = z;
+                                hasNoDataValue = true;
+                                wbr.setNoDataValue(nodata);
+                                break;
+                            }
                         }
-                        //if (z != nodata) {
-                        wbr.setValue(row, col, z);
-                        //}
                     }
+                    wbr.setRowValues(row, data);
                     progress = (int) (100f * row / (nRows - 1));
                     if (progress != oldProgress) {
                         oldProgress = progress;
@@ -23,8 +23,7 @@ import java.io.PrintWriter;
 import java.util.Date;
 import java.util.List;
 import whitebox.geospatialfiles.LASReader;
-import whitebox.geospatialfiles.LASReader.PointRecColours;
-import whitebox.geospatialfiles.LASReader.PointRecord;
+import whitebox.geospatialfiles.LASPointIterator;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
@@ -292,7 +291,7 @@ public class LiDAR_IDW_interpolation implements WhiteboxPlugin {
 
         try {
 
-            classValuesToExclude = new boolean[32]; // there can be up to 32 different classes in future versions
+            classValuesToExclude = new boolean[256]; // the point formats of LAS 1.4 have up to 256 classes
 
             if (excludeNeverClassified) {
                 classValuesToExclude[0] = true;
@@ -339,14 +338,13 @@ public class LiDAR_IDW_interpolation implements WhiteboxPlugin {
                     int nrows, ncols;
                     double x, y;
                     double z = 0;
-                    int a, i;
+                    int i;
                     int progress = 0;
                     int numPoints = 0;
                     int numPointFiles = pointFiles.length;
                     double north, south, east, west;
                     String str1;
-                    PointRecord point;
-                    PointRecColours pointColours;
+                    LASPointIterator point;
                     double[] entry;
                     double northing, easting;
                     double noData = -32768;
@@ -362,8 +360,8 @@ public class LiDAR_IDW_interpolation implements WhiteboxPlugin {
                     long numPointsInFile = las.getNumPointRecords();
                     // first count how many valid points there are.
                     numPoints = 0;
-                    for (a = 0; a < numPointsInFile; a++) {
-                        point = las.getPointRecord(a);
+                    point = las.getPointIterator();
+                    while (point.next()) {
                         if (returnNumberToInterpolate.equals("all points")) {
                             if (!point.isPointWithheld()
                                     && !(classValuesToExclude[point.getClassification()])
@@ -397,8 +395,8 @@ public class LiDAR_IDW_interpolation implements WhiteboxPlugin {
 
                     // read the points in
                     if (returnNumberToInterpolate.equals("all points")) {
-                        for (a = 0; a < numPointsInFile; a++) {
-                            point = las.getPointRecord(a);
+                        point = las.getPointIterator();
+                        while (point.next()) {
                             if (!point.isPointWithheld()
                                     && !(classValuesToExclude[point.getClassification()])
                                     && Math.abs(point.getScanAngle()) <= maxAbsScanAngle) {
@@ -413,10 +411,9 @@ public class LiDAR_IDW_interpolation implements WhiteboxPlugin {
                                 } else if (whatToInterpolate.equals("scan angle")) {
                                     z = point.getScanAngle();
                                 } else if (whatToInterpolate.equals("rgb data")) {
-                                    pointColours = las.getPointRecordColours(a);
-                                    z = (double) ((255 << 24) | (pointColours.getBlue()
-                                            << 16) | (pointColours.getGreen() << 8)
-                                            | pointColours.getRed());
+                                    z = (double) ((255 << 24) | (point.getBlue()
+                                            << 16) | (point.getGreen() << 8)
+                                            | point.getRed());
                                 }
 
                                 entry = new double[]{y, x};
@@ -435,14 +432,14 @@ public class LiDAR_IDW_interpolation implements WhiteboxPlugin {
                                     maxY = y;
                                 }
                             }
-//                            progress = (int) (100d * (a + 1) / numPointsInFile);
+//                            progress = (int) (100d * (point.getIndex() + 1) / numPointsInFile);
 //                            if ((progress % 2) == 0) {
 //                                updateProgress("Reading point data:", progress);
 //                            }
                         }
                     } else if (returnNumberToInterpolate.equals("first return")) {
-                        for (a = 0; a < numPointsInFile; a++) {
-                            point = las.getPointRecord(a);
+                        point = las.getPointIterator();
+                        while (point.next()) {
                             if (!point.isPointWithheld()
                                     && !(classValuesToExclude[point.getClassification()]
                                     && Math.abs(point.getScanAngle()) <= maxAbsScanAngle)
@@ -458,10 +455,9 @@ public class LiDAR_IDW_interpolation implements WhiteboxPlugin {
                                 } else if (whatToInterpolate.equals("scan angle")) {
                                     z = point.getScanAngle();
                                 } else if (whatToInterpolate.equals("rgb data")) {
-                                    pointColours = las.getPointRecordColours(a);
-                                    z = (double) ((255 << 24) | (pointColours.getBlue()
-                                            << 16) | (pointColours.getGreen() << 8)
-                                            | pointColours.getRed());
+                                    z = (double) ((255 << 24) | (point.getBlue()
+                                            << 16) | (point.getGreen() << 8)
+                                            | point.getRed());
                                 }
 
                                 entry = new double[]{y, x};
@@ -482,8 +478,8 @@ public class LiDAR_IDW_interpolation implements WhiteboxPlugin {
                             }
                         }
                     } else { // if (returnNumberToInterpolate.equals("last return")) {
-                        for (a = 0; a < numPointsInFile; a++) {
-                            point = las.getPointRecord(a);
+                        point = las.getPointIterator();
+                        while (point.next()) {
                             if (!point.isPointWithheld()
                                     && !(classValuesToExclude[point.getClassification()])
                                     && point.getReturnNumber() == point.getNumberOfReturns()
@@ -499,10 +495,9 @@ public class LiDAR_IDW_interpolation implements WhiteboxPlugin {
                                 } else if (whatToInterpolate.equals("scan angle")) {
                                     z = point.getScanAngle();
                                 } else if (whatToInterpolate.equals("rgb data")) {
-                                    pointColours = las.getPointRecordColours(a);
-                                    z = (double) ((255 << 24) | (pointColours.getBlue()
-                                            << 16) | (pointColours.getGreen() << 8)
-                                            | pointColours.getRed());
+                                    z = (double) ((255 << 24) | (point.getBlue()
+                                            << 16) | (point.getGreen() << 8)
+                                            | point.getRed());
                                 }
 
                                 entry = new double[]{y, x};
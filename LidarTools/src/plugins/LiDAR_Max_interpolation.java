@@ -23,8 +23,7 @@ import java.io.PrintWriter;
 import java.util.Date;
 import java.util.List;
 import whitebox.geospatialfiles.LASReader;
-import whitebox.geospatialfiles.LASReader.PointRecColours;
-import whitebox.geospatialfiles.LASReader.PointRecord;
+import whitebox.geospatialfiles.LASPointIterator;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
@@ -205,7 +204,7 @@ public class LiDAR_Max_interpolation implements WhiteboxPlugin {
         int nrows, ncols;
         double x, y;
         double z = 0;
-        int a, i;
+        int i;
         int progress = 0;
         int numPoints = 0;
         double maxValue;
@@ -270,7 +269,7 @@ public class LiDAR_Max_interpolation implements WhiteboxPlugin {
 
         try {
             
-            boolean[] classValuesToExclude = new boolean[32]; // there can be up to 32 different classes in future versions
+            boolean[] classValuesToExclude = new boolean[256]; // the point formats of LAS 1.4 have up to 256 classes
             
             if (excludeNeverClassified) { classValuesToExclude[0] = true; }
             if (excludeUnclassified) { classValuesToExclude[1] = true; }
@@ -287,8 +286,7 @@ public class LiDAR_Max_interpolation implements WhiteboxPlugin {
             int numPointFiles = pointFiles.length;
             long numPointsInFile = 0;
                 
-            PointRecord point;
-            PointRecColours pointColours;
+            LASPointIterator point;
             double[] entry;
             for (int j = 0; j < numPointFiles; j++) {
                 
@@ -300,8 +298,8 @@ public class LiDAR_Max_interpolation implements WhiteboxPlugin {
                 numPointsInFile = las.getNumPointRecords();
                 // first count how many valid points there are.
                 numPoints = 0;
-                for (a = 0; a < numPointsInFile; a++) {
-                    point = las.getPointRecord(a);
+                point = las.getPointIterator();
+                while (point.next()) {
                     if (returnNumberToInterpolate.equals("all points")) {
                         if (!point.isPointWithheld() && 
                                 !(classValuesToExclude[point.getClassification()])) {
@@ -334,8 +332,8 @@ public class LiDAR_Max_interpolation implements WhiteboxPlugin {
                 
                 // read the points in
                 if (returnNumberToInterpolate.equals("all points")) {
-                    for (a = 0; a < numPointsInFile; a++) {
-                        point = las.getPointRecord(a);
+                    point = las.getPointIterator();
+                    while (point.next()) {
                         if (!point.isPointWithheld()
                                 && !(classValuesToExclude[point.getClassification()])) {
                             x = point.getX();
@@ -349,10 +347,9 @@ public class LiDAR_Max_interpolation implements WhiteboxPlugin {
                             } else if (whatToInterpolate.equals("scan angle")) {
                                 z = point.getScanAngle();
                             } else if (whatToInterpolate.equals("rgb data")) {
-                                pointColours = las.getPointRecordColours(a);
-                                z = (double)((255 << 24) | (pointColours.getBlue() 
-                                        << 16) | (pointColours.getGreen() << 8) | 
-                                        pointColours.getRed());
+                                z = (double)((255 << 24) | (point.getBlue() 
+                                        << 16) | (point.getGreen() << 8) | 
+                                        point.getRed());
                             }
                             
                             entry = new double[]{y, x};
@@ -371,14 +368,14 @@ public class LiDAR_Max_interpolation implements WhiteboxPlugin {
                                 maxY = y;
                             }
                         }
-                        progress = (int) (100d * (a + 1) / numPointsInFile);
+                        progress = (int) (100d * (point.getIndex() + 1) / numPointsInFile);
                         if ((progress % 2) == 0) {
                             updateProgress("Reading point data:", progress);
                         }
                     }
                 } else if (returnNumberToInterpolate.equals("first return")) {
-                    for (a = 0; a < numPointsInFile; a++) {
-                        point = las.getPointRecord(a);
+                    point = las.getPointIterator();
+                    while (point.next()) {
                         if (!point.isPointWithheld()
                                 && !(classValuesToExclude[point.getClassification()]) &&
                                 point.getReturnNumber() == 1) {
@@ -393,10 +390,9 @@ public class LiDAR_Max_interpolation implements WhiteboxPlugin {
                             } else if (whatToInterpolate.equals("scan angle")) {
                                 z = point.getScanAngle();
                             } else if (whatToInterpolate.equals("rgb data")) {
-                                pointColours = las.getPointRecordColours(a);
-                                z = (double)((255 << 24) | (pointColours.getBlue() 
-                                        << 16) | (pointColours.getGreen() << 8) | 
-                                        pointColours.getRed());
+                                z = (double)((255 << 24) | (point.getBlue() 
+                                        << 16) | (point.getGreen() << 8) | 
+                                        point.getRed());
                             }
                             
                             entry = new double[]{y, x};
@@ -415,14 +411,14 @@ public class LiDAR_Max_interpolation implements WhiteboxPlugin {
                                 maxY = y;
                             }
                         }
-                        progress = (int) (100d * (a + 1) / numPointsInFile);
+                        progress = (int) (100d * (point.getIndex() + 1) / numPointsInFile);
                         if ((progress % 2) == 0) {
                             updateProgress("Reading point data:", progress);
                         }
                     }
                 } else { // if (returnNumberToInterpolate.equals("last return")) {
-                    for (a = 0; a < numPointsInFile; a++) {
-                        point = las.getPointRecord(a);
+                    point = las.getPointIterator();
+                    while (point.next()) {
                         if (!point.isPointWithheld()
                                 && !(classValuesToExclude[point.getClassification()]) &&
                                 point.getReturnNumber() == point.getNumberOfReturns()) {
@@ -437,10 +433,9 @@ public class LiDAR_Max_interpolation implements WhiteboxPlugin {
                             } else if (whatToInterpolate.equals("scan angle")) {
                                 z = point.getScanAngle();
                             } else if (whatToInterpolate.equals("rgb data")) {
-                                pointColours = las.getPointRecordColours(a);
-                                z = (double)((255 << 24) | (pointColours.getBlue() 
-                                        << 16) | (pointColours.getGreen() << 8) | 
-                                        pointColours.getRed());
+                                z = (double)((255 << 24) | (point.getBlue() 
+                                        << 16) | (point.getGreen() << 8) | 
+                                        point.getRed());
                             }
                             
                             entry = new double[]{y, x};
@@ -459,7 +454,7 @@ public class LiDAR_Max_interpolation implements WhiteboxPlugin {
                                 maxY = y;
                             }
                         }
-                        progress = (int) (100d * (a + 1) / numPointsInFile);
+                        progress = (int) (100d * (point.getIndex() + 1) / numPointsInFile);
                         if ((progress % 2) == 0) {
                             updateProgress("Reading point data:", progress);
                         }
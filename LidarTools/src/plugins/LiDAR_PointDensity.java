@@ -20,7 +20,7 @@ import java.util.Date;
 import java.util.List;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.geospatialfiles.LASReader;
-import whitebox.geospatialfiles.LASReader.PointRecord;
+import whitebox.geospatialfiles.LASPointIterator;
 import whitebox.interfaces.WhiteboxPluginHost;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.structures.KdTree;
@@ -206,7 +206,7 @@ public class LiDAR_PointDensity implements WhiteboxPlugin {
         int nrows, ncols;
         double x, y;
         double z = 0;
-        int a, i;
+        int i;
         int progress = 0;
         int numPoints = 0;
         double maxDist = Double.POSITIVE_INFINITY;
@@ -266,7 +266,7 @@ public class LiDAR_PointDensity implements WhiteboxPlugin {
 
         try {
             
-            boolean[] classValuesToExclude = new boolean[32]; // there can be up to 32 different classes in future versions
+            boolean[] classValuesToExclude = new boolean[256]; // the point formats of LAS 1.4 have up to 256 classes
             
             if (excludeNeverClassified) { classValuesToExclude[0] = true; }
             if (excludeUnclassified) { classValuesToExclude[1] = true; }
@@ -284,7 +284,7 @@ public class LiDAR_PointDensity implements WhiteboxPlugin {
             long numPointsInFile = 0;
             maxDist = (resolution * 2) * (resolution * 2); // actually squared
             
-            PointRecord point;
+            LASPointIterator point;
             double[] entry;
             for (int j = 0; j < numPointFiles; j++) {
                 
@@ -296,8 +296,8 @@ public class LiDAR_PointDensity implements WhiteboxPlugin {
                 numPointsInFile = las.getNumPointRecords();
                 // first count how many valid points there are.
                 numPoints = 0;
-                for (a = 0; a < las.getNumPointRecords(); a++) {
-                    point = las.getPointRecord(a);
+                point = las.getPointIterator();
+                while (point.next()) {
                     if (returnNumberToInterpolate.equals("all points")) {
                         if (!point.isPointWithheld() && 
                                 !(classValuesToExclude[point.getClassification()])) {
@@ -330,8 +330,8 @@ public class LiDAR_PointDensity implements WhiteboxPlugin {
                 
                 // read the points in
                 if (returnNumberToInterpolate.equals("all points")) {
-                    for (a = 0; a < numPointsInFile; a++) {
-                        point = las.getPointRecord(a);
+                    point = las.getPointIterator();
+                    while (point.next()) {
                         if (!point.isPointWithheld()
                                 && !(classValuesToExclude[point.getClassification()])) {
                             x = point.getX();
@@ -354,14 +354,14 @@ public class LiDAR_PointDensity implements WhiteboxPlugin {
                                 maxY = y;
                             }
                         }
-                        progress = (int) (100d * (a + 1) / numPointsInFile);
+                        progress = (int) (100d * (point.getIndex() + 1) / numPointsInFile);
                         if ((progress % 2) == 0) {
                             updateProgress("Reading point data:", progress);
                         }
                     }
                 } else if (returnNumberToInterpolate.equals("first return")) {
-                    for (a = 0; a < numPointsInFile; a++) {
-                        point = las.getPointRecord(a);
+                    point = las.getPointIterator();
+                    while (point.next()) {
                         if (!point.isPointWithheld()
                                 && !(classValuesToExclude[point.getClassification()]) &&
                                 point.getReturnNumber() == 1) {
@@ -385,14 +385,14 @@ public class LiDAR_PointDensity implements WhiteboxPlugin {
                                 maxY = y;
                             }
                         }
-                        progress = (int) (100d * (a + 1) / numPointsInFile);
+                        progress = (int) (100d * (point.getIndex() + 1) / numPointsInFile);
                         if ((progress % 2) == 0) {
                             updateProgress("Reading point data:", progress);
                         }
                     }
                 } else { // if (returnNumberToInterpolate.equals("last return")) {
-                    for (a = 0; a < numPointsInFile; a++) {
-                        point = las.getPointRecord(a);
+                    point = las.getPointIterator();
+                    while (point.next()) {
                         if (!point.isPointWithheld()
                                 && !(classValuesToExclude[point.getClassification()]) &&
                                 point.getReturnNumber() == point.getNumberOfReturns()) {
@@ -416,7 +416,7 @@ public class LiDAR_PointDensity implements WhiteboxPlugin {
                                 maxY = y;
                             }
                         }
-                        progress = (int) (100d * (a + 1) / numPointsInFile);
+                        progress = (int) (100d * (point.getIndex() + 1) / numPointsInFile);
                         if ((progress % 2) == 0) {
                             updateProgress("Reading point data:", progress);
                         }
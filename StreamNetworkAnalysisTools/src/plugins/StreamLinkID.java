@@ -17,6 +17,7 @@
 package plugins;
 
 import java.util.Date;
+import whitebox.geospatialfiles.ValidCellIterator;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
@@ -241,7 +242,7 @@ public class StreamLinkID implements WhiteboxPlugin {
             }
             
             WhiteboxRaster output = new WhiteboxRaster(outputHeader, "rw", 
-                    streamsHeader, WhiteboxRaster.DataType.INTEGER, 0);
+                    streamsHeader, WhiteboxRaster.DataType.INTEGER, noData);
             output.setPreferredPalette("qual.pal");
             output.setDataScale(WhiteboxRaster.DataScale.CATEGORICAL);
             
@@ -249,90 +250,95 @@ public class StreamLinkID implements WhiteboxPlugin {
             double currentID = 0;
             double currentValue = 0;
             
-            for (row = 0; row < rows; row++) {
-                for (col = 0; col < cols; col++) {
-                    if (streams.getValue(row, col) > 0) {
-                        // see if it is a headwater location
-                        numNeighbouringStreamCells = 0;
-                        for (c = 0; c < 8; c++) {
-                            x = col + dX[c];
-                            y = row + dY[c];
-                            if (streams.getValue(y, x) > 0 && 
-                                    pntr.getValue(y, x) == inflowingVals[c]) { 
-                                numNeighbouringStreamCells++; 
-                            }
+            // only the valid cells of the streams raster need be visited;
+            // the rest of the output is left as NoData.
+            ValidCellIterator streamCells = streams.getValidCellIterator();
+            int oldRow = -1;
+            while (streamCells.next()) {
+                row = streamCells.getRow();
+                col = streamCells.getColumn();
+                if (row != oldRow) {
+                    if (cancelOp) {
+                        cancelOperation();
+                        return;
+                    }
+                    progress = (float) (100f * row / (rows - 1));
+                    updateProgress((int) progress);
+                    oldRow = row;
+                }
+                if (streamCells.getValue() > 0) {
+                    // see if it is a headwater location
+                    numNeighbouringStreamCells = 0;
+                    for (c = 0; c < 8; c++) {
+                        x = col + dX[c];
+                        y = row + dY[c];
+                        if (streams.getValue(y, x) > 0 && 
+                                pntr.getValue(y, x) == inflowingVals[c]) { 
+                            numNeighbouringStreamCells++; 
                         }
-                        if (numNeighbouringStreamCells == 0) {
-                            //it's a headwater location so start a downstream flowpath
-                            x = col;
-                            y = row;
-                            currentID++;
-                            output.setValue(y, x, currentID);
-                            flag = true;
-                            do {
-                                //find the downslope neighbour
-                                flowDir = pntr.getValue(y, x);
-                                if (flowDir > 0) {
-                                    c = (int)(Math.log(flowDir) / LnOf2);
-                                    if (c > 7) {
-                                        showFeedback("An unexpected value has "
-                                                + "been identified in the pointer "
-                                                + "image. This tool requires a "
-                                                + "pointer grid that has been "
-                                                + "created using either the D8 "
-                                                + "or Rho8 tools.");
-                                        return;
-                                    }
-                                    x += dX[c];
-                                    y += dY[c];
+                    }
+                    if (numNeighbouringStreamCells == 0) {
+                        //it's a headwater location so start a downstream flowpath
+                        x = col;
+                        y = row;
+                        currentID++;
+                        output.setValue(y, x, currentID);
+                        flag = true;
+                        do {
+                            //find the downslope neighbour
+                            flowDir = pntr.getValue(y, x);
+                            if (flowDir > 0) {
+                                c = (int)(Math.log(flowDir) / LnOf2);
+                                if (c > 7) {
+                                    showFeedback("An unexpected value has "
+                                            + "been identified in the pointer "
+                                            + "image. This tool requires a "
+                                            + "pointer grid that has been "
+                                            + "created using either the D8 "
+                                            + "or Rho8 tools.");
+                                    return;
+                                }
+                                x += dX[c];
+                                y += dY[c];
 
-                                    if (streams.getValue(y, x) <= 0) { //it's not a stream cell
-                                        flag = false;
-                                    } else {
-                                        currentValue = output.getValue(y, x);
-                                        if (currentValue > 0) {
-                                            flag = false; //run into a larger stream, 
-                                            //end the downstream search
-                                            break;
-                                        }
-                                        //is it a confluence
-                                        numNeighbouringStreamCells = 0;
-                                        int x2, y2;
-                                        for (int d = 0; d < 8; d++) {
-                                            x2 = x + dX[d];
-                                            y2 = y + dY[d];
-                                            if (streams.getValue(y2, x2) > 0 
-                                                    && pntr.getValue(y2, x2) == 
-                                                    inflowingVals[d]) {
-                                                numNeighbouringStreamCells++;
-                                            }
-                                        }
-                                        if (numNeighbouringStreamCells >= 2) {
-                                            currentID++;
+                                if (streams.getValue(y, x) <= 0) { //it's not a stream cell
+                                    flag = false;
+                                } else {
+                                    currentValue = output.getValue(y, x);
+                                    if (currentValue > 0) {
+                                        flag = false; //run into a larger stream, 
+                                        //end the downstream search
+                                        break;
+                                    }
+                                    //is it a confluence
+                                    numNeighbouringStreamCells = 0;
+                                    int x2, y2;
+                                    for (int d = 0; d < 8; d++) {
+                                        x2 = x + dX[d];
+                                        y2 = y + dY[d];
+                                        if (streams.getValue(y2, x2) > 0 
+                                                && pntr.getValue(y2, x2) == 
+                                                inflowingVals[d]) {
+                                            numNeighbouringStreamCells++;
                                         }
-                                        output.setValue(y, x, currentID);
                                     }
-
-                                } else {
-                                    if (streams.getValue(y, x) > 0) { //it is a valid 
-                                        //stream cell and probably just has no downslope 
-                                        //neighbour (e.g. at the edge of the grid)
-                                        output.setValue(y, x, currentID);
+                                    if (numNeighbouringStreamCells >= 2) {
+                                        currentID++;
                                     }
-                                    flag = false;
+                                    output.setValue(y, x, currentID);
                                 }
-                            } while (flag);
-                        }
-                    } else {
-                        output.setValue(row, col, noData);
+
+                            } else {
+                                if (streams.getValue(y, x) > 0) { //it is a valid 
+                                    //stream cell and probably just has no downslope 
+                                    //neighbour (e.g. at the edge of the grid)
+                                    output.setValue(y, x, currentID);
+                                }
+                                flag = false;
+                            }
+                        } while (flag);
                     }
                 }
-                if (cancelOp) {
-                    cancelOperation();
-                    return;
-                }
-                progress = (float) (100f * row / (rows - 1));
-                updateProgress((int) progress);
             }
 
             output.addMetadataEntry("Created by the "
@@ -17,6 +17,7 @@
 package plugins;
 
 import java.util.Date;
+import whitebox.geospatialfiles.MemoryRaster;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
@@ -246,9 +247,7 @@ public class StreamMagnitude implements WhiteboxPlugin {
             output.setPreferredPalette("spectrum.pal");
             output.setDataScale(WhiteboxRaster.DataScale.CONTINUOUS);
             
-            WhiteboxRaster numInflowingStreamCells = new WhiteboxRaster(outputHeader.replace(".dep", "_temp.dep"), "rw", 
-                    streamsHeader, WhiteboxRaster.DataType.INTEGER, noData);
-            numInflowingStreamCells.isTemporaryFile = true;
+            WhiteboxRaster numInflowingStreamCells = new MemoryRaster(outputHeader.replace(".dep", "_temp.dep"), streamsHeader, WhiteboxRaster.DataType.INTEGER, noData);
             
             byte numNeighbouringStreamCells = 0;
             double currentValue = 0;
@@ -17,6 +17,7 @@
 package plugins;
 
 import java.util.Date;
+import whitebox.geospatialfiles.ValidCellIterator;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
@@ -243,7 +244,7 @@ public class StreamOrder implements WhiteboxPlugin {
             }
             
             WhiteboxRaster output = new WhiteboxRaster(outputHeader, "rw", 
-                    streamsHeader, WhiteboxRaster.DataType.INTEGER, 0);
+                    streamsHeader, WhiteboxRaster.DataType.INTEGER, noData);
             output.setPreferredPalette("spectrum.pal");
             output.setDataScale(WhiteboxRaster.DataScale.CONTINUOUS);
             
@@ -251,95 +252,100 @@ public class StreamOrder implements WhiteboxPlugin {
             double currentValue = 0;
             double currentOrder = 0;
             double maxStreamOrder = noData;
-            for (row = 0; row < rows; row++) {
-                for (col = 0; col < cols; col++) {
-                    if (streams.getValue(row, col) > 0) {
-                        // see if it is a headwater location
-                        numNeighbouringStreamCells = 0;
-                        for (c = 0; c < 8; c++) {
-                            x = col + dX[c];
-                            y = row + dY[c];
-                            if (streams.getValue(y, x) > 0 && 
-                                    pntr.getValue(y, x) == inflowingVals[c]) { 
-                                numNeighbouringStreamCells++; 
-                            }
+            // only the valid cells of the streams raster need be visited;
+            // the rest of the output is left as NoData.
+            ValidCellIterator streamCells = streams.getValidCellIterator();
+            int oldRow = -1;
+            while (streamCells.next()) {
+                row = streamCells.getRow();
+                col = streamCells.getColumn();
+                if (row != oldRow) {
+                    if (cancelOp) {
+                        cancelOperation();
+                        return;
+                    }
+                    progress = (float) (100f * row / (rows - 1));
+                    updateProgress((int) progress);
+                    oldRow = row;
+                }
+                if (streamCells.getValue() > 0) {
+                    // see if it is a headwater location
+                    numNeighbouringStreamCells = 0;
+                    for (c = 0; c < 8; c++) {
+                        x = col + dX[c];
+                        y = row + dY[c];
+                        if (streams.getValue(y, x) > 0 && 
+                                pntr.getValue(y, x) == inflowingVals[c]) { 
+                            numNeighbouringStreamCells++; 
                         }
-                        if (numNeighbouringStreamCells == 0) {
-                            //it's a headwater location so start a downstream flowpath
-                            x = col;
-                            y = row;
-                            currentOrder = 1;
-                            output.setValue(y, x, currentOrder);
-                            flag = true;
-                            do {
-                                //find the downslope neighbour
-                                flowDir = pntr.getValue(y, x);
-                                if (flowDir > 0) {
-                                    c = (int)(Math.log(flowDir) / LnOf2);
-                                    if (c > 7) {
-                                        showFeedback("An unexpected value has "
-                                                + "been identified in the pointer "
-                                                + "image. This tool requires a "
-                                                + "pointer grid that has been "
-                                                + "created using either the D8 "
-                                                + "or Rho8 tools.");
-                                        return;
-                                    }
-                                    x += dX[c];
-                                    y += dY[c];
+                    }
+                    if (numNeighbouringStreamCells == 0) {
+                        //it's a headwater location so start a downstream flowpath
+                        x = col;
+                        y = row;
+                        currentOrder = 1;
+                        output.setValue(y, x, currentOrder);
+                        flag = true;
+                        do {
+                            //find the downslope neighbour
+                            flowDir = pntr.getValue(y, x);
+                            if (flowDir > 0) {
+                                c = (int)(Math.log(flowDir) / LnOf2);
+                                if (c > 7) {
+                                    showFeedback("An unexpected value has "
+                                            + "been identified in the pointer "
+                                            + "image. This tool requires a "
+                                            + "pointer grid that has been "
+                                            + "created using either the D8 "
+                                            + "or Rho8 tools.");
+                                    return;
+                                }
+                                x += dX[c];
+                                y += dY[c];
 
-                                    if (streams.getValue(y, x) <= 0) { //it's not a stream cell
-                                        flag = false;
-                                    } else {
-                                        currentValue = output.getValue(y, x);
-                                        if (currentValue > currentOrder) {
-                                            flag = false; //run into a larger stream, end the downstream search
-                                            break;
-                                        }
-                                        if (currentValue == currentOrder) {
-                                            numNeighbouringStreamCells = 0;
-                                            for (d = 0; d < 8; d++) {
-                                                x2 = x + dX[d];
-                                                y2 = y + dY[d];
-                                                if (streams.getValue(y2, x2) > 0 &&
-                                                        pntr.getValue(y2, x2) == inflowingVals[d] &&
-                                                        output.getValue(y2, x2) == currentOrder) {
-                                                    numNeighbouringStreamCells++;
-                                                }
-                                            }
-                                            if (numNeighbouringStreamCells >= 2) {
-                                                currentOrder++;
-                                                if (currentOrder > maxStreamOrder) {
-                                                    maxStreamOrder = currentOrder;
-                                                }
-                                            } else {
-                                                flag = false;
-                                                break;
+                                if (streams.getValue(y, x) <= 0) { //it's not a stream cell
+                                    flag = false;
+                                } else {
+                                    currentValue = output.getValue(y, x);
+                                    if (currentValue > currentOrder) {
+                                        flag = false; //run into a larger stream, end the downstream search
+                                        break;
+                                    }
+                                    if (currentValue == currentOrder) {
+                                        numNeighbouringStreamCells = 0;
+                                        for (d = 0; d < 8; d++) {
+                                            x2 = x + dX[d];
+                                            y2 = y + dY[d];
+                                            if (streams.getValue(y2, x2) > 0 &&
+                                                    pntr.getValue(y2, x2) == inflowingVals[d] &&
+                                                    output.getValue(y2, x2) == currentOrder) {
+                                                numNeighbouringStreamCells++;
                                             }
                                         }
-                                        if (currentValue < currentOrder) {
-                                            output.setValue(y, x, currentOrder);
+                                        if (numNeighbouringStreamCells >= 2) {
+                                            currentOrder++;
+                                            if (currentOrder > maxStreamOrder) {
+                                                maxStreamOrder = currentOrder;
+                                            }
+                                        } else {
+                                            flag = false;
+                                            break;
                                         }
                                     }
-
-                                } else {
-                                    if (streams.getValue(y, x) > 0) { //it is a valid stream cell and probably just has no downslope neighbour (e.g. at the edge of the grid)
-                                        output.setValue(y, x, output.getValue(y, x) + 1);
+                                    if (currentValue < currentOrder) {
+                                        output.setValue(y, x, currentOrder);
                                     }
-                                    flag = false;
                                 }
-                            } while (flag);
-                        }
-                    } else {
-                        output.setValue(row, col, noData);
+
+                            } else {
+                                if (streams.getValue(y, x) > 0) { //it is a valid stream cell and probably just has no downslope neighbour (e.g. at the edge of the grid)
+                                    output.setValue(y, x, output.getValue(y, x) + 1);
+                                }
+                                flag = false;
+                            }
+                        } while (flag);
                     }
                 }
-                if (cancelOp) {
-                    cancelOperation();
-                    return;
-                }
-                progress = (float) (100f * row / (rows - 1));
-                updateProgress((int) progress);
             }
               
             output.addMetadataEntry("Created by the "
@@ -17,6 +17,7 @@
 package plugins;
 
 import java.util.Date;
+import whitebox.geospatialfiles.MemoryRaster;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.interfaces.WhiteboxPlugin;
 import whitebox.interfaces.WhiteboxPluginHost;
@@ -250,21 +251,17 @@ public class AverageSlopeToDivide implements WhiteboxPlugin {
             output.setDataScale(WhiteboxRaster.DataScale.CONTINUOUS);
             output.setZUnits(pntr.getXYUnits());
 
-            WhiteboxRaster numInflowingNeighbours = new WhiteboxRaster(outputHeader.replace(".dep", 
-                    "_temp1.dep"), "rw", inputHeader, WhiteboxRaster.DataType.FLOAT, 0);
-            numInflowingNeighbours.isTemporaryFile = true;
+            WhiteboxRaster numInflowingNeighbours = new MemoryRaster(outputHeader.replace(".dep", 
+                    "_temp1.dep"), inputHeader, WhiteboxRaster.DataType.FLOAT, 0);
             
-            WhiteboxRaster numUpslopeDivideCells = new WhiteboxRaster(outputHeader.replace(".dep", 
-                    "_temp2.dep"), "rw", inputHeader, WhiteboxRaster.DataType.FLOAT, 0);
-            numUpslopeDivideCells.isTemporaryFile = true;
+            WhiteboxRaster numUpslopeDivideCells = new MemoryRaster(outputHeader.replace(".dep", 
+                    "_temp2.dep"), inputHeader, WhiteboxRaster.DataType.FLOAT, 0);
             
-            WhiteboxRaster totalFlowpathLength = new WhiteboxRaster(outputHeader.replace(".dep", 
-                    "_temp3.dep"), "rw", inputHeader, WhiteboxRaster.DataType.FLOAT, 0);
-            totalFlowpathLength.isTemporaryFile = true;
+            WhiteboxRaster totalFlowpathLength = new MemoryRaster(outputHeader.replace(".dep", 
+                    "_temp3.dep"), inputHeader, WhiteboxRaster.DataType.FLOAT, 0);
             
-            WhiteboxRaster totalUpslopeDivideElev = new WhiteboxRaster(outputHeader.replace(".dep", 
-                    "_temp4.dep"), "rw", inputHeader, WhiteboxRaster.DataType.FLOAT, 0);
-            totalUpslopeDivideElev.isTemporaryFile = true;
+            WhiteboxRaster totalUpslopeDivideElev = new MemoryRaster(outputHeader.replace(".dep", 
+                    "_temp4.dep"), inputHeader, WhiteboxRaster.DataType.FLOAT, 0);
             
             
             updateProgress("Loop 1 of 3:", 0);
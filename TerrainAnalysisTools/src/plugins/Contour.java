@@ -17,6 +17,7 @@
 package plugins;
 
 import java.io.File;
+import whitebox.geospatialfiles.MemoryRaster;
 import whitebox.geospatialfiles.ShapeFile;
 import whitebox.geospatialfiles.WhiteboxRaster;
 import whitebox.geospatialfiles.shapefile.attributes.DBFField;
@@ -299,8 +300,7 @@ public class Contour implements WhiteboxPlugin {
             
             // create a temporary raster image.
             String tempHeader1 = demHeader.replace(".dep", "_temp1.dep");
-            WhiteboxRaster temp1 = new WhiteboxRaster(tempHeader1, "rw", demHeader, WhiteboxRaster.DataType.INTEGER, 0);
-            temp1.isTemporaryFile = true;
+            WhiteboxRaster temp1 = new MemoryRaster(tempHeader1, demHeader, WhiteboxRaster.DataType.INTEGER, 0);
             
             // set up the output files of the shapefile and the dbf
             ShapeFile output = new ShapeFile(outputFileName, ShapeType.POLYLINE);
@@ -244,12 +244,23 @@ public class Slope implements WhiteboxPlugin {
             WhiteboxRaster outputFile = new WhiteboxRaster(outputHeader, "rw", inputHeader, WhiteboxRaster.DataType.FLOAT, noData);
             outputFile.setPreferredPalette("spectrum.pal");
 
+            // each row of output is calculated from a three-row window,
+            // padded by a column on either side.
+            int windowWidth = cols + 2;
+            double[] window = null;
+            int[] offsets = new int[8];
+            for (int i = 0; i < 8; i++) {
+                offsets[i] = (Dy[i] + 1) * windowWidth + Dx[i] + 1;
+            }
+
             for (row = 0; row < rows; row++) {
+                window = inputFile.readWindow(row - 1, -1, 3, windowWidth,
+                        WhiteboxRaster.HaloPolicy.REFLECT, window);
                 for (col = 0; col < cols; col++) {
-                    z = inputFile.getValue(row, col);
+                    z = window[windowWidth + col + 1];
                     if (z != noData) {
                         for (int i = 0; i < 8; i++) {
-                            N[i] = inputFile.getValue(row + Dy[i], col + Dx[i]);
+                            N[i] = window[col + offsets[i]];
                             if (N[i] != noData) {
                                 N[i] = N[i] * zConvFactor;
                             } else {
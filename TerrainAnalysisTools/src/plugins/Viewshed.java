@@ -227,6 +227,7 @@ public class Viewshed implements WhiteboxPlugin {
         try {
 
             WhiteboxRaster DEM = new WhiteboxRaster(demHeader, "r");
+            DEM.setUseTileCache(true);
             rows = DEM.getNumberRows();
             cols = DEM.getNumberColumns();
             noData = DEM.getNoDataValue();
@@ -245,11 +246,13 @@ public class Viewshed implements WhiteboxPlugin {
             WhiteboxRaster viewAngle = new WhiteboxRaster(outputHeader.replace(".dep", "_temp1.dep"), "rw",
                     demHeader, WhiteboxRaster.DataType.FLOAT, 0);
             viewAngle.isTemporaryFile = true;
+            viewAngle.setUseTileCache(true);
 
             // create a temporary raster to hold the max view angle
             WhiteboxRaster maxViewAngle = new WhiteboxRaster(outputHeader.replace(".dep", "_temp2.dep"), "rw",
                     demHeader, WhiteboxRaster.DataType.FLOAT, 0);
             maxViewAngle.isTemporaryFile = true;
+            maxViewAngle.setUseTileCache(true);
 
             // Find all of the viewing stations.
             ArrayList<Double> stationXs = new ArrayList<>();
@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2015 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import whitebox.geospatialfiles.WhiteboxRasterBase.DataType;
+
+/**
+ * A block of grid cells held in memory at the native width of the raster's
+ * data type, rather than widened to doubles. A BYTE raster therefore costs one
+ * byte per cell and a FLOAT raster four. Values are exchanged as doubles but
+ * are narrowed to the data type as soon as they are stored, not only when the
+ * block is written to the data file. A FLOAT cell that is incremented
+ * repeatedly therefore accumulates at float precision, and INTEGER and BYTE
+ * values are truncated and then saturate at the ends of the type's range
+ * (-32,768 to 32,767 and 0 to 255) rather than wrapping around. A NoData value
+ * outside that range can't be stored, which is why WhiteboxRasterBase brings
+ * the NoData value of a new INTEGER or BYTE raster within it.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+abstract class CellBuffer {
+
+    /**
+     * Creates a new buffer for the specified data type.
+     *
+     * @param dataType The raster data type.
+     * @param length The number of cells.
+     * @return A new CellBuffer.
+     */
+    static CellBuffer create(DataType dataType, int length) {
+        switch (dataType) {
+            case FLOAT:
+                return new FloatCells(length);
+            case INTEGER:
+                return new ShortCells(length);
+            case BYTE:
+                return new ByteCells(length);
+            default:
+                return new DoubleCells(length);
+        }
+    }
+
+    /**
+     * Retrieves the number of bytes used by each cell of the specified data
+     * type.
+     */
+    static int cellSizeOf(DataType dataType) {
+        switch (dataType) {
+            case FLOAT:
+                return 4;
+            case INTEGER:
+                return 2;
+            case BYTE:
+                return 1;
+            default:
+                return 8;
+        }
+    }
+
+    abstract int length();
+
+    abstract int getCellSizeInBytes();
+
+    abstract double get(int i);
+
+    abstract void set(int i, double value);
+
+    int getInt(int i) {
+        return (int) get(i);
+    }
+
+    void add(int i, double value) {
+        set(i, get(i) + value);
+    }
+
+    abstract void fill(double value);
+
+    /**
+     * Decodes cells from the current position of a byte buffer, advancing
+     * its position.
+     */
+    abstract void read(ByteBuffer buf, int offset, int length);
+
+    /**
+     * Encodes cells at the current position of a byte buffer, advancing its
+     * position.
+     */
+    abstract void write(ByteBuffer buf, int offset, int length);
+
+    void copyTo(int offset, double[] dest, int destOffset, int length) {
+        for (int j = 0; j < length; j++) {
+            dest[destOffset + j] = get(offset + j);
+        }
+    }
+
+    void copyFrom(double[] src, int srcOffset, int offset, int length) {
+        for (int j = 0; j < length; j++) {
+            set(offset + j, src[srcOffset + j]);
+        }
+    }
+
+    long getSizeInBytes() {
+        return (long) length() * getCellSizeInBytes();
+    }
+
+    /**
+     * Narrows a value to the range of an INTEGER cell. NaN becomes zero, as
+     * it does when cast.
+     */
+    static short toShort(double value) {
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+    }
+
+    /**
+     * Narrows a value to the range of an unsigned BYTE cell.
+     */
+    static byte toByte(double value) {
+        return (byte) Math.max(0, Math.min(255, value));
+    }
+
+    static final class DoubleCells extends CellBuffer {
+
+        final double[] data;
+
+        DoubleCells(int length) {
+            data = new double[length];
+        }
+
+        @Override
+        int length() {
+            return data.length;
+        }
+
+        @Override
+        int getCellSizeInBytes() {
+            return 8;
+        }
+
+        @Override
+        double get(int i) {
+            return data[i];
+        }
+
+        @Override
+        void set(int i, double value) {
+            data[i] = value;
+        }
+
+        @Override
+        void add(int i, double value) {
+            data[i] += value;
+        }
+
+        @Override
+        void fill(double value) {
+            Arrays.fill(data, value);
+        }
+
+        @Override
+        void read(ByteBuffer buf, int offset, int length) {
+            buf.asDoubleBuffer().get(data, offset, length);
+            buf.position(buf.position() + length * 8);
+        }
+
+        @Override
+        void write(ByteBuffer buf, int offset, int length) {
+            buf.asDoubleBuffer().put(data, offset, length);
+            buf.position(buf.position() + length * 8);
+        }
+
+        @Override
+        void copyTo(int offset, double[] dest, int destOffset, int length) {
+            System.arraycopy(data, offset, dest, destOffset, length);
+        }
+
+        @Override
+        void copyFrom(double[] src, int srcOffset, int offset, int length) {
+            System.arraycopy(src, srcOffset, data, offset, length);
+        }
+    }
+
+    static final class FloatCells extends CellBuffer {
+
+        final float[] data;
+
+        FloatCells(int length) {
+            data = new float[length];
+        }
+
+        @Override
+        int length() {
+            return data.length;
+        }
+
+        @Override
+        int getCellSizeInBytes() {
+            return 4;
+        }
+
+        @Override
+        double get(int i) {
+            return data[i];
+        }
+
+        @Override
+        void set(int i, double value) {
+            data[i] = (float) value;
+        }
+
+        @Override
+        void add(int i, double value) {
+            data[i] += value;
+        }
+
+        @Override
+        void fill(double value) {
+            Arrays.fill(data, (float) value);
+        }
+
+        @Override
+        void read(ByteBuffer buf, int offset, int length) {
+            buf.asFloatBuffer().get(data, offset, length);
+            buf.position(buf.position() + length * 4);
+        }
+
+        @Override
+        void write(ByteBuffer buf, int offset, int length) {
+            buf.asFloatBuffer().put(data, offset, length);
+            buf.position(buf.position() + length * 4);
+        }
+    }
+
+    static final class ShortCells extends CellBuffer {
+
+        final short[] data;
+
+        ShortCells(int length) {
+            data = new short[length];
+        }
+
+        @Override
+        int length() {
+            return data.length;
+        }
+
+        @Override
+        int getCellSizeInBytes() {
+            return 2;
+        }
+
+        @Override
+        double get(int i) {
+            return data[i];
+        }
+
+        @Override
+        int getInt(int i) {
+            return data[i];
+        }
+
+        @Override
+        void set(int i, double value) {
+            data[i] = toShort(value);
+        }
+
+        @Override
+        void fill(double value) {
+            Arrays.fill(data, toShort(value));
+        }
+
+        @Override
+        void read(ByteBuffer buf, int offset, int length) {
+            buf.asShortBuffer().get(data, offset, length);
+            buf.position(buf.position() + length * 2);
+        }
+
+        @Override
+        void write(ByteBuffer buf, int offset, int length) {
+            buf.asShortBuffer().put(data, offset, length);
+            buf.position(buf.position() + length * 2);
+        }
+    }
+
+    static final class ByteCells extends CellBuffer {
+
+        final byte[] data;
+
+        ByteCells(int length) {
+            data = new byte[length];
+        }
+
+        @Override
+        int length() {
+            return data.length;
+        }
+
+        @Override
+        int getCellSizeInBytes() {
+            return 1;
+        }
+
+        @Override
+        double get(int i) {
+            return data[i] & 0xFF;
+        }
+
+        @Override
+        int getInt(int i) {
+            return data[i] & 0xFF;
+        }
+
+        @Override
+        void set(int i, double value) {
+            data[i] = toByte(value);
+        }
+
+        @Override
+        void fill(double value) {
+            Arrays.fill(data, toByte(value));
+        }
+
+        @Override
+        void read(ByteBuffer buf, int offset, int length) {
+            buf.get(data, offset, length);
+        }
+
+        @Override
+        void write(ByteBuffer buf, int offset, int length) {
+            buf.put(data, offset, length);
+        }
+    }
+}
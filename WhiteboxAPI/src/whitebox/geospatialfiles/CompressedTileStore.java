@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2015 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import whitebox.geospatialfiles.WhiteboxRasterBase.Compression;
+import whitebox.geospatialfiles.WhiteboxRasterBase.DataType;
+
+/**
+ * A tile store that serves tiles out of a compressed Whitebox data file. The
+ * file holds a series of independently compressed tile blobs (see TileCodec)
+ * followed by the tile index, which lists the position and length of each
+ * tile's blob in tile-row order, as a long and an int in the file's byte
+ * order. The position of the index is recorded in the header file under
+ * "Tile Index Offset".
+ *
+ * Blobs always hold whole tiles, including the unused part of the tiles
+ * along the right and bottom edges of the grid, so that any tiles may share a
+ * blob. A modified tile is written back over its old blob when it fits, and is
+ * otherwise appended to the end of the data, overwriting the index, which is
+ * rewritten after the last blob when the store is flushed. If rewrites have
+ * left much of the file unused, it is compacted when the store is closed.
+ *
+ * A tile whose cells all hold the same value, such as a tile of NoData or one
+ * that has never been written, has no blob. Its index entry has a length of
+ * zero and holds the bits of the value in place of the position. Older files
+ * in which unwritten tiles share a single blob are still read.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+class CompressedTileStore implements RasterTileStore {
+
+    private static final int INDEX_ENTRY_SIZE = 12;
+    private final WhiteboxRasterBase raster;
+    private final boolean writable;
+    private final int tileSize;
+    private final int numberRows;
+    private final int numberColumns;
+    private final int numTileColumns;
+    private final DataType dataType;
+    private final ByteOrder byteOrder;
+    private final Compression compression;
+    private final long[] offsets;
+    private final int[] lengths;
+    // the space available for rewriting each tile in place; zero for tiles
+    // sharing a blob, which must never be overwritten.
+    private final int[] capacities;
+    private long dataEnd;
+    private boolean indexDirty = false;
+
+    /**
+     * Class constructor. The data file must already exist and its header
+     * must give the position of the tile index.
+     *
+     * @param raster The raster whose data file is to be read.
+     * @param writable Set to true if tiles will be written.
+     * @throws IOException
+     */
+    CompressedTileStore(WhiteboxRasterBase raster, boolean writable) throws IOException {
+        this.raster = raster;
+        this.writable = writable;
+        this.tileSize = raster.compressedTileSize;
+        this.numberRows = raster.numberRows;
+        this.numberColumns = raster.numberColumns;
+        this.numTileColumns = (numberColumns + tileSize - 1) / tileSize;
+        this.dataType = raster.dataType;
+        this.byteOrder = raster.byteOrder;
+        this.compression = raster.compression;
+        int numTiles = numTileColumns * ((numberRows + tileSize - 1) / tileSize);
+        offsets = new long[numTiles];
+        lengths = new int[numTiles];
+        capacities = new int[numTiles];
+
+        if (raster.tileIndexOffset < 0) {
+            throw new IOException("The header of " + raster.dataFile + " does not locate its tile index.");
+        }
+        ByteBuffer buf = ByteBuffer.allocate(numTiles * INDEX_ENTRY_SIZE);
+        buf.order(byteOrder);
+        try (DataFileChannel.Handle in = raster.openDataChannel(writable)) {
+            readFully(in.channel, buf, raster.tileIndexOffset);
+        }
+        buf.flip();
+        for (int i = 0; i < numTiles; i++) {
+            offsets[i] = buf.getLong();
+            lengths[i] = buf.getInt();
+        }
+        setCapacities();
+        dataEnd = raster.tileIndexOffset;
+    }
+
+    private void setCapacities() {
+        HashMap<Long, Integer> uses = new HashMap<>();
+        for (int i = 0; i < offsets.length; i++) {
+            if (lengths[i] > 0) {
+                Integer n = uses.get(offsets[i]);
+                uses.put(offsets[i], n == null ? 1 : n + 1);
+            }
+        }
+        for (int i = 0; i < offsets.length; i++) {
+            capacities[i] = lengths[i] == 0 || uses.get(offsets[i]) > 1 ? 0 : lengths[i];
+        }
+    }
+
+    /**
+     * Creates a compressed data file in which every cell holds the initial
+     * value, and records the position of its index in the raster.
+     *
+     * @param raster The raster, whose compression and tile size are set.
+     * @param initialValue The value of every cell.
+     * @throws IOException
+     */
+    static void create(WhiteboxRasterBase raster, double initialValue) throws IOException {
+        int tileSize = raster.compressedTileSize;
+        int numTileColumns = (raster.numberColumns + tileSize - 1) / tileSize;
+        int numTiles = numTileColumns * ((raster.numberRows + tileSize - 1) / tileSize);
+        // every tile is constant, and so the file is just the index
+        CellBuffer cell = CellBuffer.create(raster.dataType, 1);
+        cell.set(0, initialValue);
+        long bits = Double.doubleToRawLongBits(cell.get(0));
+        ByteBuffer buf = ByteBuffer.allocate(numTiles * INDEX_ENTRY_SIZE);
+        buf.order(raster.byteOrder);
+        for (int i = 0; i < numTiles; i++) {
+            buf.putLong(bits);
+            buf.putInt(0);
+        }
+        buf.flip();
+        try (RandomAccessFile rOut = new RandomAccessFile(raster.dataFile, "rw")) {
+            rOut.setLength(0);
+            FileChannel channel = rOut.getChannel();
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        }
+        raster.tileIndexOffset = 0;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, pos + buf.position()) < 0) {
+                throw new IOException("Unexpected end of compressed data file.");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf, pos + buf.position());
+        }
+    }
+
+    @Override
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    @Override
+    public void readTile(int tileRow, int tileColumn, CellBuffer dest) throws IOException {
+        int id = tileRow * numTileColumns + tileColumn;
+        long offset;
+        int length;
+        synchronized (this) {
+            offset = offsets[id];
+            length = lengths[id];
+        }
+        if (length == 0) {
+            dest.fill(Double.longBitsToDouble(offset));
+            return;
+        }
+        byte[] blob = new byte[length];
+        try (DataFileChannel.Handle in = raster.openDataChannel(writable)) {
+            readFully(in.channel, ByteBuffer.wrap(blob), offset);
+        }
+        TileCodec.decode(blob, length, dest, tileSize, tileSize, tileSize, dataType, byteOrder);
+    }
+
+    @Override
+    public void writeTile(int tileRow, int tileColumn, CellBuffer src) throws IOException {
+        if (!writable) {
+            return;
+        }
+        int id = tileRow * numTileColumns + tileColumn;
+        int rows = Math.min(tileSize, numberRows - tileRow * tileSize);
+        int cols = Math.min(tileSize, numberColumns - tileColumn * tileSize);
+        if (rows < tileSize || cols < tileSize) {
+            // blobs always hold whole tiles, so that tiles of any shape may
+            // share one; zero the unused part of an edge tile so that
+            // whatever it last held doesn't hurt the compression
+            for (int r = 0; r < tileSize; r++) {
+                for (int c = (r < rows ? cols : 0); c < tileSize; c++) {
+                    src.set(r * tileSize + c, 0);
+                }
+            }
+        }
+        if (isConstant(src, rows, cols)) {
+            synchronized (this) {
+                // the space of any old blob is recovered by compaction
+                offsets[id] = Double.doubleToRawLongBits(src.get(0));
+                lengths[id] = 0;
+                capacities[id] = 0;
+                indexDirty = true;
+            }
+            return;
+        }
+        byte[] blob = TileCodec.encode(src, tileSize, tileSize, tileSize, dataType, byteOrder, compression);
+        long pos;
+        synchronized (this) {
+            if (blob.length <= capacities[id]) {
+                pos = offsets[id];
+            } else {
+                pos = dataEnd;
+                dataEnd += blob.length;
+                capacities[id] = blob.length;
+            }
+            offsets[id] = pos;
+            lengths[id] = blob.length;
+            indexDirty = true;
+        }
+        try (DataFileChannel.Handle out = raster.openDataChannel(true)) {
+            writeFully(out.channel, ByteBuffer.wrap(blob), pos);
+        }
+    }
+
+    private boolean isConstant(CellBuffer src, int rows, int cols) {
+        long bits = Double.doubleToRawLongBits(src.get(0));
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                if (Double.doubleToRawLongBits(src.get(r * tileSize + c)) != bits) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized Double getConstantValue(int tileRow, int tileColumn) {
+        int id = tileRow * numTileColumns + tileColumn;
+        return lengths[id] == 0 ? Double.longBitsToDouble(offsets[id]) : null;
+    }
+
+    /**
+     * Writes the tile index after the last blob and updates the header's
+     * record of its position.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if (!writable || !indexDirty) {
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(offsets.length * INDEX_ENTRY_SIZE);
+        buf.order(byteOrder);
+        for (int i = 0; i < offsets.length; i++) {
+            buf.putLong(offsets[i]);
+            buf.putInt(lengths[i]);
+        }
+        buf.flip();
+        try (DataFileChannel.Handle out = raster.openDataChannel(true)) {
+            writeFully(out.channel, buf, dataEnd);
+            out.channel.truncate(dataEnd + offsets.length * INDEX_ENTRY_SIZE);
+        }
+        raster.tileIndexOffset = dataEnd;
+        indexDirty = false;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        if (writable) {
+            compact();
+        }
+    }
+
+    /**
+     * Abandons the store without rewriting the index or compacting the file,
+     * neither of which is of use to a file that is about to be deleted. The
+     * store holds nothing open between calls, and so there is nothing else
+     * to release.
+     */
+    @Override
+    public synchronized void discard() {
+        indexDirty = false;
+    }
+
+    /**
+     * Rewrites the file without the space left behind by tiles that have
+     * been moved, if that space is a large part of the file.
+     */
+    private void compact() throws IOException {
+        HashMap<Long, Long> moved = new HashMap<>();
+        long live = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            if (lengths[i] > 0 && !moved.containsKey(offsets[i])) {
+                moved.put(offsets[i], -1L);
+                live += lengths[i];
+            }
+        }
+        if (dataEnd - live < Math.max(live / 4, 1 << 20)) {
+            return;
+        }
+        File tmp = new File(raster.dataFile + ".tmp");
+        long pos = 0;
+        try (DataFileChannel.Handle in = raster.openDataChannel(false);
+                RandomAccessFile rOut = new RandomAccessFile(tmp, "rw")) {
+            rOut.setLength(0);
+            FileChannel out = rOut.getChannel();
+            for (int i = 0; i < offsets.length; i++) {
+                if (lengths[i] == 0) {
+                    continue;
+                }
+                long newOffset = moved.get(offsets[i]);
+                if (newOffset < 0) {
+                    ByteBuffer blob = ByteBuffer.allocate(lengths[i]);
+                    readFully(in.channel, blob, offsets[i]);
+                    blob.flip();
+                    writeFully(out, blob, pos);
+                    newOffset = pos;
+                    pos += lengths[i];
+                    moved.put(offsets[i], newOffset);
+                }
+                offsets[i] = newOffset;
+            }
+            setCapacities();
+            dataEnd = pos;
+            indexDirty = true;
+            ByteBuffer buf = ByteBuffer.allocate(offsets.length * INDEX_ENTRY_SIZE);
+            buf.order(byteOrder);
+            for (int i = 0; i < offsets.length; i++) {
+                buf.putLong(offsets[i]);
+                buf.putInt(lengths[i]);
+            }
+            buf.flip();
+            writeFully(out, buf, dataEnd);
+        }
+        DataFileChannel.invalidate(raster.dataFile);
+        Files.move(tmp.toPath(), new File(raster.dataFile).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        raster.tileIndexOffset = dataEnd;
+        indexDirty = false;
+    }
+}
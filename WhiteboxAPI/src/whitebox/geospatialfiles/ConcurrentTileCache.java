@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2015 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A tile cache that may be used by many threads at once. Each tile is guarded
+ * by one of a fixed set of striped locks, so threads working on different
+ * parts of the grid rarely contend. Tiles are evicted using the clock
+ * algorithm and modified tiles are written back to the store as they are
+ * evicted.
+ *
+ * To avoid deadlock, a thread that must evict a tile while holding the lock
+ * of the tile it is loading only ever tries the locks of eviction candidates,
+ * skipping any that are in use.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+class ConcurrentTileCache extends RasterTileCache {
+
+    private static final int NUM_STRIPES = 64;
+    private final ReentrantLock[] stripes = new ReentrantLock[NUM_STRIPES];
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final AtomicInteger numResident = new AtomicInteger(0);
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong writeBacks = new AtomicLong(0);
+    private volatile int residentLimit;
+    private int clockHand = 0;
+
+    /**
+     * Class constructor.
+     *
+     * @param store The source of the tile data. It must support concurrent
+     * reads and writes of different tiles.
+     * @param dataType The data type used to hold the tiles in memory.
+     * @param numberRows The number of rows in the raster.
+     * @param numberColumns The number of columns in the raster.
+     * @param numSlots The maximum number of tiles held in memory at once.
+     */
+    ConcurrentTileCache(RasterTileStore store, WhiteboxRasterBase.DataType dataType,
+            int numberRows, int numberColumns, int numSlots) {
+        super(store, dataType, numberRows, numberColumns, 1);
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        residentLimit = Math.max(1, Math.min(numSlots, directory.length));
+    }
+
+    private ReentrantLock lockFor(int id) {
+        return stripes[id & (NUM_STRIPES - 1)];
+    }
+
+    /**
+     * Locks the tile containing a cell, loading it if need be. The caller
+     * must release the lock returned by lockFor.
+     */
+    private Tile lockTile(int id) {
+        lockFor(id).lock();
+        Tile tile = directory[id];
+        if (tile == null) {
+            try {
+                tile = load(id);
+            } catch (RuntimeException e) {
+                lockFor(id).unlock();
+                throw e;
+            }
+        } else {
+            hits.incrementAndGet();
+        }
+        tile.referenced = true;
+        return tile;
+    }
+
+    private Tile load(int id) {
+        misses.incrementAndGet();
+        RasterMemoryManager.getInstance().recordLoad();
+        CellBuffer data = null;
+        if (numResident.get() >= residentLimit) {
+            data = evictOne();
+        }
+        if (data == null) {
+            // either there is room or every candidate is in use
+            data = CellBuffer.create(dataType, tileSize * tileSize);
+            numResident.incrementAndGet();
+        }
+        Tile tile = new Tile();
+        tile.id = id;
+        tile.data = data;
+        try {
+            store.readTile(id / numTileColumns, id % numTileColumns, data);
+        } catch (IOException e) {
+            numResident.decrementAndGet();
+            throw new IllegalStateException("Unable to read tile " + id, e);
+        }
+        directory[id] = tile;
+        return tile;
+    }
+
+    /**
+     * Evicts a tile that has not been referenced since the clock hand last
+     * passed it, returning its buffer for reuse, or null if no tile could be
+     * evicted.
+     */
+    private CellBuffer evictOne() {
+        evictionLock.lock();
+        try {
+            int n = directory.length;
+            for (int step = 0; step < 2 * n; step++) {
+                int id = clockHand;
+                clockHand = (clockHand + 1) % n;
+                if (directory[id] == null) {
+                    continue;
+                }
+                ReentrantLock lock = lockFor(id);
+                if (!lock.tryLock()) {
+                    continue;
+                }
+                try {
+                    Tile tile = directory[id];
+                    if (tile == null) {
+                        continue;
+                    }
+                    if (tile.referenced) {
+                        tile.referenced = false;
+                        continue;
+                    }
+                    if (tile.dirty) {
+                        writeBack(tile);
+                    }
+                    directory[id] = null;
+                    return tile.data;
+                } finally {
+                    lock.unlock();
+                }
+            }
+            return null;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void writeBack(Tile tile) {
+        try {
+            store.writeTile(tile.id / numTileColumns, tile.id % numTileColumns, tile.data);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to write tile " + tile.id, e);
+        }
+        tile.dirty = false;
+        writeBacks.incrementAndGet();
+    }
+
+    @Override
+    int getSlotLimit() {
+        return residentLimit;
+    }
+
+    @Override
+    long getMemoryInUse() {
+        return (long) numResident.get() * tileSize * tileSize * CellBuffer.cellSizeOf(dataType);
+    }
+
+    @Override
+    void setSlotLimit(int limit) {
+        residentLimit = Math.max(1, Math.min(limit, directory.length));
+        evictionLock.lock();
+        try {
+            while (numResident.get() > residentLimit) {
+                if (evictOne() == null) {
+                    // the remaining tiles are in use; later loads will evict them
+                    break;
+                }
+                numResident.decrementAndGet();
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    long getWriteBacks() {
+        return writeBacks.get();
+    }
+
+    @Override
+    double getValue(int row, int column) {
+        int id = (row >> tileShift) * numTileColumns + (column >> tileShift);
+        Tile tile = lockTile(id);
+        try {
+            return tile.data.get(((row & tileMask) << tileShift) + (column & tileMask));
+        } finally {
+            lockFor(id).unlock();
+        }
+    }
+
+    @Override
+    int getIntValue(int row, int column) {
+        int id = (row >> tileShift) * numTileColumns + (column >> tileShift);
+        Tile tile = lockTile(id);
+        try {
+            return tile.data.getInt(((row & tileMask) << tileShift) + (column & tileMask));
+        } finally {
+            lockFor(id).unlock();
+        }
+    }
+
+    @Override
+    void setValue(int row, int column, double value) {
+        int id = (row >> tileShift) * numTileColumns + (column >> tileShift);
+        Tile tile = lockTile(id);
+        try {
+            tile.data.set(((row & tileMask) << tileShift) + (column & tileMask), value);
+            tile.dirty = true;
+        } finally {
+            lockFor(id).unlock();
+        }
+    }
+
+    @Override
+    void incrementValue(int row, int column, double value) {
+        int id = (row >> tileShift) * numTileColumns + (column >> tileShift);
+        Tile tile = lockTile(id);
+        try {
+            tile.data.add(((row & tileMask) << tileShift) + (column & tileMask), value);
+            tile.dirty = true;
+        } finally {
+            lockFor(id).unlock();
+        }
+    }
+
+    @Override
+    Double getConstantValue(int tileRow, int tileColumn) {
+        int id = tileRow * numTileColumns + tileColumn;
+        ReentrantLock lock = lockFor(id);
+        lock.lock();
+        try {
+            return directory[id] != null ? null : store.getConstantValue(tileRow, tileColumn);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    void getRowSegment(int row, int column, int length, double[] dest, int destOffset) {
+        int first = (row >> tileShift) * numTileColumns;
+        int offset = (row & tileMask) << tileShift;
+        int end = column + length;
+        while (column < end) {
+            int tc = column >> tileShift;
+            int n = Math.min(end, (tc + 1) << tileShift) - column;
+            int id = first + tc;
+            Tile tile = lockTile(id);
+            try {
+                tile.data.copyTo(offset + (column & tileMask), dest, destOffset, n);
+            } finally {
+                lockFor(id).unlock();
+            }
+            column += n;
+            destOffset += n;
+        }
+    }
+
+    @Override
+    void getRowBytes(int row, ByteBuffer buf) {
+        int first = (row >> tileShift) * numTileColumns;
+        int offset = (row & tileMask) << tileShift;
+        for (int tc = 0; tc < numTileColumns; tc++) {
+            int id = first + tc;
+            Tile tile = lockTile(id);
+            try {
+                tile.data.write(buf, offset, Math.min(tileSize, numberColumns - (tc << tileShift)));
+            } finally {
+                lockFor(id).unlock();
+            }
+        }
+    }
+
+    @Override
+    void setRowValues(int row, double[] vals) {
+        int first = (row >> tileShift) * numTileColumns;
+        int offset = (row & tileMask) << tileShift;
+        for (int tc = 0; tc < numTileColumns; tc++) {
+            int id = first + tc;
+            Tile tile = lockTile(id);
+            try {
+                int startCol = tc << tileShift;
+                int length = Math.min(tileSize, numberColumns - startCol);
+                tile.data.copyFrom(vals, startCol, offset, length);
+                tile.dirty = true;
+            } finally {
+                lockFor(id).unlock();
+            }
+        }
+    }
+
+    @Override
+    void flushRow(int row) {
+        int first = (row >> tileShift) * numTileColumns;
+        for (int id = first; id < first + numTileColumns; id++) {
+            flushTile(id);
+        }
+    }
+
+    private void flushTile(int id) {
+        ReentrantLock lock = lockFor(id);
+        lock.lock();
+        try {
+            Tile tile = directory[id];
+            if (tile != null && tile.dirty) {
+                writeBack(tile);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    void flush() {
+        for (int id = 0; id < directory.length; id++) {
+            flushTile(id);
+        }
+        try {
+            store.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to flush the tile store", e);
+        }
+    }
+
+    @Override
+    void releaseTiles() {
+        for (int id = 0; id < directory.length; id++) {
+            ReentrantLock lock = lockFor(id);
+            lock.lock();
+            try {
+                directory[id] = null;
+            } finally {
+                lock.unlock();
+            }
+        }
+        numResident.set(0);
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2015 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+/**
+ * A FileChannel on a raster data file that is shared, with reference
+ * counting, by every raster that has the file open. The channel is opened on
+ * first use and stays open until the last raster releases it, so row and block
+ * reads no longer open and close the file each time. Callers should only use
+ * positional reads and writes, which are safe for concurrent use.
+ *
+ * Each read or write holds a Handle on the channel for its duration. When the
+ * channel has to be replaced, e.g. because the file was deleted or write
+ * access is needed, later callers are given a new channel and the old one is
+ * closed once the last handle on it is closed, so that threads still using it
+ * aren't interrupted.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+final class DataFileChannel {
+
+    private static final HashMap<String, DataFileChannel> openChannels = new HashMap<>();
+    private final String key;
+    private int referenceCount = 0;
+    private Handle current = null;
+
+    /**
+     * An open channel on the data file, together with the number of reads
+     * and writes in progress on it. Closing the handle ends the caller's use
+     * of the channel.
+     */
+    static final class Handle implements Closeable {
+
+        final FileChannel channel;
+        private final RandomAccessFile file;
+        private final boolean writable;
+        private int users = 0;
+        private boolean retired = false;
+
+        private Handle(RandomAccessFile file, boolean writable) {
+            this.file = file;
+            this.channel = file.getChannel();
+            this.writable = writable;
+        }
+
+        private synchronized void addUser() {
+            users++;
+        }
+
+        /**
+         * Marks the channel as replaced, closing it if it isn't in use.
+         */
+        private synchronized void retire() {
+            retired = true;
+            if (users == 0) {
+                closeFile();
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            users--;
+            if (retired && users == 0) {
+                closeFile();
+            }
+        }
+
+        private void closeFile() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // nothing can be done
+            }
+        }
+    }
+
+    private DataFileChannel(String key) {
+        this.key = key;
+    }
+
+    private static String keyOf(String fileName) {
+        return new File(fileName).getAbsolutePath();
+    }
+
+    /**
+     * Retrieves the shared channel for a data file, incrementing its reference
+     * count. Each call must be matched by a call to release.
+     *
+     * @param fileName The data file.
+     * @return The shared channel.
+     */
+    static synchronized DataFileChannel acquire(String fileName) {
+        String key = keyOf(fileName);
+        DataFileChannel dfc = openChannels.get(key);
+        if (dfc == null) {
+            dfc = new DataFileChannel(key);
+            openChannels.put(key, dfc);
+        }
+        dfc.referenceCount++;
+        return dfc;
+    }
+
+    /**
+     * Replaces the underlying channel of a data file, if it is open, so that
+     * the next use reopens the file. This must be called whenever the file is
+     * deleted or replaced, otherwise the channel would continue to refer to
+     * the old file. The old channel is closed once any reads or writes in
+     * progress on it have finished.
+     *
+     * @param fileName The data file.
+     */
+    static synchronized void invalidate(String fileName) {
+        DataFileChannel dfc = openChannels.get(keyOf(fileName));
+        if (dfc != null) {
+            dfc.retireChannel();
+        }
+    }
+
+    /**
+     * Decrements the reference count, closing the channel when it is no
+     * longer used by any raster.
+     */
+    void release() {
+        synchronized (DataFileChannel.class) {
+            referenceCount--;
+            if (referenceCount <= 0) {
+                openChannels.remove(key);
+                retireChannel();
+            }
+        }
+    }
+
+    /**
+     * Opens the channel for a read or write, which must be followed by
+     * closing the returned handle. The file is opened for read/write access
+     * when permitted, so that readers and writers of the same file share one
+     * channel; a channel opened read-only is replaced if write access is
+     * later needed. A channel that has been closed, e.g. because a thread
+     * using it was interrupted, is replaced too.
+     *
+     * @param forWriting Set to true if the caller will write to the channel.
+     * @return A handle on the channel.
+     * @throws IOException
+     */
+    synchronized Handle open(boolean forWriting) throws IOException {
+        if (current == null || !current.channel.isOpen() || (forWriting && !current.writable)) {
+            retireChannel();
+            File f = new File(key);
+            boolean writable = forWriting || (f.exists() && f.canWrite());
+            current = new Handle(new RandomAccessFile(f, writable ? "rw" : "r"), writable);
+        }
+        current.addUser();
+        return current;
+    }
+
+    private synchronized void retireChannel() {
+        if (current != null) {
+            current.retire();
+            current = null;
+        }
+    }
+}
@@ -56,6 +56,10 @@ class FieldType {
   static public final FieldType SRATIONAL = new FieldType("SRATIONAL", 10, 8);
   static public final FieldType FLOAT = new FieldType("FLOAT", 11, 4);
   static public final FieldType DOUBLE = new FieldType("DOUBLE", 12, 8);
+  // BigTIFF
+  static public final FieldType LONG8 = new FieldType("LONG8", 16, 8);
+  static public final FieldType SLONG8 = new FieldType("SLONG8", 17, 8);
+  static public final FieldType IFD8 = new FieldType("IFD8", 18, 8);
  
  
   static FieldType get( int code) {
@@ -44,8 +44,20 @@ import java.io.RandomAccessFile;
 import java.nio.*;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import whitebox.utilities.NamedThreadFactory;
 
 /**
  * Low level read/write geotiff files.
@@ -62,6 +74,7 @@ public class GeoTiff {
     private FileChannel channel;
     private List<IFDEntry> tags = new ArrayList<>();
     private ByteOrder byteOrder = ByteOrder.BIG_ENDIAN;
+    private boolean bigTiff = false;
     private boolean readonly;
     private boolean showBytes = false, debugRead = false, debugReadGeoKey = false;
     private boolean showHeaderBytes = false;
@@ -81,6 +94,10 @@ public class GeoTiff {
      * @throws java.io.IOException on io error
      */
     public void close() throws IOException {
+        cancelPendingBlocks();
+        for (GeoTiff overview : overviews) {
+            overview.cancelPendingBlocks();
+        }
         if (channel != null) {
             if (!readonly) {
                 channel.force(true);
@@ -443,12 +460,57 @@ public class GeoTiff {
         }
         readonly = true;
 
-        int nextOffset = readHeader(channel);
+        long nextOffset = readHeader(channel);
+        ArrayList<List<IFDEntry>> directories = new ArrayList<>();
         while (nextOffset > 0) {
+            int first = tags.size();
             nextOffset = readIFD(channel, nextOffset);
+            directories.add(new ArrayList<>(tags.subList(first, tags.size())));
             parseGeoInfo();
         }
 
+        initImage();
+
+        // reduced-resolution images of the first one (NewSubfileType bit 0),
+        // e.g. the internal overviews of a cloud-optimized GeoTIFF, but not
+        // transparency masks (bit 2)
+        for (int i = 1; i < directories.size(); i++) {
+            List<IFDEntry> directory = directories.get(i);
+            IFDEntry subfileType = findTag(directory, Tag.NewSubfileType);
+            if (subfileType != null && (subfileType.value[0] & 5) == 1) {
+                overviews.add(new GeoTiff(this, directory));
+            }
+        }
+        // from the largest to the smallest
+        Collections.sort(overviews, new Comparator<GeoTiff>() {
+            @Override
+            public int compare(GeoTiff a, GeoTiff b) {
+                return Integer.compare(b.nCols, a.nCols);
+            }
+        });
+    }
+
+    /**
+     * Constructs a reduced-resolution image of a file, which shares the
+     * file's channel.
+     */
+    private GeoTiff(GeoTiff parent, List<IFDEntry> directory) {
+        filename = parent.filename;
+        channel = parent.channel;
+        byteOrder = parent.byteOrder;
+        bigTiff = parent.bigTiff;
+        readonly = true;
+        tags = directory;
+        initImage();
+        if (!hasNoDataTag()) {
+            nodata = parent.nodata;
+        }
+    }
+
+    /**
+     * Reads the layout of the image from its tags.
+     */
+    private void initImage() {
         nCols = getNumberColumns();
         nRows = getNumberRows();
         nodata = getNoData();
@@ -458,12 +520,53 @@ public class GeoTiff {
             tileLength = findTag(Tag.TileLength).value[0];
             nTilesX = (nCols + tileWidth - 1) / tileWidth;
             nTilesY = (nRows + tileLength - 1) / tileLength;
+        } else if (findTag(Tag.RowsPerStrip) != null) {
+            // the value is unsigned and often 2^32 - 1, i.e. a single strip
+            long rows = findTag(Tag.RowsPerStrip).value[0] & 0xFFFFFFFFL;
+            rowsPerStrip = (int) Math.max(1, Math.min(rows, nRows));
         } else {
-            rowsPerStrip = findTag(Tag.RowsPerStrip).value[0];
+            // the whole image is a single strip
+            rowsPerStrip = nRows;
         }
+        if (findTag(Tag.Compression) != null) {
+            compressionType = findTag(Tag.Compression).value[0];
+        }
+        if (findTag(Tag.Predictor) != null) {
+            predictor = findTag(Tag.Predictor).value[0];
+        }
+        if (findTag(Tag.SampleFormat) != null) {
+            sampleFormat = findTag(Tag.SampleFormat).value[0];
+        }
+        if (findTag(Tag.SamplesPerPixel) != null) {
+            samplesPerPixel = findTag(Tag.SamplesPerPixel).value[0];
+        }
+        bitsPerSample = findTag(Tag.BitsPerSample).value[0];
+        rgb = getPhotometricInterpretation() == 2 && samplesPerPixel >= 3 && bitsPerSample == 8;
+        cacheSize = tiledFormat ? nTilesX + 1 : 2;
+        decodedBlocks = new LinkedHashMap<Integer, double[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, double[]> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Retrieves an unsigned integer value of a tag, e.g. a strip offset,
+     * which may exceed 2^31 and, in a BigTIFF file, 2^32.
+     */
+    private static long getLongValue(IFDEntry ifd, int i) {
+        if (ifd.valueL != null) {
+            return ifd.valueL[i];
+        }
+        return ifd.value[i] & 0xFFFFFFFFL;
     }
 
     private IFDEntry findTag(Tag tag) {
+        return findTag(tags, tag);
+    }
+
+    private static IFDEntry findTag(List<IFDEntry> tags, Tag tag) {
         if (tag == null) {
             return null;
         }
@@ -590,10 +693,19 @@ public class GeoTiff {
         return findTag(Tag.Compression).value[0];
     }
 
-    double[] tileOrStripData;
+    /**
+     * Determines whether the data of the file can be read, i.e. whether its
+     * compression scheme is supported.
+     *
+     * @return true if the file can be read.
+     */
+    public boolean isCompressionSupported() {
+        return TiffCodec.isSupported(compressionType);
+    }
+
+    private static final ExecutorService decoder = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new NamedThreadFactory("GeoTiffDecoder"));
     boolean tiledFormat = false;
-    int currentTile = -1;
-    int currentStrip = -1;
     int nRows = -1;
     int nCols = -1;
     int rowsPerStrip = -1;
@@ -602,573 +714,413 @@ public class GeoTiff {
     int nTilesX = -1;
     int nTilesY = -1;
     double nodata = -32768;
+    int compressionType = 1;
+    int predictor = 1;
+    int sampleFormat = 1;
+    int samplesPerPixel = 1;
+    int bitsPerSample = 8;
+    boolean rgb = false;
+    // strips or tiles being decoded ahead of a sequential read
+    private final HashMap<Integer, Future<double[]>> pendingBlocks = new HashMap<>();
+    // recently decoded strips or tiles; the cache holds a full row of tiles
+    // so that a tiled file read row by row decodes each tile once
+    private LinkedHashMap<Integer, double[]> decodedBlocks;
+    private int cacheSize;
+    private int lastBlockNum = -1;
+    private double[] lastBlock;
+    // reduced-resolution versions of the image, from the largest
+    private final ArrayList<GeoTiff> overviews = new ArrayList<>();
 
     public double getValue(int row, int col) throws Exception {
-        if (!tiledFormat) { // strip oriented
-            // figure out which strip the pixel is in
-            int stripNum = row / rowsPerStrip;
-            if (currentStrip != stripNum) {
-                tileOrStripData = getStripData(stripNum);
-                if (tileOrStripData == null) {
-                    throw new Exception("Error reading data. It is likely that the TIFF file is of an unsupported type, possibly due to data compression.");
-                }
-                currentStrip = stripNum;
-            }
-            int stripRow = row % rowsPerStrip;
-            int stripPixelNum = stripRow * nCols + col;
-            return tileOrStripData[stripPixelNum];
-        } else { // tile oriented
-            // figure out which tile the pixel is in
-            int tileNum = row / tileLength * nTilesX + col / tileWidth;
-            if (currentTile != tileNum) {
-                tileOrStripData = getTileData(tileNum);
-                if (tileOrStripData == null) {
-                    throw new Exception("Error reading data. It is likely that the TIFF file is of an unsupported type, possibly due to data compression.");
-                }
-                currentTile = tileNum;
+        return getSample(row, col);
+    }
+
+    /**
+     * Reads a row of the image.
+     *
+     * @param row The row number.
+     * @param dest An array of at least getNumberColumns() values to fill.
+     * @throws IOException if the file can't be read or is of an unsupported
+     * type.
+     */
+    public void readRow(int row, double[] dest) throws IOException {
+        if (row < 0 || row >= nRows) {
+            throw new IllegalArgumentException("Row " + row + " is outside of the image.");
+        }
+        if (!tiledFormat) {
+            double[] strip = getCachedBlock(row / rowsPerStrip);
+            System.arraycopy(strip, (row % rowsPerStrip) * nCols, dest, 0, nCols);
+        } else {
+            int ty = row / tileLength;
+            int offset = (row % tileLength) * tileWidth;
+            for (int tx = 0; tx < nTilesX; tx++) {
+                double[] tile = getCachedBlock(ty * nTilesX + tx);
+                int col = tx * tileWidth;
+                System.arraycopy(tile, offset, dest, col, Math.min(tileWidth, nCols - col));
             }
-            int tileRow = row % tileLength;
-            int tileCol = col % tileWidth;
-            int tilePixelNum = tileRow * tileLength + tileCol;
-            return tileOrStripData[tilePixelNum];
         }
     }
 
-    private double[] getTileData(int tile) {
-        try {
-            if (!tiledFormat) {
-                return null;
+    /**
+     * Reads a tile of the image. The tiles of a striped file are its strips,
+     * i.e. tx is zero and ty is the strip number.
+     *
+     * @param tx The tile's column.
+     * @param ty The tile's row.
+     * @param dest An array of at least getTileWidth() * getTileLength()
+     * values to fill, in row-major order. The parts of a tile lying beyond
+     * the edges of the image are filled with the NoData value.
+     * @throws IOException if the file can't be read or is of an unsupported
+     * type.
+     */
+    public void readTile(int tx, int ty, double[] dest) throws IOException {
+        int numTilesX = tiledFormat ? nTilesX : 1;
+        int numTilesY = tiledFormat ? nTilesY : (nRows + rowsPerStrip - 1) / rowsPerStrip;
+        if (tx < 0 || tx >= numTilesX || ty < 0 || ty >= numTilesY) {
+            throw new IllegalArgumentException("Tile (" + tx + ", " + ty + ") is outside of the image.");
+        }
+        double[] block = getCachedBlock(ty * numTilesX + tx);
+        int width = getTileWidth();
+        int rows = Math.min(getTileLength(), nRows - ty * getTileLength());
+        int cols = Math.min(width, nCols - tx * width);
+        Arrays.fill(dest, 0, width * getTileLength(), nodata);
+        for (int r = 0; r < rows; r++) {
+            System.arraycopy(block, r * width, dest, r * width, cols);
+        }
+    }
+
+    /**
+     * Retrieves the number of reduced-resolution versions of the image, i.e.
+     * internal overviews, that the file holds.
+     *
+     * @return The number of overviews.
+     */
+    public int getNumberOverviews() {
+        return overviews.size();
+    }
+
+    /**
+     * Reads a window of the image resampled to a given size, e.g. for
+     * display. The values are taken, by nearest neighbour, from the smallest
+     * overview whose resolution is at least that of the output, so that a
+     * small view of a large image reads little of the file. Without
+     * overviews, the full-resolution image is sampled.
+     *
+     * @param row The first row of the window, in full-resolution rows.
+     * @param col The first column of the window, in full-resolution columns.
+     * @param numRows The number of full-resolution rows in the window.
+     * @param numCols The number of full-resolution columns in the window.
+     * @param outRows The number of rows to read.
+     * @param outCols The number of columns to read.
+     * @param dest An array of at least outRows * outCols values to fill, in
+     * row-major order. Cells beyond the edges of the image are NoData.
+     * @throws IOException if the file can't be read or is of an unsupported
+     * type.
+     */
+    public void readWindow(int row, int col, int numRows, int numCols, int outRows, int outCols,
+            double[] dest) throws IOException {
+        if (numRows <= 0 || numCols <= 0 || outRows <= 0 || outCols <= 0) {
+            throw new IllegalArgumentException("The window and output must not be empty.");
+        }
+        double scaleY = (double) numRows / outRows;
+        double scaleX = (double) numCols / outCols;
+        GeoTiff image = this;
+        for (GeoTiff overview : overviews) {
+            // overviews are rounded up in size, so allow for a partial cell
+            if ((double) nCols / overview.nCols <= scaleX * 1.0001
+                    && (double) nRows / overview.nRows <= scaleY * 1.0001) {
+                image = overview;
             }
-            
-            double[] data;
-                    
-            int compressionType = findTag(Tag.Compression).value[0];
-            int sampleFormat = 1; //findTag(Tag.SampleFormat).value[0];
+        }
+        double factorY = (double) nRows / image.nRows;
+        double factorX = (double) nCols / image.nCols;
+        int[] cols = new int[outCols];
+        for (int j = 0; j < outCols; j++) {
+            double x = col + (j + 0.5) * scaleX;
+            cols[j] = x < 0 || x >= nCols ? -1 : Math.min(image.nCols - 1, (int) (x / factorX));
+        }
+        for (int i = 0; i < outRows; i++) {
+            double y = row + (i + 0.5) * scaleY;
+            int r = y < 0 || y >= nRows ? -1 : Math.min(image.nRows - 1, (int) (y / factorY));
+            for (int j = 0; j < outCols; j++) {
+                dest[i * outCols + j] = r < 0 || cols[j] < 0 ? nodata : image.getSample(r, cols[j]);
+            }
+        }
+    }
 
-            if (findTag(Tag.SampleFormat) != null) {
-                sampleFormat = findTag(Tag.SampleFormat).value[0];
+    /**
+     * Reads a rectangular region of the full-resolution image.
+     *
+     * @param row The first row of the region.
+     * @param col The first column of the region.
+     * @param numRows The number of rows in the region.
+     * @param numCols The number of columns in the region.
+     * @param dest An array of at least numRows * numCols values to fill, in
+     * row-major order. Cells beyond the edges of the image are NoData.
+     * @throws IOException if the file can't be read or is of an unsupported
+     * type.
+     */
+    public void readRegion(int row, int col, int numRows, int numCols, double[] dest) throws IOException {
+        int blockWidth = getTileWidth();
+        int blockLength = getTileLength();
+        int blocksAcross = tiledFormat ? nTilesX : 1;
+        int firstCol = Math.max(0, col);
+        int lastCol = Math.min(nCols, col + numCols);
+        for (int i = 0; i < numRows; i++) {
+            int r = row + i;
+            int offset = i * numCols;
+            if (r < 0 || r >= nRows || firstCol >= lastCol) {
+                Arrays.fill(dest, offset, offset + numCols, nodata);
+                continue;
+            }
+            Arrays.fill(dest, offset, offset + firstCol - col, nodata);
+            Arrays.fill(dest, offset + lastCol - col, offset + numCols, nodata);
+            int blockRow = r / blockLength;
+            int blockOffset = (r % blockLength) * blockWidth;
+            // copy the run of the row held by each block it crosses
+            for (int c = firstCol; c < lastCol;) {
+                int bx = c / blockWidth;
+                int end = Math.min(lastCol, (bx + 1) * blockWidth);
+                double[] block = getCachedBlock(blockRow * blocksAcross + bx);
+                System.arraycopy(block, blockOffset + c - bx * blockWidth, dest, offset + c - col, end - c);
+                c = end;
             }
+        }
+    }
 
-            if (getPhotometricInterpretation() != 2) {
-                int tileOffset = findTag(Tag.TileOffsets).value[tile];
-                int tileByteCount = findTag(Tag.TileByteCounts).value[tile];
-                int[] bitsPerSample = findTag(Tag.BitsPerSample).value;
-                int numPixelsInTile = tileByteCount / (bitsPerSample[0] / 8);
-                data = new double[numPixelsInTile];
-
-                channel.position(tileOffset);
-                int size = tileByteCount / 8;
-                ByteBuffer buffer = ByteBuffer.allocate(tileByteCount);
-                buffer.order(byteOrder);
-                
-                if (compressionType == 1) {
-
-                    channel.read(buffer);
-                    buffer.flip();
-
-                    if (sampleFormat == 1 && bitsPerSample[0] == 8) { // unsigned byte
-                        byte b;
-                        for (int i = 0; i < size; i++) {
-                            b = buffer.get();
-                            data[i] = (short) (0x000000FF & ((int) b));
-                        }
-                    } else if (sampleFormat == 2 && bitsPerSample[0] == 8) { // signed byte
-                        byte b;
-                        for (int i = 0; i < size; i++) {
-                            b = buffer.get();
-                            data[i] = b;
-                        }
-                    } else if (sampleFormat == 1 && bitsPerSample[0] == 16) { // unsigned 16-bit short
-                        int b1;
-                        int b2;
-                        for (int i = 0; i < numPixelsInTile; i++) {
-                            b1 = (0x000000FF & ((int) buffer.get()));
-                            b2 = (0x000000FF & ((int) buffer.get()));
-                            data[i] = (b2 << 8 | b1);
-                        }
-                    } else if (sampleFormat == 2 && bitsPerSample[0] == 16) { // signed 16-bit short
-                        ShortBuffer sb = buffer.asShortBuffer();
-                        short[] sa = new short[numPixelsInTile];
-                        sb.get(sa);
-                        sb = null;
-                        for (int j = 0; j < numPixelsInTile; j++) {
-                            data[j] = sa[j];
-                        }
-                        sa = null;
-                    } else if (sampleFormat == 1 && bitsPerSample[0] == 32) { // unsigned 32-bit int
-                        int b1, b2, b3, b4;
-                        for (int i = 0; i < numPixelsInTile; i++) {
-                            b1 = (0x000000FF & ((int) buffer.get()));
-                            b2 = (0x000000FF & ((int) buffer.get()));
-                            b3 = (0x000000FF & ((int) buffer.get()));
-                            b4 = (0x000000FF & ((int) buffer.get()));
-                            data[i] = ((long) (b1 << 24 | b2 << 16 | b3 << 8 | b4)) & 0xFFFFFFFFL;
-                        }
+    /**
+     * Enlarges the cache of decoded blocks, if need be, to hold all of the
+     * blocks crossed by a band of rows, e.g. so that a band of square regions
+     * can be read across the image without decoding any block twice.
+     *
+     * @param numRows The height of the band.
+     */
+    void setCachedRows(int numRows) {
+        int blockLength = getTileLength();
+        int blocks = (tiledFormat ? nTilesX : 1) * ((numRows + blockLength - 1) / blockLength + 1) + 1;
+        synchronized (decodedBlocks) {
+            cacheSize = Math.max(cacheSize, blocks);
+        }
+    }
 
-                    } else if (sampleFormat == 2 && bitsPerSample[0] == 32) { // signed 32-bit int
-                        IntBuffer ib = buffer.asIntBuffer();
-                        int[] ia = new int[numPixelsInTile];
-                        ib.get(ia);
-                        ib = null;
-                        for (int j = 0; j < numPixelsInTile; j++) {
-                            data[j] = ia[j];
-                        }
-                        ia = null;
-                    } else if (sampleFormat == 1 && bitsPerSample[0] == 64) { // unsigned 64-bit long
-                        // I don't know what data type you could cast an unsigned long into. Perhaps a BigInteger.
-                        return null;
-                    } else if (sampleFormat == 2 && bitsPerSample[0] == 64) { // signed 64-bit long
-                        LongBuffer lb = buffer.asLongBuffer();
-                        long[] la = new long[numPixelsInTile];
-                        lb.get(la);
-                        lb = null;
-                        for (int j = 0; j < numPixelsInTile; j++) {
-                            data[j] = la[j];
-                        }
-                        la = null;
-                    } else if (sampleFormat == 3 && bitsPerSample[0] == 32) { // 32-bit single-precision float
-                        FloatBuffer fb = buffer.asFloatBuffer();
-                        float[] fa = new float[numPixelsInTile];
-                        fb.get(fa);
-                        fb = null;
-                        for (int j = 0; j < numPixelsInTile; j++) {
-                            data[j] = fa[j];
-                        }
-                        fa = null;
-                    } else if (sampleFormat == 3 && bitsPerSample[0] == 64) { // 64-bit double-precision float
-                        DoubleBuffer db = buffer.asDoubleBuffer();
-                        double[] da = new double[numPixelsInTile];
-                        db.get(da);
-                        db = null;
-                        data = da.clone();
-                        da = null;
-                    } else {
-                        return null;
-                    }
-                } else if (compressionType == 32773) {
-                    return null;
-                } else {
-                    return null;
-                }
+    private double getSample(int row, int col) throws IOException {
+        if (!tiledFormat) {
+            return getCachedBlock(row / rowsPerStrip)[(row % rowsPerStrip) * nCols + col];
+        }
+        return getCachedBlock(row / tileLength * nTilesX + col / tileWidth)[(row % tileLength) * tileWidth + col % tileWidth];
+    }
 
-            } else {
-                int tileOffset = findTag(Tag.TileOffsets).value[tile];
-                int tileByteCount = findTag(Tag.TileByteCounts).value[tile];
-                int[] bitsPerSample = findTag(Tag.BitsPerSample).value;
-                int totalBitsPerSample = 0;
-                for (int a = 0; a < bitsPerSample.length; a++) {
-                    totalBitsPerSample += bitsPerSample[a];
-                }
-                int numPixelsInTile = tileByteCount / (totalBitsPerSample / 8);
-                data = new double[numPixelsInTile];
-
-                channel.position(tileOffset);
-                ByteBuffer buffer = ByteBuffer.allocate(tileByteCount);
-                buffer.order(byteOrder);
-                
-                try {
-                    if (compressionType == 1) {
-                        channel.read(buffer);
-                        buffer.flip();
-
-                        if (totalBitsPerSample == 24 && bitsPerSample.length == 3) {
-                            int r, g, b;
-                            for (int i = 0; i < nCols; i++) {
-                                r = (0x000000FF & ((int) buffer.get()));
-                                g = (0x000000FF & ((int) buffer.get()));
-                                b = (0x000000FF & ((int) buffer.get()));
-                                data[i] = (double) ((255 << 24) | (b << 16) | (g << 8) | r);
-                            }
-                        } else if (totalBitsPerSample == 32 && bitsPerSample.length == 4) {
-                            int r, g, b, a;
-                            for (int i = 0; i < nCols; i++) {
-                                r = (0x000000FF & ((int) buffer.get()));
-                                g = (0x000000FF & ((int) buffer.get()));
-                                b = (0x000000FF & ((int) buffer.get()));
-                                a = (0x000000FF & ((int) buffer.get()));
-                                data[i] = (double) ((a << 24) | (b << 16) | (g << 8) | r);
-                            }
-                        } else {
-                            return null;
-                        }
+    /**
+     * Determines whether the image is stored in tiles rather than strips.
+     *
+     * @return true for a tiled file.
+     */
+    public boolean isTiled() {
+        return tiledFormat;
+    }
 
-                    } else if (compressionType == 32773) {
-                        return null;
-                    } else {
-                        return null;
-                    }
+    /**
+     * Retrieves the width of the tiles read by readTile.
+     *
+     * @return The tile width, or the number of columns of a striped file.
+     */
+    public int getTileWidth() {
+        return tiledFormat ? tileWidth : nCols;
+    }
 
-                } catch (IOException e) {
-                    // do nothing
-                }
+    /**
+     * Retrieves the height of the tiles read by readTile.
+     *
+     * @return The tile length, or the number of rows per strip of a striped
+     * file.
+     */
+    public int getTileLength() {
+        return tiledFormat ? tileLength : rowsPerStrip;
+    }
+
+    /**
+     * Retrieves a decoded strip or tile from the cache, decoding it if
+     * necessary.
+     */
+    private double[] getCachedBlock(int block) throws IOException {
+        synchronized (decodedBlocks) {
+            if (block == lastBlockNum) {
+                return lastBlock;
             }
+            double[] data = decodedBlocks.get(block);
+            if (data == null) {
+                data = getBlock(block);
+                decodedBlocks.put(block, data);
+            }
+            lastBlockNum = block;
+            lastBlock = data;
             return data;
-        } catch (Exception e) {
-            return null;
         }
     }
 
-    private double[] getStripData(int stripNum) {
-        double[] data;
-        int compressionType = findTag(Tag.Compression).value[0];
-        int[] bitsPerSample = findTag(Tag.BitsPerSample).value;
-        int sampleFormat = 1; //findTag(Tag.SampleFormat).value[0];
-
-        if (findTag(Tag.SampleFormat) != null) {
-            sampleFormat = findTag(Tag.SampleFormat).value[0];
+    private void cancelPendingBlocks() {
+        synchronized (pendingBlocks) {
+            for (Future<double[]> future : pendingBlocks.values()) {
+                future.cancel(false);
+            }
+            pendingBlocks.clear();
         }
-        if (tiledFormat) {
-            return null; 
-        }
-        int stripOffset = findTag(Tag.StripOffsets).value[stripNum];
-        int stripByteSize = findTag(Tag.StripByteCounts).value[stripNum];
-        
-        if (getPhotometricInterpretation() != 2) {
-            int numPixelsInStrip = stripByteSize / (bitsPerSample[0] / 8);
-            data = new double[numPixelsInStrip];
-            try {
-                channel.position(stripOffset);
-                ByteBuffer buffer = ByteBuffer.allocate(stripByteSize);
-                buffer.order(byteOrder);
-
-                if (compressionType == 1) {
-
-                    channel.read(buffer);
-                    buffer.flip();
-
-                    if (sampleFormat == 1 && bitsPerSample[0] == 8) { // unsigned byte
-                        byte b;
-                        for (int i = 0; i < numPixelsInStrip; i++) {
-                            b = buffer.get();
-                            data[i] = (short) (0x000000FF & ((int) b));
-                        }
-                    } else if (sampleFormat == 2 && bitsPerSample[0] == 8) { // signed byte
-                        byte b;
-                        for (int i = 0; i < numPixelsInStrip; i++) {
-                            b = buffer.get();
-                            data[i] = b;
-                        }
-                    } else if (sampleFormat == 1 && bitsPerSample[0] == 16) { // unsigned 16-bit short
-                        int b1;
-                        int b2;
-                        for (int i = 0; i < numPixelsInStrip; i++) {
-                            b1 = (0x000000FF & ((int) buffer.get()));
-                            b2 = (0x000000FF & ((int) buffer.get()));
-                            data[i] = (b2 << 8 | b1);
-                        }
-                    } else if (sampleFormat == 2 && bitsPerSample[0] == 16) { // signed 16-bit short
-                        ShortBuffer sb = buffer.asShortBuffer();
-                        short[] sa = new short[numPixelsInStrip];
-                        sb.get(sa);
-                        sb = null;
-                        for (int j = 0; j < numPixelsInStrip; j++) {
-                            data[j] = sa[j];
-                        }
-                        sa = null;
-                    } else if (sampleFormat == 1 && bitsPerSample[0] == 32) { // unsigned 32-bit int
-                        int b1, b2, b3, b4;
-                        for (int i = 0; i < numPixelsInStrip; i++) {
-                            b1 = (0x000000FF & ((int) buffer.get()));
-                            b2 = (0x000000FF & ((int) buffer.get()));
-                            b3 = (0x000000FF & ((int) buffer.get()));
-                            b4 = (0x000000FF & ((int) buffer.get()));
-                            data[i] = ((long) (b1 << 24 | b2 << 16 | b3 << 8 | b4)) & 0xFFFFFFFFL;
-                        }
+    }
 
-                    } else if (sampleFormat == 2 && bitsPerSample[0] == 32) { // signed 32-bit int
-                        IntBuffer ib = buffer.asIntBuffer();
-                        int[] ia = new int[numPixelsInStrip];
-                        ib.get(ia);
-                        ib = null;
-                        for (int j = 0; j < numPixelsInStrip; j++) {
-                            data[j] = ia[j];
-                        }
-                        ia = null;
-                    } else if (sampleFormat == 1 && bitsPerSample[0] == 64) { // unsigned 64-bit long
-                        // I don't know what data type you could cast an unsigned long into. Perhaps a BigInteger.
-                        return null;
-                    } else if (sampleFormat == 2 && bitsPerSample[0] == 64) { // signed 64-bit long
-                        LongBuffer lb = buffer.asLongBuffer();
-                        long[] la = new long[numPixelsInStrip];
-                        lb.get(la);
-                        lb = null;
-                        for (int j = 0; j < numPixelsInStrip; j++) {
-                            data[j] = la[j];
-                        }
-                        la = null;
-                    } else if (sampleFormat == 3 && bitsPerSample[0] == 32) { // 32-bit single-precision float
-                        FloatBuffer fb = buffer.asFloatBuffer();
-                        float[] fa = new float[numPixelsInStrip];
-                        fb.get(fa);
-                        fb = null;
-                        for (int j = 0; j < numPixelsInStrip; j++) {
-                            data[j] = fa[j];
+    private int getNumberOfBlocks() {
+        return tiledFormat ? nTilesX * nTilesY : (nRows + rowsPerStrip - 1) / rowsPerStrip;
+    }
+
+    /**
+     * Retrieves a decoded strip or tile, and starts decoding the blocks that
+     * follow it on the worker pool, so that a sequential read has several
+     * blocks decompressed in parallel.
+     */
+    private double[] getBlock(int block) throws IOException {
+        Future<double[]> future;
+        synchronized (pendingBlocks) {
+            future = pendingBlocks.remove(block);
+            // drop blocks that a sequential read has passed over
+            Iterator<Integer> it = pendingBlocks.keySet().iterator();
+            while (it.hasNext()) {
+                int b = it.next();
+                if (b < block) {
+                    pendingBlocks.get(b).cancel(false);
+                    it.remove();
+                }
+            }
+            int depth = Runtime.getRuntime().availableProcessors();
+            int numBlocks = getNumberOfBlocks();
+            for (int b = block + 1; b <= block + depth && b < numBlocks; b++) {
+                if (!pendingBlocks.containsKey(b)) {
+                    final int blockNum = b;
+                    pendingBlocks.put(b, decoder.submit(new Callable<double[]>() {
+                        @Override
+                        public double[] call() throws IOException {
+                            return decodeBlock(blockNum);
                         }
-                        fa = null;
-                    } else if (sampleFormat == 3 && bitsPerSample[0] == 64) { // 64-bit double-precision float
-                        DoubleBuffer db = buffer.asDoubleBuffer();
-                        double[] da = new double[numPixelsInStrip];
-                        db.get(da);
-                        db = null;
-                        data = da.clone();
-                        da = null;
-                    } else {
-                        return null;
-                    }
-                } else if (compressionType == 32773) {
-                    return null;
-                } else {
-                    return null;
+                    }));
                 }
-
-            } catch (IOException e) {
-                // do nothing
             }
+        }
+        if (future == null) {
+            return decodeBlock(block);
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
 
+    /**
+     * Reads and decodes a strip or tile. Strips hold whole rows of the image,
+     * the last strip perhaps fewer than RowsPerStrip of them, while tiles are
+     * always TileWidth by TileLength pixels, those on the right and bottom
+     * edges being padded. This may be called from several threads at once.
+     *
+     * @param block The strip or tile number.
+     * @return The pixel values of the block, in row-major order.
+     * @throws IOException
+     */
+    private double[] decodeBlock(int block) throws IOException {
+        int width;
+        int rows;
+        long offset;
+        int byteCount;
+        if (tiledFormat) {
+            width = tileWidth;
+            rows = tileLength;
+            offset = getLongValue(findTag(Tag.TileOffsets), block);
+            byteCount = (int) getLongValue(findTag(Tag.TileByteCounts), block);
         } else {
-            int totalBitsPerSample = 0;
-            for (int a = 0; a < bitsPerSample.length; a++) {
-                totalBitsPerSample += bitsPerSample[a];
+            width = nCols;
+            rows = Math.min(rowsPerStrip, nRows - block * rowsPerStrip);
+            offset = getLongValue(findTag(Tag.StripOffsets), block);
+            byteCount = (int) getLongValue(findTag(Tag.StripByteCounts), block);
+        }
+        if (!TiffCodec.isSupported(compressionType)) {
+            throw new IOException("Error reading data. TIFF compression type "
+                    + compressionType + " is not supported.");
+        }
+        int bytesPerSample = bitsPerSample / 8;
+        int numPixels = width * rows;
+        byte[] raw = new byte[numPixels * samplesPerPixel * bytesPerSample];
+        byte[] src = compressionType == TiffCodec.COMPRESSION_NONE ? raw : new byte[byteCount];
+        ByteBuffer buffer = ByteBuffer.wrap(src, 0, Math.min(byteCount, src.length));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                break;
             }
-            int numPixelsInStrip = stripByteSize / (totalBitsPerSample / 8);
-            data = new double[numPixelsInStrip];
-            
-            try {
-                channel.position(stripOffset);
-                ByteBuffer buffer = ByteBuffer.allocate(stripByteSize);
-                buffer.order(byteOrder);
-
-                if (compressionType == 1) {
-
-                    channel.read(buffer);
-                    buffer.flip();
-
-                    if (totalBitsPerSample == 24 && bitsPerSample.length == 3) {
-                        int r, g, b;
-                        for (int i = 0; i < nCols; i++) {
-                            r = (0x000000FF & ((int) buffer.get()));
-                            g = (0x000000FF & ((int) buffer.get()));
-                            b = (0x000000FF & ((int) buffer.get()));
-                            data[i] = (double) ((255 << 24) | (b << 16) | (g << 8) | r);
-                        }
-                    } else if (totalBitsPerSample == 32 && bitsPerSample.length == 4) {
-                        int r, g, b, a;
-                        for (int i = 0; i < nCols; i++) {
-                            r = (0x000000FF & ((int) buffer.get()));
-                            g = (0x000000FF & ((int) buffer.get()));
-                            b = (0x000000FF & ((int) buffer.get()));
-                            a = (0x000000FF & ((int) buffer.get()));
-                            data[i] = (double) ((a << 24) | (b << 16) | (g << 8) | r);
-                        }
-                    } else {
-                        return null;
-                    }
-
-                } else if (compressionType == 32773) {
-                    return null;
-                } else {
-                    return null;
-                }
-
-            } catch (IOException e) {
-                return null;
+        }
+        if (compressionType != TiffCodec.COMPRESSION_NONE) {
+            TiffCodec.decompress(compressionType, src, buffer.position(), raw);
+        }
+        TiffCodec.undoPredictor(predictor, raw, width, rows, samplesPerPixel, bytesPerSample, byteOrder);
+
+        double[] data = new double[numPixels];
+        ByteBuffer bb = ByteBuffer.wrap(raw);
+        bb.order(byteOrder);
+        int stride = samplesPerPixel * bytesPerSample;
+        if (rgb) {
+            // packed as the colours of RGB rasters are, i.e. ABGR
+            for (int i = 0, p = 0; i < numPixels; i++, p += stride) {
+                int r = raw[p] & 0xFF;
+                int g = raw[p + 1] & 0xFF;
+                int b = raw[p + 2] & 0xFF;
+                int a = samplesPerPixel > 3 ? raw[p + 3] & 0xFF : 255;
+                data[i] = (double) ((a << 24) | (b << 16) | (g << 8) | r);
+            }
+            return data;
+        }
+        // only the first sample of each pixel is read
+        for (int i = 0, p = 0; i < numPixels; i++, p += stride) {
+            switch (sampleFormat * 100 + bitsPerSample) {
+                case 108: // unsigned byte
+                    data[i] = raw[p] & 0xFF;
+                    break;
+                case 208: // signed byte
+                    data[i] = raw[p];
+                    break;
+                case 116: // unsigned 16-bit short
+                    data[i] = bb.getShort(p) & 0xFFFF;
+                    break;
+                case 216: // signed 16-bit short
+                    data[i] = bb.getShort(p);
+                    break;
+                case 132: // unsigned 32-bit int
+                    data[i] = bb.getInt(p) & 0xFFFFFFFFL;
+                    break;
+                case 232: // signed 32-bit int
+                    data[i] = bb.getInt(p);
+                    break;
+                case 264: // signed 64-bit long
+                    data[i] = bb.getLong(p);
+                    break;
+                case 332: // 32-bit single-precision float
+                    data[i] = bb.getFloat(p);
+                    break;
+                case 364: // 64-bit double-precision float
+                    data[i] = bb.getDouble(p);
+                    break;
+                default:
+                    throw new IOException("Error reading data. TIFF files with " + bitsPerSample
+                            + "-bit samples of format " + sampleFormat + " are not supported.");
             }
         }
         return data;
     }
 
-//    public double[] getRowData(int row) {
-//        double[] data = new double[nCols];
-//        int offset = 0;
-//        int size = 0;
-//        int compressionType = findTag(Tag.Compression).value[0];
-//        int[] bitsPerSample = findTag(Tag.BitsPerSample).value;
-//        int sampleFormat = 1; //findTag(Tag.SampleFormat).value[0];
-//
-//        if (findTag(Tag.SampleFormat) != null) {
-//            sampleFormat = findTag(Tag.SampleFormat).value[0];
-//        }
-//        if (tiledFormat) {
-//            return null; // can't handle this type of tiff.
-//        }
-//
-//        if (getPhotometricInterpretation() != 2) {
-//
-//            // how many rows per strip?
-////                rowsPerStrip = findTag(Tag.RowsPerStrip).value[0];
-//            // which strip will contain row?
-//            int stripNum = (int) row / rowsPerStrip;
-//
-//            int stripOffset = findTag(Tag.StripOffsets).value[stripNum];
-//            //int stripSize = findTag(Tag.StripByteCounts).value[0];
-//            offset = stripOffset + (row % rowsPerStrip * nCols * (bitsPerSample[0] / 8));
-//            size = nCols * (bitsPerSample[0] / 8); //stripSize;
-//
-//            try {
-//                channel.position(offset);
-//                ByteBuffer buffer = ByteBuffer.allocate(size);
-//                buffer.order(byteOrder);
-//
-//                if (compressionType == 1) {
-//
-//                    channel.read(buffer);
-//                    buffer.flip();
-//
-//                    if (sampleFormat == 1 && bitsPerSample[0] == 8) { // unsigned byte
-//                        byte b;
-//                        for (int i = 0; i < size; i++) {
-//                            b = buffer.get();
-//                            data[i] = (short) (0x000000FF & ((int) b));
-//                        }
-//                    } else if (sampleFormat == 2 && bitsPerSample[0] == 8) { // signed byte
-//                        byte b;
-//                        for (int i = 0; i < size; i++) {
-//                            b = buffer.get();
-//                            data[i] = b;
-//                        }
-//                    } else if (sampleFormat == 1 && bitsPerSample[0] == 16) { // unsigned 16-bit short
-//                        int b1;
-//                        int b2;
-//                        for (int i = 0; i < nCols; i++) {
-//                            b1 = (0x000000FF & ((int) buffer.get()));
-//                            b2 = (0x000000FF & ((int) buffer.get()));
-//                            data[i] = (b2 << 8 | b1);
-//                        }
-//                    } else if (sampleFormat == 2 && bitsPerSample[0] == 16) { // signed 16-bit short
-//                        ShortBuffer sb = buffer.asShortBuffer();
-//                        short[] sa = new short[nCols];
-//                        sb.get(sa);
-//                        sb = null;
-//                        for (int j = 0; j < nCols; j++) {
-//                            data[j] = sa[j];
-//                        }
-//                        sa = null;
-//                    } else if (sampleFormat == 1 && bitsPerSample[0] == 32) { // unsigned 32-bit int
-//                        int b1, b2, b3, b4;
-//                        for (int i = 0; i < nCols; i++) {
-//                            b1 = (0x000000FF & ((int) buffer.get()));
-//                            b2 = (0x000000FF & ((int) buffer.get()));
-//                            b3 = (0x000000FF & ((int) buffer.get()));
-//                            b4 = (0x000000FF & ((int) buffer.get()));
-//                            data[i] = ((long) (b1 << 24 | b2 << 16 | b3 << 8 | b4)) & 0xFFFFFFFFL;
-//                        }
-//
-//                    } else if (sampleFormat == 2 && bitsPerSample[0] == 32) { // signed 32-bit int
-//                        IntBuffer ib = buffer.asIntBuffer();
-//                        int[] ia = new int[nCols];
-//                        ib.get(ia);
-//                        ib = null;
-//                        for (int j = 0; j < nCols; j++) {
-//                            data[j] = ia[j];
-//                        }
-//                        ia = null;
-//                    } else if (sampleFormat == 1 && bitsPerSample[0] == 64) { // unsigned 64-bit long
-//                        // I don't know what data type you could cast an unsigned long into. Perhaps a BigInteger.
-//                        return null;
-//                    } else if (sampleFormat == 2 && bitsPerSample[0] == 64) { // signed 64-bit long
-//                        LongBuffer lb = buffer.asLongBuffer();
-//                        long[] la = new long[nCols];
-//                        lb.get(la);
-//                        lb = null;
-//                        for (int j = 0; j < nCols; j++) {
-//                            data[j] = la[j];
-//                        }
-//                        la = null;
-//                    } else if (sampleFormat == 3 && bitsPerSample[0] == 32) { // 32-bit single-precision float
-//                        FloatBuffer fb = buffer.asFloatBuffer();
-//                        float[] fa = new float[nCols];
-//                        fb.get(fa);
-//                        fb = null;
-//                        for (int j = 0; j < nCols; j++) {
-//                            data[j] = fa[j];
-//                        }
-//                        fa = null;
-//                    } else if (sampleFormat == 3 && bitsPerSample[0] == 64) { // 64-bit double-precision float
-//                        DoubleBuffer db = buffer.asDoubleBuffer();
-//                        double[] da = new double[nCols];
-//                        db.get(da);
-//                        db = null;
-//                        data = da.clone();
-//                        da = null;
-//                    } else {
-//                        return null;
-//                    }
-//                } else if (compressionType == 32773) {
-//                    return null;
-//                } else {
-//                    return null;
-//                }
-//
-//            } catch (IOException e) {
-//                // do nothing
-//            }
-//
-//            return data;
-//        } else {
-//            // how many rows per strip?
-//            int rowsPerStrip = findTag(Tag.RowsPerStrip).value[0];
-//            // which strip will contain row?
-//            int stripNum = (int) row / rowsPerStrip;
-//
-//            int stripOffset = findTag(Tag.StripOffsets).value[stripNum];
-//            //int stripSize = findTag(Tag.StripByteCounts).value[0];
-//
-//            int totalBitsPerSample = 0;
-//            for (int a = 0; a < bitsPerSample.length; a++) {
-//                totalBitsPerSample += bitsPerSample[a];
-//            }
-//            offset = stripOffset + (row % rowsPerStrip * nCols * (totalBitsPerSample / 8));
-//            size = nCols * (totalBitsPerSample / 8); //stripSize;
-//
-//            try {
-//                channel.position(offset);
-//                ByteBuffer buffer = ByteBuffer.allocate(size);
-//                buffer.order(byteOrder);
-//
-//                if (compressionType == 1) {
-//
-//                    channel.read(buffer);
-//                    buffer.flip();
-//
-//                    if (totalBitsPerSample == 24 && bitsPerSample.length == 3) {
-//                        int r, g, b;
-//                        for (int i = 0; i < nCols; i++) {
-//                            r = (0x000000FF & ((int) buffer.get()));
-//                            g = (0x000000FF & ((int) buffer.get()));
-//                            b = (0x000000FF & ((int) buffer.get()));
-//                            data[i] = (double) ((255 << 24) | (b << 16) | (g << 8) | r);
-//                        }
-//                    } else if (totalBitsPerSample == 32 && bitsPerSample.length == 4) {
-//                        int r, g, b, a;
-//                        for (int i = 0; i < nCols; i++) {
-//                            r = (0x000000FF & ((int) buffer.get()));
-//                            g = (0x000000FF & ((int) buffer.get()));
-//                            b = (0x000000FF & ((int) buffer.get()));
-//                            a = (0x000000FF & ((int) buffer.get()));
-//                            data[i] = (double) ((a << 24) | (b << 16) | (g << 8) | r);
-//                        }
-//                    } else {
-//                        return null;
-//                    }
-//
-//                } else if (compressionType == 32773) {
-//                    return null;
-//                } else {
-//                    return null;
-//                }
-//
-//            } catch (IOException e) {
-//                // do nothing
-//            }
-//            return data;
-////            return null;
-//        }
-//    }
-
-    private int readHeader(FileChannel channel) throws IOException {
+    private long readHeader(FileChannel channel) throws IOException {
         channel.position(0);
 
-        ByteBuffer buffer = ByteBuffer.allocate(8);
+        ByteBuffer buffer = ByteBuffer.allocate(16);
         channel.read(buffer);
         buffer.flip();
         if (showHeaderBytes) {
@@ -1182,8 +1134,16 @@ public class GeoTiff {
             byteOrder = ByteOrder.LITTLE_ENDIAN;
         }
         buffer.order(byteOrder);
-        buffer.position(4);
-        int firstIFD = buffer.getInt();
+        buffer.position(2);
+        // BigTIFF (43) uses 64-bit offsets and counts throughout
+        bigTiff = buffer.getShort() == 43;
+        long firstIFD;
+        if (bigTiff) {
+            buffer.position(8);
+            firstIFD = buffer.getLong();
+        } else {
+            firstIFD = buffer.getInt() & 0xFFFFFFFFL;
+        }
         if (debugRead) {
             System.out.println(" firstIFD == " + firstIFD);
         }
@@ -1195,10 +1155,10 @@ public class GeoTiff {
         return byteOrder;
     }
 
-    private int readIFD(FileChannel channel, int start) throws IOException {
+    private long readIFD(FileChannel channel, long start) throws IOException {
         channel.position(start);
 
-        ByteBuffer buffer = ByteBuffer.allocate(2);
+        ByteBuffer buffer = ByteBuffer.allocate(bigTiff ? 8 : 2);
         buffer.order(byteOrder);
 
         int n = channel.read(buffer);
@@ -1207,12 +1167,12 @@ public class GeoTiff {
             printBytes(System.out, "IFD", buffer, 2);
             buffer.rewind();
         }
-        short nentries = buffer.getShort();
+        long nentries = bigTiff ? buffer.getLong() : buffer.getShort() & 0xFFFF;
         if (debugRead) {
             System.out.println(" nentries = " + nentries);
         }
 
-        start += 2;
+        start += bigTiff ? 8 : 2;
         for (int i = 0; i < nentries; i++) {
             IFDEntry ifd = readIFDEntry(channel, start);
             if (debugRead) {
@@ -1220,31 +1180,31 @@ public class GeoTiff {
             }
 
             tags.add(ifd);
-            start += 12;
+            start += bigTiff ? 20 : 12;
         }
 
         if (debugRead) {
             System.out.println(" looking for nextIFD at pos == " + channel.position() + " start = " + start);
         }
         channel.position(start);
-        buffer = ByteBuffer.allocate(4);
+        buffer = ByteBuffer.allocate(bigTiff ? 8 : 4);
         buffer.order(byteOrder);
         n = channel.read(buffer);
         buffer.flip();
-        int nextIFD = buffer.getInt();
+        long nextIFD = bigTiff ? buffer.getLong() : buffer.getInt() & 0xFFFFFFFFL;
         if (debugRead) {
             System.out.println(" nextIFD == " + nextIFD);
         }
         return nextIFD;
     }
 
-    private IFDEntry readIFDEntry(FileChannel channel, int start) throws IOException {
+    private IFDEntry readIFDEntry(FileChannel channel, long start) throws IOException {
         if (debugRead) {
             System.out.println("readIFDEntry starting position to " + start);
         }
 
         channel.position(start);
-        ByteBuffer buffer = ByteBuffer.allocate(12);
+        ByteBuffer buffer = ByteBuffer.allocate(bigTiff ? 20 : 12);
         buffer.order(byteOrder);
         channel.read(buffer);
         buffer.flip();
@@ -1260,14 +1220,14 @@ public class GeoTiff {
             tag = new Tag(code);
         }
         FieldType type = FieldType.get(readUShortValue(buffer));
-        int count = buffer.getInt();
+        int count = bigTiff ? (int) buffer.getLong() : buffer.getInt();
 
         ifd = new IFDEntry(tag, type, count);
 
-        if (ifd.count * ifd.type.size <= 4) {
+        if (ifd.count * ifd.type.size <= (bigTiff ? 8 : 4)) {
             readValues(buffer, ifd);
         } else {
-            int offset = buffer.getInt();
+            long offset = bigTiff ? buffer.getLong() : buffer.getInt() & 0xFFFFFFFFL;
             if (debugRead) {
                 System.out.println("position to " + offset);
             }
@@ -1337,6 +1297,15 @@ public class GeoTiff {
                 ifd.valueD[i] = buffer.getDouble();
             }
 
+        } else if (ifd.type == FieldType.LONG8 || ifd.type == FieldType.SLONG8
+                || ifd.type == FieldType.IFD8) { // BigTIFF
+            ifd.valueL = new long[ifd.count];
+            ifd.value = new int[ifd.count];
+            for (int i = 0; i < ifd.count; i++) {
+                ifd.valueL[i] = buffer.getLong();
+                ifd.value[i] = (int) ifd.valueL[i];
+            }
+
         } else {
             ifd.value = new int[ifd.count];
             for (int i = 0; i < ifd.count; i++) {
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.io.IOException;
+
+/**
+ * A read-only tile store that serves the tiles of a raster opened directly on
+ * a GeoTIFF file (see WhiteboxRasterBase.Compression.GEOTIFF) from the file's
+ * own strips or tiles, through the decoded-block cache of GeoTiff. The store's
+ * tiles match those of the file where the file's are square, so that each of
+ * them is decoded once; otherwise the cache is enlarged to hold a band of the
+ * file's blocks as tall as a store tile. Cells holding the file's NoData
+ * value, or NaN where that is the NoData value, are given the raster's NoData
+ * value.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+class GeoTiffTileStore implements RasterTileStore {
+
+    private final String fileName;
+    private final int tileSize;
+    private final double noData;
+    private GeoTiff geoTiff;
+    private double fileNoData;
+
+    /**
+     * Class constructor.
+     *
+     * @param raster The raster, whose data file is the GeoTIFF.
+     * @param tileSize The number of cells along each side of a tile.
+     */
+    GeoTiffTileStore(WhiteboxRasterBase raster, int tileSize) {
+        this.fileName = raster.dataFile;
+        this.tileSize = tileSize;
+        this.noData = raster.noDataValue;
+    }
+
+    private synchronized GeoTiff open() throws IOException {
+        if (geoTiff == null) {
+            GeoTiff gt = new GeoTiff(fileName);
+            gt.read();
+            if (!gt.isCompressionSupported()) {
+                gt.close();
+                throw new IOException("The compression of " + fileName + " is not supported.");
+            }
+            if (!gt.isTiled() || gt.getTileWidth() != tileSize || gt.getTileLength() != tileSize) {
+                gt.setCachedRows(tileSize);
+            }
+            fileNoData = gt.getNoData();
+            geoTiff = gt;
+        }
+        return geoTiff;
+    }
+
+    @Override
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    @Override
+    public void readTile(int tileRow, int tileColumn, CellBuffer dest) throws IOException {
+        GeoTiff gt = open();
+        double[] values = new double[tileSize * tileSize];
+        gt.readRegion(tileRow * tileSize, tileColumn * tileSize, tileSize, tileSize, values);
+        boolean noDataIsNaN = Double.isNaN(fileNoData);
+        for (int i = 0; i < values.length; i++) {
+            double z = values[i];
+            if (z == fileNoData || (noDataIsNaN && Double.isNaN(z))) {
+                values[i] = noData;
+            }
+        }
+        dest.copyFrom(values, 0, 0, values.length);
+    }
+
+    @Override
+    public void writeTile(int tileRow, int tileColumn, CellBuffer src) throws IOException {
+        throw new IOException("A raster read directly from a GeoTIFF is read-only.");
+    }
+
+    @Override
+    public Double getConstantValue(int tileRow, int tileColumn) {
+        return null;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Closes the file. The store may still be read afterwards, in which case
+     * the file is reopened.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (geoTiff != null) {
+            geoTiff.close();
+            geoTiff = null;
+        }
+    }
+
+    @Override
+    public void discard() throws IOException {
+        close();
+    }
+}
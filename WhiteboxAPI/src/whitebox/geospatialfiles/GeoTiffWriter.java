@@ -0,0 +1,876 @@
+/*
+ * Copyright (C) 2015 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import whitebox.geospatialfiles.WhiteboxRasterBase.DataScale;
+import whitebox.utilities.NamedThreadFactory;
+
+/**
+ * Writes a Whitebox raster to a GeoTIFF file, either in strips or in square
+ * tiles, uncompressed or compressed with LZW or Deflate. When compressed, a
+ * predictor suited to the data type is applied first: horizontal
+ * differencing for integer data and the floating-point predictor for real
+ * data. The strips or tiles of each band of the image are compressed in
+ * parallel. Files that would exceed the 4 GB limit of a classic TIFF are
+ * written as BigTIFF, i.e. with 64-bit offsets. Internal overviews may be
+ * written too, in the layout of a cloud-optimized GeoTIFF. The export is
+ * carried out a band of strips or tiles at a time so that the caller can
+ * report progress and cancel:
+ *
+ * <pre>
+ * GeoTiffWriter writer = new GeoTiffWriter(inputHeader, outputFile);
+ * writer.setCompression(GeoTiffWriter.Compression.DEFLATE);
+ * while (writer.writeNextBand()) {
+ *     updateProgress(writer.getProgress());
+ * }
+ * writer.close();
+ * </pre>
+ *
+ * DOUBLE and FLOAT rasters are written as 64- and 32-bit floating-point
+ * samples, INTEGER rasters as signed 16-bit and BYTE rasters as unsigned
+ * 8-bit samples. The NoData value is recorded in the GDAL_NODATA tag. RGB
+ * rasters are written as 8-bit red, green, blue and alpha samples, and the
+ * stacks of a multi-stack raster as the samples of each pixel. The raster's
+ * georeferencing is recorded with the ModelTiepoint and ModelPixelScale tags;
+ * since the projection of a Whitebox raster is free text, no projection geo
+ * keys are written.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public final class GeoTiffWriter {
+
+    public enum Compression {
+
+        NONE, LZW, DEFLATE
+    }
+    /**
+     * The default width and height of the tiles.
+     */
+    public static final int DEFAULT_TILE_SIZE = 256;
+    // the classic TIFF header is padded to the size of the BigTIFF header,
+    // so that the choice between them can be made once the data are written
+    private static final int HEADER_SIZE = 16;
+    private static final ExecutorService encoder = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new NamedThreadFactory("GeoTiffEncoder"));
+    private final WhiteboxRasterBase input;
+    private final String outputFile;
+    private final int rows;
+    private final int columns;
+    private final int samplesPerPixel;
+    private final int bytesPerSample;
+    private final int sampleFormat;
+    private final boolean rgb;
+    private final ByteOrder byteOrder = ByteOrder.LITTLE_ENDIAN;
+    private int tileSize = DEFAULT_TILE_SIZE;
+    private Compression compression = Compression.DEFLATE;
+    private boolean usePredictor = true;
+    private boolean forceBigTiff = false;
+    private boolean writeOverviews = false;
+    private boolean started = false;
+    // the full-resolution image followed by its overviews, if any
+    private final ArrayList<Level> levels = new ArrayList<>();
+    private int rowsRead = 0;
+    private int rowsPerBand;
+    private RandomAccessFile file;
+    private FileChannel channel;
+
+    /**
+     * Class constructor.
+     *
+     * @param inputHeader The header file of the raster to export.
+     * @param outputFile The name of the GeoTIFF file, which is overwritten if
+     * it exists.
+     * @throws IOException
+     */
+    public GeoTiffWriter(String inputHeader, String outputFile) throws IOException {
+        if (!new File(inputHeader).exists()) {
+            throw new IOException("The raster " + inputHeader + " could not be found.");
+        }
+        input = new WhiteboxRasterBase(inputHeader);
+        input.setFileAccess("r");
+        this.outputFile = outputFile;
+        rows = input.getNumberRows();
+        columns = input.getNumberColumns();
+        rgb = input.getDataScale() == DataScale.RGB;
+        if (rgb) {
+            samplesPerPixel = 4;
+            bytesPerSample = 1;
+            sampleFormat = 1;
+        } else {
+            samplesPerPixel = input.getNumberStacks();
+            switch (input.getDataType()) {
+                case DOUBLE:
+                    bytesPerSample = 8;
+                    sampleFormat = 3;
+                    break;
+                case FLOAT:
+                    bytesPerSample = 4;
+                    sampleFormat = 3;
+                    break;
+                case INTEGER:
+                    bytesPerSample = 2;
+                    sampleFormat = 2;
+                    break;
+                default:
+                    bytesPerSample = 1;
+                    sampleFormat = 1;
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Sets the width and height of the tiles. A size of zero writes the image
+     * in strips instead.
+     *
+     * @param tileSize The tile size, a multiple of 16, or zero.
+     */
+    public void setTileSize(int tileSize) {
+        checkNotStarted();
+        if (tileSize < 0 || tileSize % 16 != 0) {
+            throw new IllegalArgumentException("The tile size must be a multiple of 16.");
+        }
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * Sets the compression scheme.
+     *
+     * @param compression The compression scheme.
+     */
+    public void setCompression(Compression compression) {
+        checkNotStarted();
+        this.compression = compression;
+    }
+
+    /**
+     * Sets whether a predictor is applied before compression. It usually
+     * improves the compression of continuous data considerably.
+     *
+     * @param usePredictor Set to false to compress the samples as they are.
+     */
+    public void setPredictor(boolean usePredictor) {
+        checkNotStarted();
+        this.usePredictor = usePredictor;
+    }
+
+    /**
+     * Sets whether the file is written as BigTIFF even if it would fit in a
+     * classic TIFF.
+     *
+     * @param forceBigTiff Set to true to always write BigTIFF.
+     */
+    public void setBigTiff(boolean forceBigTiff) {
+        checkNotStarted();
+        this.forceBigTiff = forceBigTiff;
+    }
+
+    /**
+     * Sets whether internal overviews are written. Each overview halves the
+     * resolution of the one before it, until the image fits in a single tile.
+     * Continuous data are averaged, ignoring NoData, and other data are
+     * sampled by nearest neighbour. The file is then laid out as a
+     * cloud-optimized GeoTIFF: the directories of the full-resolution image
+     * and its overviews come first, followed by the overviews' tiles, from
+     * the smallest, and the full-resolution tiles last. This needs temporary
+     * files beside the output while the image is written.
+     *
+     * @param writeOverviews Set to true to write overviews.
+     */
+    public void setOverviews(boolean writeOverviews) {
+        checkNotStarted();
+        this.writeOverviews = writeOverviews;
+    }
+
+    private void checkNotStarted() {
+        if (started) {
+            throw new IllegalStateException("The export has already started.");
+        }
+    }
+
+    private int getCompressionCode() {
+        switch (compression) {
+            case LZW:
+                return TiffCodec.COMPRESSION_LZW;
+            case DEFLATE:
+                return TiffCodec.COMPRESSION_DEFLATE;
+            default:
+                return TiffCodec.COMPRESSION_NONE;
+        }
+    }
+
+    private int getPredictorCode() {
+        if (!usePredictor || compression == Compression.NONE) {
+            return TiffCodec.PREDICTOR_NONE;
+        }
+        return sampleFormat == 3 ? TiffCodec.PREDICTOR_FLOATING_POINT : TiffCodec.PREDICTOR_HORIZONTAL;
+    }
+
+    /**
+     * The full-resolution image or one of its overviews, whose strips or
+     * tiles are compressed a band at a time as its rows arrive.
+     */
+    private final class Level {
+
+        final int width;
+        final int height;
+        final int rowSize;
+        final int blockWidth;
+        final int blockLength;
+        final int blocksAcross;
+        final int blocksDown;
+        final long[] offsets;
+        final long[] byteCounts;
+        final byte[] band;
+        final int bandCapacity;
+        int bandRows = 0;
+        int rowsAdded = 0;
+        int nextBlockRow = 0;
+        // an even row awaiting the odd row below it, to make the next overview
+        byte[] pendingRow;
+        File tempFile;
+        FileChannel channel;
+        long position;
+
+        Level(int width, int height) {
+            this.width = width;
+            this.height = height;
+            rowSize = width * samplesPerPixel * bytesPerSample;
+            int blockRowsPerBand;
+            if (tileSize > 0) {
+                blockWidth = tileSize;
+                blockLength = tileSize;
+                blockRowsPerBand = 1;
+            } else {
+                // strips of about 64 kB, several to a band so that they can
+                // be compressed in parallel
+                blockWidth = width;
+                blockLength = Math.max(1, Math.min(height, 65536 / Math.max(1, rowSize)));
+                blockRowsPerBand = 2 * Runtime.getRuntime().availableProcessors();
+            }
+            blocksAcross = (width + blockWidth - 1) / blockWidth;
+            blocksDown = (height + blockLength - 1) / blockLength;
+            offsets = new long[blocksAcross * blocksDown];
+            byteCounts = new long[blocksAcross * blocksDown];
+            bandCapacity = Math.min(height, blockRowsPerBand * blockLength);
+            band = new byte[bandCapacity * rowSize];
+        }
+
+        boolean isComplete() {
+            return rowsAdded == height;
+        }
+    }
+
+    private void start() throws IOException {
+        started = true;
+        levels.add(new Level(columns, rows));
+        if (writeOverviews) {
+            int size = tileSize > 0 ? tileSize : DEFAULT_TILE_SIZE;
+            int width = columns;
+            int height = rows;
+            while (width > size || height > size) {
+                width = (width + 1) / 2;
+                height = (height + 1) / 2;
+                levels.add(new Level(width, height));
+            }
+        }
+        rowsPerBand = levels.get(0).bandCapacity;
+        new File(outputFile).delete();
+        file = new RandomAccessFile(outputFile, "rw");
+        channel = file.getChannel();
+        if (levels.size() == 1) {
+            // the image is written straight to the file, and its directory
+            // after it
+            Level level = levels.get(0);
+            level.channel = channel;
+            level.position = HEADER_SIZE;
+            channel.write(ByteBuffer.allocate(HEADER_SIZE), 0);
+        } else {
+            // each image is gathered in a file of its own, so that the
+            // directories and overviews can be put ahead of it
+            File directory = new File(outputFile).getAbsoluteFile().getParentFile();
+            for (Level level : levels) {
+                level.tempFile = File.createTempFile("GeoTiffWriter", ".tmp", directory);
+                level.tempFile.deleteOnExit();
+                level.channel = new RandomAccessFile(level.tempFile, "rw").getChannel();
+            }
+        }
+    }
+
+    /**
+     * Writes the next band of strips or tiles.
+     *
+     * @return false once the whole image has been written.
+     * @throws IOException
+     */
+    public boolean writeNextBand() throws IOException {
+        if (!started) {
+            start();
+        }
+        if (rowsRead >= rows) {
+            return false;
+        }
+        int lastRow = Math.min(rows, rowsRead + rowsPerBand);
+        double[] values = new double[columns * samplesPerPixel];
+        for (int row = rowsRead; row < lastRow; row++) {
+            if (samplesPerPixel > 1 && !rgb) {
+                input.getInterleavedRowValues(row, values);
+            } else {
+                input.getRowValues(row, values);
+            }
+            byte[] rowData = new byte[levels.get(0).rowSize];
+            encodeRow(values, ByteBuffer.wrap(rowData).order(byteOrder));
+            addRow(0, rowData);
+        }
+        rowsRead = lastRow;
+        return rowsRead < rows;
+    }
+
+    /**
+     * Adds a row to an image, writing its band once complete, and passes
+     * each pair of rows on, reduced, to the next overview.
+     */
+    private void addRow(int levelNum, byte[] row) throws IOException {
+        Level level = levels.get(levelNum);
+        System.arraycopy(row, 0, level.band, level.bandRows * level.rowSize, level.rowSize);
+        level.bandRows++;
+        level.rowsAdded++;
+        if (level.bandRows == level.bandCapacity || level.isComplete()) {
+            writeBand(level);
+        }
+        if (levelNum + 1 < levels.size()) {
+            if (level.pendingRow == null && !level.isComplete()) {
+                level.pendingRow = row;
+            } else {
+                byte[] upper = level.pendingRow != null ? level.pendingRow : row;
+                level.pendingRow = null;
+                addRow(levelNum + 1, reduce(level, upper, row));
+            }
+        }
+    }
+
+    /**
+     * Compresses the strips or tiles of the rows gathered in a level's band,
+     * in parallel, and writes them in order.
+     */
+    private void writeBand(final Level level) throws IOException {
+        final int compressionCode = getCompressionCode();
+        final int predictor = getPredictorCode();
+        int firstRow = level.nextBlockRow * level.blockLength;
+        int numBlockRows = (level.bandRows + level.blockLength - 1) / level.blockLength;
+        ArrayList<Future<byte[]>> blocks = new ArrayList<>();
+        for (int br = 0; br < numBlockRows; br++) {
+            int bandRow = br * level.blockLength;
+            final int blockRows = tileSize > 0 ? level.blockLength
+                    : Math.min(level.blockLength, level.height - firstRow - bandRow);
+            for (int bc = 0; bc < level.blocksAcross; bc++) {
+                final byte[] block = extractBlock(level, bandRow,
+                        Math.min(level.blockLength, level.bandRows - bandRow), bc * level.blockWidth);
+                blocks.add(encoder.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws IOException {
+                        TiffCodec.applyPredictor(predictor, block, level.blockWidth, blockRows,
+                                samplesPerPixel, bytesPerSample, byteOrder);
+                        return TiffCodec.compress(compressionCode, block);
+                    }
+                }));
+            }
+        }
+        int blockNum = level.nextBlockRow * level.blocksAcross;
+        try {
+            for (Future<byte[]> future : blocks) {
+                byte[] data = future.get();
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                level.offsets[blockNum] = level.position;
+                level.byteCounts[blockNum] = data.length;
+                while (buffer.hasRemaining()) {
+                    level.channel.write(buffer, level.position + buffer.position());
+                }
+                level.position += data.length;
+                blockNum++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        level.nextBlockRow += numBlockRows;
+        level.bandRows = 0;
+    }
+
+    /**
+     * Converts a row of cell values into TIFF samples.
+     */
+    private void encodeRow(double[] values, ByteBuffer bb) {
+        double noData = input.getNoDataValue();
+        if (rgb) {
+            for (int col = 0; col < columns; col++) {
+                int p = col * 4;
+                if (values[col] == noData) {
+                    bb.putInt(p, 0);
+                    continue;
+                }
+                int v = (int) values[col];
+                bb.put(p, (byte) v);
+                bb.put(p + 1, (byte) (v >> 8));
+                bb.put(p + 2, (byte) (v >> 16));
+                bb.put(p + 3, (byte) (v >> 24));
+            }
+            return;
+        }
+        for (int i = 0; i < values.length; i++) {
+            putSample(bb, i * bytesPerSample, values[i]);
+        }
+    }
+
+    private void putSample(ByteBuffer bb, int pos, double v) {
+        switch (bytesPerSample) {
+            case 8:
+                bb.putDouble(pos, v);
+                break;
+            case 4:
+                bb.putFloat(pos, (float) v);
+                break;
+            case 2:
+                bb.putShort(pos, (short) v);
+                break;
+            default:
+                bb.put(pos, (byte) v);
+                break;
+        }
+    }
+
+    private double getSample(ByteBuffer bb, int pos) {
+        switch (bytesPerSample) {
+            case 8:
+                return bb.getDouble(pos);
+            case 4:
+                return bb.getFloat(pos);
+            case 2:
+                return bb.getShort(pos);
+            default:
+                return bb.get(pos) & 0xFF;
+        }
+    }
+
+    /**
+     * Reduces two rows of an image to a row of the next overview, halving
+     * its width. Continuous data are averaged over each two by two block of
+     * pixels, ignoring NoData; other data take the block's upper-left pixel.
+     */
+    private byte[] reduce(Level level, byte[] upper, byte[] lower) {
+        int width = (level.width + 1) / 2;
+        int pixelSize = samplesPerPixel * bytesPerSample;
+        byte[] out = new byte[width * pixelSize];
+        if (rgb || input.getDataScale() != DataScale.CONTINUOUS) {
+            for (int col = 0; col < width; col++) {
+                System.arraycopy(upper, 2 * col * pixelSize, out, col * pixelSize, pixelSize);
+            }
+            return out;
+        }
+        ByteBuffer a = ByteBuffer.wrap(upper).order(byteOrder);
+        ByteBuffer b = ByteBuffer.wrap(lower).order(byteOrder);
+        ByteBuffer o = ByteBuffer.wrap(out).order(byteOrder);
+        // the NoData value as it is stored in the file
+        ByteBuffer nd = ByteBuffer.allocate(8).order(byteOrder);
+        putSample(nd, 0, input.getNoDataValue());
+        double noData = getSample(nd, 0);
+        for (int col = 0; col < width; col++) {
+            int right = Math.min(2 * col + 1, level.width - 1);
+            for (int s = 0; s < samplesPerPixel; s++) {
+                int p1 = (2 * col * samplesPerPixel + s) * bytesPerSample;
+                int p2 = (right * samplesPerPixel + s) * bytesPerSample;
+                double sum = 0;
+                int n = 0;
+                for (double v : new double[]{getSample(a, p1), getSample(a, p2),
+                    getSample(b, p1), getSample(b, p2)}) {
+                    if (v != noData && !Double.isNaN(v)) {
+                        sum += v;
+                        n++;
+                    }
+                }
+                double v = noData;
+                if (n > 0) {
+                    v = sampleFormat == 3 ? sum / n : Math.round(sum / n);
+                }
+                putSample(o, (col * samplesPerPixel + s) * bytesPerSample, v);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Copies a strip or tile out of a level's band of rows. Tiles extending
+     * beyond the edges of the image are padded by repeating the edge pixels,
+     * which compresses better than any fill value.
+     */
+    private byte[] extractBlock(Level level, int firstRow, int numRows, int firstColumn) {
+        int pixelSize = samplesPerPixel * bytesPerSample;
+        int blockRowSize = level.blockWidth * pixelSize;
+        int blockRows = tileSize > 0 ? level.blockLength : numRows;
+        byte[] block = new byte[blockRows * blockRowSize];
+        int cols = Math.min(level.blockWidth, level.width - firstColumn);
+        for (int r = 0; r < blockRows; r++) {
+            int src = (firstRow + Math.min(r, numRows - 1)) * level.rowSize + firstColumn * pixelSize;
+            int dest = r * blockRowSize;
+            System.arraycopy(level.band, src, block, dest, cols * pixelSize);
+            for (int c = cols; c < level.blockWidth; c++) {
+                System.arraycopy(block, dest + (cols - 1) * pixelSize, block, dest + c * pixelSize, pixelSize);
+            }
+        }
+        return block;
+    }
+
+    /**
+     * Retrieves the progress of the export.
+     *
+     * @return The percentage of the image written.
+     */
+    public int getProgress() {
+        return rows == 0 ? 0 : (int) (100L * rowsRead / rows);
+    }
+
+    /**
+     * Finishes the export, writing the image file directories. If the export
+     * was abandoned before the whole image had been written, e.g. because the
+     * operation was cancelled, the file is deleted instead.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        boolean complete = false;
+        try {
+            if (!started) {
+                start();
+            }
+            if (rowsRead == rows) {
+                if (levels.size() == 1) {
+                    writeDirectory();
+                } else {
+                    writeCloudOptimized();
+                }
+                complete = true;
+            }
+        } finally {
+            for (Level level : levels) {
+                if (level.tempFile != null) {
+                    level.channel.close();
+                    level.tempFile.delete();
+                }
+            }
+            if (file != null) {
+                file.close();
+                file = null;
+            }
+            if (!complete) {
+                new File(outputFile).delete();
+            }
+            input.close();
+        }
+    }
+
+    /**
+     * Writes the directory of an image written straight to the file.
+     */
+    private void writeDirectory() throws IOException {
+        Level level = levels.get(0);
+        IFD ifd = createDirectory(level, true);
+        long end = level.position + (level.position & 1);
+        boolean bigTiff = forceBigTiff || end + ifd.getSize(false) > 0xFFFFFFFFL;
+        write(ifd.encode(end, bigTiff, 0), end);
+        writeHeader(end, bigTiff);
+    }
+
+    /**
+     * Assembles a cloud-optimized GeoTIFF from the images gathered in the
+     * temporary files: the header, then the directories from the
+     * full-resolution image to the smallest overview, then the images' tiles
+     * from the smallest overview to the full-resolution image.
+     */
+    private void writeCloudOptimized() throws IOException {
+        ArrayList<IFD> directories = new ArrayList<>();
+        long dataSize = 0;
+        for (int i = 0; i < levels.size(); i++) {
+            directories.add(createDirectory(levels.get(i), i == 0));
+            dataSize += levels.get(i).position;
+        }
+        long size = HEADER_SIZE + dataSize;
+        for (IFD ifd : directories) {
+            size += ifd.getSize(false);
+        }
+        boolean bigTiff = forceBigTiff || size > 0xFFFFFFFFL;
+        long[] directoryStart = new long[levels.size() + 1];
+        directoryStart[0] = HEADER_SIZE;
+        for (int i = 0; i < levels.size(); i++) {
+            directoryStart[i + 1] = directoryStart[i] + directories.get(i).getSize(bigTiff);
+        }
+        long base = directoryStart[levels.size()];
+        for (int i = levels.size() - 1; i >= 0; i--) {
+            Level level = levels.get(i);
+            for (int b = 0; b < level.offsets.length; b++) {
+                level.offsets[b] += base;
+            }
+            long pos = 0;
+            while (pos < level.position) {
+                pos += level.channel.transferTo(pos, level.position - pos, channel.position(base + pos));
+            }
+            base += level.position;
+        }
+        for (int i = 0; i < levels.size(); i++) {
+            long next = i + 1 < levels.size() ? directoryStart[i + 1] : 0;
+            write(directories.get(i).encode(directoryStart[i], bigTiff, next), directoryStart[i]);
+        }
+        writeHeader(HEADER_SIZE, bigTiff);
+    }
+
+    private void write(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private void writeHeader(long firstDirectory, boolean bigTiff) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(byteOrder);
+        header.put((byte) 'I').put((byte) 'I');
+        if (bigTiff) {
+            header.putShort((short) 43).putShort((short) 8).putShort((short) 0).putLong(firstDirectory);
+        } else {
+            header.putShort((short) 42).putInt((int) firstDirectory);
+        }
+        header.rewind();
+        write(header, 0);
+        channel.force(false);
+    }
+
+    /**
+     * Creates the directory of the full-resolution image, with its
+     * georeferencing, or of an overview.
+     */
+    private IFD createDirectory(Level level, boolean fullResolution) {
+        IFD ifd = new IFD();
+        if (!fullResolution) {
+            ifd.addLong(254, 1); // NewSubfileType: a reduced-resolution image
+        }
+        ifd.addLong(256, level.width); // ImageWidth
+        ifd.addLong(257, level.height); // ImageLength
+        int[] bits = new int[samplesPerPixel];
+        Arrays.fill(bits, bytesPerSample * 8);
+        ifd.addShort(258, bits); // BitsPerSample
+        ifd.addShort(259, getCompressionCode()); // Compression
+        ifd.addShort(262, rgb ? 2 : 1); // PhotometricInterpretation
+        if (tileSize == 0) {
+            ifd.addOffsets(273, level.offsets); // StripOffsets
+        }
+        ifd.addShort(277, samplesPerPixel); // SamplesPerPixel
+        if (tileSize == 0) {
+            ifd.addLong(278, level.blockLength); // RowsPerStrip
+            ifd.addOffsets(279, level.byteCounts); // StripByteCounts
+        }
+        ifd.addShort(284, 1); // PlanarConfiguration
+        if (getPredictorCode() != TiffCodec.PREDICTOR_NONE) {
+            ifd.addShort(317, getPredictorCode()); // Predictor
+        }
+        if (tileSize > 0) {
+            ifd.addShort(322, tileSize); // TileWidth
+            ifd.addShort(323, tileSize); // TileLength
+            ifd.addOffsets(324, level.offsets); // TileOffsets
+            ifd.addOffsets(325, level.byteCounts); // TileByteCounts
+        }
+        if (samplesPerPixel > 1) {
+            // an unassociated alpha for RGB, otherwise unspecified
+            int[] extra = new int[rgb ? 1 : samplesPerPixel - 1];
+            Arrays.fill(extra, rgb ? 2 : 0);
+            ifd.addShort(338, extra); // ExtraSamples
+        }
+        int[] formats = new int[samplesPerPixel];
+        Arrays.fill(formats, sampleFormat);
+        ifd.addShort(339, formats); // SampleFormat
+        if (fullResolution) {
+            double cellSizeX = (input.getEast() - input.getWest()) / columns;
+            double cellSizeY = (input.getNorth() - input.getSouth()) / rows;
+            ifd.addDouble(33550, new double[]{cellSizeX, cellSizeY, 0}); // ModelPixelScale
+            ifd.addDouble(33922, new double[]{0, 0, 0, input.getWest(), input.getNorth(), 0}); // ModelTiepoint
+            // GeoKeyDirectory: version 1.1.0 and one key, GTRasterTypeGeoKey
+            // set to RasterPixelIsArea
+            ifd.addShort(34735, new int[]{1, 1, 0, 1, 1025, 0, 1, 1});
+        }
+        if (!rgb) {
+            double noData = input.getNoDataValue();
+            String str = noData == Math.rint(noData) && !Double.isInfinite(noData)
+                    ? Long.toString((long) noData) : Double.toString(noData);
+            ifd.addAscii(42113, str); // GDAL_NODATA
+        }
+        return ifd;
+    }
+
+    /**
+     * An image file directory being assembled, with its entries in the
+     * ascending tag order that TIFF requires.
+     */
+    private final class IFD {
+
+        private final ArrayList<Object[]> entries = new ArrayList<>();
+
+        void addShort(int tag, int... values) {
+            entries.add(new Object[]{tag, 3, values});
+        }
+
+        void addLong(int tag, int value) {
+            entries.add(new Object[]{tag, 4, new int[]{value}});
+        }
+
+        void addOffsets(int tag, long[] values) {
+            entries.add(new Object[]{tag, 16, values});
+        }
+
+        void addDouble(int tag, double[] values) {
+            entries.add(new Object[]{tag, 12, values});
+        }
+
+        void addAscii(int tag, String value) {
+            entries.add(new Object[]{tag, 2, (value + "\0").getBytes(StandardCharsets.US_ASCII)});
+        }
+
+        private int getCount(Object[] entry) {
+            Object v = entry[2];
+            if (v instanceof int[]) {
+                return ((int[]) v).length;
+            } else if (v instanceof long[]) {
+                return ((long[]) v).length;
+            } else if (v instanceof double[]) {
+                return ((double[]) v).length;
+            }
+            return ((byte[]) v).length;
+        }
+
+        private int getTypeSize(int type, boolean bigTiff) {
+            switch (type) {
+                case 2:
+                    return 1;
+                case 3:
+                    return 2;
+                case 4:
+                    return 4;
+                case 16:
+                    // offsets are LONG8 in a BigTIFF and LONG otherwise
+                    return bigTiff ? 8 : 4;
+                default:
+                    return 8;
+            }
+        }
+
+        long getSize(boolean bigTiff) {
+            long size = bigTiff ? 16 + 20L * entries.size() : 6 + 12L * entries.size();
+            for (Object[] entry : entries) {
+                // values that don't fit in an entry follow the directory,
+                // each starting on a word boundary
+                long valuesSize = getCount(entry) * getTypeSize((int) entry[1], bigTiff);
+                if (valuesSize > (bigTiff ? 8 : 4)) {
+                    size += valuesSize + (valuesSize & 1);
+                }
+            }
+            return size;
+        }
+
+        ByteBuffer encode(long start, boolean bigTiff, long nextDirectory) {
+            entries.sort((a, b) -> Integer.compare((int) a[0], (int) b[0]));
+            int inlineSize = bigTiff ? 8 : 4;
+            long valuesStart = start + (bigTiff ? 16 + 20L * entries.size() : 6 + 12L * entries.size());
+            ByteArrayOutputStream values = new ByteArrayOutputStream();
+            ByteBuffer dir = ByteBuffer.allocate((int) (valuesStart - start)).order(byteOrder);
+            if (bigTiff) {
+                dir.putLong(entries.size());
+            } else {
+                dir.putShort((short) entries.size());
+            }
+            for (Object[] entry : entries) {
+                int type = (int) entry[1];
+                int count = getCount(entry);
+                int size = getTypeSize(type, bigTiff);
+                ByteBuffer data = ByteBuffer.allocate(Math.max(inlineSize, count * size)).order(byteOrder);
+                Object v = entry[2];
+                for (int i = 0; i < count; i++) {
+                    if (v instanceof byte[]) {
+                        data.put(((byte[]) v)[i]);
+                    } else if (v instanceof double[]) {
+                        data.putDouble(((double[]) v)[i]);
+                    } else if (v instanceof long[]) {
+                        if (size == 8) {
+                            data.putLong(((long[]) v)[i]);
+                        } else {
+                            data.putInt((int) ((long[]) v)[i]);
+                        }
+                    } else if (size == 2) {
+                        data.putShort((short) ((int[]) v)[i]);
+                    } else {
+                        data.putInt(((int[]) v)[i]);
+                    }
+                }
+                dir.putShort((short) (int) entry[0]);
+                dir.putShort((short) (type == 16 && !bigTiff ? 4 : type));
+                if (bigTiff) {
+                    dir.putLong(count);
+                } else {
+                    dir.putInt(count);
+                }
+                if (count * size <= inlineSize) {
+                    dir.put(data.array(), 0, inlineSize);
+                } else {
+                    long offset = valuesStart + values.size();
+                    if (bigTiff) {
+                        dir.putLong(offset);
+                    } else {
+                        dir.putInt((int) offset);
+                    }
+                    values.write(data.array(), 0, count * size);
+                    if ((values.size() & 1) != 0) {
+                        values.write(0);
+                    }
+                }
+            }
+            if (bigTiff) {
+                dir.putLong(nextDirectory);
+            } else {
+                dir.putInt((int) nextDirectory);
+            }
+            ByteBuffer out = ByteBuffer.allocate(dir.capacity() + values.size());
+            out.put(dir.array());
+            out.put(values.toByteArray());
+            out.flip();
+            return out;
+        }
+    }
+}
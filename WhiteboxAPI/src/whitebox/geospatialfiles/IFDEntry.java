@@ -46,6 +46,7 @@ class IFDEntry implements Comparable {
     protected FieldType type;
     protected int count;
     protected int[] value;
+    protected long[] valueL;
     protected double[] valueD;
     protected String valueS;
 
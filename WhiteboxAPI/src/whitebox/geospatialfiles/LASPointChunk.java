@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2015 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+/**
+ * A run of consecutive LAS point records held column by column, one primitive
+ * array per attribute, and filled in bulk by LASReader.readPoints. A chunk is
+ * meant to be reused for every run of a file, so that reading the points of a
+ * file allocates nothing per point:
+ *
+ * <pre>
+ * LASPointChunk chunk = new LASPointChunk(65536);
+ * for (long p = 0; p &lt; las.getNumPointRecords(); p += chunk.size()) {
+ *     if (las.readPoints(p, chunk) == 0) {
+ *         break;
+ *     }
+ *     double[] x = chunk.getX();
+ *     ...
+ *     for (int i = 0; i &lt; chunk.size(); i++) {
+ *         ...
+ *     }
+ * }
+ * </pre>
+ *
+ * Only the first size() entries of each array hold points. Intensities,
+ * classes, user data, point source IDs and colour channels are unsigned in
+ * the file and so should be read with a mask, e.g. getIntensity()[i] &amp;
+ * 0xFFFF. Scan angles are given in degrees for every point format. The GPS
+ * times, colours and near infrared channel are only read for point formats
+ * that hold them (see hasGPSTime, hasColours and hasNIR), and are otherwise
+ * left untouched.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public final class LASPointChunk {
+
+    /**
+     * The flag bits of getFlags.
+     */
+    public static final byte FLAG_SYNTHETIC = 1;
+    public static final byte FLAG_KEY_POINT = 2;
+    public static final byte FLAG_WITHHELD = 4;
+    public static final byte FLAG_SCAN_DIRECTION = 8;
+    public static final byte FLAG_EDGE_OF_FLIGHT_LINE = 16;
+    public static final byte FLAG_OVERLAP = 32;
+
+    private final double[] x;
+    private final double[] y;
+    private final double[] z;
+    private final short[] intensity;
+    private final byte[] classification;
+    private final byte[] returnNumber;
+    private final byte[] numberOfReturns;
+    private final byte[] flags;
+    private final byte[] scannerChannel;
+    private final float[] scanAngle;
+    private final byte[] userData;
+    private final short[] pointSourceID;
+    private final double[] gpsTime;
+    private final short[] red;
+    private final short[] green;
+    private final short[] blue;
+    private final short[] nir;
+    int size = 0;
+    long firstPoint = 0;
+    boolean hasGPSTime = false;
+    boolean hasColours = false;
+    boolean hasNIR = false;
+
+    /**
+     * Class constructor.
+     *
+     * @param capacity The greatest number of points that the chunk holds.
+     */
+    public LASPointChunk(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity of a point chunk must be positive.");
+        }
+        x = new double[capacity];
+        y = new double[capacity];
+        z = new double[capacity];
+        intensity = new short[capacity];
+        classification = new byte[capacity];
+        returnNumber = new byte[capacity];
+        numberOfReturns = new byte[capacity];
+        flags = new byte[capacity];
+        scannerChannel = new byte[capacity];
+        scanAngle = new float[capacity];
+        userData = new byte[capacity];
+        pointSourceID = new short[capacity];
+        gpsTime = new double[capacity];
+        red = new short[capacity];
+        green = new short[capacity];
+        blue = new short[capacity];
+        nir = new short[capacity];
+    }
+
+    /**
+     * Retrieves the greatest number of points that the chunk holds.
+     *
+     * @return The capacity.
+     */
+    public int getCapacity() {
+        return x.length;
+    }
+
+    /**
+     * Retrieves the number of points read into the chunk by the last call to
+     * LASReader.readPoints.
+     *
+     * @return The number of points.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Retrieves the index within the file of the chunk's first point.
+     *
+     * @return The index of the first point.
+     */
+    public long getFirstPoint() {
+        return firstPoint;
+    }
+
+    /**
+     * Indicates whether the GPS times of the chunk's points were read.
+     *
+     * @return true if the file's point format holds GPS times.
+     */
+    public boolean hasGPSTime() {
+        return hasGPSTime;
+    }
+
+    /**
+     * Indicates whether the colours of the chunk's points were read.
+     *
+     * @return true if the file's point format holds colours.
+     */
+    public boolean hasColours() {
+        return hasColours;
+    }
+
+    /**
+     * Indicates whether the near infrared channel of the chunk's points was
+     * read.
+     *
+     * @return true if the file's point format is 8 or 10.
+     */
+    public boolean hasNIR() {
+        return hasNIR;
+    }
+
+    public double[] getX() {
+        return x;
+    }
+
+    public double[] getY() {
+        return y;
+    }
+
+    public double[] getZ() {
+        return z;
+    }
+
+    public short[] getIntensity() {
+        return intensity;
+    }
+
+    public byte[] getClassification() {
+        return classification;
+    }
+
+    public byte[] getReturnNumber() {
+        return returnNumber;
+    }
+
+    public byte[] getNumberOfReturns() {
+        return numberOfReturns;
+    }
+
+    /**
+     * Retrieves the flags of the points, each a combination of the FLAG_
+     * bits.
+     *
+     * @return The flags.
+     */
+    public byte[] getFlags() {
+        return flags;
+    }
+
+    /**
+     * Retrieves the scanner channels of the points, which are zero for point
+     * formats 0 to 5.
+     *
+     * @return The scanner channels.
+     */
+    public byte[] getScannerChannel() {
+        return scannerChannel;
+    }
+
+    public float[] getScanAngle() {
+        return scanAngle;
+    }
+
+    public byte[] getUserData() {
+        return userData;
+    }
+
+    public short[] getPointSourceID() {
+        return pointSourceID;
+    }
+
+    public double[] getGPSTime() {
+        return gpsTime;
+    }
+
+    public short[] getRed() {
+        return red;
+    }
+
+    public short[] getGreen() {
+        return green;
+    }
+
+    public short[] getBlue() {
+        return blue;
+    }
+
+    public short[] getNIR() {
+        return nir;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2015 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Visits the points of a LAS file in order. It is obtained from
+ * LASReader.getPointIterator and used as follows:
+ *
+ * <pre>
+ * LASPointIterator it = las.getPointIterator();
+ * while (it.next()) {
+ *     double x = it.getX();
+ *     double y = it.getY();
+ *     ...
+ * }
+ * </pre>
+ *
+ * The points are read a chunk at a time into a single LASPointChunk, and so
+ * no object is created for each point. The accessors are named as those of
+ * LASReader.PointRecord, although classes are returned unsigned, as the point
+ * formats of LAS 1.4 have up to 256 of them.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public final class LASPointIterator {
+
+    private final LASReader reader;
+    private final LASPointChunk chunk;
+    private int i = -1;
+
+    LASPointIterator(LASReader reader, int chunkSize) {
+        this.reader = reader;
+        this.chunk = new LASPointChunk(chunkSize);
+    }
+
+    /**
+     * Advances to the next point.
+     *
+     * @return false once there are no more points.
+     * @throws UncheckedIOException if the point data can't be read.
+     */
+    public boolean next() {
+        if (++i < chunk.size) {
+            return true;
+        }
+        try {
+            if (reader.readPoints(chunk.firstPoint + chunk.size, chunk) == 0) {
+                i = -1;
+                return false;
+            }
+        } catch (IOException e) {
+            i = -1;
+            throw new UncheckedIOException(e);
+        }
+        i = 0;
+        return true;
+    }
+
+    /**
+     * Retrieves the index within the file of the current point.
+     *
+     * @return The index.
+     */
+    public long getIndex() {
+        return chunk.firstPoint + i;
+    }
+
+    public double getX() {
+        return chunk.getX()[i];
+    }
+
+    public double getY() {
+        return chunk.getY()[i];
+    }
+
+    public double getZ() {
+        return chunk.getZ()[i];
+    }
+
+    public int getIntensity() {
+        return chunk.getIntensity()[i] & 0xFFFF;
+    }
+
+    public short getClassification() {
+        return (short) (chunk.getClassification()[i] & 0xFF);
+    }
+
+    public byte getReturnNumber() {
+        return chunk.getReturnNumber()[i];
+    }
+
+    public byte getNumberOfReturns() {
+        return chunk.getNumberOfReturns()[i];
+    }
+
+    public boolean getScanDirectionFlag() {
+        return (chunk.getFlags()[i] & LASPointChunk.FLAG_SCAN_DIRECTION) != 0;
+    }
+
+    public boolean isEdgeOfFlightLine() {
+        return (chunk.getFlags()[i] & LASPointChunk.FLAG_EDGE_OF_FLIGHT_LINE) != 0;
+    }
+
+    public boolean isSynthetic() {
+        return (chunk.getFlags()[i] & LASPointChunk.FLAG_SYNTHETIC) != 0;
+    }
+
+    public boolean isKeyPoint() {
+        return (chunk.getFlags()[i] & LASPointChunk.FLAG_KEY_POINT) != 0;
+    }
+
+    public boolean isPointWithheld() {
+        return (chunk.getFlags()[i] & LASPointChunk.FLAG_WITHHELD) != 0;
+    }
+
+    public boolean isOverlap() {
+        return (chunk.getFlags()[i] & LASPointChunk.FLAG_OVERLAP) != 0;
+    }
+
+    public byte getScannerChannel() {
+        return chunk.getScannerChannel()[i];
+    }
+
+    /**
+     * Retrieves the scan angle of the current point, rounded to whole degrees.
+     *
+     * @return The scan angle.
+     */
+    public byte getScanAngle() {
+        return LASReader.roundScanAngle(chunk.getScanAngle()[i]);
+    }
+
+    /**
+     * Retrieves the scan angle of the current point at the precision of the
+     * file, which is 0.006 degree for point formats 6 to 10.
+     *
+     * @return The scan angle in degrees.
+     */
+    public float getScanAngleDegrees() {
+        return chunk.getScanAngle()[i];
+    }
+
+    public short getUserData() {
+        return (short) (chunk.getUserData()[i] & 0xFF);
+    }
+
+    public int getPointSourceID() {
+        return chunk.getPointSourceID()[i] & 0xFFFF;
+    }
+
+    /**
+     * Retrieves the GPS time of the current point.
+     *
+     * @return The GPS time, or -1 if the file's points have none.
+     */
+    public double getGPSTime() {
+        return chunk.hasGPSTime ? chunk.getGPSTime()[i] : -1;
+    }
+
+    /**
+     * Retrieves the red channel of the current point's colour.
+     *
+     * @return The red channel, or -1 if the file's points have no colour.
+     */
+    public int getRed() {
+        return chunk.hasColours ? chunk.getRed()[i] & 0xFFFF : -1;
+    }
+
+    public int getGreen() {
+        return chunk.hasColours ? chunk.getGreen()[i] & 0xFFFF : -1;
+    }
+
+    public int getBlue() {
+        return chunk.hasColours ? chunk.getBlue()[i] & 0xFFFF : -1;
+    }
+
+    public int getNIR() {
+        return chunk.hasNIR ? chunk.getNIR()[i] & 0xFFFF : -1;
+    }
+}
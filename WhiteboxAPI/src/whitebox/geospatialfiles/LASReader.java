@@ -17,6 +17,7 @@
 package whitebox.geospatialfiles;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.ByteOrder;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
@@ -59,17 +60,32 @@ public class LASReader {
     private int pointDataRecLength = 0;
     private long numPointRecords = 0;
     private long[] numPointsByReturn = new long[5];
+    private long startOfWaveformData = 0;
+    private long startOfFirstEVLR = 0;
+    private long numEVLR = 0;
     private double xScale, yScale, zScale;
     private double xOffset, yOffset, zOffset;
     private double maxX, minX, maxY, minY, maxZ, minZ;
     private ArrayList<VariableLengthRecord> vlrArray = new ArrayList<>();
+    private ArrayList<VariableLengthRecord> evlrArray = new ArrayList<>();
     private int bufferSize = 1000;
-    private int startingPoint = -1;
-    private int endingPoint = -1;
+    private long startingPoint = -1;
+    private long endingPoint = -1;
     private PointRecord[] pointRecs;
     private PointRecColours[] pointColours;
     private boolean coloursNeedReading = true;
     private boolean pointsNeedReading = true;
+    // the point data are mapped a window of at most this many bytes at a time
+    private static final long MAPPED_WINDOW_SIZE = 1L << 28;
+    private static final int POINT_CHUNK_SIZE = 65536;
+    // the raw data of larger extended variable length records aren't read
+    public static final int MAX_EVLR_DATA_SIZE = 1 << 24;
+    private ByteBuffer pointWindow = null;
+    private LASPointChunk recordChunk = null;
+    private boolean compressed = false;
+    private LAZFile compressedPoints = null;
+    private long windowStart = 0;
+    private long windowEnd = 0;
     
     //private PointWavePacket[] pointWavePagetData;
 
@@ -89,8 +105,12 @@ public class LASReader {
 
     public final void setFileName(String fileName) {
         this.fileName = fileName;
+        pointWindow = null;
+        recordChunk = null;
+        compressedPoints = null;
         readHeaderData();
         readVariableLengthRecords();
+        readExtendedVariableLengthRecords();
     }
 
     public int getFileSourceID() {
@@ -109,6 +129,19 @@ public class LASReader {
         return vlrArray;
     }
 
+    /**
+     * Retrieves the extended variable length records stored after the point
+     * data of a LAS 1.4 file. The raw data of a record larger than
+     * MAX_EVLR_DATA_SIZE bytes, e.g. one holding waveform data, are not read,
+     * and its record length after the header is given as -1.
+     *
+     * @return The extended variable length records, which are empty for
+     * files of earlier versions.
+     */
+    public ArrayList<VariableLengthRecord> getExtendedVariableLengthRecords() {
+        return evlrArray;
+    }
+
     public byte getGPSTimeType() {
         return GPSTimeType;
     }
@@ -169,10 +202,33 @@ public class LASReader {
         return numVLR;
     }
 
+    public long getNumEVLR() {
+        return numEVLR;
+    }
+
+    public long getStartOfFirstEVLR() {
+        return startOfFirstEVLR;
+    }
+
+    public long getStartOfWaveformData() {
+        return startOfWaveformData;
+    }
+
     public short getPointDataFormatID() {
         return pointDataFormatID;
     }
 
+    /**
+     * Indicates whether the points of the file are compressed by LASzip, i.e.
+     * whether it is a LAZ file. The points of a LAZ file are decompressed as
+     * they are read, and so it needn't be decompressed beforehand.
+     *
+     * @return true if the points are compressed.
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
     public int getPointDataRecLength() {
         return pointDataRecLength;
     }
@@ -181,6 +237,12 @@ public class LASReader {
         return numPointRecords;
     }
 
+    /**
+     * Retrieves the number of points by return, which has five entries, or
+     * fifteen for a LAS 1.4 file.
+     *
+     * @return The number of points by return.
+     */
     public long[] getNumPointsByReturn() {
         return numPointsByReturn;
     }
@@ -244,7 +306,7 @@ public class LASReader {
         ArrayList<PointRecord> ret = new ArrayList<>();
         PointRecord rec;
         try {
-            for (int i = 0; i < numPointRecords; i++) {
+            for (long i = 0; i < numPointRecords; i++) {
                 rec = getPointRecord(i);
                 if (rec != null) {
                     x = rec.getX();
@@ -285,9 +347,18 @@ public class LASReader {
         return ret;
     }
 
-    public PointRecord getPointRecord(int i) {
+    /**
+     * Retrieves a point record. Consecutive records are read a buffer at a
+     * time (see setBufferSize), and so reading the points of a file in order
+     * is much faster than reading them at random. LASPointIterator and
+     * readPoints are faster still, since they create no object per point.
+     *
+     * @param i The index of the point.
+     * @return The point record, or null if there is no such point.
+     */
+    public PointRecord getPointRecord(long i) {
         try {
-            if (i < 0 || i > numPointRecords) {
+            if (i < 0 || i >= numPointRecords) {
                 return null;
             }
 
@@ -305,7 +376,7 @@ public class LASReader {
                 pointsNeedReading = false;
             }
 
-            int n = i - startingPoint;
+            int n = (int) (i - startingPoint);
 
             return pointRecs[n];
         } catch (Exception e) {
@@ -314,9 +385,17 @@ public class LASReader {
         }
     }
 
+    public PointRecord getPointRecord(int i) {
+        return getPointRecord((long) i);
+    }
+
     public PointRecColours getPointRecordColours(int i) {
+        return getPointRecordColours((long) i);
+    }
+
+    public PointRecColours getPointRecordColours(long i) {
         try {
-            if (i < 0 || i > numPointRecords) {
+            if (i < 0 || i >= numPointRecords) {
                 return null;
             }
 
@@ -334,7 +413,7 @@ public class LASReader {
                 coloursNeedReading = false;
             }
 
-            int n = i - startingPoint;
+            int n = (int) (i - startingPoint);
 
             return pointColours[n];
         } catch (Exception e) {
@@ -343,149 +422,355 @@ public class LASReader {
         }
     }
 
+    /**
+     * Decodes the buffer of points starting at startingPoint into the record
+     * chunk, unless it already holds them.
+     *
+     * @return The number of points in the buffer.
+     */
+    private int readRecordChunk() throws IOException {
+        if (recordChunk == null || recordChunk.getCapacity() != bufferSize) {
+            recordChunk = new LASPointChunk(bufferSize);
+        } else if (recordChunk.size() > 0 && recordChunk.getFirstPoint() == startingPoint) {
+            return recordChunk.size();
+        }
+        return readPoints(startingPoint, recordChunk);
+    }
+
     private void readPointRecords() {
-        long pos = offsetToPointData + (long)startingPoint * (long)pointDataRecLength;
-        int pos2 = 0;
-        byte returnNumberByte = 0;
-        byte classificationByte = 0;
-        byte b = 0;
         pointRecs = new PointRecord[bufferSize];
-        int x, y, z;
-        RandomAccessFile rIn = null;
-        ByteBuffer buf = null;
-
         try {
-
-            buf = ByteBuffer.allocate(bufferSize * pointDataRecLength);
-
-            rIn = new RandomAccessFile(fileName, "r");
-
-            FileChannel inChannel = rIn.getChannel();
-
-            inChannel.position(pos);
-            inChannel.read(buf);
-
-            buf.order(ByteOrder.LITTLE_ENDIAN);
-            buf.rewind();
-
-            for (int i = 0; i < bufferSize; i++) {
-                pointRecs[i] = new PointRecord();
-                x = buf.getInt(pos2);
-                pointRecs[i].setX((x * xScale) + xOffset);
-                y = buf.getInt(pos2 + 4);
-                pointRecs[i].setY((y * yScale) + yOffset);
-                z = buf.getInt(pos2 + 8);
-                pointRecs[i].setZ((z * zScale) + zOffset);
-                pointRecs[i].setIntensity(Unsigned.getUnsignedShort(buf, pos2 + 12));
-
-                // get the record number byte
-                returnNumberByte = buf.get(pos2 + 14);
-                b = 0;
-                for (int a = 0; a < 3; a++) {
-                    if (BitOps.checkBit(returnNumberByte, a)) {
-                        b = BitOps.setBit(b, (byte) a);
-                    }
-                }
-                pointRecs[i].setReturnNumber(b);
-
-                b = 0;
-                for (int a = 0; a < 3; a++) {
-                    if (BitOps.checkBit(returnNumberByte, a + 3)) {
-                        b = BitOps.setBit(b, (byte) a);
-                    }
+            int n = readRecordChunk();
+            LASPointChunk chunk = recordChunk;
+            double[] x = chunk.getX();
+            double[] y = chunk.getY();
+            double[] z = chunk.getZ();
+            short[] intensity = chunk.getIntensity();
+            byte[] classification = chunk.getClassification();
+            byte[] flags = chunk.getFlags();
+            float[] scanAngle = chunk.getScanAngle();
+            for (int i = 0; i < n; i++) {
+                PointRecord rec = new PointRecord();
+                rec.setX(x[i]);
+                rec.setY(y[i]);
+                rec.setZ(z[i]);
+                rec.setIntensity(intensity[i] & 0xFFFF);
+                rec.setClassification(classification[i]);
+                rec.setReturnNumber(chunk.getReturnNumber()[i]);
+                rec.setNumberOfReturns(chunk.getNumberOfReturns()[i]);
+                rec.setScanDirectionFlag((flags[i] & LASPointChunk.FLAG_SCAN_DIRECTION) != 0);
+                rec.setEdgeOfFlightLine((flags[i] & LASPointChunk.FLAG_EDGE_OF_FLIGHT_LINE) != 0);
+                rec.setSynthetic((flags[i] & LASPointChunk.FLAG_SYNTHETIC) != 0);
+                rec.setKeyPoint((flags[i] & LASPointChunk.FLAG_KEY_POINT) != 0);
+                rec.setPointWithheld((flags[i] & LASPointChunk.FLAG_WITHHELD) != 0);
+                rec.setOverlap((flags[i] & LASPointChunk.FLAG_OVERLAP) != 0);
+                rec.setScannerChannel(chunk.getScannerChannel()[i]);
+                rec.setScanAngle(roundScanAngle(scanAngle[i]));
+                rec.setUserData((short) (chunk.getUserData()[i] & 0xFF));
+                rec.setPointSourceID(chunk.getPointSourceID()[i] & 0xFFFF);
+                if (chunk.hasGPSTime()) {
+                    rec.setGPSTime(chunk.getGPSTime()[i]);
                 }
-                pointRecs[i].setNumberOfReturns(b);
-
-                pointRecs[i].setScanDirectionFlag(BitOps.checkBit(returnNumberByte, 6));
-                pointRecs[i].setEdgeOfFlightLine(BitOps.checkBit(returnNumberByte, 7));
-
-                // get the classification data
-                classificationByte = buf.get(pos2 + 15);
-                b = 0;
-                for (int a = 0; a < 5; a++) {
-                    if (BitOps.checkBit(classificationByte, a)) {
-                        b = BitOps.setBit(b, (byte) a);
-                    }
-                }
-                pointRecs[i].setClassification(b);
-                pointRecs[i].setSynthetic(BitOps.checkBit(classificationByte, 5));
-                pointRecs[i].setKeyPoint(BitOps.checkBit(classificationByte, 6));
-                pointRecs[i].setPointWithheld(BitOps.checkBit(classificationByte, 7));
-                pointRecs[i].setScanAngle(buf.get(pos2 + 16));
-                pointRecs[i].setUserData(Unsigned.getUnsignedByte(buf, pos2 + 17));
-                pointRecs[i].setPointSourceID(Unsigned.getUnsignedShort(buf, pos2 + 18));
-
-                if (pointDataFormatID == 1 || pointDataFormatID == 3
-                        || pointDataFormatID == 4 || pointDataFormatID == 5) {
-                    pointRecs[i].setGPSTime(buf.getDouble(pos2 + 20));
-                }
-
-                pos2 += pointDataRecLength;
+                pointRecs[i] = rec;
             }
-
         } catch (Exception e) {
             System.err.println(e);
-        } finally {
-            if (rIn != null) {
-                try {
-                    rIn.close();
-                } catch (Exception e) {
-                }
-            }
         }
     }
 
     private void readPointRecColours() {
-        if (pointDataFormatID == 2 || pointDataFormatID == 3 || pointDataFormatID == 5) {
-            long pos = offsetToPointData + (long)startingPoint * (long)pointDataRecLength;
-            int pos2 = 0;
-            int offsetToColourData = 0;
-            if (pointDataFormatID == 2) {
-                offsetToColourData = 20;
-            } else if (pointDataFormatID == 3 || pointDataFormatID == 5) {
-                offsetToColourData = 28;
-            }
-            byte b = 0;
+        if (getOffsetToColourData() > 0) {
             pointColours = new PointRecColours[bufferSize];
-            int x, y, z;
-            RandomAccessFile rIn = null;
-            ByteBuffer buf = null;
-
             try {
+                int n = readRecordChunk();
+                LASPointChunk chunk = recordChunk;
+                for (int i = 0; i < n; i++) {
+                    pointColours[i] = new PointRecColours();
+                    pointColours[i].setRed(chunk.getRed()[i] & 0xFFFF);
+                    pointColours[i].setGreen(chunk.getGreen()[i] & 0xFFFF);
+                    pointColours[i].setBlue(chunk.getBlue()[i] & 0xFFFF);
+                    if (chunk.hasNIR()) {
+                        pointColours[i].setNIR(chunk.getNIR()[i] & 0xFFFF);
+                    }
+                }
+            } catch (Exception e) {
+                System.err.println(e);
+            }
+        }
+    }
 
-                buf = ByteBuffer.allocate(bufferSize * pointDataRecLength);
+    /**
+     * Rounds a scan angle to the whole degrees held by a PointRecord.
+     */
+    static byte roundScanAngle(float degrees) {
+        return (byte) Math.max(-128, Math.min(127, Math.round(degrees)));
+    }
 
-                rIn = new RandomAccessFile(fileName, "r");
+    private boolean hasGPSTime() {
+        return pointDataFormatID == 1 || pointDataFormatID == 3
+                || pointDataFormatID >= 4;
+    }
 
-                FileChannel inChannel = rIn.getChannel();
+    /**
+     * Retrieves the offset of the colour channels within a point record, or
+     * zero if the point format holds no colour.
+     */
+    private int getOffsetToColourData() {
+        switch (pointDataFormatID) {
+            case 2:
+                return 20;
+            case 3:
+            case 5:
+                return 28;
+            case 7:
+            case 8:
+            case 10:
+                return 30;
+            default:
+                return 0;
+        }
+    }
 
-                inChannel.position(pos);
-                inChannel.read(buf);
+    /**
+     * Reads consecutive point records into a chunk, one column of the chunk
+     * per attribute. This is the fastest way to read a file's points, since
+     * the records are decoded straight from a memory-mapped view of the file
+     * and no object is created for each of them. All of the point formats
+     * of LAS 1.4, 0 to 10, are read, and the points of LAZ files of formats 0
+     * to 3 and 6 to 8 are decompressed as they are read.
+     *
+     * @param first The index of the first point to read.
+     * @param chunk The chunk, which receives as many points as it holds or as
+     * remain in the file.
+     * @return The number of points read, which is zero once first is beyond
+     * the last point.
+     * @throws IOException if the point data can't be read.
+     */
+    public int readPoints(long first, LASPointChunk chunk) throws IOException {
+        int n = (int) Math.max(0, Math.min(chunk.getCapacity(), numPointRecords - first));
+        chunk.firstPoint = first;
+        chunk.size = 0;
+        chunk.hasGPSTime = hasGPSTime();
+        int offsetToColourData = getOffsetToColourData();
+        chunk.hasColours = offsetToColourData > 0;
+        chunk.hasNIR = pointDataFormatID == 8 || pointDataFormatID == 10;
+        if (n == 0) {
+            return 0;
+        }
+        if (pointDataFormatID > 10) {
+            throw new IOException("Point data format " + pointDataFormatID + " is not supported.");
+        }
+        // the records come in runs, each a view of a mapped window of the
+        // file or of a decompressed chunk of a LAZ file
+        int done = 0;
+        while (done < n) {
+            ByteBuffer buf = compressed ? getCompressedPoints().getRecords(first + done, n - done)
+                    : mapPoints(first + done, n - done);
+            int m = Math.min(n - done, buf.capacity() / pointDataRecLength);
+            if (m == 0) {
+                break;
+            }
+            decodePoints(buf, m, chunk, done, offsetToColourData);
+            done += m;
+        }
+        chunk.size = done;
+        return done;
+    }
 
-                buf.order(ByteOrder.LITTLE_ENDIAN);
-                buf.rewind();
+    /**
+     * Decodes a run of point records into a chunk.
+     *
+     * @param buf The records, the first at position zero.
+     * @param n The number of records.
+     * @param chunk The chunk.
+     * @param dest The index within the chunk of the first record.
+     * @param offsetToColourData The offset of the colour channels.
+     */
+    private void decodePoints(ByteBuffer buf, int n, LASPointChunk chunk, int dest, int offsetToColourData) {
+        if (pointDataFormatID >= 6) {
+            decodeExtendedPoints(buf, n, chunk, dest);
+        } else {
+            decodeLegacyPoints(buf, n, chunk, dest);
+        }
+        if (chunk.hasGPSTime) {
+            double[] gpsTime = chunk.getGPSTime();
+            int pos = pointDataFormatID >= 6 ? 22 : 20;
+            for (int i = dest; i < dest + n; i++, pos += pointDataRecLength) {
+                gpsTime[i] = buf.getDouble(pos);
+            }
+        }
+        if (chunk.hasColours) {
+            short[] red = chunk.getRed();
+            short[] green = chunk.getGreen();
+            short[] blue = chunk.getBlue();
+            for (int i = dest, pos = offsetToColourData; i < dest + n; i++, pos += pointDataRecLength) {
+                red[i] = buf.getShort(pos);
+                green[i] = buf.getShort(pos + 2);
+                blue[i] = buf.getShort(pos + 4);
+            }
+        }
+        if (chunk.hasNIR) {
+            short[] nir = chunk.getNIR();
+            for (int i = dest, pos = 36; i < dest + n; i++, pos += pointDataRecLength) {
+                nir[i] = buf.getShort(pos);
+            }
+        }
+    }
 
-                for (int i = 0; i < bufferSize; i++) {
-                    pointColours[i] = new PointRecColours();
+    /**
+     * Decodes the core of point formats 0 to 5.
+     */
+    private void decodeLegacyPoints(ByteBuffer buf, int n, LASPointChunk chunk, int dest) {
+        double[] x = chunk.getX();
+        double[] y = chunk.getY();
+        double[] z = chunk.getZ();
+        short[] intensity = chunk.getIntensity();
+        byte[] classification = chunk.getClassification();
+        byte[] returnNumber = chunk.getReturnNumber();
+        byte[] numberOfReturns = chunk.getNumberOfReturns();
+        byte[] flags = chunk.getFlags();
+        byte[] scannerChannel = chunk.getScannerChannel();
+        float[] scanAngle = chunk.getScanAngle();
+        byte[] userData = chunk.getUserData();
+        short[] pointSourceID = chunk.getPointSourceID();
+        for (int i = dest, pos = 0; i < dest + n; i++, pos += pointDataRecLength) {
+            x[i] = (buf.getInt(pos) * xScale) + xOffset;
+            y[i] = (buf.getInt(pos + 4) * yScale) + yOffset;
+            z[i] = (buf.getInt(pos + 8) * zScale) + zOffset;
+            intensity[i] = buf.getShort(pos + 12);
+            int returnNumberByte = buf.get(pos + 14);
+            returnNumber[i] = (byte) (returnNumberByte & 7);
+            numberOfReturns[i] = (byte) ((returnNumberByte >> 3) & 7);
+            // the synthetic, key point and withheld bits of the classification
+            // byte are the lowest three flag bits
+            int classificationByte = buf.get(pos + 15);
+            classification[i] = (byte) (classificationByte & 31);
+            int f = (classificationByte >> 5) & 7;
+            if ((returnNumberByte & 64) != 0) {
+                f |= LASPointChunk.FLAG_SCAN_DIRECTION;
+            }
+            if ((returnNumberByte & 128) != 0) {
+                f |= LASPointChunk.FLAG_EDGE_OF_FLIGHT_LINE;
+            }
+            flags[i] = (byte) f;
+            scannerChannel[i] = 0;
+            scanAngle[i] = buf.get(pos + 16);
+            userData[i] = buf.get(pos + 17);
+            pointSourceID[i] = buf.getShort(pos + 18);
+        }
+    }
 
-                    pointColours[i].setRed(Unsigned.getUnsignedShort(buf, pos2 + offsetToColourData));
-                    pointColours[i].setGreen(Unsigned.getUnsignedShort(buf, pos2 + offsetToColourData + 2));
-                    pointColours[i].setBlue(Unsigned.getUnsignedShort(buf, pos2 + offsetToColourData + 4));
+    /**
+     * Decodes the core of the LAS 1.4 point formats 6 to 10, which hold up to
+     * fifteen returns, 8-bit classes, a scanner channel and an overlap flag,
+     * and scan angles in steps of 0.006 degree.
+     */
+    private void decodeExtendedPoints(ByteBuffer buf, int n, LASPointChunk chunk, int dest) {
+        double[] x = chunk.getX();
+        double[] y = chunk.getY();
+        double[] z = chunk.getZ();
+        short[] intensity = chunk.getIntensity();
+        byte[] classification = chunk.getClassification();
+        byte[] returnNumber = chunk.getReturnNumber();
+        byte[] numberOfReturns = chunk.getNumberOfReturns();
+        byte[] flags = chunk.getFlags();
+        byte[] scannerChannel = chunk.getScannerChannel();
+        float[] scanAngle = chunk.getScanAngle();
+        byte[] userData = chunk.getUserData();
+        short[] pointSourceID = chunk.getPointSourceID();
+        for (int i = dest, pos = 0; i < dest + n; i++, pos += pointDataRecLength) {
+            x[i] = (buf.getInt(pos) * xScale) + xOffset;
+            y[i] = (buf.getInt(pos + 4) * yScale) + yOffset;
+            z[i] = (buf.getInt(pos + 8) * zScale) + zOffset;
+            intensity[i] = buf.getShort(pos + 12);
+            int returnNumberByte = buf.get(pos + 14);
+            returnNumber[i] = (byte) (returnNumberByte & 15);
+            numberOfReturns[i] = (byte) ((returnNumberByte >> 4) & 15);
+            // the synthetic, key point and withheld bits are the lowest three
+            // flag bits, as in the older formats
+            int flagsByte = buf.get(pos + 15);
+            int f = flagsByte & 7;
+            if ((flagsByte & 8) != 0) {
+                f |= LASPointChunk.FLAG_OVERLAP;
+            }
+            if ((flagsByte & 64) != 0) {
+                f |= LASPointChunk.FLAG_SCAN_DIRECTION;
+            }
+            if ((flagsByte & 128) != 0) {
+                f |= LASPointChunk.FLAG_EDGE_OF_FLIGHT_LINE;
+            }
+            flags[i] = (byte) f;
+            scannerChannel[i] = (byte) ((flagsByte >> 4) & 3);
+            classification[i] = buf.get(pos + 16);
+            userData[i] = buf.get(pos + 17);
+            scanAngle[i] = buf.getShort(pos + 18) * 0.006f;
+            pointSourceID[i] = buf.getShort(pos + 20);
+        }
+    }
 
-                    pos2 += pointDataRecLength;
-                }
+    /**
+     * Creates an iterator over the file's points, which reads them a chunk at
+     * a time through readPoints.
+     *
+     * @return The iterator.
+     */
+    public LASPointIterator getPointIterator() {
+        return new LASPointIterator(this, POINT_CHUNK_SIZE);
+    }
 
-            } catch (Exception e) {
-                System.err.println(e);
-            } finally {
-                if (rIn != null) {
-                    try {
-                        rIn.close();
-                    } catch (Exception e) {
-                    }
+    /**
+     * Retrieves a little-endian view of consecutive point records, the first
+     * at position zero. The records are served from a read-only mapping of a
+     * window of the point data, which is moved along the file as needed; the
+     * file is only opened to map a new window. The view is shorter than
+     * requested if the file ends early.
+     *
+     * @param first The index of the first record.
+     * @param count The number of records.
+     * @return The view.
+     */
+    private synchronized ByteBuffer mapPoints(long first, int count) throws IOException {
+        if (pointWindow == null || first < windowStart || first + count > windowEnd) {
+            long numRecords = Math.max(count, MAPPED_WINDOW_SIZE / pointDataRecLength);
+            try (RandomAccessFile raf = new RandomAccessFile(fileName, "r")) {
+                long pos = offsetToPointData + first * pointDataRecLength;
+                numRecords = Math.min(numRecords, Math.max(0, (raf.length() - pos) / pointDataRecLength));
+                pointWindow = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, pos,
+                        numRecords * pointDataRecLength);
+            }
+            windowStart = first;
+            windowEnd = first + numRecords;
+        }
+        ByteBuffer view = pointWindow.duplicate();
+        int pos = (int) ((first - windowStart) * pointDataRecLength);
+        int end = (int) (Math.min(first + count, windowEnd) - windowStart) * pointDataRecLength;
+        view.limit(Math.max(pos, end));
+        view.position(pos);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Retrieves the compressed point data of a LAZ file, which are described
+     * by the LASzip VLR. The chunk table is read the first time.
+     *
+     * @return The point data.
+     */
+    private synchronized LAZFile getCompressedPoints() throws IOException {
+        if (compressedPoints == null) {
+            VariableLengthRecord lasZip = null;
+            for (VariableLengthRecord vlr : vlrArray) {
+                if (vlr.getRecordID() == LAZFile.LASZIP_RECORD_ID
+                        && vlr.getUserID().trim().equals(LAZFile.LASZIP_USER_ID)) {
+                    lasZip = vlr;
                 }
             }
+            if (lasZip == null) {
+                throw new IOException(fileName + " has no LASzip VLR.");
+            }
+            compressedPoints = new LAZFile(fileName, lasZip.getRawData(), offsetToPointData,
+                    pointDataRecLength, numPointRecords);
         }
+        return compressedPoints;
     }
 
     public void setBufferSize(int i) {
@@ -512,7 +797,7 @@ public class LASReader {
                 return false;
             }
 
-            buf = ByteBuffer.allocate(300);
+            buf = ByteBuffer.allocate(375);
 
             rIn = new RandomAccessFile(fileName, "r");
 
@@ -590,7 +875,10 @@ public class LASReader {
             headerSize = Unsigned.getUnsignedShort(buf, 94);
             offsetToPointData = Unsigned.getUnsignedInt(buf, 96);
             numVLR = Unsigned.getUnsignedInt(buf, 100);
-            pointDataFormatID = Unsigned.getUnsignedByte(buf, 104);
+            // LASzip sets the top bits of the point format of a LAZ file
+            short formatByte = Unsigned.getUnsignedByte(buf, 104);
+            pointDataFormatID = (short) (formatByte & 63);
+            compressed = (formatByte & 192) != 0 || fileName.toLowerCase().endsWith(".laz");
             pointDataRecLength = Unsigned.getUnsignedShort(buf, 105);
             numPointRecords = Unsigned.getUnsignedInt(buf, 107);
             pos = 111;
@@ -616,6 +904,24 @@ public class LASReader {
             maxZ = buf.getDouble(211);
             minZ = buf.getDouble(219);
 
+            if (versionMajor == 1 && versionMinor >= 3 && headerSize >= 235) {
+                startOfWaveformData = buf.getLong(227);
+            }
+            if (versionMajor == 1 && versionMinor >= 4 && headerSize >= 375) {
+                // LAS 1.4 holds 64-bit point counts, for as many as fifteen
+                // returns, after the legacy 32-bit ones, which are zero if
+                // the counts don't fit or the point format is 6 or higher.
+                startOfFirstEVLR = buf.getLong(235);
+                numEVLR = Unsigned.getUnsignedInt(buf, 243);
+                numPointRecords = buf.getLong(247);
+                numPointsByReturn = new long[15];
+                pos = 255;
+                for (int a = 0; a < 15; a++) {
+                    numPointsByReturn[a] = buf.getLong(pos);
+                    pos += 8;
+                }
+            }
+
             return true;
         } catch (Exception e) {
             return false;
@@ -722,6 +1028,66 @@ public class LASReader {
         }
     }
 
+    private boolean readExtendedVariableLengthRecords() {
+        evlrArray.clear();
+        if (numEVLR == 0 || startOfFirstEVLR <= 0) {
+            return true;
+        }
+        short[] tmp1;
+        try (RandomAccessFile rIn = new RandomAccessFile(fileName, "r")) {
+            FileChannel inChannel = rIn.getChannel();
+            long pos = startOfFirstEVLR;
+            ByteBuffer buf = ByteBuffer.allocate(60);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            for (long a = 0; a < numEVLR && pos + 60 <= inChannel.size(); a++) {
+                buf.clear();
+                inChannel.read(buf, pos);
+                VariableLengthRecord vlr = new VariableLengthRecord();
+
+                // UserID--16 byte ASCII field after the two reserved bytes
+                tmp1 = new short[16];
+                for (int j = 0; j < tmp1.length; j++) {
+                    tmp1[j] = Unsigned.getUnsignedByte(buf, 2 + j);
+                }
+                vlr.setUserID(convertShortArrayToAscii(tmp1));
+                vlr.setRecordID(Unsigned.getUnsignedShort(buf, 18));
+
+                // the record length after the header is 64-bit in an EVLR
+                long length = buf.getLong(20);
+
+                // Description--32 byte ASCII field starting at 28
+                tmp1 = new short[32];
+                for (int j = 0; j < tmp1.length; j++) {
+                    tmp1[j] = Unsigned.getUnsignedByte(buf, 28 + j);
+                }
+                vlr.setDescription(convertShortArrayToAscii(tmp1));
+
+                if (length <= MAX_EVLR_DATA_SIZE) {
+                    vlr.setRecordLengthAfterHeader((int) length);
+                    ByteBuffer data = ByteBuffer.allocate((int) length);
+                    inChannel.read(data, pos + 60);
+                    byte[] rawData = data.array();
+                    vlr.setRawData(rawData);
+                    tmp1 = new short[rawData.length];
+                    for (int j = 0; j < tmp1.length; j++) {
+                        tmp1[j] = Unsigned.getUnsignedByte(rawData[j]);
+                    }
+                    vlr.setFormatedData(convertShortArrayToAscii(tmp1));
+                } else {
+                    vlr.setRecordLengthAfterHeader(-1);
+                    vlr.setRawData(new byte[0]);
+                    vlr.setFormatedData("");
+                }
+                evlrArray.add(vlr);
+
+                pos += 60 + length;
+            }
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
     private String convertShortArrayToAscii(short[] array) {
         String str = "";
         char[] charArray = new char[array.length];
@@ -1097,7 +1463,7 @@ public class LASReader {
         private double y; //8 bytes
         private double z; //8 bytes
         private int intensity; //4 bytes
-        private byte classification; //1 bytes
+        private byte classification; //1 bytes, unsigned for point formats 6 to 10
         private byte returnNumber; //1 byte
         private byte numberOfReturns; //1 byte
         private boolean scanDirectionFlag; //1 byte
@@ -1105,6 +1471,8 @@ public class LASReader {
         private boolean synthetic; //1 byte
         private boolean keyPoint; //1 byte
         private boolean pointWithheld; //1 byte
+        private boolean overlap; //1 byte
+        private byte scannerChannel; //1 byte
         private byte scanAngle; //1 byte
         private short userData; //2 bytes
         private int pointSourceID; //4 bytes
@@ -1206,6 +1574,22 @@ public class LASReader {
             pointWithheld = val;
         }
 
+        public boolean isOverlap() {
+            return overlap;
+        }
+
+        public void setOverlap(boolean val) {
+            overlap = val;
+        }
+
+        public byte getScannerChannel() {
+            return scannerChannel;
+        }
+
+        public void setScannerChannel(byte c) {
+            scannerChannel = c;
+        }
+
         public byte getScanAngle() {
             return scanAngle;
         }
@@ -1244,6 +1628,7 @@ public class LASReader {
         private int red = -1; //2 bytes
         private int green = -1; //2 bytes
         private int blue = -1; //2 bytes
+        private int nir = -1; //2 bytes
 
         public int getRed() {
             return red;
@@ -1268,6 +1653,19 @@ public class LASReader {
         public void setBlue(int b) {
             blue = b;
         }
+
+        /**
+         * Retrieves the near infrared channel of point formats 8 and 10.
+         *
+         * @return The near infrared channel, or -1 for other formats.
+         */
+        public int getNIR() {
+            return nir;
+        }
+
+        public void setNIR(int n) {
+            nir = n;
+        }
     }
 
 //    public class PointRecord {
@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2015 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.util.Arrays;
+
+/**
+ * The adaptive arithmetic decoder of LASzip, which is that of Amir Said's
+ * FastAC with 32-bit intervals, together with its bit and symbol models and
+ * the integer decompressor that LASzip builds on them. A decoder reads from a
+ * range of a byte array; reading past the end of the range gives zeros, as
+ * the encoder pads its output with them.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+final class LAZArithmeticDecoder {
+
+    private static final long MIN_LENGTH = 0x01000000L;
+    private static final long MAX_LENGTH = 0xFFFFFFFFL;
+    static final int BM_LENGTH_SHIFT = 13;
+    static final int BM_MAX_COUNT = 1 << BM_LENGTH_SHIFT;
+    static final int DM_LENGTH_SHIFT = 15;
+    static final int DM_MAX_COUNT = 1 << DM_LENGTH_SHIFT;
+
+    private byte[] data;
+    private int pos;
+    private int end;
+    // unsigned 32-bit quantities
+    private long value;
+    private long length;
+
+    /**
+     * Starts decoding a range of bytes.
+     *
+     * @param data The encoded bytes.
+     * @param offset The position of the first of them.
+     * @param count The number of them.
+     */
+    void init(byte[] data, int offset, int count) {
+        this.data = data;
+        this.pos = offset;
+        this.end = offset + count;
+        length = MAX_LENGTH;
+        value = ((long) getByte() << 24) | (getByte() << 16) | (getByte() << 8) | getByte();
+    }
+
+    private int getByte() {
+        return pos < end ? data[pos++] & 0xFF : 0;
+    }
+
+    int decodeBit(BitModel m) {
+        long x = m.bit0Prob * (length >>> BM_LENGTH_SHIFT);
+        int sym;
+        if (value < x) {
+            sym = 0;
+            length = x;
+            m.bit0Count++;
+        } else {
+            sym = 1;
+            value -= x;
+            length -= x;
+        }
+        if (length < MIN_LENGTH) {
+            renormalize();
+        }
+        if (--m.bitsUntilUpdate == 0) {
+            m.update();
+        }
+        return sym;
+    }
+
+    int decodeSymbol(SymbolModel m) {
+        int sym;
+        long x;
+        long y = length;
+        if (m.decoderTable != null) {
+            // the table narrows the search for the symbol to a few entries
+            length >>>= DM_LENGTH_SHIFT;
+            long dv = value / length;
+            int t = (int) (dv >>> m.tableShift);
+            sym = m.decoderTable[t];
+            int n = m.decoderTable[t + 1] + 1;
+            while (n > sym + 1) {
+                int k = (sym + n) >>> 1;
+                if (m.distribution[k] > dv) {
+                    n = k;
+                } else {
+                    sym = k;
+                }
+            }
+            x = m.distribution[sym] * length;
+            if (sym != m.lastSymbol) {
+                y = m.distribution[sym + 1] * length;
+            }
+        } else {
+            // a bisection of the distribution
+            x = 0;
+            sym = 0;
+            length >>>= DM_LENGTH_SHIFT;
+            int n = m.symbols;
+            int k = n >>> 1;
+            do {
+                long z = length * m.distribution[k];
+                if (z > value) {
+                    n = k;
+                    y = z;
+                } else {
+                    sym = k;
+                    x = z;
+                }
+            } while ((k = (sym + n) >>> 1) != sym);
+        }
+        value -= x;
+        length = y - x;
+        if (length < MIN_LENGTH) {
+            renormalize();
+        }
+        m.symbolCount[sym]++;
+        if (--m.symbolsUntilUpdate == 0) {
+            m.update();
+        }
+        return sym;
+    }
+
+    /**
+     * Reads bits that were written without a model.
+     *
+     * @param bits The number of bits, at most 32.
+     * @return The bits.
+     */
+    int readBits(int bits) {
+        if (bits > 19) {
+            int lower = readShort();
+            int upper = readBits(bits - 16);
+            return (upper << 16) | lower;
+        }
+        length >>>= bits;
+        long sym = value / length;
+        value -= length * sym;
+        if (length < MIN_LENGTH) {
+            renormalize();
+        }
+        return (int) sym;
+    }
+
+    int readShort() {
+        length >>>= 16;
+        long sym = value / length;
+        value -= length * sym;
+        if (length < MIN_LENGTH) {
+            renormalize();
+        }
+        return (int) sym;
+    }
+
+    int readInt() {
+        int lower = readShort();
+        int upper = readShort();
+        return (upper << 16) | lower;
+    }
+
+    private void renormalize() {
+        do {
+            value = ((value << 8) | getByte()) & MAX_LENGTH;
+            length = (length << 8) & MAX_LENGTH;
+        } while (length < MIN_LENGTH);
+    }
+
+    /**
+     * An adaptive model of a single bit.
+     */
+    static final class BitModel {
+
+        int bit0Count;
+        int bitCount;
+        long bit0Prob;
+        int bitsUntilUpdate;
+        int updateCycle;
+
+        BitModel() {
+            init();
+        }
+
+        void init() {
+            bit0Count = 1;
+            bitCount = 2;
+            bit0Prob = 1 << (BM_LENGTH_SHIFT - 1);
+            updateCycle = bitsUntilUpdate = 4;
+        }
+
+        void update() {
+            // halve the counts when a threshold is reached
+            if ((bitCount += updateCycle) > BM_MAX_COUNT) {
+                bitCount = (bitCount + 1) >>> 1;
+                bit0Count = (bit0Count + 1) >>> 1;
+                if (bit0Count == bitCount) {
+                    ++bitCount;
+                }
+            }
+            long scale = 0x80000000L / bitCount;
+            bit0Prob = (bit0Count * scale) >>> (31 - BM_LENGTH_SHIFT);
+            updateCycle = (5 * updateCycle) >>> 2;
+            if (updateCycle > 64) {
+                updateCycle = 64;
+            }
+            bitsUntilUpdate = updateCycle;
+        }
+    }
+
+    /**
+     * An adaptive model of a symbol of 2 to 2048 values. Models of more than
+     * 16 symbols keep a table that speeds up their decoding.
+     */
+    static final class SymbolModel {
+
+        final int symbols;
+        final int lastSymbol;
+        final long[] distribution;
+        final int[] symbolCount;
+        final int[] decoderTable;
+        final int tableSize;
+        final int tableShift;
+        int totalCount;
+        int updateCycle;
+        int symbolsUntilUpdate;
+
+        SymbolModel(int symbols) {
+            if (symbols < 2 || symbols > (1 << 11)) {
+                throw new IllegalArgumentException("A symbol model has from 2 to 2048 symbols.");
+            }
+            this.symbols = symbols;
+            lastSymbol = symbols - 1;
+            if (symbols > 16) {
+                int tableBits = 3;
+                while (symbols > (1 << (tableBits + 2))) {
+                    ++tableBits;
+                }
+                tableSize = 1 << tableBits;
+                tableShift = DM_LENGTH_SHIFT - tableBits;
+                decoderTable = new int[tableSize + 2];
+            } else {
+                tableSize = 0;
+                tableShift = 0;
+                decoderTable = null;
+            }
+            distribution = new long[symbols];
+            symbolCount = new int[symbols];
+            init();
+        }
+
+        void init() {
+            totalCount = 0;
+            updateCycle = symbols;
+            Arrays.fill(symbolCount, 1);
+            update();
+            symbolsUntilUpdate = updateCycle = (symbols + 6) >>> 1;
+        }
+
+        void update() {
+            // halve the counts when a threshold is reached
+            if ((totalCount += updateCycle) > DM_MAX_COUNT) {
+                totalCount = 0;
+                for (int n = 0; n < symbols; n++) {
+                    totalCount += (symbolCount[n] = (symbolCount[n] + 1) >>> 1);
+                }
+            }
+            long scale = 0x80000000L / totalCount;
+            long sum = 0;
+            int s = 0;
+            for (int k = 0; k < symbols; k++) {
+                distribution[k] = (scale * sum) >>> (31 - DM_LENGTH_SHIFT);
+                sum += symbolCount[k];
+                if (decoderTable != null) {
+                    int w = (int) (distribution[k] >>> tableShift);
+                    while (s < w) {
+                        decoderTable[++s] = k - 1;
+                    }
+                }
+            }
+            if (decoderTable != null) {
+                decoderTable[0] = 0;
+                while (s <= tableSize) {
+                    decoderTable[++s] = symbols - 1;
+                }
+            }
+            updateCycle = (5 * updateCycle) >>> 2;
+            int maxCycle = (symbols + 6) << 3;
+            if (updateCycle > maxCycle) {
+                updateCycle = maxCycle;
+            }
+            symbolsUntilUpdate = updateCycle;
+        }
+    }
+
+    /**
+     * Decodes integers as corrections to a prediction, in one of several
+     * contexts. A correction is coded as the number k of bits that it needs,
+     * followed by the bits themselves, those above the highest bitsHigh of
+     * them without a model.
+     */
+    static final class IntegerDecompressor {
+
+        private final LAZArithmeticDecoder dec;
+        private final int bitsHigh;
+        private final int corrRange;
+        private final int corrMin;
+        private final SymbolModel[] mBits;
+        private final BitModel mCorrector0;
+        private final SymbolModel[] mCorrector;
+        private int k;
+
+        IntegerDecompressor(LAZArithmeticDecoder dec, int bits, int contexts) {
+            this(dec, bits, contexts, 8);
+        }
+
+        IntegerDecompressor(LAZArithmeticDecoder dec, int bits, int contexts, int bitsHigh) {
+            this.dec = dec;
+            this.bitsHigh = bitsHigh;
+            int corrBits;
+            if (bits > 0 && bits < 32) {
+                corrBits = bits;
+                corrRange = 1 << bits;
+                corrMin = -(corrRange / 2);
+            } else {
+                corrBits = 32;
+                corrRange = 0;
+                corrMin = Integer.MIN_VALUE;
+            }
+            mBits = new SymbolModel[contexts];
+            for (int i = 0; i < contexts; i++) {
+                mBits[i] = new SymbolModel(corrBits + 1);
+            }
+            mCorrector0 = new BitModel();
+            mCorrector = new SymbolModel[corrBits + 1];
+            for (int i = 1; i <= corrBits; i++) {
+                mCorrector[i] = new SymbolModel(1 << Math.min(i, bitsHigh));
+            }
+        }
+
+        int decompress(int pred) {
+            return decompress(pred, 0);
+        }
+
+        int decompress(int pred, int context) {
+            int real = pred + readCorrector(mBits[context]);
+            // wrap into the range of the integers, which is a no-op for 32 bits
+            if (real < 0) {
+                real += corrRange;
+            } else if (Integer.compareUnsigned(real, corrRange) >= 0) {
+                real -= corrRange;
+            }
+            return real;
+        }
+
+        /**
+         * Retrieves the number of bits of the last correction, which LASzip
+         * uses to choose the context of the next one.
+         */
+        int getK() {
+            return k;
+        }
+
+        private int readCorrector(SymbolModel m) {
+            int c;
+            k = dec.decodeSymbol(m);
+            if (k != 0) {
+                if (k < 32) {
+                    if (k <= bitsHigh) {
+                        c = dec.decodeSymbol(mCorrector[k]);
+                    } else {
+                        int k1 = k - bitsHigh;
+                        c = dec.decodeSymbol(mCorrector[k]);
+                        int c1 = dec.readBits(k1);
+                        c = (c << k1) | c1;
+                    }
+                    // translate c back into its interval
+                    if (c >= (1 << (k - 1))) {
+                        c += 1;
+                    } else {
+                        c -= (1 << k) - 1;
+                    }
+                } else {
+                    c = corrMin;
+                }
+            } else {
+                c = dec.decodeBit(mCorrector0);
+            }
+            return c;
+        }
+    }
+}
@@ -0,0 +1,1323 @@
+/*
+ * Copyright (C) 2015 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.io.IOException;
+import java.util.Arrays;
+import whitebox.geospatialfiles.LAZArithmeticDecoder.IntegerDecompressor;
+import whitebox.geospatialfiles.LAZArithmeticDecoder.SymbolModel;
+
+/**
+ * Decompresses a chunk of a LAZ file back into LAS point records. The record
+ * is split into the items listed by the file's LASzip VLR, each with its own
+ * decoder. Two kinds of chunk are read:
+ *
+ * - pointwise chunks (LASzip 2), for point formats 0 to 5, whose points are
+ * coded one after the other with the version 2 items POINT10, GPSTIME11,
+ * RGB12 and BYTE; and
+ *
+ * - layered chunks (LASzip 3), for point formats 6 to 10, whose attributes
+ * are coded in separate layers with the version 3 items POINT14, RGB14,
+ * RGBNIR14 and BYTE14, each point's scanner channel choosing the context
+ * in which the next point is coded.
+ *
+ * The first point of a chunk is stored raw. A decoder may be used by one
+ * thread at a time, but each chunk is decoded independently of the others.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+final class LAZChunkDecoder {
+
+    // the item types of the LASzip VLR
+    static final int ITEM_BYTE = 0;
+    static final int ITEM_POINT10 = 6;
+    static final int ITEM_GPSTIME11 = 7;
+    static final int ITEM_RGB12 = 8;
+    static final int ITEM_POINT14 = 10;
+    static final int ITEM_RGB14 = 11;
+    static final int ITEM_RGBNIR14 = 12;
+    static final int ITEM_BYTE14 = 14;
+
+    private final int[] types;
+    private final int[] sizes;
+    private final boolean layered;
+    private final int recordLength;
+
+    /**
+     * Class constructor.
+     *
+     * @param types The types of the items, in the order of the record.
+     * @param sizes The sizes of the items in bytes.
+     * @param versions The versions of the items.
+     * @param layered true for layered chunks, false for pointwise ones.
+     * @throws IOException if an item isn't supported.
+     */
+    LAZChunkDecoder(int[] types, int[] sizes, int[] versions, boolean layered) throws IOException {
+        this.types = types.clone();
+        this.sizes = sizes.clone();
+        this.layered = layered;
+        int length = 0;
+        for (int i = 0; i < types.length; i++) {
+            int expectedSize;
+            switch (types[i]) {
+                case ITEM_POINT10:
+                    expectedSize = 20;
+                    break;
+                case ITEM_GPSTIME11:
+                    expectedSize = 8;
+                    break;
+                case ITEM_RGB12:
+                case ITEM_RGB14:
+                    expectedSize = 6;
+                    break;
+                case ITEM_POINT14:
+                    expectedSize = 30;
+                    break;
+                case ITEM_RGBNIR14:
+                    expectedSize = 8;
+                    break;
+                case ITEM_BYTE:
+                case ITEM_BYTE14:
+                    expectedSize = sizes[i];
+                    break;
+                default:
+                    throw new IOException("LASzip items of type " + types[i] + " are not supported.");
+            }
+            boolean itemLayered = types[i] >= ITEM_POINT14;
+            boolean versionSupported = itemLayered ? versions[i] == 3 || versions[i] == 4 : versions[i] == 2;
+            if (itemLayered != layered || !versionSupported) {
+                throw new IOException("Version " + versions[i] + " of the LASzip items of type "
+                        + types[i] + " is not supported.");
+            }
+            if (sizes[i] != expectedSize || sizes[i] < 1) {
+                throw new IOException("A LASzip item of type " + types[i] + " has a size of " + sizes[i] + ".");
+            }
+            length += sizes[i];
+        }
+        recordLength = length;
+    }
+
+    /**
+     * Retrieves the length of the records, i.e. the sum of the item sizes.
+     *
+     * @return The record length in bytes.
+     */
+    int getRecordLength() {
+        return recordLength;
+    }
+
+    /**
+     * Decompresses a chunk.
+     *
+     * @param data The compressed chunk.
+     * @param count The number of points in the chunk.
+     * @return The point records, one after the other.
+     * @throws IOException if the chunk is truncated.
+     */
+    byte[] decode(byte[] data, int count) throws IOException {
+        byte[] records = new byte[count * recordLength];
+        if (count == 0) {
+            return records;
+        }
+        if (data.length < recordLength) {
+            throw new IOException("A LAZ chunk is truncated.");
+        }
+        System.arraycopy(data, 0, records, 0, recordLength);
+        if (count == 1) {
+            return records;
+        }
+
+        ItemDecoder[] items = new ItemDecoder[types.length];
+        LAZArithmeticDecoder dec = new LAZArithmeticDecoder();
+        int offset = 0;
+        for (int i = 0; i < types.length; i++) {
+            switch (types[i]) {
+                case ITEM_POINT10:
+                    items[i] = new Point10(dec, offset);
+                    break;
+                case ITEM_GPSTIME11:
+                    items[i] = new GPSTime11(dec, offset);
+                    break;
+                case ITEM_RGB12:
+                    items[i] = new RGB12(dec, offset);
+                    break;
+                case ITEM_BYTE:
+                    items[i] = new ExtraBytes(dec, offset, sizes[i]);
+                    break;
+                case ITEM_POINT14:
+                    items[i] = new Point14(offset);
+                    break;
+                case ITEM_RGB14:
+                    items[i] = new RGB14(offset, false);
+                    break;
+                case ITEM_RGBNIR14:
+                    items[i] = new RGB14(offset, true);
+                    break;
+                default:
+                    items[i] = new ExtraBytes14(offset, sizes[i]);
+                    break;
+            }
+            offset += sizes[i];
+        }
+
+        int context = 0;
+        if (layered) {
+            // the raw first point is followed by the number of points in the
+            // chunk, the byte counts of the layers of every item and then the
+            // layers themselves
+            int pos = recordLength + 4;
+            for (ItemDecoder item : items) {
+                if (pos > data.length - 4 * item.getNumberOfLayers()) {
+                    throw new IOException("A LAZ chunk is truncated.");
+                }
+                pos = item.readLayerSizes(data, pos);
+            }
+            for (ItemDecoder item : items) {
+                pos = item.loadLayers(data, pos);
+            }
+        } else {
+            dec.init(data, recordLength, data.length - recordLength);
+        }
+        for (ItemDecoder item : items) {
+            context = item.init(records, 0, context);
+        }
+        for (int p = 1, pos = recordLength; p < count; p++, pos += recordLength) {
+            for (ItemDecoder item : items) {
+                context = item.read(records, pos, context);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Starts decoding a layer, which is left unread if it is empty, i.e. if
+     * its attribute doesn't change within the chunk.
+     *
+     * @return The position of the next layer.
+     */
+    private static int loadLayer(LAZArithmeticDecoder dec, byte[] data, int pos, int numBytes)
+            throws IOException {
+        if (numBytes < 0 || numBytes > data.length - pos) {
+            throw new IOException("A layer of a LAZ chunk is truncated.");
+        }
+        if (numBytes > 0) {
+            dec.init(data, pos, numBytes);
+        }
+        return pos + numBytes;
+    }
+
+    /**
+     * The decoder of one item of the records. The context is the scanner
+     * channel of the current point, which the POINT14 item decodes and the
+     * items after it follow; it is unused by pointwise chunks.
+     */
+    private abstract static class ItemDecoder {
+
+        final int offset;
+
+        ItemDecoder(int offset) {
+            this.offset = offset;
+        }
+
+        int getNumberOfLayers() {
+            return 0;
+        }
+
+        int readLayerSizes(byte[] data, int pos) {
+            return pos;
+        }
+
+        int loadLayers(byte[] data, int pos) throws IOException {
+            return pos;
+        }
+
+        /**
+         * Starts from the raw first point of the chunk.
+         */
+        abstract int init(byte[] records, int pos, int context);
+
+        /**
+         * Decodes the item of the next point into its record.
+         */
+        abstract int read(byte[] records, int pos, int context);
+    }
+
+    // the context of the x and y differences of the version 2 items, by the
+    // number of returns and the return number
+    private static final int[][] NUMBER_RETURN_MAP = {
+        {15, 14, 13, 12, 11, 10, 9, 8},
+        {14, 0, 1, 3, 6, 10, 10, 9},
+        {13, 1, 2, 4, 7, 11, 11, 10},
+        {12, 3, 4, 5, 8, 12, 12, 11},
+        {11, 6, 7, 8, 9, 13, 13, 12},
+        {10, 10, 11, 12, 13, 14, 14, 13},
+        {9, 10, 11, 12, 13, 14, 15, 14},
+        {8, 9, 10, 11, 12, 13, 14, 15}
+    };
+
+    // the same for the version 3 items, which have up to fifteen returns
+    private static final int[][] NUMBER_RETURN_MAP_6CTX = {
+        {0, 1, 2, 3, 4, 5, 3, 4, 4, 5, 5, 5, 5, 5, 5, 5},
+        {1, 0, 1, 3, 4, 5, 3, 4, 4, 5, 5, 5, 5, 5, 5, 5},
+        {2, 1, 2, 4, 4, 5, 4, 4, 4, 5, 5, 5, 5, 5, 5, 5},
+        {3, 3, 4, 5, 4, 5, 4, 4, 4, 5, 5, 5, 5, 5, 5, 5},
+        {4, 4, 4, 4, 5, 5, 4, 4, 4, 5, 5, 5, 5, 5, 5, 5},
+        {5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5},
+        {3, 3, 4, 4, 4, 5, 4, 4, 4, 5, 5, 5, 5, 5, 5, 5},
+        {4, 4, 4, 4, 4, 5, 4, 4, 4, 5, 5, 5, 5, 5, 5, 5},
+        {4, 4, 4, 4, 4, 5, 4, 4, 4, 5, 5, 5, 5, 5, 5, 5},
+        {5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5},
+        {5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5},
+        {5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5},
+        {5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5},
+        {5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5},
+        {5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5},
+        {5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5}
+    };
+
+    /**
+     * The context of the elevation, which is the distance of the return from
+     * the last one, at most 7.
+     */
+    private static int numberReturnLevel(int n, int r) {
+        return Math.min(Math.abs(n - r), 7);
+    }
+
+    private static SymbolModel getModel(SymbolModel[] models, int i, int symbols) {
+        if (models[i] == null) {
+            models[i] = new SymbolModel(symbols);
+        }
+        return models[i];
+    }
+
+    private static int fold(int n) {
+        return n < 0 ? n + 256 : (n > 255 ? n - 256 : n);
+    }
+
+    private static int clamp(int n) {
+        return n <= 0 ? 0 : (n >= 255 ? 255 : n);
+    }
+
+    private static int getInt(byte[] b, int p) {
+        return (b[p] & 0xFF) | ((b[p + 1] & 0xFF) << 8) | ((b[p + 2] & 0xFF) << 16) | (b[p + 3] << 24);
+    }
+
+    private static int getUnsignedShort(byte[] b, int p) {
+        return (b[p] & 0xFF) | ((b[p + 1] & 0xFF) << 8);
+    }
+
+    private static long getLong(byte[] b, int p) {
+        return (getInt(b, p) & 0xFFFFFFFFL) | ((long) getInt(b, p + 4) << 32);
+    }
+
+    private static void putInt(byte[] b, int p, int v) {
+        b[p] = (byte) v;
+        b[p + 1] = (byte) (v >> 8);
+        b[p + 2] = (byte) (v >> 16);
+        b[p + 3] = (byte) (v >> 24);
+    }
+
+    private static void putShort(byte[] b, int p, int v) {
+        b[p] = (byte) v;
+        b[p + 1] = (byte) (v >> 8);
+    }
+
+    private static void putLong(byte[] b, int p, long v) {
+        putInt(b, p, (int) v);
+        putInt(b, p + 4, (int) (v >> 32));
+    }
+
+    /**
+     * The median of the last five values, which predicts the coordinate
+     * differences.
+     */
+    private static final class StreamingMedian5 {
+
+        private final int[] values = new int[5];
+        private boolean high = true;
+
+        static StreamingMedian5[] array(int n) {
+            StreamingMedian5[] a = new StreamingMedian5[n];
+            for (int i = 0; i < n; i++) {
+                a[i] = new StreamingMedian5();
+            }
+            return a;
+        }
+
+        void add(int v) {
+            if (high) {
+                if (v < values[2]) {
+                    values[4] = values[3];
+                    values[3] = values[2];
+                    if (v < values[0]) {
+                        values[2] = values[1];
+                        values[1] = values[0];
+                        values[0] = v;
+                    } else if (v < values[1]) {
+                        values[2] = values[1];
+                        values[1] = v;
+                    } else {
+                        values[2] = v;
+                    }
+                } else {
+                    if (v < values[3]) {
+                        values[4] = values[3];
+                        values[3] = v;
+                    } else {
+                        values[4] = v;
+                    }
+                    high = false;
+                }
+            } else {
+                if (values[2] < v) {
+                    values[0] = values[1];
+                    values[1] = values[2];
+                    if (values[4] < v) {
+                        values[2] = values[3];
+                        values[3] = values[4];
+                        values[4] = v;
+                    } else if (values[3] < v) {
+                        values[2] = values[3];
+                        values[3] = v;
+                    } else {
+                        values[2] = v;
+                    }
+                } else {
+                    if (values[1] < v) {
+                        values[0] = values[1];
+                        values[1] = v;
+                    } else {
+                        values[0] = v;
+                    }
+                    high = true;
+                }
+            }
+        }
+
+        int get() {
+            return values[2];
+        }
+    }
+
+    /**
+     * The core of point formats 0 to 5, version 2.
+     */
+    private static final class Point10 extends ItemDecoder {
+
+        private final LAZArithmeticDecoder dec;
+        private final SymbolModel changedValuesModel = new SymbolModel(64);
+        private final SymbolModel[] scanAngleRankModels = {new SymbolModel(256), new SymbolModel(256)};
+        private final SymbolModel[] bitByteModels = new SymbolModel[256];
+        private final SymbolModel[] classificationModels = new SymbolModel[256];
+        private final SymbolModel[] userDataModels = new SymbolModel[256];
+        private final IntegerDecompressor icIntensity;
+        private final IntegerDecompressor icPointSourceID;
+        private final IntegerDecompressor icDX;
+        private final IntegerDecompressor icDY;
+        private final IntegerDecompressor icZ;
+        private final StreamingMedian5[] lastXDiffMedian = StreamingMedian5.array(16);
+        private final StreamingMedian5[] lastYDiffMedian = StreamingMedian5.array(16);
+        private final int[] lastIntensity = new int[16];
+        private final int[] lastHeight = new int[8];
+        // the last point
+        private int x, y, z;
+        private int intensity;
+        private int bitByte;
+        private int classification;
+        private int scanAngleRank;
+        private int userData;
+        private int pointSourceID;
+
+        Point10(LAZArithmeticDecoder dec, int offset) {
+            super(offset);
+            this.dec = dec;
+            icIntensity = new IntegerDecompressor(dec, 16, 4);
+            icPointSourceID = new IntegerDecompressor(dec, 16, 1);
+            icDX = new IntegerDecompressor(dec, 32, 2);
+            icDY = new IntegerDecompressor(dec, 32, 22);
+            icZ = new IntegerDecompressor(dec, 32, 20);
+        }
+
+        @Override
+        int init(byte[] records, int pos, int context) {
+            pos += offset;
+            x = getInt(records, pos);
+            y = getInt(records, pos + 4);
+            z = getInt(records, pos + 8);
+            // the intensity of the last point starts at zero
+            intensity = 0;
+            bitByte = records[pos + 14] & 0xFF;
+            classification = records[pos + 15] & 0xFF;
+            scanAngleRank = records[pos + 16] & 0xFF;
+            userData = records[pos + 17] & 0xFF;
+            pointSourceID = getUnsignedShort(records, pos + 18);
+            return context;
+        }
+
+        @Override
+        int read(byte[] records, int pos, int context) {
+            int changedValues = dec.decodeSymbol(changedValuesModel);
+            if ((changedValues & 32) != 0) {
+                bitByte = dec.decodeSymbol(getModel(bitByteModels, bitByte, 256));
+            }
+            int r = bitByte & 7;
+            int n = (bitByte >> 3) & 7;
+            int m = NUMBER_RETURN_MAP[n][r];
+            int l = numberReturnLevel(n, r);
+            if (changedValues != 0) {
+                if ((changedValues & 16) != 0) {
+                    intensity = icIntensity.decompress(lastIntensity[m], m < 3 ? m : 3) & 0xFFFF;
+                    lastIntensity[m] = intensity;
+                } else {
+                    intensity = lastIntensity[m];
+                }
+                if ((changedValues & 8) != 0) {
+                    classification = dec.decodeSymbol(getModel(classificationModels, classification, 256));
+                }
+                if ((changedValues & 4) != 0) {
+                    int val = dec.decodeSymbol(scanAngleRankModels[(bitByte >> 6) & 1]);
+                    scanAngleRank = fold(val + scanAngleRank);
+                }
+                if ((changedValues & 2) != 0) {
+                    userData = dec.decodeSymbol(getModel(userDataModels, userData, 256));
+                }
+                if ((changedValues & 1) != 0) {
+                    pointSourceID = icPointSourceID.decompress(pointSourceID) & 0xFFFF;
+                }
+            }
+
+            int median = lastXDiffMedian[m].get();
+            int diff = icDX.decompress(median, n == 1 ? 1 : 0);
+            x += diff;
+            lastXDiffMedian[m].add(diff);
+
+            median = lastYDiffMedian[m].get();
+            int kBits = icDX.getK();
+            diff = icDY.decompress(median, (n == 1 ? 1 : 0) + (kBits < 20 ? kBits & ~1 : 20));
+            y += diff;
+            lastYDiffMedian[m].add(diff);
+
+            kBits = (icDX.getK() + icDY.getK()) / 2;
+            z = icZ.decompress(lastHeight[l], (n == 1 ? 1 : 0) + (kBits < 18 ? kBits & ~1 : 18));
+            lastHeight[l] = z;
+
+            pos += offset;
+            putInt(records, pos, x);
+            putInt(records, pos + 4, y);
+            putInt(records, pos + 8, z);
+            putShort(records, pos + 12, intensity);
+            records[pos + 14] = (byte) bitByte;
+            records[pos + 15] = (byte) classification;
+            records[pos + 16] = (byte) scanAngleRank;
+            records[pos + 17] = (byte) userData;
+            putShort(records, pos + 18, pointSourceID);
+            return context;
+        }
+    }
+
+    /**
+     * The GPS times of a run of points, which are coded as differences from
+     * one of up to four sequences of times, as a multiple of the sequence's
+     * last difference where that predicts them. This serves both the version
+     * 2 GPSTIME11 item and the GPS time layer of the version 3 POINT14 item,
+     * which differ only in the symbols that they reserve.
+     */
+    private static final class GPSTimeSequences {
+
+        private static final int MULTI = 500;
+        private static final int MULTI_MINUS = -10;
+        private static final int MULTI_UNCHANGED = MULTI - MULTI_MINUS + 1;
+        private static final int MULTI_CODE_FULL = MULTI - MULTI_MINUS + 2;
+        private static final int MULTI_TOTAL = MULTI - MULTI_MINUS + 6;
+
+        private final LAZArithmeticDecoder dec;
+        private final boolean layered;
+        private final SymbolModel multiModel = new SymbolModel(MULTI_TOTAL);
+        private final SymbolModel zeroDiffModel;
+        private final IntegerDecompressor icGPSTime;
+        // the times are held as the bits of the doubles
+        private final long[] lastGPSTime = new long[4];
+        private final int[] lastGPSTimeDiff = new int[4];
+        private final int[] multiExtremeCounter = new int[4];
+        private int last = 0;
+        private int next = 0;
+
+        GPSTimeSequences(LAZArithmeticDecoder dec, boolean layered, long first) {
+            this.dec = dec;
+            this.layered = layered;
+            zeroDiffModel = new SymbolModel(layered ? 5 : 6);
+            icGPSTime = new IntegerDecompressor(dec, 32, 9);
+            lastGPSTime[0] = first;
+        }
+
+        long decode() {
+            while (true) {
+                if (lastGPSTimeDiff[last] == 0) {
+                    int multi = dec.decodeSymbol(zeroDiffModel);
+                    // the version 2 item codes an unchanged time as zero
+                    if (layered) {
+                        multi++;
+                    }
+                    if (multi == 1) {
+                        // the difference fits in 32 bits
+                        lastGPSTimeDiff[last] = icGPSTime.decompress(0, 0);
+                        lastGPSTime[last] += lastGPSTimeDiff[last];
+                        multiExtremeCounter[last] = 0;
+                    } else if (multi == 2) {
+                        startSequence();
+                    } else if (multi > 2) {
+                        // switch to another sequence
+                        last = (last + multi - 2) & 3;
+                        continue;
+                    }
+                } else {
+                    int multi = dec.decodeSymbol(multiModel);
+                    if (multi == 1) {
+                        lastGPSTime[last] += icGPSTime.decompress(lastGPSTimeDiff[last], 1);
+                        multiExtremeCounter[last] = 0;
+                    } else if (multi < (layered ? MULTI_CODE_FULL : MULTI_UNCHANGED)) {
+                        lastGPSTime[last] += decodeMultipleOfDiff(multi);
+                    } else if (multi == MULTI_CODE_FULL) {
+                        startSequence();
+                    } else if (multi > MULTI_CODE_FULL) {
+                        last = (last + multi - MULTI_CODE_FULL) & 3;
+                        continue;
+                    }
+                }
+                return lastGPSTime[last];
+            }
+        }
+
+        private int decodeMultipleOfDiff(int multi) {
+            int lastDiff = lastGPSTimeDiff[last];
+            int diff;
+            if (multi == 0) {
+                diff = icGPSTime.decompress(0, 7);
+                countExtreme(diff);
+            } else if (multi < MULTI) {
+                diff = icGPSTime.decompress(multi * lastDiff, multi < 10 ? 2 : 3);
+            } else if (multi == MULTI) {
+                diff = icGPSTime.decompress(MULTI * lastDiff, 4);
+                countExtreme(diff);
+            } else {
+                multi = MULTI - multi;
+                if (multi > MULTI_MINUS) {
+                    diff = icGPSTime.decompress(multi * lastDiff, 5);
+                } else {
+                    diff = icGPSTime.decompress(MULTI_MINUS * lastDiff, 6);
+                    countExtreme(diff);
+                }
+            }
+            return diff;
+        }
+
+        /**
+         * Adopts a difference that is repeatedly far from the multiples of
+         * the last one.
+         */
+        private void countExtreme(int diff) {
+            if (++multiExtremeCounter[last] > 3) {
+                lastGPSTimeDiff[last] = diff;
+                multiExtremeCounter[last] = 0;
+            }
+        }
+
+        /**
+         * Starts a new sequence with a time whose difference from the last
+         * one doesn't fit in 32 bits.
+         */
+        private void startSequence() {
+            next = (next + 1) & 3;
+            long upper = icGPSTime.decompress((int) (lastGPSTime[last] >>> 32), 8);
+            lastGPSTime[next] = (upper << 32) | (dec.readInt() & 0xFFFFFFFFL);
+            last = next;
+            lastGPSTimeDiff[last] = 0;
+            multiExtremeCounter[last] = 0;
+        }
+    }
+
+    /**
+     * The GPS time of point formats 1 and 3 to 5, version 2.
+     */
+    private static final class GPSTime11 extends ItemDecoder {
+
+        private final LAZArithmeticDecoder dec;
+        private GPSTimeSequences sequences;
+
+        GPSTime11(LAZArithmeticDecoder dec, int offset) {
+            super(offset);
+            this.dec = dec;
+        }
+
+        @Override
+        int init(byte[] records, int pos, int context) {
+            sequences = new GPSTimeSequences(dec, false, getLong(records, pos + offset));
+            return context;
+        }
+
+        @Override
+        int read(byte[] records, int pos, int context) {
+            putLong(records, pos + offset, sequences.decode());
+            return context;
+        }
+    }
+
+    /**
+     * The models of a colour. Each channel is coded as the changes to its two
+     * bytes, those of green and blue being predicted from the change to red.
+     */
+    private static final class ColourModels {
+
+        final SymbolModel bytesUsed = new SymbolModel(128);
+        final SymbolModel[] diffs = new SymbolModel[6];
+
+        ColourModels() {
+            for (int i = 0; i < diffs.length; i++) {
+                diffs[i] = new SymbolModel(256);
+            }
+        }
+
+        /**
+         * Decodes a colour over the last one.
+         */
+        void decode(LAZArithmeticDecoder dec, int[] last) {
+            int sym = dec.decodeSymbol(bytesUsed);
+            int r;
+            int g;
+            int b;
+            if ((sym & 1) != 0) {
+                r = fold(dec.decodeSymbol(diffs[0]) + (last[0] & 0xFF));
+            } else {
+                r = last[0] & 0xFF;
+            }
+            if ((sym & 2) != 0) {
+                r |= fold(dec.decodeSymbol(diffs[1]) + (last[0] >>> 8)) << 8;
+            } else {
+                r |= last[0] & 0xFF00;
+            }
+            if ((sym & 64) != 0) {
+                int diff = (r & 0xFF) - (last[0] & 0xFF);
+                if ((sym & 4) != 0) {
+                    g = fold(dec.decodeSymbol(diffs[2]) + clamp(diff + (last[1] & 0xFF)));
+                } else {
+                    g = last[1] & 0xFF;
+                }
+                if ((sym & 16) != 0) {
+                    int corr = dec.decodeSymbol(diffs[4]);
+                    diff = (diff + ((g & 0xFF) - (last[1] & 0xFF))) / 2;
+                    b = fold(corr + clamp(diff + (last[2] & 0xFF)));
+                } else {
+                    b = last[2] & 0xFF;
+                }
+                diff = (r >>> 8) - (last[0] >>> 8);
+                if ((sym & 8) != 0) {
+                    g |= fold(dec.decodeSymbol(diffs[3]) + clamp(diff + (last[1] >>> 8))) << 8;
+                } else {
+                    g |= last[1] & 0xFF00;
+                }
+                if ((sym & 32) != 0) {
+                    int corr = dec.decodeSymbol(diffs[5]);
+                    diff = (diff + ((g >>> 8) - (last[1] >>> 8))) / 2;
+                    b |= fold(corr + clamp(diff + (last[2] >>> 8))) << 8;
+                } else {
+                    b |= last[2] & 0xFF00;
+                }
+            } else {
+                // a shade of grey
+                g = r;
+                b = r;
+            }
+            last[0] = r;
+            last[1] = g;
+            last[2] = b;
+        }
+    }
+
+    /**
+     * The colour of point formats 2, 3 and 5, version 2.
+     */
+    private static final class RGB12 extends ItemDecoder {
+
+        private final LAZArithmeticDecoder dec;
+        private final ColourModels models = new ColourModels();
+        private final int[] last = new int[3];
+
+        RGB12(LAZArithmeticDecoder dec, int offset) {
+            super(offset);
+            this.dec = dec;
+        }
+
+        @Override
+        int init(byte[] records, int pos, int context) {
+            for (int i = 0; i < 3; i++) {
+                last[i] = getUnsignedShort(records, pos + offset + 2 * i);
+            }
+            return context;
+        }
+
+        @Override
+        int read(byte[] records, int pos, int context) {
+            models.decode(dec, last);
+            for (int i = 0; i < 3; i++) {
+                putShort(records, pos + offset + 2 * i, last[i]);
+            }
+            return context;
+        }
+    }
+
+    /**
+     * The extra bytes that follow the point format, version 2, each coded as
+     * its change.
+     */
+    private static final class ExtraBytes extends ItemDecoder {
+
+        private final LAZArithmeticDecoder dec;
+        private final SymbolModel[] models;
+        private final int[] last;
+
+        ExtraBytes(LAZArithmeticDecoder dec, int offset, int number) {
+            super(offset);
+            this.dec = dec;
+            models = new SymbolModel[number];
+            for (int i = 0; i < number; i++) {
+                models[i] = new SymbolModel(256);
+            }
+            last = new int[number];
+        }
+
+        @Override
+        int init(byte[] records, int pos, int context) {
+            for (int i = 0; i < last.length; i++) {
+                last[i] = records[pos + offset + i] & 0xFF;
+            }
+            return context;
+        }
+
+        @Override
+        int read(byte[] records, int pos, int context) {
+            for (int i = 0; i < last.length; i++) {
+                last[i] = fold(last[i] + dec.decodeSymbol(models[i]));
+                records[pos + offset + i] = (byte) last[i];
+            }
+            return context;
+        }
+    }
+
+    /**
+     * The core of point formats 6 to 10, version 3. Its attributes are coded
+     * in nine layers: the scanner channel, returns and x and y coordinates,
+     * which are always present, and the elevation, classification, flags,
+     * intensity, scan angle, user data, point source ID and GPS time, which
+     * are empty where the attribute doesn't change within the chunk. Each of
+     * the four scanner channels has its own models and last point.
+     */
+    private static final class Point14 extends ItemDecoder {
+
+        private static final int NUM_LAYERS = 9;
+
+        private final LAZArithmeticDecoder decChannelReturnsXY = new LAZArithmeticDecoder();
+        private final LAZArithmeticDecoder decZ = new LAZArithmeticDecoder();
+        private final LAZArithmeticDecoder decClassification = new LAZArithmeticDecoder();
+        private final LAZArithmeticDecoder decFlags = new LAZArithmeticDecoder();
+        private final LAZArithmeticDecoder decIntensity = new LAZArithmeticDecoder();
+        private final LAZArithmeticDecoder decScanAngle = new LAZArithmeticDecoder();
+        private final LAZArithmeticDecoder decUserData = new LAZArithmeticDecoder();
+        private final LAZArithmeticDecoder decPointSource = new LAZArithmeticDecoder();
+        private final LAZArithmeticDecoder decGPSTime = new LAZArithmeticDecoder();
+        private final int[] layerSizes = new int[NUM_LAYERS];
+        private final Channel[] channels = new Channel[4];
+        private int current;
+
+        Point14(int offset) {
+            super(offset);
+        }
+
+        @Override
+        int getNumberOfLayers() {
+            return NUM_LAYERS;
+        }
+
+        @Override
+        int readLayerSizes(byte[] data, int pos) {
+            for (int i = 0; i < NUM_LAYERS; i++, pos += 4) {
+                layerSizes[i] = getInt(data, pos);
+            }
+            return pos;
+        }
+
+        @Override
+        int loadLayers(byte[] data, int pos) throws IOException {
+            // the coordinates are coded for every point
+            if (layerSizes[0] <= 0) {
+                throw new IOException("A LAZ chunk has no coordinate layer.");
+            }
+            pos = loadLayer(decChannelReturnsXY, data, pos, layerSizes[0]);
+            pos = loadLayer(decZ, data, pos, layerSizes[1]);
+            pos = loadLayer(decClassification, data, pos, layerSizes[2]);
+            pos = loadLayer(decFlags, data, pos, layerSizes[3]);
+            pos = loadLayer(decIntensity, data, pos, layerSizes[4]);
+            pos = loadLayer(decScanAngle, data, pos, layerSizes[5]);
+            pos = loadLayer(decUserData, data, pos, layerSizes[6]);
+            pos = loadLayer(decPointSource, data, pos, layerSizes[7]);
+            return loadLayer(decGPSTime, data, pos, layerSizes[8]);
+        }
+
+        @Override
+        int init(byte[] records, int pos, int context) {
+            Channel first = new Channel();
+            first.parse(records, pos + offset);
+            Arrays.fill(channels, null);
+            current = first.scannerChannel;
+            channels[current] = new Channel(this, first);
+            // the scanner channel is the context of the other items
+            return current;
+        }
+
+        @Override
+        int read(byte[] records, int pos, int context) {
+            Channel last = channels[current];
+
+            // the context of the changes is whether the last point was a
+            // first and/or a last return, and whether its GPS time changed
+            int lpr = (last.returnNumber == 1 ? 1 : 0)
+                    + (last.returnNumber >= last.numberOfReturns ? 2 : 0)
+                    + (last.gpsTimeChange ? 4 : 0);
+            int changedValues = decChannelReturnsXY.decodeSymbol(last.changedValuesModels[lpr]);
+
+            if ((changedValues & 64) != 0) {
+                // the scanner channel has changed
+                int diff = decChannelReturnsXY.decodeSymbol(last.scannerChannelModel);
+                int channel = (current + diff + 1) % 4;
+                if (channels[channel] == null) {
+                    channels[channel] = new Channel(this, last);
+                }
+                current = channel;
+                last = channels[current];
+                last.scannerChannel = channel;
+            }
+
+            boolean pointSourceChange = (changedValues & 32) != 0;
+            boolean gpsTimeChange = (changedValues & 16) != 0;
+            boolean scanAngleChange = (changedValues & 8) != 0;
+            int gps = gpsTimeChange ? 1 : 0;
+
+            int lastN = last.numberOfReturns;
+            int lastR = last.returnNumber;
+            int n;
+            if ((changedValues & 4) != 0) {
+                n = decChannelReturnsXY.decodeSymbol(getModel(last.numberOfReturnsModels, lastN, 16));
+            } else {
+                n = lastN;
+            }
+            int r;
+            switch (changedValues & 3) {
+                case 0:
+                    r = lastR;
+                    break;
+                case 1:
+                    r = (lastR + 1) % 16;
+                    break;
+                case 2:
+                    r = (lastR + 15) % 16;
+                    break;
+                default:
+                    // the return number differs by more than one
+                    if (gpsTimeChange) {
+                        r = decChannelReturnsXY.decodeSymbol(getModel(last.returnNumberModels, lastR, 16));
+                    } else {
+                        int sym = decChannelReturnsXY.decodeSymbol(last.returnNumberGPSSameModel);
+                        r = (lastR + sym + 2) % 16;
+                    }
+                    break;
+            }
+            last.numberOfReturns = n;
+            last.returnNumber = r;
+
+            int m = NUMBER_RETURN_MAP_6CTX[n][r];
+            int l = numberReturnLevel(n, r);
+            // single (3), first (2), last (1) or intermediate (0) return
+            int cpr = (r == 1 ? 2 : 0) + (r >= n ? 1 : 0);
+
+            int median = last.lastXDiffMedian[(m << 1) | gps].get();
+            int diff = last.icDX.decompress(median, n == 1 ? 1 : 0);
+            last.x += diff;
+            last.lastXDiffMedian[(m << 1) | gps].add(diff);
+
+            median = last.lastYDiffMedian[(m << 1) | gps].get();
+            int kBits = last.icDX.getK();
+            diff = last.icDY.decompress(median, (n == 1 ? 1 : 0) + (kBits < 20 ? kBits & ~1 : 20));
+            last.y += diff;
+            last.lastYDiffMedian[(m << 1) | gps].add(diff);
+
+            if (layerSizes[1] > 0) {
+                kBits = (last.icDX.getK() + last.icDY.getK()) / 2;
+                last.z = last.icZ.decompress(last.lastZ[l], (n == 1 ? 1 : 0) + (kBits < 18 ? kBits & ~1 : 18));
+                last.lastZ[l] = last.z;
+            }
+            if (layerSizes[2] > 0) {
+                int ccc = ((last.classification & 0x1F) << 1) + (cpr == 3 ? 1 : 0);
+                last.classification = decClassification.decodeSymbol(getModel(last.classificationModels, ccc, 256));
+            }
+            if (layerSizes[3] > 0) {
+                int lastFlags = (last.edgeOfFlightLine << 5) | (last.scanDirection << 4) | last.classificationFlags;
+                int flags = decFlags.decodeSymbol(getModel(last.flagsModels, lastFlags, 64));
+                last.edgeOfFlightLine = (flags >> 5) & 1;
+                last.scanDirection = (flags >> 4) & 1;
+                last.classificationFlags = flags & 15;
+            }
+            if (layerSizes[4] > 0) {
+                int i = (cpr << 1) | gps;
+                last.intensity = last.icIntensity.decompress(last.lastIntensity[i], cpr) & 0xFFFF;
+                last.lastIntensity[i] = last.intensity;
+            }
+            if (layerSizes[5] > 0 && scanAngleChange) {
+                last.scanAngle = (short) last.icScanAngle.decompress(last.scanAngle, gps);
+            }
+            if (layerSizes[6] > 0) {
+                last.userData = decUserData.decodeSymbol(getModel(last.userDataModels, last.userData / 4, 256));
+            }
+            if (layerSizes[7] > 0 && pointSourceChange) {
+                last.pointSourceID = last.icPointSourceID.decompress(last.pointSourceID) & 0xFFFF;
+            }
+            if (layerSizes[8] > 0 && gpsTimeChange) {
+                last.gpsTime = last.gpsTimeSequences.decode();
+            }
+            last.write(records, pos + offset);
+            last.gpsTimeChange = gpsTimeChange;
+            return current;
+        }
+
+        /**
+         * The models and last point of a scanner channel.
+         */
+        private static final class Channel {
+
+            // the last point
+            int x, y, z;
+            int intensity;
+            int returnNumber;
+            int numberOfReturns;
+            int classificationFlags;
+            int scannerChannel;
+            int scanDirection;
+            int edgeOfFlightLine;
+            int classification;
+            int userData;
+            int scanAngle;
+            int pointSourceID;
+            long gpsTime;
+            boolean gpsTimeChange;
+
+            final SymbolModel[] changedValuesModels = new SymbolModel[8];
+            final SymbolModel scannerChannelModel;
+            final SymbolModel[] numberOfReturnsModels = new SymbolModel[16];
+            final SymbolModel[] returnNumberModels = new SymbolModel[16];
+            final SymbolModel returnNumberGPSSameModel;
+            final SymbolModel[] classificationModels = new SymbolModel[64];
+            final SymbolModel[] flagsModels = new SymbolModel[64];
+            final SymbolModel[] userDataModels = new SymbolModel[64];
+            final IntegerDecompressor icDX;
+            final IntegerDecompressor icDY;
+            final IntegerDecompressor icZ;
+            final IntegerDecompressor icIntensity;
+            final IntegerDecompressor icScanAngle;
+            final IntegerDecompressor icPointSourceID;
+            final StreamingMedian5[] lastXDiffMedian;
+            final StreamingMedian5[] lastYDiffMedian;
+            final int[] lastZ = new int[8];
+            final int[] lastIntensity = new int[8];
+            final GPSTimeSequences gpsTimeSequences;
+
+            /**
+             * Creates a point only.
+             */
+            Channel() {
+                scannerChannelModel = null;
+                returnNumberGPSSameModel = null;
+                icDX = icDY = icZ = icIntensity = icScanAngle = icPointSourceID = null;
+                lastXDiffMedian = lastYDiffMedian = null;
+                gpsTimeSequences = null;
+            }
+
+            /**
+             * Creates a channel that starts from a point.
+             */
+            Channel(Point14 item, Channel point) {
+                for (int i = 0; i < changedValuesModels.length; i++) {
+                    changedValuesModels[i] = new SymbolModel(128);
+                }
+                scannerChannelModel = new SymbolModel(3);
+                returnNumberGPSSameModel = new SymbolModel(13);
+                icDX = new IntegerDecompressor(item.decChannelReturnsXY, 32, 2);
+                icDY = new IntegerDecompressor(item.decChannelReturnsXY, 32, 22);
+                icZ = new IntegerDecompressor(item.decZ, 32, 20);
+                icIntensity = new IntegerDecompressor(item.decIntensity, 16, 4);
+                icScanAngle = new IntegerDecompressor(item.decScanAngle, 16, 2);
+                icPointSourceID = new IntegerDecompressor(item.decPointSource, 16, 1);
+                lastXDiffMedian = StreamingMedian5.array(12);
+                lastYDiffMedian = StreamingMedian5.array(12);
+
+                x = point.x;
+                y = point.y;
+                z = point.z;
+                intensity = point.intensity;
+                returnNumber = point.returnNumber;
+                numberOfReturns = point.numberOfReturns;
+                classificationFlags = point.classificationFlags;
+                scannerChannel = point.scannerChannel;
+                scanDirection = point.scanDirection;
+                edgeOfFlightLine = point.edgeOfFlightLine;
+                classification = point.classification;
+                userData = point.userData;
+                scanAngle = point.scanAngle;
+                pointSourceID = point.pointSourceID;
+                gpsTime = point.gpsTime;
+                gpsTimeChange = false;
+                Arrays.fill(lastZ, z);
+                Arrays.fill(lastIntensity, intensity);
+                gpsTimeSequences = new GPSTimeSequences(item.decGPSTime, true, gpsTime);
+            }
+
+            void parse(byte[] records, int pos) {
+                x = getInt(records, pos);
+                y = getInt(records, pos + 4);
+                z = getInt(records, pos + 8);
+                intensity = getUnsignedShort(records, pos + 12);
+                returnNumber = records[pos + 14] & 15;
+                numberOfReturns = (records[pos + 14] >> 4) & 15;
+                int flags = records[pos + 15];
+                classificationFlags = flags & 15;
+                scannerChannel = (flags >> 4) & 3;
+                scanDirection = (flags >> 6) & 1;
+                edgeOfFlightLine = (flags >> 7) & 1;
+                classification = records[pos + 16] & 0xFF;
+                userData = records[pos + 17] & 0xFF;
+                scanAngle = (short) getUnsignedShort(records, pos + 18);
+                pointSourceID = getUnsignedShort(records, pos + 20);
+                gpsTime = getLong(records, pos + 22);
+            }
+
+            void write(byte[] records, int pos) {
+                putInt(records, pos, x);
+                putInt(records, pos + 4, y);
+                putInt(records, pos + 8, z);
+                putShort(records, pos + 12, intensity);
+                records[pos + 14] = (byte) (returnNumber | (numberOfReturns << 4));
+                records[pos + 15] = (byte) (classificationFlags | (scannerChannel << 4)
+                        | (scanDirection << 6) | (edgeOfFlightLine << 7));
+                records[pos + 16] = (byte) classification;
+                records[pos + 17] = (byte) userData;
+                putShort(records, pos + 18, scanAngle);
+                putShort(records, pos + 20, pointSourceID);
+                putLong(records, pos + 22, gpsTime);
+            }
+        }
+    }
+
+    /**
+     * The colour, and perhaps the near infrared channel, of point formats 7
+     * and 8, version 3, each in its own layer. Each scanner channel has its
+     * own models and last colour.
+     */
+    private static final class RGB14 extends ItemDecoder {
+
+        private final boolean hasNIR;
+        private final LAZArithmeticDecoder decRGB = new LAZArithmeticDecoder();
+        private final LAZArithmeticDecoder decNIR = new LAZArithmeticDecoder();
+        private int bytesRGB;
+        private int bytesNIR;
+        private final Channel[] channels = new Channel[4];
+        private int current;
+
+        RGB14(int offset, boolean hasNIR) {
+            super(offset);
+            this.hasNIR = hasNIR;
+        }
+
+        @Override
+        int getNumberOfLayers() {
+            return hasNIR ? 2 : 1;
+        }
+
+        @Override
+        int readLayerSizes(byte[] data, int pos) {
+            bytesRGB = getInt(data, pos);
+            pos += 4;
+            if (hasNIR) {
+                bytesNIR = getInt(data, pos);
+                pos += 4;
+            }
+            return pos;
+        }
+
+        @Override
+        int loadLayers(byte[] data, int pos) throws IOException {
+            pos = loadLayer(decRGB, data, pos, bytesRGB);
+            if (hasNIR) {
+                pos = loadLayer(decNIR, data, pos, bytesNIR);
+            }
+            return pos;
+        }
+
+        @Override
+        int init(byte[] records, int pos, int context) {
+            int[] first = new int[4];
+            for (int i = 0; i < (hasNIR ? 4 : 3); i++) {
+                first[i] = getUnsignedShort(records, pos + offset + 2 * i);
+            }
+            Arrays.fill(channels, null);
+            current = context;
+            channels[current] = new Channel(first);
+            return context;
+        }
+
+        @Override
+        int read(byte[] records, int pos, int context) {
+            Channel c = channels[current];
+            if (context != current) {
+                current = context;
+                if (channels[current] == null) {
+                    channels[current] = new Channel(c.last);
+                }
+                c = channels[current];
+            }
+            if (bytesRGB > 0) {
+                c.colourModels.decode(decRGB, c.last);
+            }
+            if (hasNIR && bytesNIR > 0) {
+                int sym = decNIR.decodeSymbol(c.nirBytesUsed);
+                int nir;
+                if ((sym & 1) != 0) {
+                    nir = fold(decNIR.decodeSymbol(c.nirDiffs[0]) + (c.last[3] & 0xFF));
+                } else {
+                    nir = c.last[3] & 0xFF;
+                }
+                if ((sym & 2) != 0) {
+                    nir |= fold(decNIR.decodeSymbol(c.nirDiffs[1]) + (c.last[3] >>> 8)) << 8;
+                } else {
+                    nir |= c.last[3] & 0xFF00;
+                }
+                c.last[3] = nir;
+            }
+            for (int i = 0; i < (hasNIR ? 4 : 3); i++) {
+                putShort(records, pos + offset + 2 * i, c.last[i]);
+            }
+            return context;
+        }
+
+        private static final class Channel {
+
+            final ColourModels colourModels = new ColourModels();
+            final SymbolModel nirBytesUsed = new SymbolModel(4);
+            final SymbolModel[] nirDiffs = {new SymbolModel(256), new SymbolModel(256)};
+            final int[] last;
+
+            Channel(int[] last) {
+                this.last = last.clone();
+            }
+        }
+    }
+
+    /**
+     * The extra bytes of point formats 6 to 10, version 3, each in its own
+     * layer. Each scanner channel has its own models and last bytes.
+     */
+    private static final class ExtraBytes14 extends ItemDecoder {
+
+        private final int number;
+        private final LAZArithmeticDecoder[] decs;
+        private final int[] layerSizes;
+        private final Channel[] channels = new Channel[4];
+        private int current;
+
+        ExtraBytes14(int offset, int number) {
+            super(offset);
+            this.number = number;
+            decs = new LAZArithmeticDecoder[number];
+            for (int i = 0; i < number; i++) {
+                decs[i] = new LAZArithmeticDecoder();
+            }
+            layerSizes = new int[number];
+        }
+
+        @Override
+        int getNumberOfLayers() {
+            return number;
+        }
+
+        @Override
+        int readLayerSizes(byte[] data, int pos) {
+            for (int i = 0; i < number; i++, pos += 4) {
+                layerSizes[i] = getInt(data, pos);
+            }
+            return pos;
+        }
+
+        @Override
+        int loadLayers(byte[] data, int pos) throws IOException {
+            for (int i = 0; i < number; i++) {
+                pos = loadLayer(decs[i], data, pos, layerSizes[i]);
+            }
+            return pos;
+        }
+
+        @Override
+        int init(byte[] records, int pos, int context) {
+            int[] first = new int[number];
+            for (int i = 0; i < number; i++) {
+                first[i] = records[pos + offset + i] & 0xFF;
+            }
+            Arrays.fill(channels, null);
+            current = context;
+            channels[current] = new Channel(first);
+            return context;
+        }
+
+        @Override
+        int read(byte[] records, int pos, int context) {
+            Channel c = channels[current];
+            if (context != current) {
+                current = context;
+                if (channels[current] == null) {
+                    channels[current] = new Channel(c.last);
+                }
+                c = channels[current];
+            }
+            for (int i = 0; i < number; i++) {
+                if (layerSizes[i] > 0) {
+                    c.last[i] = fold(c.last[i] + decs[i].decodeSymbol(c.models[i]));
+                }
+                records[pos + offset + i] = (byte) c.last[i];
+            }
+            return context;
+        }
+
+        private static final class Channel {
+
+            final SymbolModel[] models;
+            final int[] last;
+
+            Channel(int[] last) {
+                this.last = last.clone();
+                models = new SymbolModel[last.length];
+                for (int i = 0; i < models.length; i++) {
+                    models[i] = new SymbolModel(256);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2015 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import whitebox.geospatialfiles.LAZArithmeticDecoder.IntegerDecompressor;
+import whitebox.utilities.NamedThreadFactory;
+
+/**
+ * The point data of a LAZ file, i.e. a LAS file whose points are compressed
+ * by LASzip. The points are stored in chunks, of a fixed or variable number of
+ * points, each compressed independently of the others, and a chunk table at
+ * the end of the point data gives the position of each chunk. Chunks are
+ * decompressed on a worker pool: reading a chunk starts the decompression of
+ * those that follow it, so that a sequential read has several of them
+ * decompressed in parallel.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+final class LAZFile {
+
+    // the VLR that describes the compression
+    static final String LASZIP_USER_ID = "laszip encoded";
+    static final int LASZIP_RECORD_ID = 22204;
+    private static final int COMPRESSOR_POINTWISE_CHUNKED = 2;
+    private static final int COMPRESSOR_LAYERED_CHUNKED = 3;
+    private static final long VARIABLE_CHUNK_SIZE = 0xFFFFFFFFL;
+
+    private static final ExecutorService decoder = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new NamedThreadFactory("LAZDecoder"));
+    private final String fileName;
+    private final LAZChunkDecoder chunkDecoder;
+    private final int recordLength;
+    private final long numPoints;
+    // the position and the index of the first point of each chunk, and
+    // those of the end of the last one
+    private long[] chunkStarts;
+    private long[] chunkFirstPoints;
+    // chunks being decompressed ahead of a sequential read
+    private final HashMap<Integer, Future<byte[]>> pendingChunks = new HashMap<>();
+    // recently decompressed chunks, a few being kept for reads that move
+    // back and forth across the end of a chunk
+    private static final int CACHE_SIZE = 4;
+    private final LinkedHashMap<Integer, byte[]> decodedChunks
+            = new LinkedHashMap<Integer, byte[]>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    /**
+     * Class constructor.
+     *
+     * @param fileName The file.
+     * @param vlrData The data of the file's LASzip VLR.
+     * @param offsetToPointData The offset to the point data from the header.
+     * @param recordLength The length of the point records from the header.
+     * @param numPoints The number of points from the header.
+     * @throws IOException if the compression isn't supported or the chunk
+     * table can't be read.
+     */
+    LAZFile(String fileName, byte[] vlrData, long offsetToPointData, int recordLength, long numPoints)
+            throws IOException {
+        this.fileName = fileName;
+        this.recordLength = recordLength;
+        this.numPoints = numPoints;
+        if (vlrData.length < 34) {
+            throw new IOException("The LASzip VLR of " + fileName + " is truncated.");
+        }
+        ByteBuffer buf = ByteBuffer.wrap(vlrData).order(ByteOrder.LITTLE_ENDIAN);
+        int compressor = buf.getShort(0) & 0xFFFF;
+        int coder = buf.getShort(2) & 0xFFFF;
+        long chunkSize = buf.getInt(12) & 0xFFFFFFFFL;
+        int numItems = buf.getShort(32) & 0xFFFF;
+        if (compressor != COMPRESSOR_POINTWISE_CHUNKED && compressor != COMPRESSOR_LAYERED_CHUNKED) {
+            throw new IOException("LASzip compressor " + compressor + " is not supported.");
+        }
+        if (coder != 0 || chunkSize == 0 || vlrData.length < 34 + 6 * numItems) {
+            throw new IOException("The LASzip VLR of " + fileName + " is not valid.");
+        }
+        int[] types = new int[numItems];
+        int[] sizes = new int[numItems];
+        int[] versions = new int[numItems];
+        for (int i = 0; i < numItems; i++) {
+            types[i] = buf.getShort(34 + 6 * i) & 0xFFFF;
+            sizes[i] = buf.getShort(36 + 6 * i) & 0xFFFF;
+            versions[i] = buf.getShort(38 + 6 * i) & 0xFFFF;
+        }
+        chunkDecoder = new LAZChunkDecoder(types, sizes, versions,
+                compressor == COMPRESSOR_LAYERED_CHUNKED);
+        if (chunkDecoder.getRecordLength() != recordLength) {
+            throw new IOException("The LASzip items of " + fileName
+                    + " don't match its point record length.");
+        }
+        readChunkTable(offsetToPointData, chunkSize);
+    }
+
+    /**
+     * Reads the chunk table, whose position is stored before the first chunk,
+     * or at the end of the file by a writer that couldn't seek. The sizes of
+     * the chunks, and their numbers of points if these vary, are compressed
+     * as differences from those of the previous chunk.
+     */
+    private void readChunkTable(long offsetToPointData, long chunkSize) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(fileName, "r")) {
+            long chunksStart = offsetToPointData + 8;
+            long tableStart = readLong(raf, offsetToPointData);
+            if (tableStart == -1) {
+                tableStart = readLong(raf, raf.length() - 8);
+            }
+            if (tableStart < chunksStart || tableStart + 8 > raf.length()) {
+                throw new IOException(fileName + " has no LAZ chunk table.");
+            }
+            byte[] header = new byte[8];
+            raf.seek(tableStart);
+            raf.readFully(header);
+            ByteBuffer buf = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+            long numChunks = buf.getInt(4) & 0xFFFFFFFFL;
+            if (buf.getInt(0) != 0 || numChunks >= Integer.MAX_VALUE / 2) {
+                throw new IOException("The LAZ chunk table of " + fileName + " is not valid.");
+            }
+            int n = (int) numChunks;
+            chunkStarts = new long[n + 1];
+            chunkFirstPoints = new long[n + 1];
+            chunkStarts[0] = chunksStart;
+            if (n > 0) {
+                // a value takes at most a few bytes
+                byte[] table = new byte[(int) Math.min(raf.length() - tableStart - 8, 12L * n + 64)];
+                raf.readFully(table);
+                LAZArithmeticDecoder dec = new LAZArithmeticDecoder();
+                dec.init(table, 0, table.length);
+                IntegerDecompressor ic = new IntegerDecompressor(dec, 32, 2);
+                int count = 0;
+                int size = 0;
+                for (int i = 1; i <= n; i++) {
+                    if (chunkSize == VARIABLE_CHUNK_SIZE) {
+                        count = ic.decompress(count, 0);
+                        chunkFirstPoints[i] = chunkFirstPoints[i - 1] + (count & 0xFFFFFFFFL);
+                    } else {
+                        chunkFirstPoints[i] = i * chunkSize;
+                    }
+                    size = ic.decompress(size, 1);
+                    chunkStarts[i] = chunkStarts[i - 1] + size;
+                    if (chunkStarts[i] <= chunkStarts[i - 1] || chunkStarts[i] > tableStart) {
+                        throw new IOException("The LAZ chunk table of " + fileName + " is not valid.");
+                    }
+                }
+            }
+        }
+    }
+
+    private static long readLong(RandomAccessFile raf, long pos) throws IOException {
+        byte[] b = new byte[8];
+        raf.seek(pos);
+        raf.readFully(b);
+        return ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN).getLong(0);
+    }
+
+    /**
+     * Retrieves the number of chunks.
+     *
+     * @return The number of chunks.
+     */
+    int getNumberOfChunks() {
+        return chunkStarts.length - 1;
+    }
+
+    /**
+     * Retrieves a little-endian view of consecutive decompressed point
+     * records, the first at position zero. The view ends with the chunk that
+     * holds the first record, and so may be shorter than requested; it is
+     * empty if the first record is beyond the chunks of the file.
+     *
+     * @param first The index of the first record.
+     * @param count The number of records.
+     * @return The view.
+     * @throws IOException if the chunk can't be read or decompressed.
+     */
+    synchronized ByteBuffer getRecords(long first, int count) throws IOException {
+        int numChunks = getNumberOfChunks();
+        int lo = 0;
+        int hi = numChunks;
+        // find the last chunk starting at or before the first record
+        while (hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            if (chunkFirstPoints[mid] <= first) {
+                lo = mid;
+            } else {
+                hi = mid;
+            }
+        }
+        if (numChunks == 0 || first < 0 || first >= Math.min(chunkFirstPoints[numChunks], numPoints)) {
+            return ByteBuffer.allocate(0).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        byte[] records = getChunk(lo);
+        int pos = (int) (first - chunkFirstPoints[lo]) * recordLength;
+        int end = (int) Math.min(records.length, pos + (long) count * recordLength);
+        return ByteBuffer.wrap(records, pos, Math.max(0, end - pos)).slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Retrieves a decompressed chunk, and starts decompressing the chunks
+     * that follow it on the worker pool.
+     */
+    private byte[] getChunk(int chunk) throws IOException {
+        byte[] records = decodedChunks.get(chunk);
+        if (records != null) {
+            return records;
+        }
+        Future<byte[]> future = pendingChunks.remove(chunk);
+        // drop chunks that a read has passed over or jumped back from
+        int depth = Runtime.getRuntime().availableProcessors();
+        Iterator<Integer> it = pendingChunks.keySet().iterator();
+        while (it.hasNext()) {
+            int c = it.next();
+            if (c < chunk || c > chunk + depth) {
+                pendingChunks.get(c).cancel(false);
+                it.remove();
+            }
+        }
+        for (int c = chunk + 1; c <= chunk + depth && c < getNumberOfChunks(); c++) {
+            if (!pendingChunks.containsKey(c)) {
+                final int chunkNum = c;
+                pendingChunks.put(c, decoder.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws IOException {
+                        return decodeChunk(chunkNum);
+                    }
+                }));
+            }
+        }
+        if (future == null) {
+            records = decodeChunk(chunk);
+        } else {
+            try {
+                records = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+        decodedChunks.put(chunk, records);
+        return records;
+    }
+
+    /**
+     * Reads and decompresses a chunk. This may be called from several threads
+     * at once.
+     *
+     * @param chunk The chunk number.
+     * @return The point records of the chunk.
+     * @throws IOException
+     */
+    private byte[] decodeChunk(int chunk) throws IOException {
+        long start = chunkStarts[chunk];
+        long length = chunkStarts[chunk + 1] - start;
+        int count = (int) (Math.min(chunkFirstPoints[chunk + 1], numPoints) - chunkFirstPoints[chunk]);
+        if (length > Integer.MAX_VALUE || (long) count * recordLength > Integer.MAX_VALUE) {
+            throw new IOException("Chunk " + chunk + " of " + fileName + " is too large.");
+        }
+        byte[] data = new byte[(int) length];
+        try (RandomAccessFile raf = new RandomAccessFile(fileName, "r")) {
+            raf.seek(start);
+            raf.readFully(data);
+        }
+        return chunkDecoder.decode(data, Math.max(count, 0));
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2015 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import whitebox.utilities.BufferUtilities;
+
+/**
+ * A tile store that serves tiles directly out of a memory-mapped Whitebox
+ * data file (.tas). Because a single mapping cannot exceed 2 GB, the file is
+ * mapped as a series of segments, each holding a whole number of rows.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+class MappedTileStore implements RasterTileStore {
+
+    private static final long MAX_SEGMENT_SIZE = 1L << 30;
+    private final int tileSize;
+    private final int numberRows;
+    private final int numberColumns;
+    private final int cellSizeInBytes;
+    private final ByteOrder byteOrder;
+    private final boolean writable;
+    private final int rowsPerSegment;
+    private final MappedByteBuffer[] segments;
+
+    /**
+     * Class constructor. The data file must already exist and be of the full
+     * size implied by the raster's dimensions and data type.
+     *
+     * @param raster The raster whose data file is to be mapped.
+     * @param writable Set to true to map the file for read/write access.
+     * @param tileSize The number of cells along each side of a tile.
+     * @throws IOException
+     */
+    MappedTileStore(WhiteboxRasterBase raster, boolean writable, int tileSize) throws IOException {
+        this.tileSize = tileSize;
+        this.numberRows = raster.numberRows;
+        this.numberColumns = raster.numberColumns;
+        this.cellSizeInBytes = raster.cellSizeInBytes;
+        this.byteOrder = raster.byteOrder;
+        this.writable = writable;
+
+        long rowSizeInBytes = (long) numberColumns * cellSizeInBytes;
+        rowsPerSegment = (int) Math.max(1, Math.min(numberRows, MAX_SEGMENT_SIZE / rowSizeInBytes));
+        int numSegments = (numberRows + rowsPerSegment - 1) / rowsPerSegment;
+        segments = new MappedByteBuffer[numSegments];
+
+        FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+        // the mappings remain valid after the shared channel is closed
+        try (DataFileChannel.Handle handle = raster.openDataChannel(writable)) {
+            for (int s = 0; s < numSegments; s++) {
+                long startRow = (long) s * rowsPerSegment;
+                long endRow = Math.min(numberRows, startRow + rowsPerSegment);
+                segments[s] = handle.channel.map(mode, startRow * rowSizeInBytes, (endRow - startRow) * rowSizeInBytes);
+                segments[s].order(byteOrder);
+            }
+        }
+    }
+
+    @Override
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    @Override
+    public void readTile(int tileRow, int tileColumn, CellBuffer dest) throws IOException {
+        int startRow = tileRow * tileSize;
+        int startCol = tileColumn * tileSize;
+        int endRow = Math.min(startRow + tileSize, numberRows);
+        int length = Math.min(startCol + tileSize, numberColumns) - startCol;
+        for (int row = startRow; row < endRow; row++) {
+            dest.read(rowBuffer(row, startCol), (row - startRow) * tileSize, length);
+        }
+    }
+
+    @Override
+    public void writeTile(int tileRow, int tileColumn, CellBuffer src) throws IOException {
+        if (!writable) {
+            throw new IOException("The data file was mapped for read-only access.");
+        }
+        int startRow = tileRow * tileSize;
+        int startCol = tileColumn * tileSize;
+        int endRow = Math.min(startRow + tileSize, numberRows);
+        int length = Math.min(startCol + tileSize, numberColumns) - startCol;
+        for (int row = startRow; row < endRow; row++) {
+            src.write(rowBuffer(row, startCol), (row - startRow) * tileSize, length);
+        }
+    }
+
+    /**
+     * Returns a view of the mapped file positioned at the specified cell. A
+     * duplicate is used so that concurrent callers never share a position.
+     */
+    private ByteBuffer rowBuffer(int row, int column) {
+        ByteBuffer buf = segments[row / rowsPerSegment].duplicate();
+        buf.order(byteOrder);
+        long cell = (long) (row % rowsPerSegment) * numberColumns + column;
+        buf.position((int) (cell * cellSizeInBytes));
+        return buf;
+    }
+
+    @Override
+    public Double getConstantValue(int tileRow, int tileColumn) {
+        return null;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (writable) {
+            for (MappedByteBuffer segment : segments) {
+                if (segment != null) {
+                    segment.force();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes any changes to the file and unmaps it, so that the data file can
+     * then be deleted or recreated, which on Windows fails while it is mapped.
+     * The store mustn't be used afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+        discard();
+    }
+
+    /**
+     * Unmaps the file without forcing changes out to it first.
+     */
+    @Override
+    public void discard() {
+        for (int s = 0; s < segments.length; s++) {
+            if (segments[s] != null) {
+                BufferUtilities.free(segments[s]);
+                segments[s] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2015 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.io.File;
+
+/**
+ * A temporary raster for intermediate results that needn't outlive a tool.
+ * It has the WhiteboxRaster API, but its grid is held in memory and no header
+ * or data file is written. Only when the RasterMemoryManager can't fit the
+ * whole grid within the raster's share of the memory cap is a data file
+ * created, and the grid is then buffered in blocks as a WhiteboxRaster is.
+ * The data file, if any, is deleted when the raster is closed.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public class MemoryRaster extends WhiteboxRaster {
+
+    /**
+     * Class constructor.
+     *
+     * @param HeaderFile The name of a WhiteboxRaster header file, used to name
+     * the data file should the grid not fit in memory. No header file is
+     * written.
+     * @param BaseRasterHeader The name of a WhiteboxRaster header file to base
+     * this new object on.
+     * @param dataType The data type of the new raster. Can be 'double',
+     * 'float', 'integer', or 'byte'
+     * @param InitialValue Double indicating the value used to initialize the
+     * grid.
+     */
+    public MemoryRaster(String HeaderFile, String BaseRasterHeader, DataType dataType, double InitialValue) {
+        super(HeaderFile, BaseRasterHeader, dataType, InitialValue);
+    }
+
+    /**
+     * Returns true if the grid is held entirely in memory, i.e. no data file
+     * has been created.
+     *
+     * @return boolean
+     */
+    public boolean isHeldInMemory() {
+        return !isUsingTileCache() && !new File(getDataFile()).exists();
+    }
+
+    /**
+     * A memory raster is never opened by name, and so its header isn't
+     * written.
+     */
+    @Override
+    public void writeHeaderFile() {
+    }
+}
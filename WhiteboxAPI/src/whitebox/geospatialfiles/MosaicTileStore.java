@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2015 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A read-only tile store that assembles the tiles of a virtual mosaic (see
+ * VirtualMosaic) from its source rasters as they are requested. Each cell
+ * takes the value of the source cell containing its centre; where sources
+ * overlap, the last listed source holding valid data wins.
+ *
+ * The sources intersecting each tile are found in an index built when the
+ * store is opened, so that a tile only visits the sources it overlaps and a
+ * tile that no source reaches is known to hold NoData without being read. The
+ * sources are opened as they are needed and a limited number of them are kept
+ * open, the least recently used being closed first.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+class MosaicTileStore implements RasterTileStore {
+
+    /**
+     * The largest number of source rasters that are held open at once.
+     */
+    static final int MAX_OPEN_SOURCES = 32;
+    private final int tileSize;
+    private final int numberRows;
+    private final int numberColumns;
+    private final int numTileColumns;
+    private final double north;
+    private final double west;
+    private final double cellSizeX;
+    private final double cellSizeY;
+    private final double noData;
+    private final VirtualMosaic.Source[] sources;
+    private final String[] sourceFiles;
+    // the mosaic rows and columns of the cells whose centres fall within
+    // each source
+    private final int[] firstRows;
+    private final int[] lastRows;
+    private final int[] firstColumns;
+    private final int[] lastColumns;
+    // the ids of the sources intersecting each tile, in the order listed
+    private final int[][] tileSources;
+    private final LinkedHashMap<Integer, OpenSource> openSources
+            = new LinkedHashMap<Integer, OpenSource>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, OpenSource> eldest) {
+            if (size() > MAX_OPEN_SOURCES) {
+                eldest.getValue().raster.close();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private static class OpenSource {
+
+        final WhiteboxRasterBase raster;
+        final double[] row;
+        int rowNum = -1;
+
+        OpenSource(WhiteboxRasterBase raster) {
+            this.raster = raster;
+            row = new double[raster.getNumberColumns()];
+        }
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param raster The mosaic, whose header lists its sources.
+     * @param tileSize The number of cells along each side of a tile.
+     */
+    MosaicTileStore(WhiteboxRasterBase raster, int tileSize) {
+        this.tileSize = tileSize;
+        numberRows = raster.numberRows;
+        numberColumns = raster.numberColumns;
+        north = raster.north;
+        west = raster.west;
+        cellSizeX = (raster.east - raster.west) / numberColumns;
+        cellSizeY = (raster.north - raster.south) / numberRows;
+        noData = raster.noDataValue;
+        List<VirtualMosaic.Source> list = raster.mosaicSources;
+        int numSources = list == null ? 0 : list.size();
+        sources = list == null ? new VirtualMosaic.Source[0] : list.toArray(new VirtualMosaic.Source[numSources]);
+        sourceFiles = VirtualMosaic.getSourceFiles(raster);
+
+        firstRows = new int[numSources];
+        lastRows = new int[numSources];
+        firstColumns = new int[numSources];
+        lastColumns = new int[numSources];
+        numTileColumns = (numberColumns + tileSize - 1) / tileSize;
+        int numTileRows = (numberRows + tileSize - 1) / tileSize;
+        int[] counts = new int[numTileRows * numTileColumns];
+        for (int i = 0; i < numSources; i++) {
+            VirtualMosaic.Source s = sources[i];
+            firstRows[i] = Math.max(0, (int) Math.ceil((north - s.north) / cellSizeY - 0.5));
+            lastRows[i] = Math.min(numberRows - 1, (int) Math.ceil((north - s.south) / cellSizeY - 0.5) - 1);
+            firstColumns[i] = Math.max(0, (int) Math.ceil((s.west - west) / cellSizeX - 0.5));
+            lastColumns[i] = Math.min(numberColumns - 1, (int) Math.ceil((s.east - west) / cellSizeX - 0.5) - 1);
+            if (firstRows[i] > lastRows[i] || firstColumns[i] > lastColumns[i]) {
+                continue;
+            }
+            for (int tr = firstRows[i] / tileSize; tr <= lastRows[i] / tileSize; tr++) {
+                for (int tc = firstColumns[i] / tileSize; tc <= lastColumns[i] / tileSize; tc++) {
+                    counts[tr * numTileColumns + tc]++;
+                }
+            }
+        }
+        tileSources = new int[counts.length][];
+        for (int t = 0; t < counts.length; t++) {
+            tileSources[t] = new int[counts[t]];
+            counts[t] = 0;
+        }
+        for (int i = 0; i < numSources; i++) {
+            if (firstRows[i] > lastRows[i] || firstColumns[i] > lastColumns[i]) {
+                continue;
+            }
+            for (int tr = firstRows[i] / tileSize; tr <= lastRows[i] / tileSize; tr++) {
+                for (int tc = firstColumns[i] / tileSize; tc <= lastColumns[i] / tileSize; tc++) {
+                    int t = tr * numTileColumns + tc;
+                    tileSources[t][counts[t]++] = i;
+                }
+            }
+        }
+    }
+
+    @Override
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    @Override
+    public synchronized void readTile(int tileRow, int tileColumn, CellBuffer dest) throws IOException {
+        dest.fill(noData);
+        int row0 = tileRow * tileSize;
+        int col0 = tileColumn * tileSize;
+        int row1 = Math.min(numberRows, row0 + tileSize) - 1;
+        int col1 = Math.min(numberColumns, col0 + tileSize) - 1;
+        for (int i : tileSources[tileRow * numTileColumns + tileColumn]) {
+            VirtualMosaic.Source s = sources[i];
+            OpenSource src = open(i);
+            double srcNoData = src.raster.getNoDataValue();
+            double srcCellSizeX = (s.east - s.west) / s.columns;
+            double srcCellSizeY = (s.north - s.south) / s.rows;
+            int startCol = Math.max(col0, firstColumns[i]);
+            int endCol = Math.min(col1, lastColumns[i]);
+            for (int row = Math.max(row0, firstRows[i]); row <= Math.min(row1, lastRows[i]); row++) {
+                double y = north - (row + 0.5) * cellSizeY;
+                int srcRow = (int) Math.floor((s.north - y) / srcCellSizeY);
+                srcRow = Math.max(0, Math.min(s.rows - 1, srcRow));
+                if (srcRow != src.rowNum) {
+                    src.raster.getRowValues(srcRow, src.row);
+                    src.rowNum = srcRow;
+                }
+                int offset = (row - row0) * tileSize - col0;
+                for (int col = startCol; col <= endCol; col++) {
+                    double x = west + (col + 0.5) * cellSizeX;
+                    int srcCol = (int) Math.floor((x - s.west) / srcCellSizeX);
+                    srcCol = Math.max(0, Math.min(s.columns - 1, srcCol));
+                    double z = src.row[srcCol];
+                    if (z != srcNoData) {
+                        dest.set(offset + col, z);
+                    }
+                }
+            }
+        }
+    }
+
+    private OpenSource open(int i) throws IOException {
+        OpenSource src = openSources.get(i);
+        if (src == null) {
+            if (!new File(sourceFiles[i]).exists()) {
+                throw new IOException("The mosaic source " + sourceFiles[i] + " could not be found.");
+            }
+            WhiteboxRasterBase raster = new WhiteboxRasterBase(sourceFiles[i]);
+            raster.setFileAccess("r");
+            // tiles are read in an order that read-ahead can't anticipate
+            raster.setReadAheadDepth(0);
+            src = new OpenSource(raster);
+            openSources.put(i, src);
+        }
+        return src;
+    }
+
+    @Override
+    public void writeTile(int tileRow, int tileColumn, CellBuffer src) throws IOException {
+        throw new IOException("A virtual mosaic is read-only.");
+    }
+
+    @Override
+    public Double getConstantValue(int tileRow, int tileColumn) {
+        return tileSources[tileRow * numTileColumns + tileColumn].length == 0 ? noData : null;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Closes any open sources. The store may still be read afterwards, in
+     * which case the sources are reopened.
+     */
+    @Override
+    public synchronized void close() {
+        Iterator<OpenSource> it = openSources.values().iterator();
+        while (it.hasNext()) {
+            it.next().raster.close();
+            it.remove();
+        }
+    }
+
+    @Override
+    public void discard() {
+        close();
+    }
+}
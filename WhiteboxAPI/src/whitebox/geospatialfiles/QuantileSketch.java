@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2015 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.util.Arrays;
+
+/**
+ * A mergeable sketch of the distribution of a stream of values, from which
+ * any quantile can be estimated to within a small, fixed error in rank
+ * regardless of the number of values or the shape of the distribution. This
+ * follows the KLL sketch of Karnin, Lang and Liberty (2016). Values are held
+ * in a series of levels, those on level h each standing for 2^h of the
+ * original values. When a level grows beyond its capacity it is sorted and
+ * every other value, starting with the first or second, is promoted to the
+ * level above. Lower levels have geometrically smaller capacities, so that
+ * the sketch holds about 3k values in all and the rank error is a small
+ * multiple of n/k. Until the first promotion the sketch is exact.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+final class QuantileSketch {
+
+    /**
+     * The default accuracy parameter, which gives a rank error of roughly 0.2
+     * percent.
+     */
+    static final int DEFAULT_K = 1024;
+    private static final int MIN_CAPACITY = 8;
+    private final int k;
+    private double[][] levels = new double[1][];
+    private int[] sizes = new int[1];
+    private int numItems = 0;
+    private int maxItems;
+    private long n = 0;
+    private long random = 0x9E3779B97F4A7C15L;
+
+    /**
+     * Class constructor.
+     *
+     * @param k The accuracy parameter. The sketch holds about 3k values.
+     */
+    QuantileSketch(int k) {
+        this.k = k;
+        levels[0] = new double[MIN_CAPACITY];
+        maxItems = capacity(0);
+    }
+
+    /**
+     * Retrieves the number of values that have been added.
+     */
+    long getN() {
+        return n;
+    }
+
+    private int capacity(int level) {
+        int depth = levels.length - 1 - level;
+        return Math.max(MIN_CAPACITY, (int) Math.ceil(k * Math.pow(2.0 / 3.0, depth)));
+    }
+
+    private int totalCapacity() {
+        int total = 0;
+        for (int h = 0; h < levels.length; h++) {
+            total += capacity(h);
+        }
+        return total;
+    }
+
+    private void append(int level, double z) {
+        if (sizes[level] == levels[level].length) {
+            levels[level] = Arrays.copyOf(levels[level], levels[level].length * 2);
+        }
+        levels[level][sizes[level]++] = z;
+        numItems++;
+    }
+
+    /**
+     * Adds a value.
+     */
+    void add(double z) {
+        append(0, z);
+        n++;
+        if (numItems > maxItems) {
+            compress();
+        }
+    }
+
+    /**
+     * Adds the contents of another sketch.
+     */
+    void merge(QuantileSketch other) {
+        for (int h = 0; h < other.levels.length; h++) {
+            if (h >= levels.length) {
+                addLevel();
+            }
+            for (int i = 0; i < other.sizes[h]; i++) {
+                append(h, other.levels[h][i]);
+            }
+        }
+        n += other.n;
+        while (numItems > maxItems) {
+            compress();
+        }
+    }
+
+    private void addLevel() {
+        int h = levels.length;
+        levels = Arrays.copyOf(levels, h + 1);
+        sizes = Arrays.copyOf(sizes, h + 1);
+        levels[h] = new double[MIN_CAPACITY];
+        maxItems = totalCapacity();
+    }
+
+    /**
+     * Halves the lowest level that is over its capacity by promoting every
+     * other value to the level above.
+     */
+    private void compress() {
+        for (int h = 0; h < levels.length; h++) {
+            if (sizes[h] < capacity(h)) {
+                continue;
+            }
+            if (h == levels.length - 1) {
+                addLevel();
+            }
+            double[] items = levels[h];
+            int size = sizes[h];
+            Arrays.sort(items, 0, size);
+            // an odd value out stays on this level
+            int start = size % 2;
+            random ^= random << 13;
+            random ^= random >>> 7;
+            random ^= random << 17;
+            int offset = (int) (random & 1);
+            for (int i = start + offset; i < size; i += 2) {
+                append(h + 1, items[i]);
+            }
+            numItems -= size - start;
+            sizes[h] = start;
+            return;
+        }
+    }
+
+    /**
+     * Retrieves the values held by the sketch, sorted, along with the number
+     * of original values that each stands for. Equal values are combined.
+     *
+     * @return The values in the first array and their weights in the second.
+     */
+    double[][] getWeightedValues() {
+        double[] values = new double[numItems];
+        double[] weights = new double[numItems];
+        int m = 0;
+        // each level is sorted in turn and the levels are merged
+        for (int h = 0; h < levels.length; h++) {
+            int size = sizes[h];
+            if (size == 0) {
+                continue;
+            }
+            Arrays.sort(levels[h], 0, size);
+            double weight = Math.scalb(1.0, h);
+            double[] mergedValues = new double[m + size];
+            double[] mergedWeights = new double[m + size];
+            int i = 0, j = 0, out = 0;
+            while (i < m || j < size) {
+                if (j >= size || (i < m && values[i] <= levels[h][j])) {
+                    mergedValues[out] = values[i];
+                    mergedWeights[out++] = weights[i++];
+                } else {
+                    mergedValues[out] = levels[h][j++];
+                    mergedWeights[out++] = weight;
+                }
+            }
+            values = mergedValues;
+            weights = mergedWeights;
+            m = out;
+        }
+        int distinct = 0;
+        for (int i = 0; i < m; i++) {
+            if (distinct > 0 && values[distinct - 1] == values[i]) {
+                weights[distinct - 1] += weights[i];
+            } else {
+                values[distinct] = values[i];
+                weights[distinct++] = weights[i];
+            }
+        }
+        return new double[][]{Arrays.copyOf(values, distinct), Arrays.copyOf(weights, distinct)};
+    }
+}
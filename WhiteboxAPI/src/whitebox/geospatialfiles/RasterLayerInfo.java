@@ -480,6 +480,7 @@ public class RasterLayerInfo implements MapLayer {
     
     public void resyncWithRasterFile() {
         source = new WhiteboxRasterInfo(headerFile);
+        overviewsRequested = false;
         this.imageWidth = source.getNumberColumns();
         this.imageHeight = source.getNumberRows();
         this.noDataValue = source.getNoDataValue();
@@ -541,6 +542,25 @@ public class RasterLayerInfo implements MapLayer {
 
             WhiteboxRasterInfo sourceData = new WhiteboxRasterInfo(source.getHeaderFile());
 
+            // when zoomed out, draw from the coarsest overview level whose
+            // cells are no larger than the sampling interval
+            RasterOverviews overviews = null;
+            int level = 0;
+            double[] window = null;
+            if (resolutionFactor > 1 && sourceData.getCompression() == WhiteboxRasterBase.Compression.GEOTIFF) {
+                // a GeoTIFF is drawn from its own internal overviews
+                window = readGeoTiffWindow(sourceData);
+            } else if (resolutionFactor > 1) {
+                overviews = RasterOverviews.open(sourceData);
+                if (overviews != null) {
+                    level = overviews.getLevelForResolutionFactor(resolutionFactor);
+                } else if (!overviewsRequested
+                        && Math.max(rows, cols) > 2 * RasterOverviews.MINIMUM_SIZE) {
+                    overviewsRequested = true;
+                    RasterOverviews.buildInBackground(source.getHeaderFile());
+                }
+            }
+
             int backgroundColour = 0; // transparent black
             pixelData = new int[numCells];
             data = new double[numCells];
@@ -549,13 +569,13 @@ public class RasterLayerInfo implements MapLayer {
             int numPaletteEntriesLessOne = numPaletteEntries - 1;
 
             //long startTime = System.currentTimeMillis();
-            double[] rawData;
+            double[] rawData = null;
             int i = 0;
             if (dataScale == WhiteboxRaster.DataScale.CONTINUOUS) {
                 for (row = startRow; row <= endRow; row += resolutionFactor) {
-                    rawData = sourceData.getRowValues(row);
+                    rawData = getRowValues(sourceData, overviews, level, window, row, rawData);
                     for (col = startCol; col <= endCol; col += resolutionFactor) {
-                        value = rawData[col]; //sourceData.getValue(row, col);
+                        value = rawData[col >> level]; //sourceData.getValue(row, col);
                         if (value != noDataValue) {
                             if (gamma == 1) {
                                 entryNum = (int)((value - minVal) / range * numPaletteEntriesLessOne);
@@ -579,9 +599,9 @@ public class RasterLayerInfo implements MapLayer {
 
             } else if (dataScale == WhiteboxRaster.DataScale.CATEGORICAL) {
                 for (row = startRow; row <= endRow; row += resolutionFactor) {
-                    rawData = sourceData.getRowValues(row);
+                    rawData = getRowValues(sourceData, overviews, level, window, row, rawData);
                     for (col = startCol; col <= endCol; col += resolutionFactor) {
-                        value = rawData[col]; //sourceData.getValue(row, col);
+                        value = rawData[col >> level]; //sourceData.getValue(row, col);
                         if (value != noDataValue) {
                             entryNum = (int) (value - minVal) % numPaletteEntries;
                             if (entryNum < 0) {
@@ -600,9 +620,9 @@ public class RasterLayerInfo implements MapLayer {
                 }
             } else if (dataScale == WhiteboxRaster.DataScale.BOOLEAN) {
                 for (row = startRow; row <= endRow; row += resolutionFactor) {
-                    rawData = sourceData.getRowValues(row);
+                    rawData = getRowValues(sourceData, overviews, level, window, row, rawData);
                     for (col = startCol; col <= endCol; col += resolutionFactor) {
-                        value = rawData[col]; //sourceData.getValue(row, col);
+                        value = rawData[col >> level]; //sourceData.getValue(row, col);
                         if (value != noDataValue) {
                             if (value > 0) {
                                 entryNum = numPaletteEntriesLessOne;
@@ -620,9 +640,9 @@ public class RasterLayerInfo implements MapLayer {
             } else if (dataScale == WhiteboxRaster.DataScale.RGB) {
                 int r, g, b, a, val;
                 for (row = startRow; row <= endRow; row += resolutionFactor) {
-                    rawData = sourceData.getRowValues(row);
+                    rawData = getRowValues(sourceData, overviews, level, window, row, rawData);
                     for (col = startCol; col <= endCol; col += resolutionFactor) {
-                        value = rawData[col]; //sourceData.getValue(row, col);
+                        value = rawData[col >> level]; //sourceData.getValue(row, col);
                         if (value != noDataValue) {
                             val = (int) value;
                             a = (val >> 24) & 0xFF;
@@ -640,6 +660,9 @@ public class RasterLayerInfo implements MapLayer {
                 }
             }
 
+            if (overviews != null) {
+                overviews.close();
+            }
             sourceData.close();
             sourceData = null;
 
@@ -649,6 +672,84 @@ public class RasterLayerInfo implements MapLayer {
         }
     }
 
+    /**
+     * Retrieves the values of a row of the view, indexed by column >> level.
+     * The values of a GeoTIFF window are placed at the columns sampled.
+     */
+    private double[] getRowValues(WhiteboxRasterInfo sourceData, RasterOverviews overviews,
+            int level, double[] window, int row, double[] dest) throws IOException {
+        if (window != null) {
+            if (dest == null || dest.length < cols) {
+                dest = new double[cols];
+            }
+            int offset = (row - startRow) / resolutionFactor * imageWidth;
+            for (int j = 0; j < imageWidth; j++) {
+                dest[startCol + j * resolutionFactor] = window[offset + j];
+            }
+            return dest;
+        }
+        if (level == 0) {
+            return sourceData.getRowValues(row, dest);
+        }
+        return overviews.getRowValues(level, row >> level, dest);
+    }
+
+    /**
+     * Reads the view of a GeoTIFF raster, one value per pixel, from the
+     * smallest of its internal overviews that is fine enough, or from the
+     * full-resolution image if it has none.
+     *
+     * @return The values in row-major order, or null if the file can't be
+     * read in this way, in which case the raster is sampled as usual.
+     */
+    private double[] readGeoTiffWindow(WhiteboxRasterInfo sourceData) {
+        GeoTiff gt = new GeoTiff(sourceData.getDataFile());
+        try {
+            gt.read();
+            double[] window = new double[imageHeight * imageWidth];
+            gt.readWindow(startRow, startCol, imageHeight * resolutionFactor,
+                    imageWidth * resolutionFactor, imageHeight, imageWidth, window);
+            // the raster may use another NoData value than the file's
+            double fileNoData = gt.getNoData();
+            double noData = sourceData.getNoDataValue();
+            boolean noDataIsNaN = Double.isNaN(fileNoData);
+            for (int i = 0; i < window.length; i++) {
+                if (window[i] == fileNoData || (noDataIsNaN && Double.isNaN(window[i]))) {
+                    window[i] = noData;
+                }
+            }
+            return window;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            try {
+                gt.close();
+            } catch (IOException e) {
+                // the file was only read
+            }
+        }
+    }
+
+    private boolean overviewsRequested = false;
+
+    /**
+     * Builds the reduced-resolution overviews used to draw the layer when it
+     * is zoomed out. Overviews are otherwise built in the background the first
+     * time that they are needed.
+     *
+     * @return True if overviews were built, or false if the raster is too
+     * small to need them or is a GeoTIFF, which is drawn from its own
+     * internal overviews.
+     * @throws IOException
+     */
+    public boolean buildOverviews() throws IOException {
+        boolean built = RasterOverviews.build(source);
+        if (built) {
+            dirty = true;
+        }
+        return built;
+    }
+
     private void readPalette() {
         RandomAccessFile rIn = null;
         ByteBuffer buf = null;
@@ -898,7 +999,7 @@ public class RasterLayerInfo implements MapLayer {
                 int row, col;
                 for (row = fromRow; row <= toRow; row++) {
                     if (row >= 0 && row < rows) {
-                        rowData = source.getRowValues(row);
+                        rowData = source.getRowValues(row, rowData);
                         for (col = fromCol; col <= toCol; col++) {
                             wbr.setValue(row - fromRow, col - fromCol, rowData[col]);
                         }
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2015 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Shares a single, process-wide memory cap among all of the open rasters that
+ * buffer grid data in memory. Rather than each raster sizing its own buffer
+ * from the heap, rasters register with the manager and are granted a budget.
+ * Budgets are rebalanced as rasters are opened and closed and as their
+ * relative access frequencies change; when a raster's budget shrinks below
+ * what it is holding, it evicts its cold data the next time that it is used.
+ * Since budgets are rebalanced on whichever thread opens, closes or loads a
+ * raster, the manager only records each raster's new budget, and the raster
+ * applies it from its own thread. A tool
+ * that opens several large rasters therefore stays within the cap rather than
+ * running out of memory.
+ *
+ * The cap defaults to a third of the maximum heap size, leaving room for the
+ * transient buffers used when reading and writing blocks. It can be set with the
+ * whitebox.raster.memorycap system property (in megabytes) or at run time
+ * with setMemoryCap.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public class RasterMemoryManager {
+
+    /**
+     * The smallest budget that a raster will be granted, unless it needs less.
+     */
+    public static final long MINIMUM_BUDGET = 4L * 1048576;
+    private static final int REBALANCE_INTERVAL = 32;
+    private static final RasterMemoryManager instance = new RasterMemoryManager();
+
+    /**
+     * Implemented by rasters whose in-memory buffers are governed by the
+     * manager.
+     */
+    interface Participant {
+
+        /**
+         * @return The number of bytes needed to hold the entire raster.
+         */
+        long getMemoryDemand();
+
+        /**
+         * @return The number of bytes currently held in memory.
+         */
+        long getMemoryInUse();
+
+        /**
+         * @return A running count of the cells accessed.
+         */
+        long getAccessCount();
+
+        /**
+         * Sets the memory budget. This may be called from any thread, and so
+         * the raster should only record the budget here; if it holds more
+         * than the budget, it must evict data until it fits the next time
+         * that it loads data on its own thread.
+         *
+         * @param bytes The new budget.
+         */
+        void setMemoryBudget(long bytes);
+    }
+
+    private static class Entry {
+
+        final WeakReference<Participant> ref;
+        final boolean pinned;
+        final long demand;
+        long budget = 0;
+        long lastAccessCount = 0;
+        double frequency = 1;
+
+        Entry(Participant raster, boolean pinned) {
+            this.ref = new WeakReference<>(raster);
+            this.pinned = pinned;
+            this.demand = raster.getMemoryDemand();
+        }
+    }
+
+    private final ArrayList<Entry> entries = new ArrayList<>();
+    private long memoryCap;
+    private int loadsSinceRebalance = 0;
+
+    private RasterMemoryManager() {
+        memoryCap = Runtime.getRuntime().maxMemory() / 3;
+        String prop = System.getProperty("whitebox.raster.memorycap");
+        if (prop != null) {
+            try {
+                memoryCap = (long) (Double.parseDouble(prop) * 1048576);
+            } catch (NumberFormatException e) {
+                // keep the default
+            }
+        }
+    }
+
+    /**
+     * Retrieves the process-wide manager.
+     *
+     * @return The RasterMemoryManager.
+     */
+    public static RasterMemoryManager getInstance() {
+        return instance;
+    }
+
+    /**
+     * Retrieves the total memory that open rasters may use for buffering.
+     *
+     * @return The cap in bytes.
+     */
+    public synchronized long getMemoryCap() {
+        return memoryCap;
+    }
+
+    /**
+     * Sets the total memory that open rasters may use for buffering. Budgets
+     * are rebalanced immediately.
+     *
+     * @param bytes The cap in bytes.
+     */
+    public synchronized void setMemoryCap(long bytes) {
+        memoryCap = Math.max(MINIMUM_BUDGET, bytes);
+        rebalance();
+    }
+
+    /**
+     * Retrieves the sum of the budgets currently granted.
+     *
+     * @return The allocated memory in bytes.
+     */
+    public synchronized long getAllocatedMemory() {
+        long total = 0;
+        for (Entry e : entries) {
+            total += e.budget;
+        }
+        return total;
+    }
+
+    /**
+     * Retrieves the number of rasters currently registered.
+     *
+     * @return The number of rasters.
+     */
+    public synchronized int getNumberOfRasters() {
+        purge();
+        return entries.size();
+    }
+
+    /**
+     * Registers a raster and grants its initial budget.
+     *
+     * @param raster The raster.
+     * @param pinned Set to true if the raster must be held entirely in
+     * memory. Pinned rasters are never asked to evict data, although their
+     * memory is counted against the cap.
+     * @return The initial budget in bytes.
+     */
+    synchronized long register(Participant raster, boolean pinned) {
+        Entry entry = find(raster);
+        if (entry == null) {
+            entry = new Entry(raster, pinned);
+            // a newcomer starts with the average frequency of the others
+            double total = 0;
+            for (Entry e : entries) {
+                total += e.frequency;
+            }
+            entry.frequency = entries.isEmpty() ? 1 : total / entries.size();
+            entries.add(entry);
+        }
+        rebalance();
+        return entry.budget;
+    }
+
+    /**
+     * Releases a raster's budget so that it can be shared among the others.
+     *
+     * @param raster The raster.
+     */
+    synchronized void unregister(Participant raster) {
+        Entry entry = find(raster);
+        if (entry != null) {
+            entries.remove(entry);
+            rebalance();
+        }
+    }
+
+    /**
+     * Called by a raster each time it loads data from disk. Budgets are
+     * periodically rebalanced so that they track changing access patterns.
+     */
+    synchronized void recordLoad() {
+        loadsSinceRebalance++;
+        if (loadsSinceRebalance >= REBALANCE_INTERVAL) {
+            rebalance();
+        }
+    }
+
+    private Entry find(Participant raster) {
+        for (Entry e : entries) {
+            if (e.ref.get() == raster) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    private void purge() {
+        Iterator<Entry> it = entries.iterator();
+        while (it.hasNext()) {
+            if (it.next().ref.get() == null) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Divides the cap among the registered rasters. Every raster receives a
+     * minimum budget, pinned rasters receive all that they need, and the
+     * remainder is shared in proportion to recent access frequency, without
+     * giving any raster more than it can use. Rasters whose budgets shrink are
+     * notified first.
+     */
+    private void rebalance() {
+        loadsSinceRebalance = 0;
+        purge();
+        int n = entries.size();
+        if (n == 0) {
+            return;
+        }
+        long[] newBudget = new long[n];
+        Participant[] rasters = new Participant[n];
+        long remaining = memoryCap;
+        for (int i = 0; i < n; i++) {
+            Entry e = entries.get(i);
+            rasters[i] = e.ref.get();
+            if (rasters[i] == null) {
+                continue;
+            }
+            long count = rasters[i].getAccessCount();
+            e.frequency = 0.5 * e.frequency + (count - e.lastAccessCount);
+            e.lastAccessCount = count;
+            newBudget[i] = e.pinned ? e.demand : Math.min(e.demand, MINIMUM_BUDGET);
+            remaining -= newBudget[i];
+        }
+
+        // water-fill the remaining memory by access frequency
+        boolean changed = true;
+        while (remaining > 0 && changed) {
+            changed = false;
+            double totalWeight = 0;
+            for (int i = 0; i < n; i++) {
+                Entry e = entries.get(i);
+                if (rasters[i] != null && newBudget[i] < e.demand) {
+                    totalWeight += e.frequency + 1;
+                }
+            }
+            if (totalWeight == 0) {
+                break;
+            }
+            long distributed = 0;
+            for (int i = 0; i < n; i++) {
+                Entry e = entries.get(i);
+                if (rasters[i] != null && newBudget[i] < e.demand) {
+                    long share = (long) (remaining * ((e.frequency + 1) / totalWeight));
+                    share = Math.min(share, e.demand - newBudget[i]);
+                    if (share > 0) {
+                        newBudget[i] += share;
+                        distributed += share;
+                        changed = true;
+                    }
+                }
+            }
+            remaining -= distributed;
+        }
+
+        // shrink first, then grow
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < n; i++) {
+                Entry e = entries.get(i);
+                if (rasters[i] == null) {
+                    continue;
+                }
+                boolean shrinking = newBudget[i] < e.budget;
+                if ((pass == 0) == shrinking) {
+                    e.budget = newBudget[i];
+                    rasters[i].setMemoryBudget(newBudget[i]);
+                }
+            }
+        }
+    }
+}
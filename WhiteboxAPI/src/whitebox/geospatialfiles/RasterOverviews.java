@@ -0,0 +1,560 @@
+/*
+ * Copyright (C) 2015 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import whitebox.geospatialfiles.WhiteboxRasterBase.Compression;
+import whitebox.geospatialfiles.WhiteboxRasterBase.DataScale;
+import whitebox.geospatialfiles.WhiteboxRasterBase.DataType;
+import whitebox.utilities.NamedThreadFactory;
+
+/**
+ * Reduced-resolution copies of a Whitebox raster, used to draw the raster
+ * quickly when it is zoomed out. Level k holds the grid reduced by a factor of
+ * 2^k in each direction, down to the first level no larger than 256 cells on
+ * its longer side. Each cell of a level summarizes a 2 x 2 block of the level
+ * below: continuous data are averaged, ignoring NoData cells; categorical and
+ * Boolean data take the most common value in the block; and RGB data take the
+ * block's upper-left cell.
+ *
+ * The levels are stored in a single sidecar file next to the data file, with
+ * the extension .ovr. The file records the size and modification time of the
+ * data file that it was built from, and is ignored once the data file has
+ * changed. A virtual mosaic, which has no data file, is checked against its
+ * header and the files of its sources instead. Level cells are stored in the
+ * raster's own data type and byte order. A GeoTIFF opened as a raster has no
+ * overview file, since it is drawn from its own internal overviews (see
+ * GeoTiff.readWindow).
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public final class RasterOverviews {
+
+    /**
+     * Overviews are not built for rasters with no more than twice this many
+     * rows and columns, and the coarsest level is the first that is no larger
+     * than this on its longer side.
+     */
+    public static final int MINIMUM_SIZE = 256;
+    private static final int MAGIC = 0x57424F56; // "WBOV"
+    private static final int VERSION = 1;
+    private static final ExecutorService builder = Executors.newSingleThreadExecutor(
+            new NamedThreadFactory("RasterOverviews"));
+    private static final HashSet<String> building = new HashSet<>();
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final DataType dataType;
+    private final int cellSizeInBytes;
+    private final ByteOrder byteOrder;
+    private final int[] levelRows;
+    private final int[] levelColumns;
+    private final long[] levelOffsets;
+    private ByteBuffer rowBuffer = null;
+
+    private RasterOverviews(String overviewFile, WhiteboxRasterBase source, int[] levelRows,
+            int[] levelColumns, long[] levelOffsets) throws IOException {
+        this.dataType = source.getDataType();
+        this.cellSizeInBytes = CellBuffer.cellSizeOf(dataType);
+        this.byteOrder = source.byteOrder;
+        this.levelRows = levelRows;
+        this.levelColumns = levelColumns;
+        this.levelOffsets = levelOffsets;
+        file = new RandomAccessFile(overviewFile, "r");
+        channel = file.getChannel();
+    }
+
+    /**
+     * Retrieves the name of the overview file of a raster. The extension is
+     * appended to any header file other than a .dep file, e.g. image.tif.ovr,
+     * so that the overview file never replaces the header.
+     *
+     * @param headerFile The raster's header file.
+     * @return The name of the overview file.
+     */
+    public static String getOverviewFile(String headerFile) {
+        if (headerFile.endsWith(".dep")) {
+            return headerFile.substring(0, headerFile.length() - 4) + ".ovr";
+        }
+        return headerFile + ".ovr";
+    }
+
+    /**
+     * Opens the overviews of a raster.
+     *
+     * @param source The raster.
+     * @return The overviews, or null if there is no overview file or it is
+     * out of date.
+     */
+    public static RasterOverviews open(WhiteboxRasterBase source) {
+        String overviewFile = getOverviewFile(source.getHeaderFile());
+        File f = new File(overviewFile);
+        long[] stamp = getDataStamp(source);
+        if (!f.exists() || stamp == null) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(f))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            if (in.readLong() != stamp[0] || in.readLong() != stamp[1]) {
+                return null;
+            }
+            int numLevels = in.readInt();
+            int[] rows = new int[numLevels + 1];
+            int[] cols = new int[numLevels + 1];
+            long[] offsets = new long[numLevels + 1];
+            rows[0] = source.getNumberRows();
+            cols[0] = source.getNumberColumns();
+            for (int k = 1; k <= numLevels; k++) {
+                rows[k] = in.readInt();
+                cols[k] = in.readInt();
+                offsets[k] = in.readLong();
+            }
+            return new RasterOverviews(overviewFile, source, rows, cols, offsets);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Retrieves the size and modification time of the files holding a
+     * raster's data, which the overview file records to tell whether it is
+     * out of date. For a virtual mosaic these are the total size and latest
+     * modification time of its header and its sources' files.
+     *
+     * @param source The raster.
+     * @return The size and modification time, or null if a file is missing.
+     */
+    private static long[] getDataStamp(WhiteboxRasterBase source) {
+        if (source.getCompression() != Compression.MOSAIC) {
+            File data = new File(source.getDataFile());
+            return data.exists() ? new long[]{data.length(), data.lastModified()} : null;
+        }
+        File header = new File(source.getHeaderFile());
+        long length = header.length();
+        long modified = header.lastModified();
+        for (String sourceHeader : VirtualMosaic.getSourceFiles(source)) {
+            String sourceData = sourceHeader.replace(".dep", ".tas");
+            for (String name : new String[]{sourceHeader, sourceData}) {
+                File file = new File(name);
+                if (!file.exists()) {
+                    return null;
+                }
+                length += file.length();
+                modified = Math.max(modified, file.lastModified());
+                if (sourceData.equals(sourceHeader)) {
+                    // e.g. a GeoTIFF, which is its own header
+                    break;
+                }
+            }
+        }
+        return new long[]{length, modified};
+    }
+
+    /**
+     * Builds the overviews of a raster in the background, unless they are
+     * already up to date or being built.
+     *
+     * @param headerFile The raster's header file.
+     */
+    public static void buildInBackground(final String headerFile) {
+        synchronized (building) {
+            if (!building.add(new File(headerFile).getAbsolutePath())) {
+                return;
+            }
+        }
+        builder.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    WhiteboxRasterInfo source = new WhiteboxRasterInfo(headerFile);
+                    try {
+                        RasterOverviews ovr = open(source);
+                        if (ovr != null) {
+                            ovr.close();
+                        } else {
+                            build(source);
+                        }
+                    } finally {
+                        source.close();
+                    }
+                } catch (Exception e) {
+                    // the raster is simply drawn from the full-resolution data
+                } finally {
+                    synchronized (building) {
+                        building.remove(new File(headerFile).getAbsolutePath());
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Builds, or rebuilds, the overview file of a raster. The raster is read
+     * once, with all levels built at the same time.
+     *
+     * @param source The raster.
+     * @return True if an overview file was written, or false if the raster is
+     * too small to need one, is a GeoTIFF, or its data can't be found.
+     * @throws IOException
+     */
+    public static boolean build(WhiteboxRasterBase source) throws IOException {
+        int rows = source.getNumberRows();
+        int cols = source.getNumberColumns();
+        if (Math.max(rows, cols) <= 2 * MINIMUM_SIZE
+                || source.getCompression() == Compression.GEOTIFF) {
+            return false;
+        }
+        // an overview file that could never be opened isn't built
+        long[] stamp = getDataStamp(source);
+        if (stamp == null) {
+            return false;
+        }
+        long dataLength = stamp[0];
+        long dataModified = stamp[1];
+
+        int numLevels = 0;
+        int r = rows;
+        int c = cols;
+        while (Math.max(r, c) > MINIMUM_SIZE) {
+            r = (r + 1) / 2;
+            c = (c + 1) / 2;
+            numLevels++;
+        }
+        int cellSize = CellBuffer.cellSizeOf(source.getDataType());
+        int headerSize = 4 + 4 + 8 + 8 + 4 + numLevels * 16;
+        long offset = headerSize;
+        Level[] levels = new Level[numLevels + 1];
+        r = rows;
+        c = cols;
+        for (int k = 1; k <= numLevels; k++) {
+            r = (r + 1) / 2;
+            c = (c + 1) / 2;
+            levels[k] = new Level(k, r, c, offset, source);
+            offset += (long) r * c * cellSize;
+        }
+
+        String overviewFile = getOverviewFile(source.getHeaderFile());
+        File tmp = new File(overviewFile + ".tmp");
+        try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+            out.setLength(0);
+            FileChannel channel = out.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(headerSize);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putLong(dataLength);
+            header.putLong(dataModified);
+            header.putInt(numLevels);
+            for (int k = 1; k <= numLevels; k++) {
+                header.putInt(levels[k].rows);
+                header.putInt(levels[k].cols);
+                header.putLong(levels[k].offset);
+            }
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+
+            double[] rowData = null;
+            int[] counts = new int[cols];
+            double noData = source.getNoDataValue();
+            for (int row = 0; row < rows; row++) {
+                rowData = source.getRowValues(row, 0, rowData);
+                for (int col = 0; col < cols; col++) {
+                    counts[col] = rowData[col] == noData ? 0 : 1;
+                }
+                push(levels, 1, rowData, counts, channel);
+            }
+            for (int k = 1; k <= numLevels; k++) {
+                levels[k].finish(levels, channel);
+            }
+        }
+        Files.move(tmp.toPath(), new File(overviewFile).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    private static void push(Level[] levels, int k, double[] vals, int[] counts,
+            FileChannel channel) throws IOException {
+        if (k < levels.length) {
+            levels[k].add(levels, vals, counts, channel);
+        }
+    }
+
+    /**
+     * The state of one level while it is being built: the pending row of its
+     * input, which is combined with the next input row to form an output row.
+     */
+    private static final class Level {
+
+        final int rows;
+        final int cols;
+        final long offset;
+        final DataScale dataScale;
+        final DataType dataType;
+        final double noData;
+        final ByteBuffer buf;
+        final int k;
+        int outputRow = 0;
+        double[] pending = null;
+        int[] pendingCounts = null;
+        int inputColumns;
+        final double[] outVals;
+        final int[] outCounts;
+
+        Level(int k, int rows, int cols, long offset, WhiteboxRasterBase source) {
+            this.k = k;
+            this.rows = rows;
+            this.cols = cols;
+            this.offset = offset;
+            this.dataScale = source.getDataScale();
+            this.dataType = source.getDataType();
+            this.noData = source.getNoDataValue();
+            buf = ByteBuffer.allocate(cols * CellBuffer.cellSizeOf(dataType));
+            buf.order(source.byteOrder);
+            outVals = new double[cols];
+            outCounts = new int[cols];
+        }
+
+        void add(Level[] levels, double[] vals, int[] counts, FileChannel channel) throws IOException {
+            if (pending == null) {
+                inputColumns = Math.min(vals.length, counts.length);
+                pending = vals.clone();
+                pendingCounts = counts.clone();
+                return;
+            }
+            combine(vals, counts);
+            emit(levels, channel);
+        }
+
+        void finish(Level[] levels, FileChannel channel) throws IOException {
+            if (pending != null) {
+                combine(null, null);
+                emit(levels, channel);
+            }
+        }
+
+        private void combine(double[] vals, int[] counts) {
+            double[] v = new double[4];
+            int[] n = new int[4];
+            for (int col = 0; col < cols; col++) {
+                int c0 = 2 * col;
+                int c1 = Math.min(c0 + 1, inputColumns - 1);
+                int m = 0;
+                v[m] = pending[c0];
+                n[m++] = pendingCounts[c0];
+                if (c1 != c0) {
+                    v[m] = pending[c1];
+                    n[m++] = pendingCounts[c1];
+                }
+                if (vals != null) {
+                    v[m] = vals[c0];
+                    n[m++] = counts[c0];
+                    if (c1 != c0) {
+                        v[m] = vals[c1];
+                        n[m++] = counts[c1];
+                    }
+                }
+                switch (dataScale) {
+                    case CONTINUOUS: {
+                        double sum = 0;
+                        int count = 0;
+                        for (int i = 0; i < m; i++) {
+                            if (n[i] > 0) {
+                                sum += v[i] * n[i];
+                                count += n[i];
+                            }
+                        }
+                        outVals[col] = count > 0 ? sum / count : noData;
+                        outCounts[col] = count;
+                        break;
+                    }
+                    case RGB:
+                        outVals[col] = v[0];
+                        outCounts[col] = n[0];
+                        break;
+                    default: {
+                        // the most common value, weighted by the number of
+                        // cells that each value stands for
+                        double best = noData;
+                        int bestCount = 0;
+                        int total = 0;
+                        for (int i = 0; i < m; i++) {
+                            if (n[i] == 0) {
+                                continue;
+                            }
+                            total += n[i];
+                            int count = 0;
+                            for (int j = 0; j < m; j++) {
+                                if (v[j] == v[i]) {
+                                    count += n[j];
+                                }
+                            }
+                            if (count > bestCount) {
+                                bestCount = count;
+                                best = v[i];
+                            }
+                        }
+                        outVals[col] = best;
+                        outCounts[col] = total;
+                        break;
+                    }
+                }
+                if (outCounts[col] > 0 && (dataType == DataType.INTEGER || dataType == DataType.BYTE)) {
+                    outVals[col] = Math.round(outVals[col]);
+                }
+            }
+            pending = null;
+            pendingCounts = null;
+        }
+
+        private void emit(Level[] levels, FileChannel channel) throws IOException {
+            buf.clear();
+            for (int col = 0; col < cols; col++) {
+                double z = outVals[col];
+                switch (dataType) {
+                    case DOUBLE:
+                        buf.putDouble(z);
+                        break;
+                    case FLOAT:
+                        buf.putFloat((float) z);
+                        break;
+                    case INTEGER:
+                        buf.putShort(CellBuffer.toShort(z));
+                        break;
+                    default:
+                        buf.put(CellBuffer.toByte(z));
+                        break;
+                }
+            }
+            buf.flip();
+            long pos = offset + (long) outputRow * buf.limit();
+            while (buf.hasRemaining()) {
+                channel.write(buf, pos + buf.position());
+            }
+            outputRow++;
+            push(levels, k + 1, outVals, outCounts, channel);
+        }
+    }
+
+    /**
+     * Retrieves the number of reduced-resolution levels, not counting the
+     * full-resolution grid, which is level zero.
+     *
+     * @return The number of levels.
+     */
+    public int getNumberOfLevels() {
+        return levelRows.length - 1;
+    }
+
+    /**
+     * Retrieves the coarsest level whose reduction factor doesn't exceed the
+     * sampling interval of a display.
+     *
+     * @param resolutionFactor The display's sampling interval, in cells of
+     * the full-resolution grid.
+     * @return The level, or zero if the full-resolution grid should be used.
+     */
+    public int getLevelForResolutionFactor(int resolutionFactor) {
+        int level = 0;
+        while (level < getNumberOfLevels() && (2 << level) <= resolutionFactor) {
+            level++;
+        }
+        return level;
+    }
+
+    public int getNumberRows(int level) {
+        return levelRows[level];
+    }
+
+    public int getNumberColumns(int level) {
+        return levelColumns[level];
+    }
+
+    /**
+     * Reads a row of a reduced-resolution level. Cell (row, col) of level k
+     * covers the cells of the full-resolution grid from (row * 2^k, col * 2^k)
+     * to ((row + 1) * 2^k - 1, (col + 1) * 2^k - 1).
+     *
+     * @param level The level, from 1 to getNumberOfLevels().
+     * @param row The zero-based row of the level.
+     * @param dest An array to fill, or null to allocate one.
+     * @return The array holding the row's values.
+     * @throws IOException
+     */
+    public double[] getRowValues(int level, int row, double[] dest) throws IOException {
+        int cols = levelColumns[level];
+        if (dest == null || dest.length < cols) {
+            dest = new double[cols];
+        }
+        int rowSize = cols * cellSizeInBytes;
+        if (rowBuffer == null || rowBuffer.capacity() < rowSize) {
+            rowBuffer = ByteBuffer.allocateDirect(rowSize);
+        }
+        ByteBuffer buf = rowBuffer;
+        buf.clear();
+        buf.limit(rowSize);
+        buf.order(byteOrder);
+        long pos = levelOffsets[level] + (long) row * rowSize;
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, pos + buf.position()) < 0) {
+                throw new IOException("The overview file is truncated.");
+            }
+        }
+        buf.flip();
+        for (int col = 0; col < cols; col++) {
+            switch (dataType) {
+                case DOUBLE:
+                    dest[col] = buf.getDouble();
+                    break;
+                case FLOAT:
+                    dest[col] = buf.getFloat();
+                    break;
+                case INTEGER:
+                    dest[col] = buf.getShort();
+                    break;
+                default:
+                    dest[col] = buf.get() & 0xFF;
+                    break;
+            }
+        }
+        return dest;
+    }
+
+    /**
+     * Closes the overview file.
+     */
+    public void close() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            // nothing can be done
+        }
+    }
+}
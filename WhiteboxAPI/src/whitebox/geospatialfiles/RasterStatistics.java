@@ -0,0 +1,594 @@
+/*
+ * Copyright (C) 2015 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.util.Arrays;
+import whitebox.geospatialfiles.WhiteboxRasterBase.DataType;
+
+/**
+ * A mergeable summary of the values in part or all of a raster: the count,
+ * the sum and sum of squares (about a fixed shift, to limit round-off), the
+ * minimum and maximum, and a histogram. Values may be removed as well as
+ * added, so that when a block of a raster is rewritten its old contribution
+ * can be subtracted. Summaries of separate parts of a raster can be merged.
+ *
+ * For INTEGER and BYTE rasters the histogram counts each possible value
+ * exactly. For FLOAT and DOUBLE rasters it is a sketch of bins whose width is
+ * a power of two, aligned to multiples of the width; the width doubles
+ * whenever the values no longer fit in the sketch, so sketches of any two
+ * parts of a raster can always be brought to a common width and merged.
+ *
+ * The minimum and maximum cannot in general be recovered once a value equal
+ * to one of them is removed. So that the common case, in which the cells of a
+ * new raster are each overwritten from their initial value, stays exact,
+ * values equal to a designated initial value are only counted, and the
+ * minimum and maximum of the remaining values are kept along with the number
+ * of times that each occurs.
+ *
+ * A summary of a whole FLOAT or DOUBLE raster may also hold a quantile
+ * sketch, from which percentiles are estimated far more closely than from the
+ * histogram when the distribution is long-tailed. The sketch costs several
+ * times as much to add to as the rest of the summary, and so it is only kept
+ * where asked for, i.e. by the single pass over a raster's values, and not by
+ * the summaries of blocks kept as a raster is written. The sketch can't give
+ * up values once added, and so it is discarded if any value other than the
+ * initial value is removed. Without one, percentiles are taken from the
+ * histogram's bins, which are far finer than those written to the stats file.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+final class RasterStatistics {
+
+    private static final int SKETCH_BINS = 16384;
+    private final double noDataValue;
+    private final double initialValue;
+    private final boolean integral;
+    private final int valueOffset;
+    private long n = 0;
+    private double shift = Double.NaN;
+    private double sum = 0;
+    private double sumSq = 0;
+    // values equal to the initial value are counted apart
+    private long initialCount = 0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private long minCount = 0;
+    private long maxCount = 0;
+    private boolean extremesExact = true;
+    private long[] counts;
+    // the sketch's bins are [(base + i) * 2^exponent, (base + i + 1) * 2^exponent)
+    private int exponent = 0;
+    private long base = 0;
+    private boolean sketchEmpty = true;
+    // null for integral types, whose histogram is exact, and once a value
+    // has been removed
+    private QuantileSketch quantiles;
+
+    /**
+     * Class constructor.
+     *
+     * @param dataType The raster's data type.
+     * @param noDataValue Values equal to this are ignored.
+     * @param initialValue Values equal to this are counted apart so that they
+     * may be removed without losing track of the minimum and maximum.
+     */
+    RasterStatistics(DataType dataType, double noDataValue, double initialValue) {
+        this(dataType, noDataValue, initialValue, true);
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param dataType The raster's data type.
+     * @param noDataValue Values equal to this are ignored.
+     * @param initialValue Values equal to this are counted apart so that they
+     * may be removed without losing track of the minimum and maximum.
+     * @param withQuantiles Set to false to leave out the quantile sketch of a
+     * FLOAT or DOUBLE raster.
+     */
+    RasterStatistics(DataType dataType, double noDataValue, double initialValue, boolean withQuantiles) {
+        this.noDataValue = noDataValue;
+        this.initialValue = initialValue;
+        switch (dataType) {
+            case INTEGER:
+                integral = true;
+                valueOffset = 32768;
+                counts = new long[65536];
+                break;
+            case BYTE:
+                integral = true;
+                valueOffset = 0;
+                counts = new long[256];
+                break;
+            default:
+                integral = false;
+                valueOffset = 0;
+                counts = new long[SKETCH_BINS];
+                break;
+        }
+        quantiles = integral || !withQuantiles ? null : new QuantileSketch(QuantileSketch.DEFAULT_K);
+    }
+
+    long getNumValidCells() {
+        return n;
+    }
+
+    double getMean() {
+        return n > 0 ? shift + sum / n : noDataValue;
+    }
+
+    /**
+     * Retrieves the sample standard deviation.
+     */
+    double getStandardDeviation() {
+        if (n < 2) {
+            return 0;
+        }
+        double variance = (sumSq - sum * sum / n) / (n - 1);
+        return Math.sqrt(Math.max(0, variance));
+    }
+
+    /**
+     * Returns true if the minimum and maximum are known exactly. They may not
+     * be once a value equal to one of them has been removed.
+     */
+    boolean areExtremesExact() {
+        return integral || extremesExact;
+    }
+
+    double getMinimum() {
+        if (integral) {
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    return i - valueOffset;
+                }
+            }
+            return Double.MAX_VALUE;
+        }
+        double m = min;
+        if (initialCount > 0 && initialValue < m) {
+            m = initialValue;
+        }
+        return m == Double.POSITIVE_INFINITY ? Double.MAX_VALUE : m;
+    }
+
+    double getMaximum() {
+        if (integral) {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] > 0) {
+                    return i - valueOffset;
+                }
+            }
+            return -Double.MAX_VALUE;
+        }
+        double m = max;
+        if (initialCount > 0 && initialValue > m) {
+            m = initialValue;
+        }
+        return m == Double.NEGATIVE_INFINITY ? -Double.MAX_VALUE : m;
+    }
+
+    /**
+     * Adds a value, which is ignored if it is NoData.
+     */
+    void add(double z) {
+        add(z, 1);
+    }
+
+    /**
+     * Adds a number of copies of a value.
+     */
+    void add(double z, long count) {
+        if (z == noDataValue || count == 0) {
+            return;
+        }
+        if (Double.isNaN(shift)) {
+            shift = z;
+        }
+        double d = z - shift;
+        n += count;
+        sum += d * count;
+        sumSq += d * d * count;
+        if (z == initialValue) {
+            initialCount += count;
+        } else {
+            if (quantiles != null) {
+                for (long i = 0; i < count; i++) {
+                    quantiles.add(z);
+                }
+            }
+            if (z < min) {
+                min = z;
+                minCount = count;
+            } else if (z == min) {
+                minCount += count;
+            }
+            if (z > max) {
+                max = z;
+                maxCount = count;
+            } else if (z == max) {
+                maxCount += count;
+            }
+        }
+        countValue(z, count);
+    }
+
+    /**
+     * Removes a value that was previously added.
+     */
+    void remove(double z) {
+        remove(z, 1);
+    }
+
+    /**
+     * Removes a number of copies of a value that was previously added.
+     */
+    void remove(double z, long count) {
+        if (z == noDataValue || count == 0) {
+            return;
+        }
+        double d = z - shift;
+        n -= count;
+        sum -= d * count;
+        sumSq -= d * d * count;
+        if (z == initialValue) {
+            initialCount -= count;
+        } else {
+            quantiles = null;
+            if (z <= min) {
+                minCount -= count;
+                if (z < min || minCount <= 0) {
+                    extremesExact = false;
+                }
+            }
+            if (z >= max) {
+                maxCount -= count;
+                if (z > max || maxCount <= 0) {
+                    extremesExact = false;
+                }
+            }
+        }
+        countValue(z, -count);
+    }
+
+    private void countValue(double z, long count) {
+        if (integral) {
+            counts[(int) z + valueOffset] += count;
+            return;
+        }
+        if (Double.isInfinite(z) || Double.isNaN(z)) {
+            return;
+        }
+        if (sketchEmpty) {
+            // start with bins finer than the precision of a float, which
+            // will be coarsened as the range of values grows
+            exponent = z == 0 ? -40 : Math.getExponent(z) - 24;
+            base = binIndex(z) - SKETCH_BINS / 2;
+            sketchEmpty = false;
+        }
+        long idx = binIndex(z);
+        fit(idx, idx);
+        counts[(int) (binIndex(z) - base)] += count;
+    }
+
+    private long binIndex(double z) {
+        return (long) Math.floor(Math.scalb(z, -exponent));
+    }
+
+    /**
+     * Coarsens and re-positions the sketch so that it covers the occupied bins
+     * and those from lo to hi.
+     */
+    private void fit(long lo, long hi) {
+        if (lo >= base && hi < base + SKETCH_BINS) {
+            return;
+        }
+        int first = 0;
+        while (first < SKETCH_BINS && counts[first] == 0) {
+            first++;
+        }
+        int last = SKETCH_BINS - 1;
+        while (last >= 0 && counts[last] == 0) {
+            last--;
+        }
+        if (first <= last) {
+            lo = Math.min(lo, base + first);
+            hi = Math.max(hi, base + last);
+        }
+        while (hi - lo + 1 > SKETCH_BINS) {
+            coarsen();
+            lo = Math.floorDiv(lo, 2);
+            hi = Math.floorDiv(hi, 2);
+        }
+        if (lo < base || hi >= base + SKETCH_BINS) {
+            long newBase = lo - (SKETCH_BINS - (hi - lo + 1)) / 2;
+            long[] shifted = new long[SKETCH_BINS];
+            for (int i = 0; i < SKETCH_BINS; i++) {
+                if (counts[i] != 0) {
+                    shifted[(int) (base + i - newBase)] = counts[i];
+                }
+            }
+            counts = shifted;
+            base = newBase;
+        }
+    }
+
+    /**
+     * Doubles the width of the sketch's bins.
+     */
+    private void coarsen() {
+        long newBase = Math.floorDiv(base, 2);
+        long[] merged = new long[SKETCH_BINS];
+        for (int i = 0; i < SKETCH_BINS; i++) {
+            if (counts[i] != 0) {
+                merged[(int) (Math.floorDiv(base + i, 2) - newBase)] += counts[i];
+            }
+        }
+        counts = merged;
+        base = newBase;
+        exponent++;
+    }
+
+    /**
+     * Adds the contents of another summary of the same raster. The other
+     * summary's sketch may be coarsened.
+     */
+    void merge(RasterStatistics other) {
+        combine(other, 1);
+        if (quantiles != null && other.quantiles != null) {
+            quantiles.merge(other.quantiles);
+        } else {
+            quantiles = null;
+        }
+        if (other.initialCount > 0) {
+            initialCount += other.initialCount;
+        }
+        mergeExtremes(other);
+    }
+
+    /**
+     * Removes the contents of another summary, all of whose values were
+     * previously added to this one. The other summary's sketch may be
+     * coarsened.
+     */
+    void subtract(RasterStatistics other) {
+        combine(other, -1);
+        if (other.n != other.initialCount) {
+            quantiles = null;
+        }
+        initialCount -= other.initialCount;
+        if (other.minCount > 0) {
+            if (other.min < min) {
+                extremesExact = false;
+            } else if (other.min == min) {
+                minCount -= other.minCount;
+                if (minCount <= 0) {
+                    extremesExact = false;
+                }
+            }
+        }
+        if (other.maxCount > 0) {
+            if (other.max > max) {
+                extremesExact = false;
+            } else if (other.max == max) {
+                maxCount -= other.maxCount;
+                if (maxCount <= 0) {
+                    extremesExact = false;
+                }
+            }
+        }
+    }
+
+    private void mergeExtremes(RasterStatistics other) {
+        if (!other.extremesExact) {
+            extremesExact = false;
+        }
+        if (other.minCount > 0) {
+            if (other.min < min) {
+                min = other.min;
+                minCount = other.minCount;
+            } else if (other.min == min) {
+                minCount += other.minCount;
+            }
+        }
+        if (other.maxCount > 0) {
+            if (other.max > max) {
+                max = other.max;
+                maxCount = other.maxCount;
+            } else if (other.max == max) {
+                maxCount += other.maxCount;
+            }
+        }
+    }
+
+    private void combine(RasterStatistics other, int sign) {
+        if (other.n != 0) {
+            if (Double.isNaN(shift)) {
+                shift = other.shift;
+            }
+            // re-express the other's sums about this summary's shift
+            double s = other.shift - shift;
+            double otherSum = other.sum + other.n * s;
+            double otherSumSq = other.sumSq + 2 * s * other.sum + other.n * s * s;
+            n += sign * other.n;
+            sum += sign * otherSum;
+            sumSq += sign * otherSumSq;
+        }
+        if (integral) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += sign * other.counts[i];
+            }
+            return;
+        }
+        if (other.sketchEmpty) {
+            return;
+        }
+        if (sketchEmpty) {
+            exponent = other.exponent;
+            base = other.base;
+            sketchEmpty = false;
+        }
+        while (exponent < other.exponent) {
+            coarsen();
+        }
+        while (other.exponent < exponent) {
+            other.coarsen();
+        }
+        int first = 0;
+        while (first < SKETCH_BINS && other.counts[first] == 0) {
+            first++;
+        }
+        int last = SKETCH_BINS - 1;
+        while (last >= 0 && other.counts[last] == 0) {
+            last--;
+        }
+        if (first > last) {
+            return;
+        }
+        fit(other.base + first, other.base + last);
+        if (exponent > other.exponent) {
+            // fitting coarsened this sketch
+            while (other.exponent < exponent) {
+                other.coarsen();
+            }
+            first = 0;
+            last = SKETCH_BINS - 1;
+        }
+        for (int i = first; i <= last; i++) {
+            if (other.counts[i] != 0) {
+                counts[(int) (other.base + i - base)] += sign * other.counts[i];
+            }
+        }
+    }
+
+    /**
+     * Returns true if the summary holds a quantile sketch.
+     */
+    boolean hasQuantiles() {
+        return quantiles != null;
+    }
+
+    /**
+     * Retrieves the values held by the quantile sketch, sorted, with the
+     * number of cells that each stands for, including the cells holding the
+     * initial value. Without a sketch, the centre of each occupied bin of the
+     * histogram stands for the cells in the bin.
+     *
+     * @return The values in the first array and their weights in the second,
+     * or null for an INTEGER or BYTE raster, whose histogram is exact.
+     */
+    double[][] getQuantileItems() {
+        if (integral) {
+            return null;
+        }
+        if (quantiles == null) {
+            return getBinItems();
+        }
+        double[][] items = quantiles.getWeightedValues();
+        if (initialCount <= 0 || initialValue == noDataValue) {
+            return items;
+        }
+        double[] values = items[0];
+        double[] weights = items[1];
+        int pos = Arrays.binarySearch(values, initialValue);
+        if (pos >= 0) {
+            weights[pos] += initialCount;
+            return items;
+        }
+        pos = -pos - 1;
+        double[] v = new double[values.length + 1];
+        double[] w = new double[values.length + 1];
+        System.arraycopy(values, 0, v, 0, pos);
+        System.arraycopy(weights, 0, w, 0, pos);
+        v[pos] = initialValue;
+        w[pos] = initialCount;
+        System.arraycopy(values, pos, v, pos + 1, values.length - pos);
+        System.arraycopy(weights, pos, w, pos + 1, values.length - pos);
+        return new double[][]{v, w};
+    }
+
+    /**
+     * Retrieves the centre of each occupied bin of the sketch, within the
+     * minimum and maximum, and the number of values in the bin.
+     */
+    private double[][] getBinItems() {
+        int m = 0;
+        double[] values = new double[SKETCH_BINS];
+        double[] weights = new double[SKETCH_BINS];
+        if (!sketchEmpty) {
+            double width = Math.scalb(1.0, exponent);
+            double minValue = getMinimum();
+            double maxValue = getMaximum();
+            for (int i = 0; i < SKETCH_BINS; i++) {
+                if (counts[i] > 0) {
+                    double centre = (base + i + 0.5) * width;
+                    centre = Math.max(minValue, Math.min(maxValue, centre));
+                    if (m > 0 && values[m - 1] == centre) {
+                        weights[m - 1] += counts[i];
+                    } else {
+                        values[m] = centre;
+                        weights[m] = counts[i];
+                        m++;
+                    }
+                }
+            }
+        }
+        return new double[][]{Arrays.copyOf(values, m), Arrays.copyOf(weights, m)};
+    }
+
+    /**
+     * Fills a fixed-width histogram. For a FLOAT or DOUBLE raster, each bin of
+     * the sketch is assigned to the histogram bin containing its centre.
+     *
+     * @param minValue The value at the start of the first bin.
+     * @param numberOfBins The number of bins.
+     * @param binWidth The width of each bin.
+     * @return The histogram.
+     */
+    long[] getHistogram(double minValue, int numberOfBins, double binWidth) {
+        long[] histo = new long[numberOfBins];
+        if (numberOfBins == 0) {
+            return histo;
+        }
+        if (integral) {
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    histo[binOf(i - valueOffset, minValue, numberOfBins, binWidth)] += counts[i];
+                }
+            }
+            return histo;
+        }
+        if (sketchEmpty) {
+            return histo;
+        }
+        double width = Math.scalb(1.0, exponent);
+        double maxValue = getMaximum();
+        for (int i = 0; i < SKETCH_BINS; i++) {
+            if (counts[i] > 0) {
+                double centre = (base + i + 0.5) * width;
+                centre = Math.max(minValue, Math.min(maxValue, centre));
+                histo[binOf(centre, minValue, numberOfBins, binWidth)] += counts[i];
+            }
+        }
+        return histo;
+    }
+
+    private static int binOf(double z, double minValue, int numberOfBins, double binWidth) {
+        int bin = binWidth > 0 ? (int) Math.floor((z - minValue) / binWidth) : 0;
+        return Math.max(0, Math.min(numberOfBins - 1, bin));
+    }
+}
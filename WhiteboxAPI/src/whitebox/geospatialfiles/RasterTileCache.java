@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2015 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A least-recently-used cache of square raster tiles sitting in front of a
+ * RasterTileStore. Unlike the single contiguous block used by WhiteboxRaster,
+ * the cache holds many tiles at once, so tools that jump around the grid or
+ * walk a 2D neighbourhood do not keep evicting the data they are about to
+ * revisit. Resident tiles are found through the directory, which is indexed
+ * by tile, and are kept on a list in order of use, so that both a hit and the
+ * choice of a tile to evict take constant time however many tiles are held.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+class RasterTileCache {
+
+    final RasterTileStore store;
+    final WhiteboxRasterBase.DataType dataType;
+    final int numberRows;
+    final int numberColumns;
+    final int tileSize;
+    final int tileShift;
+    final int tileMask;
+    final int numTileRows;
+    final int numTileColumns;
+    final Tile[] directory;
+    // the resident tiles, most recently used first, on a circular list
+    private final Tile head = new Tile();
+    private int slotLimit;
+    private int numAllocatedTiles = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long writeBacks = 0;
+
+    static final class Tile {
+
+        int id = -1;
+        CellBuffer data;
+        boolean dirty = false;
+        boolean referenced = false;
+        Tile prev;
+        Tile next;
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param store The source of the tile data. Its tile size must be a power
+     * of two.
+     * @param dataType The data type used to hold the tiles in memory.
+     * @param numberRows The number of rows in the raster.
+     * @param numberColumns The number of columns in the raster.
+     * @param numSlots The maximum number of tiles held in memory at once. This
+     * may later be changed with setSlotLimit.
+     */
+    RasterTileCache(RasterTileStore store, WhiteboxRasterBase.DataType dataType,
+            int numberRows, int numberColumns, int numSlots) {
+        this.store = store;
+        this.dataType = dataType;
+        this.numberRows = numberRows;
+        this.numberColumns = numberColumns;
+        tileSize = store.getTileSize();
+        if (Integer.bitCount(tileSize) != 1) {
+            throw new IllegalArgumentException("The tile size must be a power of two.");
+        }
+        tileShift = Integer.numberOfTrailingZeros(tileSize);
+        tileMask = tileSize - 1;
+        numTileRows = (numberRows + tileSize - 1) / tileSize;
+        numTileColumns = (numberColumns + tileSize - 1) / tileSize;
+        directory = new Tile[numTileRows * numTileColumns];
+        head.prev = head;
+        head.next = head;
+        slotLimit = Math.max(1, Math.min(numSlots, directory.length));
+    }
+
+    int getTileSize() {
+        return tileSize;
+    }
+
+    int getNumberOfTiles() {
+        return directory.length;
+    }
+
+    int getSlotLimit() {
+        return slotLimit;
+    }
+
+    /**
+     * Retrieves the memory held by tile data.
+     *
+     * @return The number of bytes in use.
+     */
+    long getMemoryInUse() {
+        return (long) numAllocatedTiles * tileSize * tileSize * CellBuffer.cellSizeOf(dataType);
+    }
+
+    /**
+     * Changes the maximum number of tiles held in memory. When the limit is
+     * reduced, the least recently used tiles are written back if modified and
+     * their memory is released.
+     *
+     * @param limit The new maximum number of tiles.
+     */
+    void setSlotLimit(int limit) {
+        limit = Math.max(1, Math.min(limit, directory.length));
+        while (numAllocatedTiles > limit) {
+            Tile tile = evict();
+            tile.data = null;
+            numAllocatedTiles--;
+        }
+        slotLimit = limit;
+    }
+
+    long getHits() {
+        return hits;
+    }
+
+    long getMisses() {
+        return misses;
+    }
+
+    long getWriteBacks() {
+        return writeBacks;
+    }
+
+    double getValue(int row, int column) {
+        Tile tile = getTile(row >> tileShift, column >> tileShift);
+        return tile.data.get(((row & tileMask) << tileShift) + (column & tileMask));
+    }
+
+    int getIntValue(int row, int column) {
+        Tile tile = getTile(row >> tileShift, column >> tileShift);
+        return tile.data.getInt(((row & tileMask) << tileShift) + (column & tileMask));
+    }
+
+    void setValue(int row, int column, double value) {
+        Tile tile = getTile(row >> tileShift, column >> tileShift);
+        tile.data.set(((row & tileMask) << tileShift) + (column & tileMask), value);
+        tile.dirty = true;
+    }
+
+    void incrementValue(int row, int column, double value) {
+        Tile tile = getTile(row >> tileShift, column >> tileShift);
+        tile.data.add(((row & tileMask) << tileShift) + (column & tileMask), value);
+        tile.dirty = true;
+    }
+
+    /**
+     * Retrieves the value held by every cell of a tile that is known to be
+     * constant without loading it, i.e. a tile that isn't in the cache, where
+     * it may have been modified, and that the store records as constant.
+     *
+     * @param tileRow The zero-based tile row.
+     * @param tileColumn The zero-based tile column.
+     * @return The value, or null if the tile isn't known to be constant.
+     */
+    Double getConstantValue(int tileRow, int tileColumn) {
+        if (directory[tileRow * numTileColumns + tileColumn] != null) {
+            return null;
+        }
+        return store.getConstantValue(tileRow, tileColumn);
+    }
+
+    /**
+     * Copies a run of cells from a single row into an array.
+     *
+     * @param row The row.
+     * @param column The first column, which must lie within the grid.
+     * @param length The number of cells, which must not extend beyond the
+     * last column.
+     * @param dest The destination array.
+     * @param destOffset The position in the destination of the first cell.
+     */
+    void getRowSegment(int row, int column, int length, double[] dest, int destOffset) {
+        int tileRow = row >> tileShift;
+        int offset = (row & tileMask) << tileShift;
+        int end = column + length;
+        while (column < end) {
+            int tc = column >> tileShift;
+            int n = Math.min(end, (tc + 1) << tileShift) - column;
+            Tile tile = getTile(tileRow, tc);
+            tile.data.copyTo(offset + (column & tileMask), dest, destOffset, n);
+            column += n;
+            destOffset += n;
+        }
+    }
+
+    /**
+     * Writes a full row of cells into a byte buffer, in the buffer's byte
+     * order and in the raster's data type.
+     */
+    void getRowBytes(int row, ByteBuffer buf) {
+        int tileRow = row >> tileShift;
+        int offset = (row & tileMask) << tileShift;
+        for (int tc = 0; tc < numTileColumns; tc++) {
+            Tile tile = getTile(tileRow, tc);
+            tile.data.write(buf, offset, Math.min(tileSize, numberColumns - (tc << tileShift)));
+        }
+    }
+
+    /**
+     * Copies a full row of values into the cached tiles that it crosses.
+     */
+    void setRowValues(int row, double[] vals) {
+        int tileRow = row >> tileShift;
+        int offset = (row & tileMask) << tileShift;
+        for (int tc = 0; tc < numTileColumns; tc++) {
+            Tile tile = getTile(tileRow, tc);
+            int startCol = tc << tileShift;
+            int length = Math.min(tileSize, numberColumns - startCol);
+            tile.data.copyFrom(vals, startCol, offset, length);
+            tile.dirty = true;
+        }
+    }
+
+    /**
+     * Writes any modified tiles lying in the same band of tiles as the
+     * specified row back to the store, so that reads which bypass the cache
+     * see the current values.
+     */
+    void flushRow(int row) {
+        int first = (row >> tileShift) * numTileColumns;
+        for (int id = first; id < first + numTileColumns; id++) {
+            Tile tile = directory[id];
+            if (tile != null && tile.dirty) {
+                writeBack(tile);
+            }
+        }
+    }
+
+    private Tile getTile(int tileRow, int tileColumn) {
+        int id = tileRow * numTileColumns + tileColumn;
+        Tile tile = directory[id];
+        if (tile != null) {
+            hits++;
+            if (head.next != tile) {
+                unlink(tile);
+                linkFirst(tile);
+            }
+            return tile;
+        }
+        misses++;
+        RasterMemoryManager.getInstance().recordLoad();
+
+        // take a new tile while there is room for one or else reuse the least
+        // recently used one
+        if (numAllocatedTiles < slotLimit) {
+            tile = new Tile();
+            tile.data = CellBuffer.create(dataType, tileSize * tileSize);
+            numAllocatedTiles++;
+        } else {
+            tile = evict();
+        }
+        try {
+            store.readTile(tileRow, tileColumn, tile.data);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read tile (" + tileRow + ", " + tileColumn + ")", e);
+        }
+        tile.id = id;
+        directory[id] = tile;
+        linkFirst(tile);
+        return tile;
+    }
+
+    /**
+     * Removes the least recently used tile from the cache, writing it back
+     * first if it has been modified. Its memory is kept for reuse.
+     */
+    private Tile evict() {
+        Tile tile = head.prev;
+        if (tile.dirty) {
+            writeBack(tile);
+        }
+        unlink(tile);
+        directory[tile.id] = null;
+        tile.id = -1;
+        return tile;
+    }
+
+    private void linkFirst(Tile tile) {
+        tile.prev = head;
+        tile.next = head.next;
+        head.next.prev = tile;
+        head.next = tile;
+    }
+
+    private void unlink(Tile tile) {
+        tile.prev.next = tile.next;
+        tile.next.prev = tile.prev;
+        tile.prev = null;
+        tile.next = null;
+    }
+
+    private void writeBack(Tile tile) {
+        try {
+            store.writeTile(tile.id / numTileColumns, tile.id % numTileColumns, tile.data);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to write tile " + tile.id, e);
+        }
+        tile.dirty = false;
+        writeBacks++;
+    }
+
+    /**
+     * Writes all modified tiles back to the store.
+     */
+    void flush() {
+        for (Tile tile = head.next; tile != head; tile = tile.next) {
+            if (tile.dirty) {
+                writeBack(tile);
+            }
+        }
+        try {
+            store.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to flush the tile store", e);
+        }
+    }
+
+    /**
+     * Writes all modified tiles back to the store and releases the memory
+     * held by the cache.
+     *
+     * @param saveChanges Set to false to discard any modified tiles.
+     */
+    void close(boolean saveChanges) {
+        if (saveChanges) {
+            flush();
+        }
+        releaseTiles();
+        try {
+            store.close();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to close the tile store", e);
+        }
+    }
+
+    /**
+     * Releases the memory held by the cache without writing anything back,
+     * not even the store's own bookkeeping, because the data file is about to
+     * be deleted.
+     */
+    void discard() {
+        releaseTiles();
+        try {
+            store.discard();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to discard the tile store", e);
+        }
+    }
+
+    /**
+     * Drops every tile from the cache, modified or not.
+     */
+    void releaseTiles() {
+        for (Tile tile = head.next; tile != head; tile = tile.next) {
+            directory[tile.id] = null;
+        }
+        head.prev = head;
+        head.next = head;
+        numAllocatedTiles = 0;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2015 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.io.IOException;
+
+/**
+ * A source of square tiles of raster data. Tiles are addressed by their
+ * zero-based tile row and tile column and are always exchanged as buffers with
+ * a row stride equal to the tile size, even for the partial tiles along the
+ * right and bottom edges of the grid.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+interface RasterTileStore {
+
+    /**
+     * Retrieves the number of cells along each side of a tile.
+     *
+     * @return The tile size.
+     */
+    int getTileSize();
+
+    /**
+     * Reads a tile into the supplied buffer.
+     *
+     * @param tileRow The zero-based tile row.
+     * @param tileColumn The zero-based tile column.
+     * @param dest A buffer of at least tileSize * tileSize cells.
+     * @throws IOException
+     */
+    void readTile(int tileRow, int tileColumn, CellBuffer dest) throws IOException;
+
+    /**
+     * Writes a tile from the supplied buffer.
+     *
+     * @param tileRow The zero-based tile row.
+     * @param tileColumn The zero-based tile column.
+     * @param src A buffer of at least tileSize * tileSize cells.
+     * @throws IOException
+     */
+    void writeTile(int tileRow, int tileColumn, CellBuffer src) throws IOException;
+
+    /**
+     * Retrieves the value held by every cell of a tile, if the store knows
+     * without reading the tile that its cells all hold the same value.
+     *
+     * @param tileRow The zero-based tile row.
+     * @param tileColumn The zero-based tile column.
+     * @return The value, or null if the tile isn't known to be constant.
+     */
+    Double getConstantValue(int tileRow, int tileColumn);
+
+    /**
+     * Forces any modified data out to the underlying file.
+     *
+     * @throws IOException
+     */
+    void flush() throws IOException;
+
+    /**
+     * Releases the resources held by the store.
+     *
+     * @throws IOException
+     */
+    void close() throws IOException;
+
+    /**
+     * Releases the resources held by the store without writing out any
+     * changes, because the underlying file is about to be deleted.
+     *
+     * @throws IOException
+     */
+    void discard() throws IOException;
+}
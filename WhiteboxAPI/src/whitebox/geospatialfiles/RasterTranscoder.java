@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2015 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import whitebox.geospatialfiles.WhiteboxRasterBase.Compression;
+import whitebox.geospatialfiles.WhiteboxRasterBase.DataType;
+
+/**
+ * Converts the cells of a raster to another data type and/or replaces cells
+ * of one value with another, streaming the data file through a pair of large
+ * direct buffers rather than moving cells one at a time through a
+ * WhiteboxRaster. The output is either a new raster or, when the data type
+ * is unchanged, the input raster itself, in which case only the chunks of the
+ * file that change are written. A conversion that changes no cells is a plain
+ * file copy. The conversion is carried out a chunk at a time so that the
+ * caller can report progress and cancel:
+ *
+ * <pre>
+ * RasterTranscoder transcoder = new RasterTranscoder(inputHeader, outputHeader);
+ * transcoder.setDataType(DataType.INTEGER);
+ * while (transcoder.transcodeNextChunk()) {
+ *     updateProgress(transcoder.getProgress());
+ * }
+ * transcoder.close();
+ * </pre>
+ *
+ * The NoData cells of the input become NoData cells of the output. Values are
+ * rounded to the nearest whole number when an INTEGER or BYTE output is
+ * written from a DOUBLE or FLOAT input. Changes that only affect the header
+ * file, e.g. the data scale or palette, don't require a transcoder and should
+ * be made with WhiteboxRasterInfo.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public final class RasterTranscoder {
+
+    /**
+     * The number of bytes of the input file read in each chunk.
+     */
+    public static final int CHUNK_SIZE = 8 * 1048576;
+    private final WhiteboxRasterBase input;
+    private final WhiteboxRasterBase output;
+    private final boolean inPlace;
+    private final long numberOfCells;
+    private final int cellsPerChunk;
+    private boolean hasReplacement = false;
+    private double replacedValue;
+    private double replacement;
+    private boolean started = false;
+    private boolean copyOnly;
+    private boolean rounding;
+    private long nextCell = 0;
+    private double minimum = Double.POSITIVE_INFINITY;
+    private double maximum = Double.NEGATIVE_INFINITY;
+    private ByteBuffer inBuffer;
+    private ByteBuffer outBuffer;
+    private double[] values;
+    private RandomAccessFile outFile;
+    private FileChannel outChannel;
+
+    /**
+     * Class constructor.
+     *
+     * @param inputHeader The header file of the raster to convert.
+     * @param outputHeader The header file of the converted raster. If this is
+     * the same as the input, the input raster is modified in place, which
+     * requires an uncompressed raster.
+     * @throws IOException
+     */
+    public RasterTranscoder(String inputHeader, String outputHeader) throws IOException {
+        if (!new File(inputHeader).exists()) {
+            throw new IOException("The raster " + inputHeader + " could not be found.");
+        }
+        inPlace = new File(inputHeader).getCanonicalFile().equals(new File(outputHeader).getCanonicalFile());
+        input = new WhiteboxRasterBase(inputHeader);
+        if (inPlace && input.compression != Compression.NONE) {
+            throw new IOException("A compressed raster can't be converted in place.");
+        }
+        input.setFileAccess(inPlace ? "rw" : "r");
+        input.setReadAheadDepth(0);
+        if (inPlace) {
+            output = input;
+        } else {
+            // the output starts as a copy of the input's header
+            output = new WhiteboxRasterBase(inputHeader);
+            output.headerFile = outputHeader;
+            output.dataFile = outputHeader.replace(".dep", ".tas");
+            output.statsFile = outputHeader.replace(".dep", ".wstat");
+            output.shortHeaderName = null;
+            output.compression = Compression.NONE;
+            output.tileIndexOffset = -1;
+            output.mosaicSources = null;
+            output.byteOrder = java.nio.ByteOrder.nativeOrder();
+        }
+        numberOfCells = (long) input.numberRows * input.numberColumns * input.numberStacks;
+        // chunks hold whole rows
+        int rowsPerChunk = Math.max(1, CHUNK_SIZE / input.cellSizeInBytes / input.numberColumns);
+        cellsPerChunk = (int) Math.min(numberOfCells, (long) rowsPerChunk * input.numberColumns);
+    }
+
+    /**
+     * Sets the data type of the output. This can't be used when converting a
+     * raster in place.
+     *
+     * @param dataType The data type.
+     */
+    public void setDataType(DataType dataType) {
+        checkNotStarted();
+        if (inPlace && dataType != input.dataType) {
+            throw new IllegalStateException("The data type of a raster can't be changed in place.");
+        }
+        output.setDataType(dataType);
+    }
+
+    /**
+     * Sets the NoData value of the output. Cells holding the input's NoData
+     * value are given this value.
+     *
+     * @param noData The NoData value.
+     */
+    public void setNoDataValue(double noData) {
+        checkNotStarted();
+        output.noDataValue = noData;
+    }
+
+    /**
+     * Replaces every cell holding one value with another value, e.g. to mark
+     * a background value as NoData or to fill NoData cells with zero. The
+     * replacement is made before any conversion of NoData values.
+     *
+     * @param value The value to be replaced.
+     * @param replacement The value replacing it.
+     */
+    public void replaceValue(double value, double replacement) {
+        checkNotStarted();
+        hasReplacement = true;
+        replacedValue = value;
+        this.replacement = replacement;
+    }
+
+    /**
+     * Retrieves the raster being written, e.g. to set its palette, data scale
+     * or metadata before the conversion is finished. Its header is written
+     * when the transcoder is closed.
+     *
+     * @return The output raster.
+     */
+    public WhiteboxRasterBase getOutput() {
+        return output;
+    }
+
+    private void checkNotStarted() {
+        if (started) {
+            throw new IllegalStateException("The conversion has already started.");
+        }
+    }
+
+    private void start() throws IOException {
+        started = true;
+        boolean fractionalInput = input.dataType == DataType.DOUBLE || input.dataType == DataType.FLOAT;
+        rounding = fractionalInput && (output.dataType == DataType.INTEGER || output.dataType == DataType.BYTE);
+        // the data can be copied byte for byte if nothing about the cells
+        // changes
+        copyOnly = !inPlace && input.compression == Compression.NONE
+                && output.dataType == input.dataType && output.byteOrder.equals(input.byteOrder)
+                && output.noDataValue == input.noDataValue
+                && (!hasReplacement || replacedValue == replacement);
+        if (input.compression == Compression.NONE) {
+            inBuffer = ByteBuffer.allocateDirect(cellsPerChunk * input.cellSizeInBytes);
+            inBuffer.order(input.byteOrder);
+        }
+        if (!copyOnly) {
+            values = new double[cellsPerChunk];
+            outBuffer = ByteBuffer.allocateDirect(cellsPerChunk * output.cellSizeInBytes);
+            outBuffer.order(output.byteOrder);
+        }
+        if (!inPlace) {
+            new File(output.dataFile).delete();
+            DataFileChannel.invalidate(output.dataFile);
+            outFile = new RandomAccessFile(output.dataFile, "rw");
+            outChannel = outFile.getChannel();
+        }
+        if (copyOnly) {
+            // the statistics are unchanged
+            minimum = input.minimumValue;
+            maximum = input.maximumValue;
+        }
+    }
+
+    /**
+     * Converts the next chunk of cells.
+     *
+     * @return false once every cell has been converted.
+     * @throws IOException
+     */
+    public boolean transcodeNextChunk() throws IOException {
+        if (!started) {
+            start();
+        }
+        if (nextCell >= numberOfCells) {
+            return false;
+        }
+        int length = (int) Math.min(cellsPerChunk, numberOfCells - nextCell);
+        if (copyOnly) {
+            long pos = nextCell * input.cellSizeInBytes;
+            long count = (long) length * input.cellSizeInBytes;
+            try (DataFileChannel.Handle in = input.openDataChannel(false)) {
+                while (count > 0) {
+                    long n = in.channel.transferTo(pos, count, outChannel);
+                    if (n <= 0) {
+                        break;
+                    }
+                    pos += n;
+                    count -= n;
+                }
+            }
+        } else {
+            readChunk(length);
+            boolean changed = convert(length);
+            if (!inPlace || changed) {
+                writeChunk(length);
+            }
+        }
+        nextCell += length;
+        return nextCell < numberOfCells;
+    }
+
+    private void readChunk(int length) throws IOException {
+        if (input.compression != Compression.NONE) {
+            // compressed and virtual rasters are read a row at a time
+            int cols = input.numberColumns;
+            double[] row = new double[cols];
+            for (int i = 0; i < length; i += cols) {
+                long fileRow = (nextCell + i) / cols;
+                input.getRowValues((int) (fileRow % input.numberRows), (int) (fileRow / input.numberRows), row);
+                System.arraycopy(row, 0, values, i, cols);
+            }
+            return;
+        }
+        inBuffer.clear();
+        inBuffer.limit(length * input.cellSizeInBytes);
+        long pos = nextCell * input.cellSizeInBytes;
+        try (DataFileChannel.Handle in = input.openDataChannel(false)) {
+            while (inBuffer.hasRemaining()) {
+                if (in.channel.read(inBuffer, pos + inBuffer.position()) < 0) {
+                    break;
+                }
+            }
+        }
+        while (inBuffer.hasRemaining()) {
+            // the file is shorter than expected
+            inBuffer.put((byte) 0);
+        }
+        inBuffer.flip();
+        switch (input.dataType) {
+            case DOUBLE:
+                inBuffer.asDoubleBuffer().get(values, 0, length);
+                break;
+            case FLOAT:
+                for (int i = 0; i < length; i++) {
+                    values[i] = inBuffer.getFloat(i << 2);
+                }
+                break;
+            case INTEGER:
+                for (int i = 0; i < length; i++) {
+                    values[i] = inBuffer.getShort(i << 1);
+                }
+                break;
+            case BYTE:
+                for (int i = 0; i < length; i++) {
+                    values[i] = inBuffer.get(i) & 0xFF;
+                }
+                break;
+        }
+    }
+
+    /**
+     * Converts the values of a chunk in place, recording the output's range.
+     *
+     * @return true if any value was changed.
+     */
+    private boolean convert(int length) {
+        double inNoData = input.noDataValue;
+        double outNoData = output.noDataValue;
+        boolean changed = false;
+        for (int i = 0; i < length; i++) {
+            double z = values[i];
+            double v = z;
+            if (hasReplacement && v == replacedValue) {
+                v = replacement;
+            }
+            if (v == inNoData) {
+                v = outNoData;
+            } else if (rounding) {
+                v = Math.round(v);
+            }
+            if (v != outNoData) {
+                if (v < minimum) {
+                    minimum = v;
+                }
+                if (v > maximum) {
+                    maximum = v;
+                }
+            }
+            if (v != z) {
+                values[i] = v;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private void writeChunk(int length) throws IOException {
+        outBuffer.clear();
+        switch (output.dataType) {
+            case DOUBLE:
+                outBuffer.asDoubleBuffer().put(values, 0, length);
+                break;
+            case FLOAT:
+                for (int i = 0; i < length; i++) {
+                    outBuffer.putFloat(i << 2, (float) values[i]);
+                }
+                break;
+            case INTEGER:
+                for (int i = 0; i < length; i++) {
+                    outBuffer.putShort(i << 1, CellBuffer.toShort(values[i]));
+                }
+                break;
+            case BYTE:
+                for (int i = 0; i < length; i++) {
+                    outBuffer.put(i, CellBuffer.toByte(values[i]));
+                }
+                break;
+        }
+        outBuffer.limit(length * output.cellSizeInBytes);
+        long pos = nextCell * output.cellSizeInBytes;
+        if (!inPlace) {
+            while (outBuffer.hasRemaining()) {
+                outChannel.write(outBuffer, pos + outBuffer.position());
+            }
+            return;
+        }
+        try (DataFileChannel.Handle out = input.openDataChannel(true)) {
+            while (outBuffer.hasRemaining()) {
+                out.channel.write(outBuffer, pos + outBuffer.position());
+            }
+        }
+    }
+
+    /**
+     * Retrieves the progress of the conversion.
+     *
+     * @return The percentage of cells converted.
+     */
+    public int getProgress() {
+        return numberOfCells == 0 ? 100 : (int) (100 * nextCell / numberOfCells);
+    }
+
+    /**
+     * Finishes the conversion and writes the output's header file. If the
+     * conversion was abandoned before every cell had been converted, e.g.
+     * because the operation was cancelled, a new output raster is deleted
+     * instead.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        try {
+            if (!started) {
+                start();
+            }
+            boolean finished = nextCell >= numberOfCells;
+            if (outFile != null) {
+                outFile.close();
+                outFile = null;
+                outChannel = null;
+            }
+            if (!finished && !inPlace) {
+                new File(output.dataFile).delete();
+                return;
+            }
+            if (finished) {
+                if (!inPlace && !copyOnly) {
+                    output.displayMinimum = minimum;
+                    output.displayMaximum = maximum;
+                }
+                if (minimum <= maximum) {
+                    output.minimumValue = minimum;
+                    output.maximumValue = maximum;
+                }
+            }
+            // any stored statistics no longer describe the data
+            output.deleteStatsFile();
+            output.writeHeaderFile();
+        } finally {
+            if (outFile != null) {
+                outFile.close();
+                outFile = null;
+                outChannel = null;
+            }
+            input.releaseDataChannel();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2015 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import whitebox.utilities.NamedThreadFactory;
+
+/**
+ * Reads rows of a raster data file ahead of a sequential scan. Once a scan is
+ * detected, the next few rows are read on a background thread while the
+ * current row is being processed, so that the caller rarely waits on the
+ * disk. Scans that step over a constant number of rows, such as those used to
+ * draw a downsampled display, are also followed. Rows are identified by their
+ * position in the file, i.e. stack * numberRows + row, so that multi-stack
+ * files are handled.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+class RowReadAhead {
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)),
+            new NamedThreadFactory("RowReadAhead"));
+    private final WhiteboxRasterBase raster;
+    private final int rowSizeInBytes;
+    private final long numberOfRows;
+    private final int depth;
+    private final HashMap<Long, Future<ByteBuffer>> pending = new HashMap<>();
+    private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+    private long lastRow = -1;
+    private long nextRow = 0;
+    private long stride = 1;
+
+    /**
+     * Class constructor.
+     *
+     * @param raster The raster to read.
+     * @param numberOfRows The number of rows in the file, across all stacks.
+     * @param depth The number of rows to read ahead of the current one.
+     */
+    RowReadAhead(WhiteboxRasterBase raster, long numberOfRows, int depth) {
+        this.raster = raster;
+        this.rowSizeInBytes = raster.numberColumns * raster.cellSizeInBytes;
+        this.numberOfRows = numberOfRows;
+        this.depth = depth;
+    }
+
+    /**
+     * Copies a row into the destination buffer if it has been read ahead, and
+     * schedules the reading of the rows that follow it.
+     *
+     * @param fileRow The row's position in the file.
+     * @param dest The buffer to fill, positioned at zero.
+     * @return True if the row was supplied, or false if the caller must read
+     * it itself.
+     * @throws IOException
+     */
+    boolean take(long fileRow, ByteBuffer dest) throws IOException {
+        Future<ByteBuffer> future;
+        synchronized (this) {
+            future = pending.remove(fileRow);
+            long delta = fileRow - lastRow;
+            lastRow = fileRow;
+            if (future == null && delta != stride) {
+                // random access or a new stride; abandon the current window
+                cancel();
+                stride = delta > 0 ? delta : 1;
+                nextRow = fileRow + stride;
+                return false;
+            }
+            // drop any rows that have been skipped over
+            Iterator<Map.Entry<Long, Future<ByteBuffer>>> it = pending.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, Future<ByteBuffer>> entry = it.next();
+                if (entry.getKey() < fileRow) {
+                    entry.getValue().cancel(false);
+                    it.remove();
+                }
+            }
+            if (nextRow <= fileRow) {
+                nextRow = fileRow + stride;
+            }
+            long endRow = Math.min(fileRow + depth * stride, numberOfRows - 1);
+            while (nextRow <= endRow) {
+                schedule(nextRow);
+                nextRow += stride;
+            }
+        }
+        if (future == null) {
+            return false;
+        }
+        ByteBuffer src;
+        try {
+            src = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            return false;
+        }
+        dest.put(src);
+        synchronized (this) {
+            freeBuffers.add(src);
+        }
+        return true;
+    }
+
+    private void schedule(final long fileRow) {
+        ByteBuffer buf = freeBuffers.poll();
+        if (buf == null) {
+            buf = ByteBuffer.allocateDirect(rowSizeInBytes);
+        }
+        final ByteBuffer rowBuffer = buf;
+        pending.put(fileRow, executor.submit(new Callable<ByteBuffer>() {
+            @Override
+            public ByteBuffer call() throws IOException {
+                rowBuffer.clear();
+                rowBuffer.limit(rowSizeInBytes);
+                raster.readRowFromFile(fileRow, rowBuffer);
+                return rowBuffer;
+            }
+        }));
+    }
+
+    /**
+     * Abandons any rows that have not yet been taken.
+     */
+    synchronized void cancel() {
+        for (Future<ByteBuffer> future : pending.values()) {
+            // don't interrupt; that would close the shared channel
+            future.cancel(false);
+        }
+        pending.clear();
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2015 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.io.IOException;
+import java.util.BitSet;
+import whitebox.geospatialfiles.WhiteboxRasterBase.DataType;
+
+/**
+ * Keeps the statistics of a new raster up to date as its data are written, so
+ * that they are known when the raster is closed without reading the data file
+ * again. The data file starts out holding the initial value in every cell.
+ * Each time a block, row or tile is written, the summary of the values it
+ * replaces is subtracted and that of the new values is added.
+ *
+ * The values being replaced must be known. The cells of rows and tiles that
+ * have never been written still hold the initial value, and for these nothing
+ * need be read. Otherwise, the values of a block are summarized when it is
+ * first modified in memory and the summary is handed on with the block when
+ * it is written, and those of a row or tile are read from the data
+ * file just before they are overwritten.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+final class StreamingStatistics {
+
+    private final DataType dataType;
+    private final double noDataValue;
+    private final int numberRows;
+    private final int numberColumns;
+    private final int tileSize;
+    private final int numTileColumns;
+    private RasterStatistics totals;
+    private double initialValue;
+    // rows that have been written as part of a row or block, and tiles that
+    // have been written through a tile store
+    private final BitSet writtenRows = new BitSet();
+    private final BitSet writtenTiles = new BitSet();
+    private boolean valid = true;
+
+    /**
+     * Class constructor.
+     *
+     * @param dataType The raster's data type.
+     * @param noDataValue The raster's NoData value.
+     * @param initialValue The value held by every cell of the new data file.
+     * @param numberRows The number of rows.
+     * @param numberColumns The number of columns.
+     * @param tileSize The tile size of any tile store that will be wrapped.
+     */
+    StreamingStatistics(DataType dataType, double noDataValue, double initialValue,
+            int numberRows, int numberColumns, int tileSize) {
+        this.dataType = dataType;
+        this.noDataValue = noDataValue;
+        this.numberRows = numberRows;
+        this.numberColumns = numberColumns;
+        this.tileSize = tileSize;
+        this.numTileColumns = (numberColumns + tileSize - 1) / tileSize;
+        this.initialValue = storedValue(initialValue);
+        totals = newStatistics();
+        totals.add(this.initialValue, (long) numberRows * numberColumns);
+    }
+
+    /**
+     * Converts a value to the value that will be read back once it has been
+     * stored in the data file.
+     */
+    private double storedValue(double z) {
+        switch (dataType) {
+            case FLOAT:
+                return (float) z;
+            case INTEGER:
+                return (short) z;
+            case BYTE:
+                return ((byte) z) & 0xFF;
+            default:
+                return z;
+        }
+    }
+
+    /**
+     * Creates an empty summary. The summaries of blocks, and so the totals,
+     * leave out the quantile sketch, which would cost more to keep than the
+     * pass over the data file that they save.
+     */
+    private RasterStatistics newStatistics() {
+        return new RasterStatistics(dataType, noDataValue, initialValue, false);
+    }
+
+    /**
+     * Returns true if the statistics reflect every write to the data file and
+     * were gathered under the raster's current data type and NoData value.
+     */
+    synchronized boolean isValid(DataType dataType, double noDataValue) {
+        return valid && dataType == this.dataType && noDataValue == this.noDataValue;
+    }
+
+    /**
+     * Gives up tracking, e.g. after the data file has been written by some
+     * means that doesn't report the values it replaced.
+     */
+    synchronized void invalidate() {
+        valid = false;
+    }
+
+    /**
+     * Starts over after the data file has been recreated with every cell
+     * holding the given value.
+     */
+    synchronized void reset(double initialValue) {
+        this.initialValue = storedValue(initialValue);
+        totals = newStatistics();
+        totals.add(this.initialValue, (long) numberRows * numberColumns);
+        writtenRows.clear();
+        writtenTiles.clear();
+    }
+
+    /**
+     * Retrieves the statistics of the whole raster.
+     */
+    synchronized RasterStatistics getTotals() {
+        return totals;
+    }
+
+    private boolean isPristine(int startRow, int endRow) {
+        int next = writtenRows.nextSetBit(startRow);
+        if (next >= 0 && next <= endRow) {
+            return false;
+        }
+        if (!writtenTiles.isEmpty()) {
+            for (int tr = startRow / tileSize; tr <= endRow / tileSize; tr++) {
+                next = writtenTiles.nextSetBit(tr * numTileColumns);
+                if (next >= 0 && next < (tr + 1) * numTileColumns) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean isTilePristine(int tileRow, int tileColumn) {
+        if (writtenTiles.get(tileRow * numTileColumns + tileColumn)) {
+            return false;
+        }
+        int startRow = tileRow * tileSize;
+        int endRow = Math.min(numberRows, startRow + tileSize) - 1;
+        int next = writtenRows.nextSetBit(startRow);
+        return next < 0 || next > endRow;
+    }
+
+    /**
+     * Summarizes the contents of a block before it is first modified in
+     * memory. The summary travels with the block until it is written.
+     *
+     * @param grid The block.
+     * @param startingCell The cell number of the block's first cell.
+     * @return The summary of the block's old values, or null if the
+     * statistics are no longer being tracked.
+     */
+    synchronized RasterStatistics blockModified(CellBuffer grid, long startingCell) {
+        if (!valid) {
+            return null;
+        }
+        RasterStatistics before = newStatistics();
+        int startRow = (int) (startingCell / numberColumns);
+        int endRow = (int) ((startingCell + grid.length() - 1) / numberColumns);
+        if (isPristine(startRow, endRow)) {
+            before.add(initialValue, grid.length());
+        } else {
+            for (int i = 0; i < grid.length(); i++) {
+                before.add(grid.get(i));
+            }
+        }
+        return before;
+    }
+
+    /**
+     * Replaces a block's old contribution with its new contents as it is
+     * written to the data file. This is called by the thread writing the
+     * block, and the block must not be modified in the meantime.
+     *
+     * @param grid The block.
+     * @param startingCell The cell number of the block's first cell.
+     * @param before The summary returned by blockModified.
+     * @return The statistics of the block as written.
+     */
+    RasterStatistics blockWritten(CellBuffer grid, long startingCell, RasterStatistics before) {
+        RasterStatistics written = newStatistics();
+        for (int i = 0; i < grid.length(); i++) {
+            written.add(grid.get(i));
+        }
+        int startRow = (int) (startingCell / numberColumns);
+        int endRow = (int) ((startingCell + grid.length() - 1) / numberColumns);
+        synchronized (this) {
+            if (valid) {
+                totals.subtract(before);
+                totals.merge(written);
+                writtenRows.set(startRow, endRow + 1);
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Returns true if the row's cells may no longer hold the initial value,
+     * in which case its old values must be supplied to rowWritten.
+     */
+    synchronized boolean isRowWritten(int row) {
+        return !isPristine(row, row);
+    }
+
+    /**
+     * Replaces a row's old contribution with its new values.
+     *
+     * @param row The row.
+     * @param oldValues The row's values in the data file, or null if it has
+     * never been written.
+     * @param newValues The values being written.
+     */
+    synchronized void rowWritten(int row, double[] oldValues, double[] newValues) {
+        if (!valid) {
+            return;
+        }
+        if (oldValues == null) {
+            totals.remove(initialValue, numberColumns);
+        } else {
+            for (int col = 0; col < numberColumns; col++) {
+                totals.remove(oldValues[col]);
+            }
+        }
+        for (int col = 0; col < numberColumns; col++) {
+            totals.add(storedValue(newValues[col]));
+        }
+        writtenRows.set(row);
+    }
+
+    /**
+     * Wraps a tile store so that the values of each tile are tracked as it is
+     * written.
+     */
+    RasterTileStore wrap(RasterTileStore store) {
+        if (store.getTileSize() != tileSize) {
+            invalidate();
+            return store;
+        }
+        return new TrackingStore(store);
+    }
+
+    private final class TrackingStore implements RasterTileStore {
+
+        private final RasterTileStore store;
+        private final ThreadLocal<CellBuffer> oldTile = new ThreadLocal<>();
+
+        TrackingStore(RasterTileStore store) {
+            this.store = store;
+        }
+
+        @Override
+        public int getTileSize() {
+            return tileSize;
+        }
+
+        @Override
+        public void readTile(int tileRow, int tileColumn, CellBuffer dest) throws IOException {
+            store.readTile(tileRow, tileColumn, dest);
+        }
+
+        @Override
+        public void writeTile(int tileRow, int tileColumn, CellBuffer src) throws IOException {
+            CellBuffer old = null;
+            boolean pristine;
+            synchronized (StreamingStatistics.this) {
+                pristine = !valid || isTilePristine(tileRow, tileColumn);
+            }
+            if (!pristine) {
+                old = oldTile.get();
+                if (old == null) {
+                    old = CellBuffer.create(dataType, tileSize * tileSize);
+                    oldTile.set(old);
+                }
+                store.readTile(tileRow, tileColumn, old);
+            }
+            int rows = Math.min(tileSize, numberRows - tileRow * tileSize);
+            int cols = Math.min(tileSize, numberColumns - tileColumn * tileSize);
+            synchronized (StreamingStatistics.this) {
+                if (valid) {
+                    if (old == null) {
+                        totals.remove(initialValue, (long) rows * cols);
+                    }
+                    for (int r = 0; r < rows; r++) {
+                        for (int c = 0; c < cols; c++) {
+                            int i = r * tileSize + c;
+                            if (old != null) {
+                                totals.remove(old.get(i));
+                            }
+                            totals.add(src.get(i));
+                        }
+                    }
+                    writtenTiles.set(tileRow * numTileColumns + tileColumn);
+                }
+            }
+            store.writeTile(tileRow, tileColumn, src);
+        }
+
+        @Override
+        public Double getConstantValue(int tileRow, int tileColumn) {
+            return store.getConstantValue(tileRow, tileColumn);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            store.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            store.close();
+        }
+
+        @Override
+        public void discard() throws IOException {
+            store.discard();
+        }
+    }
+}
@@ -0,0 +1,557 @@
+/*
+ * Copyright (C) 2015 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes and decodes the strips and tiles of compressed TIFF files. The LZW
+ * (5), Deflate (8 and the obsolete 32946) and PackBits (32773) compression
+ * schemes can be decoded, along with the horizontal differencing (2) and
+ * floating-point (3) predictors that usually accompany LZW and Deflate. LZW
+ * and Deflate, and both predictors, can also be encoded.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+final class TiffCodec {
+
+    static final int COMPRESSION_NONE = 1;
+    static final int COMPRESSION_LZW = 5;
+    static final int COMPRESSION_DEFLATE = 8;
+    static final int COMPRESSION_PACKBITS = 32773;
+    static final int COMPRESSION_DEFLATE_OLD = 32946;
+    static final int PREDICTOR_NONE = 1;
+    static final int PREDICTOR_HORIZONTAL = 2;
+    static final int PREDICTOR_FLOATING_POINT = 3;
+    private static final int LZW_CLEAR = 256;
+    private static final int LZW_EOI = 257;
+
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION);
+        }
+    };
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private TiffCodec() {
+    }
+
+    /**
+     * Determines whether a compression scheme can be decoded.
+     *
+     * @param compression The value of the Compression tag.
+     * @return true if the scheme is supported.
+     */
+    static boolean isSupported(int compression) {
+        switch (compression) {
+            case COMPRESSION_NONE:
+            case COMPRESSION_LZW:
+            case COMPRESSION_DEFLATE:
+            case COMPRESSION_DEFLATE_OLD:
+            case COMPRESSION_PACKBITS:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Decompresses a strip or tile. If the data decode to fewer bytes than
+     * the destination holds, the remainder is left as zeros.
+     *
+     * @param compression The value of the Compression tag.
+     * @param src The compressed bytes.
+     * @param srcLength The number of compressed bytes.
+     * @param dest The decompressed bytes.
+     * @throws IOException if the scheme is unsupported or the data are
+     * corrupt.
+     */
+    static void decompress(int compression, byte[] src, int srcLength, byte[] dest) throws IOException {
+        switch (compression) {
+            case COMPRESSION_NONE:
+                System.arraycopy(src, 0, dest, 0, Math.min(srcLength, dest.length));
+                break;
+            case COMPRESSION_LZW:
+                decodeLZW(src, srcLength, dest);
+                break;
+            case COMPRESSION_DEFLATE:
+            case COMPRESSION_DEFLATE_OLD:
+                inflate(src, srcLength, dest);
+                break;
+            case COMPRESSION_PACKBITS:
+                decodePackBits(src, srcLength, dest);
+                break;
+            default:
+                throw new IOException("TIFF compression type " + compression + " is not supported.");
+        }
+    }
+
+    /**
+     * Decodes TIFF LZW data, i.e. variable-width codes of 9 to 12 bits
+     * packed most significant bit first, with the code width increasing one
+     * code early.
+     */
+    static int decodeLZW(byte[] src, int srcLength, byte[] dest) throws IOException {
+        if (srcLength >= 2 && src[0] == 0 && (src[1] & 1) != 0) {
+            throw new IOException("Old-style TIFF LZW compression is not supported.");
+        }
+        int[] prefix = new int[4096];
+        byte[] suffix = new byte[4096];
+        byte[] first = new byte[4096];
+        int[] length = new int[4096];
+        for (int i = 0; i < 256; i++) {
+            prefix[i] = -1;
+            suffix[i] = (byte) i;
+            first[i] = (byte) i;
+            length[i] = 1;
+        }
+        int next = 258;
+        int width = 9;
+        int old = -1;
+        int out = 0;
+        int pos = 0;
+        int bitBuffer = 0;
+        int bitCount = 0;
+        while (out < dest.length) {
+            while (bitCount < width) {
+                if (pos >= srcLength) {
+                    return out;
+                }
+                bitBuffer = (bitBuffer << 8) | (src[pos++] & 0xFF);
+                bitCount += 8;
+            }
+            int code = (bitBuffer >>> (bitCount - width)) & ((1 << width) - 1);
+            bitCount -= width;
+            bitBuffer &= (1 << bitCount) - 1;
+            if (code == LZW_EOI) {
+                break;
+            }
+            if (code == LZW_CLEAR) {
+                next = 258;
+                width = 9;
+                old = -1;
+                continue;
+            }
+            if (old == -1) {
+                if (code > 255) {
+                    throw new IOException("The LZW data are corrupt.");
+                }
+                dest[out++] = (byte) code;
+                old = code;
+                continue;
+            }
+            byte firstByte;
+            if (code < next) {
+                out = writeString(code, prefix, suffix, length, dest, out);
+                firstByte = first[code];
+            } else if (code == next) {
+                // the code being defined: the previous string plus its own
+                // first byte
+                firstByte = first[old];
+                out = writeString(old, prefix, suffix, length, dest, out);
+                if (out < dest.length) {
+                    dest[out++] = firstByte;
+                }
+            } else {
+                throw new IOException("The LZW data are corrupt.");
+            }
+            if (next < 4096) {
+                prefix[next] = old;
+                suffix[next] = firstByte;
+                first[next] = first[old];
+                length[next] = length[old] + 1;
+                next++;
+                if (next == (1 << width) - 1 && width < 12) {
+                    width++;
+                }
+            }
+            old = code;
+        }
+        return out;
+    }
+
+    private static int writeString(int code, int[] prefix, byte[] suffix, int[] length,
+            byte[] dest, int out) {
+        int len = length[code];
+        int end = out + len;
+        // skip the tail of a string overrunning the destination
+        while (end > dest.length) {
+            code = prefix[code];
+            end--;
+        }
+        for (int i = end - 1; i >= out; i--) {
+            dest[i] = suffix[code];
+            code = prefix[code];
+        }
+        return out + len;
+    }
+
+    static int inflate(byte[] src, int srcLength, byte[] dest) throws IOException {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(src, 0, srcLength);
+        int out = 0;
+        try {
+            while (out < dest.length) {
+                int n = inflater.inflate(dest, out, dest.length - out);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                out += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("The Deflate data are corrupt.", e);
+        }
+        return out;
+    }
+
+    static int decodePackBits(byte[] src, int srcLength, byte[] dest) {
+        int pos = 0;
+        int out = 0;
+        while (pos < srcLength && out < dest.length) {
+            int n = src[pos++];
+            if (n >= 0) {
+                // a literal run of n + 1 bytes
+                int count = Math.min(Math.min(n + 1, srcLength - pos), dest.length - out);
+                System.arraycopy(src, pos, dest, out, count);
+                pos += n + 1;
+                out += count;
+            } else if (n != -128) {
+                // the next byte repeated 1 - n times
+                if (pos >= srcLength) {
+                    break;
+                }
+                byte b = src[pos++];
+                int count = Math.min(1 - n, dest.length - out);
+                for (int i = 0; i < count; i++) {
+                    dest[out++] = b;
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Reverses a predictor applied to a decompressed strip or tile.
+     *
+     * @param predictor The value of the Predictor tag.
+     * @param data The decompressed bytes, replaced by the original samples.
+     * @param width The number of pixels in each row of the strip or tile.
+     * @param rows The number of rows.
+     * @param samplesPerPixel The number of samples per pixel.
+     * @param bytesPerSample The size of each sample.
+     * @param byteOrder The byte order of the file.
+     * @throws IOException if the predictor is unsupported.
+     */
+    static void undoPredictor(int predictor, byte[] data, int width, int rows, int samplesPerPixel,
+            int bytesPerSample, ByteOrder byteOrder) throws IOException {
+        switch (predictor) {
+            case PREDICTOR_NONE:
+                break;
+            case PREDICTOR_HORIZONTAL:
+                undoHorizontalDifferencing(data, width, rows, samplesPerPixel, bytesPerSample,
+                        byteOrder == ByteOrder.BIG_ENDIAN);
+                break;
+            case PREDICTOR_FLOATING_POINT:
+                undoFloatingPointPredictor(data, width, rows, samplesPerPixel, bytesPerSample,
+                        byteOrder == ByteOrder.BIG_ENDIAN);
+                break;
+            default:
+                throw new IOException("TIFF predictor " + predictor + " is not supported.");
+        }
+    }
+
+    /**
+     * Horizontal differencing stores each sample as its difference from the
+     * same sample of the preceding pixel, in the sample's own width.
+     */
+    private static void undoHorizontalDifferencing(byte[] data, int width, int rows,
+            int samplesPerPixel, int bytesPerSample, boolean bigEndian) {
+        int rowSize = width * samplesPerPixel * bytesPerSample;
+        int stride = samplesPerPixel * bytesPerSample;
+        for (int r = 0; r < rows; r++) {
+            int start = r * rowSize;
+            int end = Math.min(start + rowSize, data.length);
+            if (bytesPerSample == 1) {
+                for (int i = start + stride; i < end; i++) {
+                    data[i] += data[i - stride];
+                }
+                continue;
+            }
+            for (int i = start + stride; i + bytesPerSample <= end; i += bytesPerSample) {
+                long v = getSample(data, i, bytesPerSample, bigEndian)
+                        + getSample(data, i - stride, bytesPerSample, bigEndian);
+                putSample(data, i, bytesPerSample, bigEndian, v);
+            }
+        }
+    }
+
+    private static long getSample(byte[] data, int pos, int size, boolean bigEndian) {
+        long v = 0;
+        if (bigEndian) {
+            for (int b = 0; b < size; b++) {
+                v = (v << 8) | (data[pos + b] & 0xFF);
+            }
+        } else {
+            for (int b = size - 1; b >= 0; b--) {
+                v = (v << 8) | (data[pos + b] & 0xFF);
+            }
+        }
+        return v;
+    }
+
+    private static void putSample(byte[] data, int pos, int size, boolean bigEndian, long v) {
+        if (bigEndian) {
+            for (int b = size - 1; b >= 0; b--) {
+                data[pos + b] = (byte) v;
+                v >>>= 8;
+            }
+        } else {
+            for (int b = 0; b < size; b++) {
+                data[pos + b] = (byte) v;
+                v >>>= 8;
+            }
+        }
+    }
+
+    /**
+     * The floating-point predictor splits the bytes of each row of samples
+     * into planes, most significant byte first whatever the byte order of the
+     * file, and then differences the bytes of the row.
+     */
+    private static void undoFloatingPointPredictor(byte[] data, int width, int rows,
+            int samplesPerPixel, int bytesPerSample, boolean bigEndian) {
+        int samplesPerRow = width * samplesPerPixel;
+        int rowSize = samplesPerRow * bytesPerSample;
+        byte[] planes = new byte[rowSize];
+        for (int r = 0; r < rows; r++) {
+            int start = r * rowSize;
+            if (start + rowSize > data.length) {
+                break;
+            }
+            for (int i = start + samplesPerPixel; i < start + rowSize; i++) {
+                data[i] += data[i - samplesPerPixel];
+            }
+            System.arraycopy(data, start, planes, 0, rowSize);
+            for (int s = 0; s < samplesPerRow; s++) {
+                int pos = start + s * bytesPerSample;
+                for (int b = 0; b < bytesPerSample; b++) {
+                    byte v = planes[b * samplesPerRow + s];
+                    data[bigEndian ? pos + b : pos + bytesPerSample - 1 - b] = v;
+                }
+            }
+        }
+    }
+
+    /**
+     * Compresses a strip or tile.
+     *
+     * @param compression The value of the Compression tag; NONE, LZW or
+     * DEFLATE.
+     * @param src The bytes to compress.
+     * @return The compressed bytes.
+     * @throws IOException if the scheme can't be encoded.
+     */
+    static byte[] compress(int compression, byte[] src) throws IOException {
+        switch (compression) {
+            case COMPRESSION_NONE:
+                return src;
+            case COMPRESSION_LZW:
+                return encodeLZW(src);
+            case COMPRESSION_DEFLATE:
+            case COMPRESSION_DEFLATE_OLD:
+                return deflate(src);
+            default:
+                throw new IOException("TIFF compression type " + compression + " can't be written.");
+        }
+    }
+
+    static byte[] deflate(byte[] src) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(src);
+        deflater.finish();
+        byte[] out = new byte[src.length / 2 + 64];
+        int n = 0;
+        while (!deflater.finished()) {
+            if (n == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            n += deflater.deflate(out, n, out.length - n);
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    /**
+     * Encodes TIFF LZW data. Strings are found in an open-addressed hash
+     * table keyed on the prefix code and the next byte. The table is cleared
+     * when it is full, as libtiff does.
+     */
+    static byte[] encodeLZW(byte[] src) {
+        LZWWriter out = new LZWWriter(src.length / 2 + 64);
+        int[] keys = new int[8192];
+        short[] codes = new short[8192];
+        Arrays.fill(keys, -1);
+        int next = 258;
+        int width = 9;
+        out.write(LZW_CLEAR, width);
+        if (src.length == 0) {
+            out.write(LZW_EOI, width);
+            return out.toByteArray();
+        }
+        int w = src[0] & 0xFF;
+        for (int i = 1; i < src.length; i++) {
+            int k = src[i] & 0xFF;
+            int key = (w << 8) | k;
+            int h = (key * 0x9E3779B1) >>> 19;
+            while (keys[h] != -1 && keys[h] != key) {
+                h = (h + 1) & 8191;
+            }
+            if (keys[h] == key) {
+                w = codes[h];
+                continue;
+            }
+            out.write(w, width);
+            keys[h] = key;
+            codes[h] = (short) next;
+            next++;
+            if (next == (1 << width) && width < 12) {
+                width++;
+            }
+            if (next >= 4094) {
+                out.write(LZW_CLEAR, width);
+                Arrays.fill(keys, -1);
+                next = 258;
+                width = 9;
+            }
+            w = k;
+        }
+        out.write(w, width);
+        // the decoder adds an entry for the last code, which may widen the
+        // end-of-information code
+        if (next + 1 == (1 << width) && width < 12) {
+            width++;
+        }
+        out.write(LZW_EOI, width);
+        return out.toByteArray();
+    }
+
+    /**
+     * Packs variable-width codes, most significant bit first.
+     */
+    private static final class LZWWriter {
+
+        private byte[] buffer;
+        private int length = 0;
+        private int bitBuffer = 0;
+        private int bitCount = 0;
+
+        LZWWriter(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        void write(int code, int width) {
+            bitBuffer = (bitBuffer << width) | code;
+            bitCount += width;
+            while (bitCount >= 8) {
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                buffer[length++] = (byte) (bitBuffer >>> (bitCount - 8));
+                bitCount -= 8;
+            }
+            bitBuffer &= (1 << bitCount) - 1;
+        }
+
+        byte[] toByteArray() {
+            if (bitCount > 0) {
+                write(0, 8 - bitCount);
+            }
+            return Arrays.copyOf(buffer, length);
+        }
+    }
+
+    /**
+     * Applies a predictor to a strip or tile before it is compressed; the
+     * reverse of undoPredictor.
+     *
+     * @param predictor The value of the Predictor tag.
+     * @param data The samples, replaced by the predicted bytes.
+     * @param width The number of pixels in each row of the strip or tile.
+     * @param rows The number of rows.
+     * @param samplesPerPixel The number of samples per pixel.
+     * @param bytesPerSample The size of each sample.
+     * @param byteOrder The byte order of the file.
+     * @throws IOException if the predictor is unsupported.
+     */
+    static void applyPredictor(int predictor, byte[] data, int width, int rows, int samplesPerPixel,
+            int bytesPerSample, ByteOrder byteOrder) throws IOException {
+        boolean bigEndian = byteOrder == ByteOrder.BIG_ENDIAN;
+        int samplesPerRow = width * samplesPerPixel;
+        int rowSize = samplesPerRow * bytesPerSample;
+        int stride = samplesPerPixel * bytesPerSample;
+        switch (predictor) {
+            case PREDICTOR_NONE:
+                break;
+            case PREDICTOR_HORIZONTAL:
+                for (int r = 0; r < rows; r++) {
+                    int start = r * rowSize;
+                    if (bytesPerSample == 1) {
+                        for (int i = start + rowSize - 1; i >= start + stride; i--) {
+                            data[i] -= data[i - stride];
+                        }
+                        continue;
+                    }
+                    for (int i = start + rowSize - bytesPerSample; i >= start + stride; i -= bytesPerSample) {
+                        long v = getSample(data, i, bytesPerSample, bigEndian)
+                                - getSample(data, i - stride, bytesPerSample, bigEndian);
+                        putSample(data, i, bytesPerSample, bigEndian, v);
+                    }
+                }
+                break;
+            case PREDICTOR_FLOATING_POINT:
+                byte[] row = new byte[rowSize];
+                for (int r = 0; r < rows; r++) {
+                    int start = r * rowSize;
+                    for (int s = 0; s < samplesPerRow; s++) {
+                        int pos = start + s * bytesPerSample;
+                        for (int b = 0; b < bytesPerSample; b++) {
+                            row[b * samplesPerRow + s] = data[bigEndian ? pos + b : pos + bytesPerSample - 1 - b];
+                        }
+                    }
+                    for (int i = rowSize - 1; i >= samplesPerPixel; i--) {
+                        row[i] -= row[i - samplesPerPixel];
+                    }
+                    System.arraycopy(row, 0, data, start, rowSize);
+                }
+                break;
+            default:
+                throw new IOException("TIFF predictor " + predictor + " is not supported.");
+        }
+    }
+}
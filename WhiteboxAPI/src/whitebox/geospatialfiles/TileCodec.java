@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2015 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import whitebox.geospatialfiles.WhiteboxRasterBase.Compression;
+import whitebox.geospatialfiles.WhiteboxRasterBase.DataType;
+
+/**
+ * Encodes and decodes the tiles of a compressed Whitebox data file. Each tile
+ * is stored as a single blob beginning with a one-byte method code, followed
+ * by the tile's cells. Before compression, the cells are passed through a
+ * predictor suited to the data type: integer cells are replaced by their
+ * difference from the previous cell, and floating-point cells by the XOR of
+ * their bits with those of the previous cell. The bytes of the predicted
+ * values are then split into planes, most significant byte first, which
+ * places the highly repetitive high-order bytes of smooth surfaces together.
+ * A tile that does not compress is stored raw.
+ *
+ * Two codecs are available: deflate, from java.util.zip, and a fast LZ77
+ * codec in the style of LZ4 that trades some compression for speed. The
+ * sparse layout stores every tile raw, relying on the tile index to hold the
+ * tiles whose cells are constant.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+final class TileCodec {
+
+    static final byte METHOD_RAW = 0;
+    static final byte METHOD_DEFLATE = 1;
+    static final byte METHOD_LZ = 2;
+
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION);
+        }
+    };
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private TileCodec() {
+    }
+
+    /**
+     * Encodes the cells of a tile.
+     *
+     * @param tile The tile, with a row stride of tileSize.
+     * @param tileSize The tile's row stride.
+     * @param rows The number of rows of the tile lying within the grid.
+     * @param cols The number of columns of the tile lying within the grid.
+     * @param dataType The raster's data type.
+     * @param byteOrder The byte order of the data file.
+     * @param compression The codec.
+     * @return The encoded blob.
+     */
+    static byte[] encode(CellBuffer tile, int tileSize, int rows, int cols,
+            DataType dataType, ByteOrder byteOrder, Compression compression) {
+        int cellSize = CellBuffer.cellSizeOf(dataType);
+        int rawLength = rows * cols * cellSize;
+        ByteBuffer raw = ByteBuffer.allocate(rawLength + 1);
+        raw.order(byteOrder);
+        raw.put(METHOD_RAW);
+        for (int r = 0; r < rows; r++) {
+            tile.write(raw, r * tileSize, cols);
+        }
+        if (compression == Compression.NONE || compression == Compression.SPARSE) {
+            return raw.array();
+        }
+
+        byte[] predicted = predict(raw.array(), 1, rows * cols, dataType, byteOrder);
+        byte[] out = new byte[rawLength + rawLength / 255 + 17];
+        int n;
+        byte method;
+        if (compression == Compression.DEFLATE) {
+            method = METHOD_DEFLATE;
+            Deflater deflater = deflaters.get();
+            deflater.reset();
+            deflater.setInput(predicted);
+            deflater.finish();
+            n = deflater.deflate(out, 1, out.length - 1);
+            if (!deflater.finished()) {
+                n = Integer.MAX_VALUE;
+            }
+        } else {
+            method = METHOD_LZ;
+            n = lzCompress(predicted, predicted.length, out, 1);
+        }
+        if (n >= rawLength) {
+            return raw.array();
+        }
+        out[0] = method;
+        byte[] blob = new byte[n + 1];
+        System.arraycopy(out, 0, blob, 0, n + 1);
+        return blob;
+    }
+
+    /**
+     * Decodes a blob into the cells of a tile.
+     *
+     * @param blob The encoded blob.
+     * @param length The length of the blob.
+     * @param tile The tile, with a row stride of tileSize.
+     * @param tileSize The tile's row stride.
+     * @param rows The number of rows of the tile lying within the grid.
+     * @param cols The number of columns of the tile lying within the grid.
+     * @param dataType The raster's data type.
+     * @param byteOrder The byte order of the data file.
+     * @throws IOException if the blob is corrupt.
+     */
+    static void decode(byte[] blob, int length, CellBuffer tile, int tileSize,
+            int rows, int cols, DataType dataType, ByteOrder byteOrder) throws IOException {
+        int cellSize = CellBuffer.cellSizeOf(dataType);
+        int rawLength = rows * cols * cellSize;
+        byte[] raw;
+        switch (blob[0]) {
+            case METHOD_RAW:
+                raw = blob;
+                break;
+            case METHOD_DEFLATE: {
+                byte[] predicted = new byte[rawLength];
+                Inflater inflater = inflaters.get();
+                inflater.reset();
+                inflater.setInput(blob, 1, length - 1);
+                try {
+                    int n = 0;
+                    while (n < rawLength && !inflater.finished()) {
+                        int m = inflater.inflate(predicted, n, rawLength - n);
+                        if (m == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                            break;
+                        }
+                        n += m;
+                    }
+                    if (n != rawLength) {
+                        throw new IOException("Truncated tile.");
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("Corrupt tile.", e);
+                }
+                raw = unpredict(predicted, rows * cols, dataType, byteOrder);
+                break;
+            }
+            case METHOD_LZ: {
+                byte[] predicted = new byte[rawLength];
+                if (lzDecompress(blob, 1, length, predicted) != rawLength) {
+                    throw new IOException("Corrupt tile.");
+                }
+                raw = unpredict(predicted, rows * cols, dataType, byteOrder);
+                break;
+            }
+            default:
+                throw new IOException("Unknown tile compression method: " + blob[0]);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(raw, 1, rawLength);
+        buf = buf.slice();
+        buf.order(byteOrder);
+        for (int r = 0; r < rows; r++) {
+            tile.read(buf, r * tileSize, cols);
+        }
+    }
+
+    /**
+     * Applies the predictor and splits the result into byte planes.
+     */
+    private static byte[] predict(byte[] raw, int offset, int numCells, DataType dataType, ByteOrder byteOrder) {
+        int cellSize = CellBuffer.cellSizeOf(dataType);
+        ByteBuffer in = ByteBuffer.wrap(raw, offset, numCells * cellSize).slice();
+        in.order(byteOrder);
+        byte[] out = new byte[numCells * cellSize];
+        long prev = 0;
+        for (int k = 0; k < numCells; k++) {
+            long v;
+            long d;
+            switch (dataType) {
+                case DOUBLE:
+                    v = in.getLong();
+                    d = v ^ prev;
+                    break;
+                case FLOAT:
+                    v = in.getInt() & 0xFFFFFFFFL;
+                    d = v ^ prev;
+                    break;
+                case INTEGER:
+                    v = in.getShort() & 0xFFFFL;
+                    d = (v - prev) & 0xFFFFL;
+                    break;
+                default:
+                    v = in.get() & 0xFFL;
+                    d = (v - prev) & 0xFFL;
+                    break;
+            }
+            prev = v;
+            for (int b = 0; b < cellSize; b++) {
+                out[b * numCells + k] = (byte) (d >>> (8 * (cellSize - 1 - b)));
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Reverses predict, returning the raw cells preceded by the method byte.
+     */
+    private static byte[] unpredict(byte[] planes, int numCells, DataType dataType, ByteOrder byteOrder) {
+        int cellSize = CellBuffer.cellSizeOf(dataType);
+        byte[] raw = new byte[numCells * cellSize + 1];
+        ByteBuffer out = ByteBuffer.wrap(raw, 1, numCells * cellSize).slice();
+        out.order(byteOrder);
+        long prev = 0;
+        for (int k = 0; k < numCells; k++) {
+            long d = 0;
+            for (int b = 0; b < cellSize; b++) {
+                d = (d << 8) | (planes[b * numCells + k] & 0xFFL);
+            }
+            long v;
+            switch (dataType) {
+                case DOUBLE:
+                    v = d ^ prev;
+                    out.putLong(v);
+                    break;
+                case FLOAT:
+                    v = d ^ prev;
+                    out.putInt((int) v);
+                    break;
+                case INTEGER:
+                    v = (d + prev) & 0xFFFFL;
+                    out.putShort((short) v);
+                    break;
+                default:
+                    v = (d + prev) & 0xFFL;
+                    out.put((byte) v);
+                    break;
+            }
+            prev = v;
+        }
+        return raw;
+    }
+
+    private static final int LZ_HASH_LOG = 14;
+    private static final int LZ_MIN_MATCH = 4;
+    private static final int LZ_MAX_OFFSET = 65535;
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+    }
+
+    private static int writeLength(byte[] dst, int op, int length) {
+        while (length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    /**
+     * Compresses with a byte-oriented LZ77 scheme. The output is a series of
+     * sequences, each made up of a token whose high and low nibbles hold the
+     * literal length and the match length less four (15 meaning that more
+     * length bytes follow), the literal bytes, and a two-byte little-endian
+     * match offset. The final sequence has literals only.
+     *
+     * @return The number of bytes written to dst.
+     */
+    static int lzCompress(byte[] src, int srcLength, byte[] dst, int dstOffset) {
+        int[] table = new int[1 << LZ_HASH_LOG];
+        java.util.Arrays.fill(table, -1);
+        int op = dstOffset;
+        int anchor = 0;
+        int i = 0;
+        int limit = srcLength - LZ_MIN_MATCH;
+        while (i < limit) {
+            int seq = readInt(src, i);
+            int h = (seq * -1640531535) >>> (32 - LZ_HASH_LOG);
+            int ref = table[h];
+            table[h] = i;
+            if (ref < 0 || i - ref > LZ_MAX_OFFSET || readInt(src, ref) != seq) {
+                i++;
+                continue;
+            }
+            int matchLength = LZ_MIN_MATCH;
+            while (i + matchLength < srcLength && src[ref + matchLength] == src[i + matchLength]) {
+                matchLength++;
+            }
+            int literalLength = i - anchor;
+            int token = op++;
+            int ml = matchLength - LZ_MIN_MATCH;
+            dst[token] = (byte) ((Math.min(literalLength, 15) << 4) | Math.min(ml, 15));
+            if (literalLength >= 15) {
+                op = writeLength(dst, op, literalLength - 15);
+            }
+            System.arraycopy(src, anchor, dst, op, literalLength);
+            op += literalLength;
+            int offset = i - ref;
+            dst[op++] = (byte) offset;
+            dst[op++] = (byte) (offset >>> 8);
+            if (ml >= 15) {
+                op = writeLength(dst, op, ml - 15);
+            }
+            i += matchLength;
+            anchor = i;
+        }
+        int literalLength = srcLength - anchor;
+        dst[op++] = (byte) (Math.min(literalLength, 15) << 4);
+        if (literalLength >= 15) {
+            op = writeLength(dst, op, literalLength - 15);
+        }
+        System.arraycopy(src, anchor, dst, op, literalLength);
+        op += literalLength;
+        return op - dstOffset;
+    }
+
+    /**
+     * Decompresses the output of lzCompress.
+     *
+     * @return The number of bytes written to dst, or -1 if the input is
+     * corrupt.
+     */
+    static int lzDecompress(byte[] src, int srcOffset, int srcEnd, byte[] dst) {
+        int ip = srcOffset;
+        int op = 0;
+        try {
+            while (ip < srcEnd) {
+                int token = src[ip++] & 0xFF;
+                int literalLength = token >>> 4;
+                if (literalLength == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        literalLength += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, ip, dst, op, literalLength);
+                ip += literalLength;
+                op += literalLength;
+                if (ip >= srcEnd) {
+                    break;
+                }
+                int offset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+                ip += 2;
+                int matchLength = token & 15;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += LZ_MIN_MATCH;
+                int ref = op - offset;
+                if (ref < 0 || offset == 0) {
+                    return -1;
+                }
+                for (int k = 0; k < matchLength; k++) {
+                    dst[op++] = dst[ref++];
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return -1;
+        }
+        return op;
+    }
+}
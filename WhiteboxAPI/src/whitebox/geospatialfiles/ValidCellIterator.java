@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2015 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.util.Arrays;
+
+/**
+ * Visits the cells of a raster that don't hold NoData, in row-major order. It
+ * is obtained from WhiteboxRaster.getValidCellIterator and used as follows:
+ *
+ * <pre>
+ * ValidCellIterator it = raster.getValidCellIterator();
+ * while (it.next()) {
+ *     int row = it.getRow();
+ *     int col = it.getColumn();
+ *     double z = it.getValue();
+ *     ...
+ * }
+ * </pre>
+ *
+ * Rows are read a tile-width segment at a time, skipping the segments of
+ * tiles that are known to hold only NoData and filling those of other
+ * constant tiles without reading them. A band of tiles that holds only NoData
+ * is skipped entirely.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public final class ValidCellIterator {
+
+    private final WhiteboxRaster raster;
+    private final int rows;
+    private final int columns;
+    private final double noData;
+    private final int tileSize;
+    private final double[] values;
+    // the runs of columns of the current band that must be scanned, as
+    // pairs of starting and ending (exclusive) columns, and, for each, the
+    // value filling the run if it is constant
+    private final int[] runs;
+    private final Double[] runConstants;
+    private int numRuns = 0;
+    private int bandEnd = 0;
+    private int row = -1;
+    private int run = 0;
+    private int column = 0;
+    private int runEnd = 0;
+
+    ValidCellIterator(WhiteboxRaster raster) {
+        this.raster = raster;
+        rows = raster.getNumberRows();
+        columns = raster.getNumberColumns();
+        noData = raster.getNoDataValue();
+        tileSize = raster.getCachedTileSize();
+        values = new double[columns];
+        int numTileColumns = tileSize > 0 ? (columns + tileSize - 1) / tileSize : 1;
+        runs = new int[2 * numTileColumns];
+        runConstants = new Double[numTileColumns];
+    }
+
+    /**
+     * Advances to the next valid cell.
+     *
+     * @return false once there are no more valid cells.
+     */
+    public boolean next() {
+        while (true) {
+            while (++column < runEnd) {
+                if (values[column] != noData) {
+                    return true;
+                }
+            }
+            if (!nextRun()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Retrieves the row of the current cell.
+     *
+     * @return The row.
+     */
+    public int getRow() {
+        return row;
+    }
+
+    /**
+     * Retrieves the column of the current cell.
+     *
+     * @return The column.
+     */
+    public int getColumn() {
+        return column;
+    }
+
+    /**
+     * Retrieves the value of the current cell.
+     *
+     * @return The value.
+     */
+    public double getValue() {
+        return values[column];
+    }
+
+    private boolean nextRun() {
+        run++;
+        while (run >= numRuns) {
+            // move on to the next row
+            row++;
+            if (row >= rows) {
+                row = rows;
+                column = 0;
+                runEnd = 0;
+                return false;
+            }
+            if (row >= bandEnd) {
+                findRuns();
+                if (numRuns == 0) {
+                    // the whole band is NoData
+                    row = bandEnd - 1;
+                    continue;
+                }
+            }
+            run = 0;
+        }
+        int start = runs[2 * run];
+        int end = runs[2 * run + 1];
+        Double constant = runConstants[run];
+        if (constant != null) {
+            Arrays.fill(values, start, end, constant);
+        } else {
+            raster.copyRowSegment(row, start, end - start, values, start);
+        }
+        column = start - 1;
+        runEnd = end;
+        return true;
+    }
+
+    /**
+     * Finds the runs of columns to be scanned in the band of tiles containing
+     * the current row.
+     */
+    private void findRuns() {
+        numRuns = 0;
+        if (tileSize == 0) {
+            bandEnd = rows;
+            runs[0] = 0;
+            runs[1] = columns;
+            runConstants[0] = null;
+            numRuns = 1;
+            return;
+        }
+        int tileRow = row / tileSize;
+        bandEnd = Math.min(rows, (tileRow + 1) * tileSize);
+        for (int tc = 0, start = 0; start < columns; tc++, start += tileSize) {
+            int end = Math.min(columns, start + tileSize);
+            Double constant = raster.getConstantTileValue(tileRow, tc);
+            if (constant != null && constant == noData) {
+                continue;
+            }
+            if (constant == null && numRuns > 0 && runConstants[numRuns - 1] == null
+                    && runs[2 * numRuns - 1] == start) {
+                // extend the previous run of tiles that must be read
+                runs[2 * numRuns - 1] = end;
+                continue;
+            }
+            runs[2 * numRuns] = start;
+            runs[2 * numRuns + 1] = end;
+            runConstants[numRuns] = constant;
+            numRuns++;
+        }
+    }
+}
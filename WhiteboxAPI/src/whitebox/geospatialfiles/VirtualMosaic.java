@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2015 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import whitebox.geospatialfiles.WhiteboxRasterBase.Compression;
+import whitebox.geospatialfiles.WhiteboxRasterBase.DataType;
+
+/**
+ * A virtual mosaic is a raster whose header (.dep) lists a set of source
+ * rasters and their extents in place of a data file. Its grid covers the
+ * combined extent of the sources at the finest of their resolutions, and its
+ * values are read from the sources as they are needed, so that a large set of
+ * adjoining tiles, e.g. DEM sheets, can be used as a single raster without
+ * first being merged. A virtual mosaic is opened like any other raster through
+ * WhiteboxRaster or WhiteboxRasterInfo, for which getCompression returns
+ * Compression.MOSAIC, and is read-only.
+ *
+ * Each cell takes the value of the source cell containing its centre (i.e.
+ * nearest-neighbour resampling). Where sources overlap, the last listed source
+ * holding valid data wins. Each source is recorded in the header as a line:
+ *
+ * <pre>
+ * Mosaic Source:	north	south	east	west	rows	cols	file
+ * </pre>
+ *
+ * where the file may be relative to the directory of the mosaic's header.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public final class VirtualMosaic {
+
+    private VirtualMosaic() {
+    }
+
+    /**
+     * A source raster of a mosaic, as listed in the mosaic's header.
+     */
+    static final class Source {
+
+        final double north;
+        final double south;
+        final double east;
+        final double west;
+        final int rows;
+        final int columns;
+        final String path;
+
+        Source(double north, double south, double east, double west, int rows, int columns, String path) {
+            this.north = north;
+            this.south = south;
+            this.east = east;
+            this.west = west;
+            this.rows = rows;
+            this.columns = columns;
+            this.path = path;
+        }
+
+        String toHeaderEntry() {
+            return "Mosaic Source:\t" + north + "\t" + south + "\t" + east + "\t" + west
+                    + "\t" + rows + "\t" + columns + "\t" + path;
+        }
+
+        static Source parse(String[] str) {
+            StringBuilder path = new StringBuilder(str[7]);
+            for (int i = 8; i < str.length; i++) {
+                path.append('\t').append(str[i]);
+            }
+            return new Source(Double.parseDouble(str[1]), Double.parseDouble(str[2]),
+                    Double.parseDouble(str[3]), Double.parseDouble(str[4]),
+                    Integer.parseInt(str[5]), Integer.parseInt(str[6]), path.toString());
+        }
+    }
+
+    /**
+     * Creates a virtual mosaic of a set of rasters. Only the header file is
+     * written. The mosaic takes its NoData value, data scale, units and
+     * palette from the first source, and the widest data type of the
+     * sources.
+     *
+     * @param headerFile The name of the mosaic's header file (.dep).
+     * @param sourceHeaders The header files of the source rasters, in order
+     * of increasing priority where they overlap.
+     * @throws IOException
+     */
+    public static void create(String headerFile, String[] sourceHeaders) throws IOException {
+        if (sourceHeaders.length == 0) {
+            throw new IllegalArgumentException("A mosaic needs at least one source raster.");
+        }
+        Path directory = new File(headerFile).getAbsoluteFile().getParentFile().toPath();
+        ArrayList<Source> sources = new ArrayList<>();
+        WhiteboxRasterBase first = null;
+        double north = Double.NEGATIVE_INFINITY;
+        double south = Double.POSITIVE_INFINITY;
+        double east = Double.NEGATIVE_INFINITY;
+        double west = Double.POSITIVE_INFINITY;
+        double cellSizeX = Double.POSITIVE_INFINITY;
+        double cellSizeY = Double.POSITIVE_INFINITY;
+        double minimum = Double.POSITIVE_INFINITY;
+        double maximum = Double.NEGATIVE_INFINITY;
+        DataType dataType = DataType.BYTE;
+        for (String sourceHeader : sourceHeaders) {
+            if (!new File(sourceHeader).exists()) {
+                throw new IOException("The raster " + sourceHeader + " could not be found.");
+            }
+            WhiteboxRasterBase source = new WhiteboxRasterBase(sourceHeader);
+            if (source.getCompression() == Compression.MOSAIC) {
+                throw new IllegalArgumentException("A mosaic can't be a source of another mosaic.");
+            }
+            if (first == null) {
+                first = source;
+            }
+            north = Math.max(north, source.getNorth());
+            south = Math.min(south, source.getSouth());
+            east = Math.max(east, source.getEast());
+            west = Math.min(west, source.getWest());
+            cellSizeX = Math.min(cellSizeX, source.getCellSizeX());
+            cellSizeY = Math.min(cellSizeY, source.getCellSizeY());
+            minimum = Math.min(minimum, source.getMinimumValue());
+            maximum = Math.max(maximum, source.getMaximumValue());
+            // the data types are listed from widest to narrowest
+            if (source.getDataType().ordinal() < dataType.ordinal()) {
+                dataType = source.getDataType();
+            }
+            String path;
+            try {
+                path = directory.relativize(new File(sourceHeader).getAbsoluteFile().toPath()).toString();
+            } catch (IllegalArgumentException e) {
+                // e.g. the source is on another drive
+                path = new File(sourceHeader).getAbsolutePath();
+            }
+            sources.add(new Source(source.getNorth(), source.getSouth(), source.getEast(),
+                    source.getWest(), source.getNumberRows(), source.getNumberColumns(), path));
+        }
+
+        // the grid is aligned with the north-west corner of the union
+        int rows = (int) Math.max(1, Math.round((north - south) / cellSizeY));
+        int cols = (int) Math.max(1, Math.round((east - west) / cellSizeX));
+        if (rows * cellSizeY < north - south - cellSizeY / 2) {
+            rows++;
+        }
+        if (cols * cellSizeX < east - west - cellSizeX / 2) {
+            cols++;
+        }
+
+        WhiteboxRasterBase mosaic = new WhiteboxRasterBase();
+        mosaic.headerFile = headerFile;
+        mosaic.dataFile = headerFile.replace(".dep", ".tas");
+        mosaic.statsFile = headerFile.replace(".dep", ".wstat");
+        new File(mosaic.dataFile).delete();
+        new File(mosaic.statsFile).delete();
+        mosaic.north = north;
+        mosaic.south = north - rows * cellSizeY;
+        mosaic.west = west;
+        mosaic.east = west + cols * cellSizeX;
+        mosaic.numberRows = rows;
+        mosaic.numberColumns = cols;
+        mosaic.setDataType(dataType);
+        mosaic.setDataScale(first.getDataScale());
+        mosaic.setZUnits(first.getZUnits());
+        mosaic.setXYUnits(first.getXYUnits());
+        mosaic.projection = first.getProjection();
+        mosaic.preferredPalette = first.getPreferredPalette();
+        mosaic.noDataValue = first.getNoDataValue();
+        mosaic.minimumValue = minimum;
+        mosaic.maximumValue = maximum;
+        mosaic.displayMinimum = minimum;
+        mosaic.displayMaximum = maximum;
+        mosaic.compression = Compression.MOSAIC;
+        mosaic.compressedTileSize = WhiteboxRaster.DEFAULT_TILE_SIZE;
+        mosaic.mosaicSources = sources;
+        mosaic.writeHeaderFile();
+    }
+
+    /**
+     * Retrieves the header files of a mosaic's sources. Source paths are
+     * recorded relative to the directory of the mosaic's header.
+     *
+     * @param mosaic The mosaic.
+     * @return The source header files, in the order in which they're listed.
+     */
+    static String[] getSourceFiles(WhiteboxRasterBase mosaic) {
+        if (mosaic.mosaicSources == null) {
+            return new String[0];
+        }
+        File directory = new File(mosaic.headerFile).getAbsoluteFile().getParentFile();
+        String[] files = new String[mosaic.mosaicSources.size()];
+        for (int i = 0; i < files.length; i++) {
+            File file = new File(mosaic.mosaicSources.get(i).path);
+            if (!file.isAbsolute()) {
+                file = new File(directory, mosaic.mosaicSources.get(i).path);
+            }
+            files[i] = file.getPath();
+        }
+        return files;
+    }
+}
@@ -17,6 +17,7 @@
 package whitebox.geospatialfiles;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.DoubleBuffer;
@@ -24,6 +25,9 @@ import java.nio.FloatBuffer;
 import java.nio.ShortBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * The whiteboxRaster is used to manipulate Whitebox GAT raster files (.dep and
@@ -31,17 +35,27 @@ import java.util.Arrays;
  *
  * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
  */
-public class WhiteboxRaster extends WhiteboxRasterBase {
+public class WhiteboxRaster extends WhiteboxRasterBase implements RasterMemoryManager.Participant {
 
     // ************************
     // Fields
     // ************************
-    private double[] grid;
+    private CellBuffer grid;
     private int blockSize = 0;
     private long blockStartingCell = 0;
     private long blockEndingCell = -1;
     private double initialValue;
     private boolean isDirty = false;
+    // the summary of the in-memory block's contents before it was first
+    // modified, handed on to the statistics when the block is written
+    private RasterStatistics blockStatistics = null;
+    // modified blocks and rows are written to the data file in the background
+    private final WriteBehindQueue writes = new WriteBehindQueue(0);
+    // a block whose write has finished, kept to be reused by the next read
+    private final AtomicReference<CellBuffer> spareBlock = new AtomicReference<>();
+    // set for a MemoryRaster, whose data file isn't created until a modified
+    // block has to be written out of memory
+    private boolean deferDataFile = false;
     /**
      * Set to false if the header and data files (.dep and .tas) should be
      * deleted when the object is closed.
@@ -52,6 +66,17 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
      */
     public boolean isReflectedAtEdges = false;
 
+    /**
+     * Determines how readWindow fills cells lying beyond the edges of the
+     * grid. REFLECT mirrors the grid about its edges, as getValue does when
+     * isReflectedAtEdges is set; NODATA uses the NoData value; and CLAMP
+     * repeats the nearest edge cell.
+     */
+    public enum HaloPolicy {
+
+        REFLECT, NODATA, CLAMP;
+    }
+
     // ************************
     // Constructors
     // ************************
@@ -121,6 +146,7 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
         initialValue = InitialValue;
         setFileAccess(FileAccess);
         setPropertiesUsingAnotherRaster(BaseRasterHeader, dataType);
+        startStatistics();
         setBlockData();
 
     }
@@ -155,10 +181,38 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
         setFileAccess(FileAccess);
         setBufferSize(BufferSize);
         setPropertiesUsingAnotherRaster(BaseRasterHeader, dataType);
+        startStatistics();
         setBlockData();
 
     }
 
+    /**
+     * Class constructor for a temporary raster whose data file isn't created
+     * until a modified block has to be written out of memory. Until then, any
+     * cell that hasn't been set holds the initial value. Used by MemoryRaster.
+     *
+     * @param HeaderFile The name of the header file, used to name the data
+     * file should it be needed.
+     * @param BaseRasterHeader The name of a WhiteboxRaster header file to base
+     * this new object on.
+     * @param dataType The data type of the new WhiteboxRaster.
+     * @param InitialValue Double indicating the value used to initialize the
+     * grid.
+     */
+    WhiteboxRaster(String HeaderFile, String BaseRasterHeader, DataType dataType, double InitialValue) {
+        headerFile = HeaderFile;
+        dataFile = headerFile.replace(".dep", ".tas");
+        statsFile = headerFile.replace(".dep", ".wstat");
+        File f1 = new File(this.dataFile);
+        f1.delete();
+        initialValue = InitialValue;
+        deferDataFile = true;
+        isTemporaryFile = true;
+        setFileAccess("rw");
+        setPropertiesUsingAnotherRaster(BaseRasterHeader, dataType);
+        setBlockData();
+    }
+
     public WhiteboxRaster(String HeaderFile, double north, double south, double east, double west, int rows, int cols, DataScale dataScale, DataType dataType, double initialValue, double noData) {
         // set the header file and data file.
         headerFile = HeaderFile;
@@ -180,10 +234,12 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
         this.dataScale = dataScale;
         setDataType(dataType);
         this.noDataValue = noData;
+        fitNoDataValueToDataType();
         writeHeaderFile();
 
         this.initialValue = initialValue;
         setFileAccess("rw");
+        startStatistics();
         setBlockData();
         //createNewDataFile();
 
@@ -209,6 +265,7 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
      */
     private void setBufferSize(double BufferSize) {
         bufferSize = (long) (BufferSize * 1048576);
+        requestedBufferSize = bufferSize;
     }
 
     /**
@@ -242,6 +299,27 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
         return numberOfDataFileWrites;
     }
 
+    /**
+     * The number of getValue/setValue requests that were served by a tile
+     * already held in the tile cache. Always zero unless the tile cache is in
+     * use.
+     *
+     * @return long stating the number of cache hits.
+     */
+    public long getNumberOfTileCacheHits() {
+        return tileCache == null ? 0 : tileCache.getHits();
+    }
+
+    /**
+     * The number of getValue/setValue requests that required a tile to be
+     * loaded from the data file. Always zero unless the tile cache is in use.
+     *
+     * @return long stating the number of cache misses.
+     */
+    public long getNumberOfTileCacheMisses() {
+        return tileCache == null ? 0 : tileCache.getMisses();
+    }
+
     //********************************************
     // Available methods.
     // *******************************************
@@ -347,6 +425,104 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
 //        
 //        
 //    }
+    @Override
+    protected ByteBuffer readRowBytes(int row, int stack) throws IOException {
+        if (deferDataFile && tileCache == null) {
+            // rows are served from memory, where they may hold changes that
+            // haven't been written
+            long startingCell = (long) row * numberColumns;
+            loadRow(startingCell, row);
+            ByteBuffer buf = getRowByteBuffer();
+            grid.write(buf, (int) (startingCell - blockStartingCell), numberColumns);
+            buf.flip();
+            return buf;
+        }
+        if (tileCache != null && compression != Compression.NONE) {
+            // a compressed file can't be read a row at a time; serve the row
+            // from the tiles, which may hold changes not yet written back
+            ByteBuffer buf = getRowByteBuffer();
+            tileCache.getRowBytes(row, buf);
+            buf.flip();
+            return buf;
+        }
+        if (tileCache != null && saveChanges) {
+            // make sure that any modified tiles crossing this row are on disk.
+            tileCache.flushRow(row);
+        }
+        long startingCell = ((long) stack * numberRows + row) * numberColumns;
+        writes.await(startingCell, startingCell + numberColumns - 1);
+        return super.readRowBytes(row, stack);
+    }
+
+    /**
+     * Rows of a raster opened for writing may be held in memory in a
+     * modified state, and so must be read through getRowValues.
+     *
+     * @return boolean
+     */
+    @Override
+    protected boolean canReadRowsInParallel() {
+        return !saveChanges;
+    }
+
+    @Override
+    public double[] getRowValues(int row, int stack, double[] dest) {
+        if (!deferDataFile || tileCache != null || row < 0 || row >= numberRows) {
+            return super.getRowValues(row, stack, dest);
+        }
+        if (dest == null || dest.length < numberColumns) {
+            dest = new double[numberColumns];
+        }
+        long startingCell = (long) row * numberColumns;
+        loadRow(startingCell, row);
+        grid.copyTo((int) (startingCell - blockStartingCell), dest, 0, numberColumns);
+        return dest;
+    }
+
+    @Override
+    public double[] getColumnValues(int col) {
+        if (!deferDataFile || tileCache != null || col < 0 || col >= numberColumns) {
+            return super.getColumnValues(col);
+        }
+        double[] retVals = new double[numberRows];
+        for (int row = 0; row < numberRows; row++) {
+            retVals[row] = getValue(row, col);
+        }
+        return retVals;
+    }
+
+    @Override
+    public double[] getPixelValues(int stack) {
+        if (!deferDataFile || tileCache != null) {
+            return super.getPixelValues(stack);
+        }
+        double[] retVals = new double[numberRows * numberColumns];
+        double[] data = new double[numberColumns];
+        for (int row = 0; row < numberRows; row++) {
+            System.arraycopy(getRowValues(row, stack, data), 0, retVals, row * numberColumns, numberColumns);
+        }
+        return retVals;
+    }
+
+    /**
+     * Makes sure that the in-memory block holds the whole of a row.
+     *
+     * @param startingCell The cell number of the row's first cell.
+     * @param row The row.
+     */
+    private void loadRow(long startingCell, int row) {
+        long endingCell = startingCell + numberColumns - 1;
+        if (grid != null && startingCell >= blockStartingCell && endingCell <= blockEndingCell) {
+            return;
+        }
+        loadBlockContaining(startingCell, row);
+        if (endingCell > blockEndingCell) {
+            // the block was placed for an upward scan and ends within the row
+            blockStartingCell = Math.max(0, endingCell - blockSize);
+            readDataBlock();
+        }
+    }
+
     /**
      * This method should be used when you need to set an entire row of data at
      * a time. It has less overhead that the setValue method (which works on a
@@ -365,10 +541,65 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
             return;
         }
 
-        // update the minimum and maximum values
+        if (tileCache != null) {
+            recordExtremes(vals);
+            tileCache.setRowValues(row, vals);
+            return;
+        }
+        if (deferDataFile) {
+            recordExtremes(vals);
+            long startingCell = (long) row * numberColumns;
+            loadRow(startingCell, row);
+            grid.copyFrom(vals, 0, (int) (startingCell - blockStartingCell), numberColumns);
+            isDirty = true;
+            return;
+        }
+        if (statistics != null) {
+            long startingCell = (long) row * numberColumns;
+            if (grid != null && startingCell <= blockEndingCell
+                    && startingCell + numberColumns > blockStartingCell) {
+                // the row is also held in the in-memory block, which would
+                // later be written back over it
+                statistics.invalidate();
+            } else {
+                double[] oldValues = null;
+                if (statistics.isRowWritten(row)) {
+                    oldValues = getRowValues(row, (double[]) null);
+                }
+                statistics.rowWritten(row, oldValues, vals);
+            }
+        }
+
+        // See if the data file exists.
+        File file = new File(dataFile);
+        if (!file.exists()) {
+            createNewDataFile();
+        }
+        // the row is converted and written in the background; the caller
+        // may reuse its array as soon as this returns
+        final double[] values = vals.clone();
+        final long startingCell = (long) row * numberColumns;
+        writes.submit(startingCell, startingCell + numberColumns - 1,
+                (long) numberColumns * 8, new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                recordExtremes(values);
+                writeCells(values, startingCell);
+                return null;
+            }
+        });
+        numberOfDataFileWrites++;
+    }
+
+    /**
+     * Updates the minimum and maximum values with those of an array. This is
+     * called by the thread writing in the background as well as by the
+     * raster's own thread.
+     */
+    private void recordExtremes(double[] vals) {
         double min = Double.MAX_VALUE;
         double max = Double.MIN_VALUE;
-        for (int i = 0; i < numberColumns; i++) {
+        for (int i = 0; i < vals.length; i++) {
             if (vals[i] < min && vals[i] != noDataValue) {
                 min = vals[i];
             }
@@ -376,91 +607,57 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
                 max = vals[i];
             }
         }
+        recordExtremes(min, max);
+    }
+
+    private synchronized void recordExtremes(double min, double max) {
         if (max > maximumValue) {
             maximumValue = max;
         }
         if (min < minimumValue) {
             minimumValue = min;
         }
+    }
 
-        RandomAccessFile rOut = null;
-        FileChannel outChannel = null;
-        ByteBuffer buf = null;
-        try {
-            // See if the data file exists.
-            File file = new File(dataFile);
-            if (!file.exists()) {
-                createNewDataFile();
-            }
-            long startingCell = row * numberColumns;
-            long endingCell = startingCell + numberColumns - 1;
-
-            rOut = new RandomAccessFile(dataFile, "rw");
-            outChannel = rOut.getChannel();
-            outChannel.position(startingCell * cellSizeInBytes);
-            int writeLengthInCells = (int) (endingCell - startingCell + 1);
-
-            if (dataType == DataType.DOUBLE) { //.equals("double")) {
-                buf = ByteBuffer.allocateDirect(cellSizeInBytes * writeLengthInCells);
-                buf.order(byteOrder);
-                DoubleBuffer db = buf.asDoubleBuffer();
-                db.put(vals);
-                db = null;
-                outChannel.write(buf);
-            } else if (dataType == DataType.FLOAT) { //.equals("float")) {
-                float[] fa = new float[writeLengthInCells];
-                for (int j = 0; j < writeLengthInCells; j++) {
-                    fa[j] = (float) vals[j];
-                }
-                buf = ByteBuffer.allocateDirect(cellSizeInBytes * writeLengthInCells);
-                buf.order(byteOrder);
+    /**
+     * Converts a run of values to the data type and writes them to the data
+     * file.
+     *
+     * @param values The values.
+     * @param startingCell The cell number of the first value.
+     * @throws IOException
+     */
+    private void writeCells(double[] values, long startingCell) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(cellSizeInBytes * values.length);
+        buf.order(byteOrder);
+        switch (dataType) {
+            case DOUBLE:
+                buf.asDoubleBuffer().put(values);
+                break;
+            case FLOAT:
                 FloatBuffer fb = buf.asFloatBuffer();
-                fb.put(fa);
-                fb = null;
-                fa = null;
-                outChannel.write(buf);
-            } else if (dataType == DataType.INTEGER) { //.equals("integer")) {
-                short[] ia = new short[writeLengthInCells];
-                for (int j = 0; j < writeLengthInCells; j++) {
-                    ia[j] = (short) vals[j];
+                for (int j = 0; j < values.length; j++) {
+                    fb.put((float) values[j]);
                 }
-                buf = ByteBuffer.allocateDirect(cellSizeInBytes * writeLengthInCells);
-                buf.order(byteOrder);
+                break;
+            case INTEGER:
                 ShortBuffer ib = buf.asShortBuffer();
-                ib.put(ia);
-                ib = null;
-                ia = null;
-                outChannel.write(buf);
-            } else if (dataType == DataType.BYTE) { //.equals("byte")) {
-                byte[] ba = new byte[writeLengthInCells];
-                for (int j = 0; j < writeLengthInCells; j++) {
-                    ba[j] = (byte) vals[j];
-                }
-                buf = ByteBuffer.wrap(ba);
-                ba = null;
-                outChannel.write(buf);
-            }
-            //outChannel.close();
-
-        } catch (Exception e) {
-            System.err.println("Caught exception: " + e.toString());
-            System.err.println(e.getStackTrace());
-        } finally {
-            buf = null;
-            if (rOut != null) {
-                try {
-                    rOut.close();
-                } catch (Exception e) {
+                for (int j = 0; j < values.length; j++) {
+                    ib.put(CellBuffer.toShort(values[j]));
                 }
-            }
-            if (outChannel != null) {
-                try {
-                    outChannel.force(false);
-                    outChannel.close();
-                } catch (Exception e) {
+                break;
+            case BYTE:
+                for (int j = 0; j < values.length; j++) {
+                    buf.put(CellBuffer.toByte(values[j]));
                 }
+                buf.flip();
+                break;
+        }
+        long pos = startingCell * cellSizeInBytes;
+        try (DataFileChannel.Handle out = openDataChannel(true)) {
+            while (buf.hasRemaining()) {
+                out.channel.write(buf, pos + buf.position());
             }
-            numberOfDataFileWrites++;
         }
     }
     
@@ -472,6 +669,54 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
     private int halfBlockSize = 0;
     //private int readDirectionTendency = 0;
 
+    /**
+     * Replaces the block held in memory with one containing the specified
+     * cell. The block's starting cell is placed based on the direction in
+     * which the grid has tended to be traversed.
+     *
+     * @param cellNum The cell number that the new block must contain.
+     * @param row The row of the cell.
+     */
+    private void loadBlockContaining(long cellNum, int row) {
+        RasterMemoryManager.getInstance().recordLoad();
+        applyPendingBudget(-1);
+        if (saveChanges && isDirty) {
+            // the block is written in the background while the next is read
+            // and worked on
+            writeDataBlockBehind();
+        }
+        numReads++;
+        // Figure out a new blockstartingcell
+        if (previousRow < row) { // reading downward
+            if (currentReadDirection == -1) {
+                currentReadDirection = 0;
+            }
+            if (currentReadDirection != 0) {
+                currentReadDirection = 0;
+                numSwitchReadDirections++;
+                switchRatio = (double) numSwitchReadDirections / numReads;
+            }
+            blockStartingCell = (long) (cellNum - halfBlockSize * switchRatio); //10 * numberColumns);
+        } else { // reading upward
+            if (currentReadDirection == -1) {
+                currentReadDirection = 1;
+            }
+            if (currentReadDirection != 1) {
+                currentReadDirection = 1;
+                numSwitchReadDirections++;
+                switchRatio = (double) numSwitchReadDirections / numReads;
+            }
+            blockStartingCell = (long) (cellNum - (blockSize - (switchRatio * halfBlockSize))); //+ (blockSize / 2) * ((double)upReadDirection / downReadDirection)); // + 10 * numberColumns - blockSize);
+        }
+        previousRow = row;
+        if (blockStartingCell < 0 || blockSize >= (long) numberRows * numberColumns) {
+            // a block that can hold the whole grid always does
+            blockStartingCell = 0;
+        }
+
+        readDataBlock();
+    }
+
     /**
      * Retrieves the value contained at a specified cell in the raster grid.
      *
@@ -481,56 +726,23 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
      * cell.
      */
     public double getValue(int row, int column) {
-        //try {
         if (column >= 0 && column < numberColumns && row >= 0 && row < numberRows) {
 
-            if (blockEndingCell < 0) {
-                readDataBlock();
+            if (++accessCount % BUDGET_CHECK_INTERVAL == 0) {
+                applyPendingBudget((long) row * numberColumns + column);
             }
-            if (grid == null) {
-                readDataBlock();
+            if (tileCache != null) {
+                return tileCache.getValue(row, column);
             }
 
             // what is the cell number?
             long cellNum = (long) (row) * numberColumns + column;
 
             // check to see if it is within the current block
-            if ((cellNum > blockEndingCell) || (cellNum < blockStartingCell)) {
-                if (saveChanges && isDirty) {
-                    writeDataBlock();
-                }
-                numReads++;
-                // Figure out a new blockstartingcell
-                if (previousRow < row) { // reading downward
-                    if (currentReadDirection == -1) {
-                        currentReadDirection = 0;
-                    }
-                    if (currentReadDirection != 0) {
-                        currentReadDirection = 0;
-                        numSwitchReadDirections++;
-                        switchRatio = (double) numSwitchReadDirections / numReads;
-                    }
-                    blockStartingCell = (long) (cellNum - halfBlockSize * switchRatio); //10 * numberColumns);
-                } else { // reading upward
-                    if (currentReadDirection == -1) {
-                        currentReadDirection = 1;
-                    }
-                    if (currentReadDirection != 1) {
-                        currentReadDirection = 1;
-                        numSwitchReadDirections++;
-                        switchRatio = (double) numSwitchReadDirections / numReads;
-                    }
-                    blockStartingCell = (long) (cellNum - (blockSize - (switchRatio * halfBlockSize))); //+ (blockSize / 2) * ((double)upReadDirection / downReadDirection)); // + 10 * numberColumns - blockSize);
-                }
-                previousRow = row;
-                //blockStartingCell = (int)(cellNum - blockSize / 2);
-                if (blockStartingCell < 0) {
-                    blockStartingCell = 0;
-                }
-
-                readDataBlock();
+            if (grid == null || (cellNum > blockEndingCell) || (cellNum < blockStartingCell)) {
+                loadBlockContaining(cellNum, row);
             }
-            return grid[(int) (cellNum - blockStartingCell)];
+            return grid.get((int) (cellNum - blockStartingCell));
         } else {
             if (!isReflectedAtEdges) {
                 return noDataValue;
@@ -556,79 +768,177 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
                 return noDataValue;
             }
         }
-//        } catch (Exception e) {
-//            if (communicator != null) {
-//                communicator.logException("WhiteboxRaster error", e);
-//            }
-//            return noDataValue;
-//        }
+    }
+
+    /**
+     * Retrieves the value contained at a specified cell as an int, without
+     * passing through a double. This is useful for INTEGER and BYTE rasters,
+     * such as flow pointers and class maps. Cells beyond the edges of the grid
+     * return the NoData value.
+     *
+     * @param row The zero-based row number.
+     * @param column The zero-based column number.
+     * @return The value contained in the raster grid at the specified grid
+     * cell.
+     */
+    public int getIntValue(int row, int column) {
+        if (column >= 0 && column < numberColumns && row >= 0 && row < numberRows) {
+            if (++accessCount % BUDGET_CHECK_INTERVAL == 0) {
+                applyPendingBudget((long) row * numberColumns + column);
+            }
+            if (tileCache != null) {
+                return tileCache.getIntValue(row, column);
+            }
+            long cellNum = (long) (row) * numberColumns + column;
+            if (grid == null || (cellNum > blockEndingCell) || (cellNum < blockStartingCell)) {
+                loadBlockContaining(cellNum, row);
+            }
+            return grid.getInt((int) (cellNum - blockStartingCell));
+        }
+        return (int) getValue(row, column);
+    }
+
+    /**
+     * Reads a rectangular window of the grid into an array in a single pass.
+     * This is intended for neighbourhood operations such as filters, which
+     * can read the rows spanned by the kernel, padded by a halo, once per row
+     * of output and then work on the array directly rather than calling
+     * getValue for every kernel cell. Cells lying beyond the edges of the
+     * grid are filled according to the halo policy.
+     *
+     * @param row0 The row of the window's top-left cell. This may be negative.
+     * @param col0 The column of the window's top-left cell. This may be
+     * negative.
+     * @param height The number of rows in the window.
+     * @param width The number of columns in the window.
+     * @param haloPolicy How cells beyond the edges of the grid are filled.
+     * @param dest An array in which to place the window, in row-major order,
+     * or null. It is only allocated if it holds fewer than height * width
+     * cells.
+     * @return The array containing the window.
+     */
+    public double[] readWindow(int row0, int col0, int height, int width,
+            HaloPolicy haloPolicy, double[] dest) {
+        if (dest == null || dest.length < height * width) {
+            dest = new double[height * width];
+        }
+        // the columns of the window that lie within the grid
+        int innerStart = Math.max(col0, 0);
+        int innerEnd = Math.min(col0 + width, numberColumns);
+        for (int i = 0; i < height; i++) {
+            int offset = i * width;
+            int row = haloIndex(row0 + i, numberRows, haloPolicy);
+            if (row < 0) {
+                Arrays.fill(dest, offset, offset + width, noDataValue);
+                continue;
+            }
+            if (innerStart < innerEnd) {
+                copyRowSegment(row, innerStart, innerEnd - innerStart, dest, offset + innerStart - col0);
+            }
+            // fill the halo cells to the left and right of the grid
+            int left = Math.min(width, innerStart - col0);
+            int right = Math.max(left, innerEnd - col0);
+            for (int j = 0; j < left; j++) {
+                int c = haloIndex(col0 + j, numberColumns, haloPolicy);
+                dest[offset + j] = c < 0 ? noDataValue : getValue(row, c);
+            }
+            for (int j = right; j < width; j++) {
+                int c = haloIndex(col0 + j, numberColumns, haloPolicy);
+                dest[offset + j] = c < 0 ? noDataValue : getValue(row, c);
+            }
+        }
+        return dest;
+    }
+
+    /**
+     * Maps a row or column index lying beyond the grid onto the grid,
+     * returning -1 if the cell should be NoData.
+     */
+    private static int haloIndex(int i, int n, HaloPolicy haloPolicy) {
+        if (i >= 0 && i < n) {
+            return i;
+        }
+        switch (haloPolicy) {
+            case REFLECT:
+                // the same reflection as used by getValue
+                if (i < 0) {
+                    i = -i - 1;
+                }
+                if (i >= n) {
+                    i = n - (i - n) - 1;
+                }
+                return (i >= 0 && i < n) ? i : -1;
+            case CLAMP:
+                return i < 0 ? 0 : n - 1;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Copies a run of cells from a row of the grid into an array. The run
+     * must lie within the grid.
+     */
+    void copyRowSegment(int row, int column, int length, double[] dest, int destOffset) {
+        accessCount += length;
+        applyPendingBudget((long) row * numberColumns + column);
+        if (tileCache != null) {
+            tileCache.getRowSegment(row, column, length, dest, destOffset);
+            return;
+        }
+        long cellNum = (long) row * numberColumns + column;
+        long endCell = cellNum + length - 1;
+        while (cellNum <= endCell) {
+            if (grid == null || cellNum > blockEndingCell || cellNum < blockStartingCell) {
+                loadBlockContaining(cellNum, row);
+            }
+            int n = (int) (Math.min(endCell, blockEndingCell) - cellNum + 1);
+            grid.copyTo((int) (cellNum - blockStartingCell), dest, destOffset, n);
+            cellNum += n;
+            destOffset += n;
+        }
     }
 
     /**
      * Sets the value of a specified cell in the raster grid.
+     * The value is narrowed to the raster's data type as it is stored, so an
+     * INTEGER or BYTE cell saturates at the ends of the type's range.
      *
      * @param row The zero-based row number.
      * @param column The zero-based column number.
      * @param value The value to place in the grid cell.
      */
     public void setValue(int row, int column, double value) {
-//        try {
         if (saveChanges && column >= 0 && column < this.numberColumns
                 && row >= 0 && row < this.numberRows) {
             if (Double.isNaN(value)) {
                 value = noDataValue;
             }
+            if (++accessCount % BUDGET_CHECK_INTERVAL == 0) {
+                applyPendingBudget((long) row * numberColumns + column);
+            }
+            if (tileCache != null) {
+                tileCache.setValue(row, column, value);
+                return;
+            }
             // what is the cell number?
             long cellNum = (long) (row) * numberColumns + column;
 
-            if ((cellNum > blockEndingCell) || (cellNum < blockStartingCell)) {
-                if (isDirty) {
-                    writeDataBlock();
-                }
-                numReads++;
-                // Figure out a new blockstartingcell
-                if (previousRow < row) {
-                    if (currentReadDirection == -1) {
-                        currentReadDirection = 0;
-                    }
-                    if (currentReadDirection != 0) {
-                        currentReadDirection = 0;
-                        numSwitchReadDirections++;
-                        switchRatio = (double) numSwitchReadDirections / numReads;
-                    }
-                    blockStartingCell = (long) (cellNum - halfBlockSize * switchRatio);
-                } else {
-                    if (currentReadDirection == -1) {
-                        currentReadDirection = 1;
-                    }
-                    if (currentReadDirection != 1) {
-                        currentReadDirection = 1;
-                        numSwitchReadDirections++;
-                        switchRatio = (double) numSwitchReadDirections / numReads;
-                    }
-                    blockStartingCell = (long) (cellNum - (blockSize - (switchRatio * halfBlockSize)));
-                }
-                previousRow = row;
-                if (blockStartingCell < 0) {
-                    blockStartingCell = 0;
-                }
-                readDataBlock();
+            if (grid == null || (cellNum > blockEndingCell) || (cellNum < blockStartingCell)) {
+                loadBlockContaining(cellNum, row);
             }
-            if (grid == null) {
-                setBlockData();
+            if (!isDirty && statistics != null) {
+                blockStatistics = statistics.blockModified(grid, blockStartingCell);
             }
-            grid[(int) (cellNum - blockStartingCell)] = value;
+            grid.set((int) (cellNum - blockStartingCell), value);
             isDirty = true;
         }
-//        } catch (Exception e) {
-//            if (communicator != null) {
-//                communicator.logException("WhiteboxRaster error", e);
-//            }
-//        }
     }
 
     /**
      * Increments the value of a specified cell in the raster grid.
+     * The sum is narrowed to the raster's data type as it is stored, so
+     * repeated increments of a FLOAT cell accumulate at float precision.
      *
      * @param row The zero-based row number.
      * @param column The zero-based column number.
@@ -637,44 +947,24 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
     public void incrementValue(int row, int column, double value) {
         if (saveChanges && column >= 0 && column < this.numberColumns
                 && row >= 0 && row < this.numberRows) {
+            if (++accessCount % BUDGET_CHECK_INTERVAL == 0) {
+                applyPendingBudget((long) row * numberColumns + column);
+            }
+            if (tileCache != null) {
+                tileCache.incrementValue(row, column, value);
+                return;
+            }
             // what is the cell number?
             long cellNum = (long) (row) * numberColumns + column;
 
-            if ((cellNum > blockEndingCell) || (cellNum < blockStartingCell)) {
-                if (isDirty) {
-                    writeDataBlock();
-                }
-                numReads++;
-                // Figure out a new blockstartingcell
-                if (previousRow < row) {
-                    if (currentReadDirection == -1) {
-                        currentReadDirection = 0;
-                    }
-                    if (currentReadDirection != 0) {
-                        currentReadDirection = 0;
-                        numSwitchReadDirections++;
-                        switchRatio = (double) numSwitchReadDirections / numReads;
-                    }
-                    blockStartingCell = (long) (cellNum - halfBlockSize * switchRatio);
-                } else {
-                    if (currentReadDirection == -1) {
-                        currentReadDirection = 1;
-                    }
-                    if (currentReadDirection != 1) {
-                        currentReadDirection = 1;
-                        numSwitchReadDirections++;
-                        switchRatio = (double) numSwitchReadDirections / numReads;
-                    }
-                    blockStartingCell = (long) (cellNum - (blockSize - (switchRatio * halfBlockSize)));
-                }
-                previousRow = row;
-                if (blockStartingCell < 0) {
-                    blockStartingCell = 0;
-                }
-                readDataBlock();
+            if (grid == null || (cellNum > blockEndingCell) || (cellNum < blockStartingCell)) {
+                loadBlockContaining(cellNum, row);
             }
 
-            grid[(int) (cellNum - blockStartingCell)] += value;
+            if (!isDirty && statistics != null) {
+                blockStatistics = statistics.blockModified(grid, blockStartingCell);
+            }
+            grid.add((int) (cellNum - blockStartingCell), value);
             isDirty = true;
         }
     }
@@ -686,48 +976,7 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
      * @param column The zero-based column number.
      */
     public void incrementValue(int row, int column) {
-        if (saveChanges && column >= 0 && column < this.numberColumns
-                && row >= 0 && row < this.numberRows) {
-            // what is the cell number?
-            long cellNum = (long) (row) * numberColumns + column;
-
-            if ((cellNum > blockEndingCell) || (cellNum < blockStartingCell)) {
-                if (isDirty) {
-                    writeDataBlock();
-                }
-                numReads++;
-                // Figure out a new blockstartingcell
-                if (previousRow < row) {
-                    if (currentReadDirection == -1) {
-                        currentReadDirection = 0;
-                    }
-                    if (currentReadDirection != 0) {
-                        currentReadDirection = 0;
-                        numSwitchReadDirections++;
-                        switchRatio = (double) numSwitchReadDirections / numReads;
-                    }
-                    blockStartingCell = (long) (cellNum - halfBlockSize * switchRatio);
-                } else {
-                    if (currentReadDirection == -1) {
-                        currentReadDirection = 1;
-                    }
-                    if (currentReadDirection != 1) {
-                        currentReadDirection = 1;
-                        numSwitchReadDirections++;
-                        switchRatio = (double) numSwitchReadDirections / numReads;
-                    }
-                    blockStartingCell = (long) (cellNum - (blockSize - (switchRatio * halfBlockSize)));
-                }
-                previousRow = row;
-                if (blockStartingCell < 0) {
-                    blockStartingCell = 0;
-                }
-                readDataBlock();
-            }
-
-            grid[(int) (cellNum - blockStartingCell)]++;
-            isDirty = true;
-        }
+        incrementValue(row, column, 1);
     }
     
     /**
@@ -738,48 +987,7 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
      * @param value The value to decrement the grid cell by.
      */
     public void decrementValue(int row, int column, double value) {
-        if (saveChanges && column >= 0 && column < this.numberColumns
-                && row >= 0 && row < this.numberRows) {
-            // what is the cell number?
-            long cellNum = (long) (row) * numberColumns + column;
-
-            if ((cellNum > blockEndingCell) || (cellNum < blockStartingCell)) {
-                if (isDirty) {
-                    writeDataBlock();
-                }
-                numReads++;
-                // Figure out a new blockstartingcell
-                if (previousRow < row) {
-                    if (currentReadDirection == -1) {
-                        currentReadDirection = 0;
-                    }
-                    if (currentReadDirection != 0) {
-                        currentReadDirection = 0;
-                        numSwitchReadDirections++;
-                        switchRatio = (double) numSwitchReadDirections / numReads;
-                    }
-                    blockStartingCell = (long) (cellNum - halfBlockSize * switchRatio);
-                } else {
-                    if (currentReadDirection == -1) {
-                        currentReadDirection = 1;
-                    }
-                    if (currentReadDirection != 1) {
-                        currentReadDirection = 1;
-                        numSwitchReadDirections++;
-                        switchRatio = (double) numSwitchReadDirections / numReads;
-                    }
-                    blockStartingCell = (long) (cellNum - (blockSize - (switchRatio * halfBlockSize)));
-                }
-                previousRow = row;
-                if (blockStartingCell < 0) {
-                    blockStartingCell = 0;
-                }
-                readDataBlock();
-            }
-
-            grid[(int) (cellNum - blockStartingCell)] -= value;
-            isDirty = true;
-        }
+        incrementValue(row, column, -value);
     }
     
     /**
@@ -789,48 +997,7 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
      * @param column The zero-based column number.
      */
     public void decrementValue(int row, int column) {
-        if (saveChanges && column >= 0 && column < this.numberColumns
-                && row >= 0 && row < this.numberRows) {
-            // what is the cell number?
-            long cellNum = (long) (row) * numberColumns + column;
-
-            if ((cellNum > blockEndingCell) || (cellNum < blockStartingCell)) {
-                if (isDirty) {
-                    writeDataBlock();
-                }
-                numReads++;
-                // Figure out a new blockstartingcell
-                if (previousRow < row) {
-                    if (currentReadDirection == -1) {
-                        currentReadDirection = 0;
-                    }
-                    if (currentReadDirection != 0) {
-                        currentReadDirection = 0;
-                        numSwitchReadDirections++;
-                        switchRatio = (double) numSwitchReadDirections / numReads;
-                    }
-                    blockStartingCell = (long) (cellNum - halfBlockSize * switchRatio);
-                } else {
-                    if (currentReadDirection == -1) {
-                        currentReadDirection = 1;
-                    }
-                    if (currentReadDirection != 1) {
-                        currentReadDirection = 1;
-                        numSwitchReadDirections++;
-                        switchRatio = (double) numSwitchReadDirections / numReads;
-                    }
-                    blockStartingCell = (long) (cellNum - (blockSize - (switchRatio * halfBlockSize)));
-                }
-                previousRow = row;
-                if (blockStartingCell < 0) {
-                    blockStartingCell = 0;
-                }
-                readDataBlock();
-            }
-
-            grid[(int) (cellNum - blockStartingCell)]--;
-            isDirty = true;
-        }
+        incrementValue(row, column, -1);
     }
     
     private boolean forceAllDataInMemory = false;
@@ -843,27 +1010,220 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
         return forceAllDataInMemory;
     }
 
+    /**
+     * The number of cells along each side of the tiles held by the tile cache.
+     */
+    public static final int DEFAULT_TILE_SIZE = 256;
+    private RasterTileCache tileCache = null;
+
+    /**
+     * Switches between the default single-block buffer and a memory-mapped
+     * data file served through a cache of square tiles. The tile cache holds
+     * many tiles at once and is better suited to tools that access the grid
+     * in a random or neighbourhood-based pattern (e.g. viewsheds, cost
+     * accumulation, or watershed tracing), which otherwise keep evicting and
+     * re-reading the single block. The number of tiles held in memory is
+     * governed by the raster's share of the RasterMemoryManager cap.
+     *
+     * @param value Set to true to use the tile cache.
+     */
+    public void setUseTileCache(boolean value) {
+        if (value == (tileCache != null)) {
+            return;
+        }
+        if (!value && compression != Compression.NONE) {
+            // a compressed raster is always served through its tile cache
+            return;
+        }
+        if (value) {
+            if (saveChanges && isDirty && grid != null) {
+                writeDataBlock();
+            }
+            // the tiles map the data file directly
+            awaitPendingWrites();
+            File file = new File(dataFile);
+            if (!file.exists()) {
+                createNewDataFile();
+            }
+            try {
+                RasterTileStore store;
+                if (compression != Compression.NONE) {
+                    store = openTileStore(saveChanges);
+                } else {
+                    store = new MappedTileStore(this, saveChanges, DEFAULT_TILE_SIZE);
+                }
+                if (statistics != null) {
+                    store = statistics.wrap(store);
+                }
+                if (concurrentAccess || compression != Compression.NONE) {
+                    tileCache = new ConcurrentTileCache(store, dataType, numberRows, numberColumns, getTileSlotLimit());
+                } else {
+                    tileCache = new RasterTileCache(store, dataType, numberRows, numberColumns, getTileSlotLimit());
+                }
+                grid = null;
+                blockStartingCell = 0;
+                blockEndingCell = -1;
+            } catch (Exception e) {
+                if (communicator != null) {
+                    communicator.logException("WhiteboxRaster error", e);
+                } else {
+                    System.out.println(e.toString());
+                }
+            }
+        } else {
+            tileCache.close(saveChanges);
+            tileCache = null;
+            concurrentAccess = false;
+        }
+    }
+
+    private boolean concurrentAccess = false;
+
+    /**
+     * Switches the raster into a mode in which it may be shared by many
+     * threads, each reading and writing cells through getValue, setValue,
+     * incrementValue and the row methods. The grid is served through a tile
+     * cache guarded by striped locks, so threads working on different parts
+     * of the raster rarely wait on one another, and modified tiles are written
+     * back as they are evicted. This allows a tool to be parallelized without
+     * opening a copy of the raster for each thread.
+     *
+     * Concurrent access should be switched on before worker threads are
+     * started and off only after they have finished. Individual cell accesses
+     * are atomic, but a read followed by a write of the same cell is not.
+     *
+     * @param value Set to true to allow concurrent access.
+     */
+    public void setConcurrentAccess(boolean value) {
+        if (value == concurrentAccess) {
+            return;
+        }
+        if (tileCache != null) {
+            tileCache.close(saveChanges);
+            tileCache = null;
+        }
+        concurrentAccess = value;
+        if (value || compression != Compression.NONE) {
+            setUseTileCache(true);
+        }
+    }
+
+    /**
+     * Sets the layout of the data file. A compressed data file holds square
+     * tiles, each compressed independently, so that the file is several times
+     * smaller than the uncompressed grid for most surfaces and reading or
+     * writing it moves correspondingly less data. DEFLATE gives the smaller
+     * file; LZ is considerably faster to write. SPARSE leaves the tiles
+     * uncompressed, but like the other codecs stores a tile whose cells all
+     * hold one value as a flag only; it suits rasters that are mostly NoData,
+     * such as stream networks, outlets and rasterized features, which are
+     * then small on disk and may be scanned with getValidCellIterator without
+     * visiting the empty tiles. A compressed raster is always
+     * served through a thread-safe tile cache, and is read and written
+     * through the usual methods. Compression may only be set for a new
+     * raster, before any of its data have been written, and is not available
+     * for multi-stack rasters.
+     *
+     * Some tools read Whitebox data files directly, and so compression should
+     * only be used for rasters that will be read through WhiteboxRaster or
+     * WhiteboxRasterInfo.
+     *
+     * @param value The codec, or Compression.NONE for the usual uncompressed
+     * layout.
+     */
+    public void setCompression(Compression value) {
+        if (value == compression) {
+            return;
+        }
+        if (!saveChanges || new File(dataFile).exists() || numberStacks > 1
+                || compression == Compression.MOSAIC || compression == Compression.GEOTIFF) {
+            throw new IllegalStateException("Compression can only be set for a new single-stack raster.");
+        }
+        if (tileCache != null) {
+            tileCache.close(false);
+            tileCache = null;
+        }
+        grid = null;
+        blockStartingCell = 0;
+        blockEndingCell = -1;
+        compression = value;
+        compressedTileSize = DEFAULT_TILE_SIZE;
+        tileIndexOffset = -1;
+        if (compression != Compression.NONE) {
+            setUseTileCache(true);
+            writeHeaderFile();
+        }
+    }
+
+    /**
+     * Returns true if the raster may be shared by many threads.
+     *
+     * @return boolean
+     */
+    public boolean isConcurrentAccess() {
+        return concurrentAccess;
+    }
+
+    /**
+     * Retrieves an iterator over the cells of the raster that don't hold
+     * NoData, in row-major order. When the raster is tiled, tiles that the
+     * data file records as holding only NoData (see setCompression) are
+     * skipped without being read, so that a scan of a mostly empty raster
+     * visits little more than its valid cells. Otherwise, every row is read.
+     * Cells modified during the iteration may or may not be seen with their
+     * new values.
+     *
+     * @return The iterator.
+     */
+    public ValidCellIterator getValidCellIterator() {
+        return new ValidCellIterator(this);
+    }
+
+    /**
+     * Retrieves the size of the tiles of the tile cache, or zero if the tile
+     * cache isn't in use.
+     */
+    int getCachedTileSize() {
+        return tileCache == null ? 0 : tileCache.getTileSize();
+    }
+
+    /**
+     * Retrieves the value held by every cell of a tile of the tile cache, if
+     * it is known without reading the tile that its cells are constant.
+     *
+     * @return The value, or null.
+     */
+    Double getConstantTileValue(int tileRow, int tileColumn) {
+        return tileCache == null ? null : tileCache.getConstantValue(tileRow, tileColumn);
+    }
+
+    /**
+     * Returns true if the raster is using the tile cache rather than the
+     * default single-block buffer.
+     *
+     * @return boolean
+     */
+    public boolean isUsingTileCache() {
+        return tileCache != null;
+    }
+
     private void setBlockData() {
+        if (isPixelInterleaved()) {
+            // the grid is buffered as a single contiguous stack
+            throw new UnsupportedOperationException("A pixel-interleaved raster can only be read by row through WhiteboxRasterInfo.");
+        }
         try {
-            // see if the data can be comfortably contained in memory, keeping in
-            // mind that it is always stored as doubles.
-            //System.gc();
-            long availableMemory = Runtime.getRuntime().freeMemory();
-            long gridMemoryRequirements = (long) numberRows * (long) numberColumns * 8L;
-            if ((availableMemory / 3) > gridMemoryRequirements || forceAllDataInMemory) {
-                // store the entire grid in memory.
-                blockSize = numberRows * numberColumns;
-                bufferSize = gridMemoryRequirements;
-            } else if (((double) gridMemoryRequirements / (availableMemory / 3)) > 2) {
-                // the data doesn't come close to fitting in the available memory.
-                bufferSize = 100 * 1048576;
-                blockSize = (int) (Math.round(Math.floor(bufferSize / 8))) / 3;
-            } else {
-                blockSize = (numberRows * numberColumns) / 2;
-                bufferSize = ((numberRows * numberColumns) / 2) * 8;
+            // the amount of memory used to buffer the grid is granted by the
+            // memory manager, which shares a single cap among all open
+            // rasters. Cells are held in memory at the native width of the
+            // data type.
+            RasterMemoryManager manager = RasterMemoryManager.getInstance();
+            manager.unregister(this);
+            memoryBudget = manager.register(this, forceAllDataInMemory);
+            applyMemoryBudget();
+            if (compression != Compression.NONE && tileCache == null) {
+                setUseTileCache(true);
             }
-
-            halfBlockSize = blockSize / 2;
             blockStartingCell = 0;
             //readDataBlock();
         } catch (Exception e) {
@@ -875,17 +1235,214 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
         }
     }
 
+    /**
+     * Sizes the in-memory block to fit within the current memory budget. The
+     * block always holds at least one full row. When the grid doesn't fit,
+     * the block of a raster opened for writing gets half of the budget, since
+     * a modified block may still be being written while the next is in use.
+     */
+    private void applyMemoryBudget() {
+        long numCells = (long) numberRows * numberColumns;
+        long cells;
+        if (memoryBudget >= numCells * cellSizeInBytes) {
+            cells = numCells;
+        } else {
+            long budget = saveChanges ? memoryBudget / 2 : memoryBudget;
+            cells = Math.max(numberColumns, budget / cellSizeInBytes);
+        }
+        blockSize = (int) Math.min(cells, Integer.MAX_VALUE / cellSizeInBytes);
+        bufferSize = (long) blockSize * cellSizeInBytes;
+        halfBlockSize = blockSize / 2;
+        writes.setByteLimit(bufferSize);
+    }
+
+    private long memoryBudget = 0;
+    private final AtomicLong pendingBudget = new AtomicLong(-1);
+    private static final int BUDGET_CHECK_INTERVAL = 65536;
+    private long requestedBufferSize = -1;
+    // the number of cells accessed, which the memory manager uses to weigh
+    // the rasters' demands and which paces the checks for a new budget. The
+    // threads of a concurrent raster increment it without synchronization,
+    // and so some increments are lost, which only makes both a little less
+    // exact; an atomic counter would cost far more on every cell access.
+    private long accessCount = 0;
+
+    /**
+     * Retrieves the number of bytes needed to buffer the entire grid, or the
+     * buffer size specified when the raster was opened, if that is smaller.
+     *
+     * @return The memory demand in bytes.
+     */
+    @Override
+    public long getMemoryDemand() {
+        long gridMemory = (long) numberRows * numberColumns * cellSizeInBytes;
+        if (requestedBufferSize > 0 && !forceAllDataInMemory) {
+            return Math.min(gridMemory, requestedBufferSize);
+        }
+        return gridMemory;
+    }
+
+    /**
+     * Retrieves the number of bytes of grid data currently held in memory.
+     *
+     * @return The memory in use in bytes.
+     */
+    @Override
+    public long getMemoryInUse() {
+        if (tileCache != null) {
+            return tileCache.getMemoryInUse();
+        }
+        CellBuffer spare = spareBlock.get();
+        return (grid == null ? 0 : grid.getSizeInBytes())
+                + (spare == null ? 0 : spare.getSizeInBytes()) + writes.getPendingBytes();
+    }
+
+    @Override
+    public long getAccessCount() {
+        return accessCount;
+    }
+
+    /**
+     * Called by the memory manager when this raster's budget changes. The
+     * manager may call this from any thread, and so the budget is only
+     * recorded here; it is applied by applyPendingBudget from the thread
+     * using the raster.
+     *
+     * @param bytes The new budget in bytes.
+     */
+    @Override
+    public void setMemoryBudget(long bytes) {
+        pendingBudget.set(bytes);
+    }
+
+    /**
+     * Applies a budget granted by the memory manager since the last check.
+     * This is called when a block is loaded and every BUDGET_CHECK_INTERVAL
+     * cell accesses, so that a raster whose block holds the whole grid, and
+     * which never loads another, still gives up memory. The tile cache is
+     * resized; a block that no longer fits is written out if modified and
+     * replaced by a smaller one around the cell being accessed.
+     *
+     * @param cellNum The cell being accessed, or -1 if the block is about to
+     * be replaced.
+     */
+    private void applyPendingBudget(long cellNum) {
+        long bytes = pendingBudget.getAndSet(-1);
+        if (bytes < 0) {
+            return;
+        }
+        memoryBudget = bytes;
+        if (tileCache != null) {
+            tileCache.setSlotLimit(getTileSlotLimit());
+            return;
+        }
+        applyMemoryBudget();
+        // a block holds blockSize + 1 cells, unless it reaches the last one
+        int length = (int) Math.min((long) blockSize + 1, (long) numberRows * numberColumns);
+        CellBuffer spare = spareBlock.get();
+        if (spare != null && spare.length() != length) {
+            spareBlock.compareAndSet(spare, null);
+        }
+        if (cellNum < 0 || grid == null || grid.length() <= length) {
+            return;
+        }
+        if (saveChanges && isDirty) {
+            writeDataBlock();
+        }
+        // the old block is dropped before the smaller one around the current
+        // cell is read back in from the data file, which now matches it, so
+        // that the raster never holds both
+        long start = Math.min(cellNum - length / 2, blockEndingCell - length + 1);
+        start = Math.max(start, blockStartingCell);
+        grid = null;
+        blockStartingCell = start;
+        readDataBlock();
+    }
+
+    /**
+     * Retrieves the number of tiles that fit within the memory budget.
+     */
+    private int getTileSlotLimit() {
+        long tileMemory = (long) DEFAULT_TILE_SIZE * DEFAULT_TILE_SIZE * cellSizeInBytes;
+        if (memoryBudget >= (long) numberRows * numberColumns * cellSizeInBytes) {
+            return Integer.MAX_VALUE;
+        }
+        // a compressed tile is recompressed each time it is written back, so
+        // at least one band of tiles is kept to let a row scan complete each
+        // tile before it is evicted
+        int minSlots = compression != Compression.NONE
+                ? (numberColumns + DEFAULT_TILE_SIZE - 1) / DEFAULT_TILE_SIZE + 1 : 1;
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(minSlots, memoryBudget / tileMemory));
+    }
+
     public void reinitialize(double initialValue) {
+        if (compression == Compression.MOSAIC || compression == Compression.GEOTIFF) {
+            // the data file of a GeoTIFF raster is the GeoTIFF itself, and a
+            // mosaic's data belong to its sources
+            throw new IllegalStateException("A GeoTIFF or virtual mosaic raster cannot be reinitialized.");
+        }
         this.initialValue = initialValue;
+        awaitPendingWrites();
+        if (deferDataFile && tileCache == null) {
+            // go back to holding the grid in memory only
+            File file = new File(dataFile);
+            file.delete();
+            DataFileChannel.invalidate(dataFile);
+            if (grid != null) {
+                grid.fill(initialValue);
+            }
+            isDirty = false;
+            return;
+        }
 
+        // the tiles must let go of the data file, and an uncompressed store
+        // its mapping, before the file can be deleted and recreated
+        boolean reopenTiles = tileCache != null;
+        if (reopenTiles) {
+            tileCache.discard();
+            tileCache = null;
+        }
         // See if the data file exists.
         File file = new File(dataFile);
         file.delete();
         createNewDataFile();
+        if (grid != null) {
+            // the block in memory must match the new file, or its old values
+            // would be written back over it
+            grid.fill(initialValue);
+            isDirty = false;
+        }
+        if (statistics != null) {
+            statistics.reset(initialValue);
+        }
+        if (reopenTiles) {
+            setUseTileCache(true);
+        }
 
     }
 
     public void createNewDataFile() {
+        // pending writes belong to the old file
+        awaitPendingWrites();
+        // any shared channel would refer to a file that has since been deleted
+        DataFileChannel.invalidate(dataFile);
+        if (compression == Compression.MOSAIC || compression == Compression.GEOTIFF) {
+            // a virtual mosaic has no data file of its own, and a GeoTIFF is
+            // read-only
+            return;
+        }
+        if (compression != Compression.NONE) {
+            try {
+                CompressedTileStore.create(this, initialValue);
+            } catch (IOException e) {
+                if (communicator != null) {
+                    communicator.logException("WhiteboxRaster error", e);
+                } else {
+                    System.out.println(e.toString());
+                }
+            }
+            return;
+        }
         RandomAccessFile rOut = null;
         ByteBuffer buf = null;
         FileChannel outChannel = null;
@@ -969,7 +1526,7 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
                     }
                     ia = new short[(int) writeLength];
                     if (initialValue != 0) {
-                        Arrays.fill(ia, (short) initialValue);
+                        Arrays.fill(ia, CellBuffer.toShort(initialValue));
                     }
                     //buf = ByteBuffer.allocate(cellSizeInBytes * writeLength);
                     //buf.order(byteOrder);
@@ -992,10 +1549,9 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
                     }
                     ba = new byte[writeLength];
                     if (initialValue != 0) {
-                        Arrays.fill(ba, (byte) initialValue);
+                        Arrays.fill(ba, CellBuffer.toByte(initialValue));
                     }
                     buf = ByteBuffer.wrap(ba);
-                    buf.flip();
                     outChannel.write(buf);
                     numCellsWritten += writeLength;
                 } while (numCellsWritten < numberCells);
@@ -1024,15 +1580,20 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
 
     }
 
+    /**
+     * The size in bytes of the transient buffer used when reading and writing
+     * blocks.
+     */
+    private static final int IO_CHUNK_SIZE = 4 * 1048576;
+
     private void readDataBlock() {
-        RandomAccessFile rIn = null;
-        FileChannel inChannel = null;
         ByteBuffer buf = null;
         try {
 
             // See if the data file exists.
             File file = new File(dataFile);
-            if (!file.exists()) {
+            boolean inMemoryOnly = deferDataFile && !file.exists();
+            if (!file.exists() && !inMemoryOnly) {
                 createNewDataFile();
             }
 
@@ -1045,44 +1606,39 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
             blockEndingCell = endCell;
 
             int readLengthInCells = (int) (blockEndingCell - blockStartingCell + 1);
-            buf = ByteBuffer.allocate((int) (readLengthInCells * cellSizeInBytes));
-
-            rIn = new RandomAccessFile(dataFile, "r");
-
-            inChannel = rIn.getChannel();
+            writes.await(blockStartingCell, blockEndingCell);
+            CellBuffer spare = spareBlock.getAndSet(null);
+            if (grid == null && spare != null && spare.length() == readLengthInCells) {
+                grid = spare;
+            }
+            spare = null;
+            if (grid == null || grid.length() != readLengthInCells) {
+                grid = null; // release the old block before allocating the new one
+                grid = CellBuffer.create(dataType, readLengthInCells);
+            }
 
-            inChannel.position(blockStartingCell * cellSizeInBytes);
-            inChannel.read(buf);
+            if (inMemoryOnly) {
+                // nothing has been written out of memory, and so every cell
+                // still holds the initial value
+                grid.fill(initialValue);
+                return;
+            }
 
-            // Check the byte order.
+            // read in chunks so that the transient buffer doesn't double the
+            // memory needed by the block.
+            int chunkInCells = Math.min(readLengthInCells, IO_CHUNK_SIZE / cellSizeInBytes);
+            buf = ByteBuffer.allocate(chunkInCells * cellSizeInBytes);
             buf.order(byteOrder);
-
-            grid = new double[readLengthInCells];
-
-            if (dataType == DataType.DOUBLE) {
-                buf.rewind();
-                DoubleBuffer db = buf.asDoubleBuffer();
-                db.get(grid);
-            } else if (dataType == DataType.FLOAT) {
-                buf.rewind();
-                FloatBuffer fb = buf.asFloatBuffer();
-                float[] fa = new float[readLengthInCells];
-                fb.get(fa);
-                for (int j = 0; j < readLengthInCells; j++) {
-                    grid[j] = fa[j];
-                }
-            } else if (dataType == DataType.INTEGER) {
-                buf.rewind();
-                ShortBuffer ib = buf.asShortBuffer();
-                short[] ia = new short[readLengthInCells];
-                ib.get(ia);
-                for (int j = 0; j < readLengthInCells; j++) {
-                    grid[j] = ia[j];
-                }
-            } else if (dataType == DataType.BYTE) {
-                buf.rewind();
-                for (int j = 0; j < readLengthInCells; j++) {
-                    grid[j] = whitebox.utilities.Unsigned.getUnsignedByte(buf, j);
+            try (DataFileChannel.Handle in = openDataChannel(false)) {
+                for (int offset = 0; offset < readLengthInCells; offset += chunkInCells) {
+                    int n = Math.min(chunkInCells, readLengthInCells - offset);
+                    buf.clear();
+                    buf.limit(n * cellSizeInBytes);
+                    long pos = (blockStartingCell + offset) * cellSizeInBytes;
+                    while (buf.hasRemaining() && in.channel.read(buf, pos + buf.position()) >= 0) {
+                    }
+                    buf.rewind();
+                    grid.read(buf, offset, n);
                 }
             }
 
@@ -1099,18 +1655,6 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
                 System.err.println(t.getMessage());
             }
         } finally {
-            if (rIn != null) {
-                try {
-                    rIn.close();
-                } catch (Exception e) {
-                }
-            }
-            if (inChannel != null) {
-                try {
-                    inChannel.close();
-                } catch (Exception e) {
-                }
-            }
             numberOfDataFileReads++;
         }
 
@@ -1120,149 +1664,229 @@ public class WhiteboxRaster extends WhiteboxRasterBase {
      * Used to dump any data contained in memory to disk.
      */
     public void flush() {
+        if (tileCache != null) {
+            tileCache.flush();
+            if (compression != Compression.NONE) {
+                // the tile index has moved
+                writeHeaderFile();
+            }
+            return;
+        }
+        if (deferDataFile && !new File(dataFile).exists()) {
+            // the grid is held in memory only
+            return;
+        }
         writeDataBlock();
+        awaitPendingWrites();
     }
 
     /**
-     * Dumps the data block currently in memory to the data file.
+     * Dumps the data block currently in memory to the data file, waiting for
+     * the write to finish. The block stays in memory.
      */
     private void writeDataBlock() {
-        try {
-            if (!saveChanges) {
-                return;
-            }
-            // update the minimum and maximum values
-            double min = Double.MAX_VALUE;
-            double max = Double.MIN_VALUE;
-            for (int i = 0; i < grid.length; i++) {
-                if (grid[i] < min && grid[i] != noDataValue) {
-                    min = grid[i];
-                }
-                if (grid[i] > max && grid[i] != noDataValue) {
-                    max = grid[i];
-                }
-            }
-            if (max > maximumValue) {
-                maximumValue = max;
-            }
-            if (min < minimumValue) {
-                minimumValue = min;
-            }
+        if (!saveChanges || grid == null) {
+            return;
+        }
+        submitBlockWrite(grid, false);
+        awaitPendingWrites();
+    }
 
-            RandomAccessFile rOut = null;
-            ByteBuffer buf = null;
-            FileChannel outChannel = null;
-            try {
+    /**
+     * Hands the data block currently in memory over to be written in the
+     * background. The block is no longer held by the raster.
+     */
+    private void writeDataBlockBehind() {
+        if (!saveChanges || grid == null) {
+            return;
+        }
+        submitBlockWrite(grid, true);
+        grid = null;
+    }
 
-                // See if the data file exists.
-                File file = new File(dataFile);
-                if (!file.exists()) {
-                    createNewDataFile();
+    private void submitBlockWrite(final CellBuffer block, final boolean recycle) {
+        // See if the data file exists.
+        File file = new File(dataFile);
+        if (!file.exists()) {
+            createNewDataFile();
+        }
+        final long startingCell = blockStartingCell;
+        final RasterStatistics before = blockStatistics;
+        blockStatistics = null;
+        isDirty = false;
+        writes.submit(startingCell, startingCell + block.length() - 1,
+                block.getSizeInBytes(), new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                writeBlock(block, startingCell, before);
+                if (recycle) {
+                    spareBlock.set(block);
                 }
+                return null;
+            }
+        });
+        numberOfDataFileWrites++;
+    }
 
-                rOut = new RandomAccessFile(dataFile, "rw");
-                outChannel = rOut.getChannel();
-                outChannel.position(blockStartingCell * cellSizeInBytes);
-                int writeLengthInCells = (int) (blockEndingCell - blockStartingCell + 1);
-
-                /*long startPos = blockStartingCell * cellSizeInBytes;
-                 FileChannel fc = new RandomAccessFile(dataFile, "rw").getChannel();
-                 FloatBuffer fb = fc.map(FileChannel.MapMode.READ_WRITE, startPos, 
-                 writeLengthInCells).asFloatBuffer();
-                 for(int j = 0; j < writeLengthInCells; j++) {
-                 fb.put((float)grid[j]);
-                 }
-                 fc.force(true);
-                 fc.close();*/
-
-                if (dataType == DataType.DOUBLE) { //.equals("double")) {
-                    buf = ByteBuffer.allocate(cellSizeInBytes * writeLengthInCells);
-                    buf.order(byteOrder);
-                    DoubleBuffer db = buf.asDoubleBuffer();
-                    db.put(grid);
-                    db = null;
-                    outChannel.write(buf);
-                } else if (dataType == DataType.FLOAT) { //.equals("float")) {
-                    float[] fa = new float[writeLengthInCells];
-                    for (int j = 0; j < writeLengthInCells; j++) {
-                        fa[j] = (float) grid[j];
-                    }
-                    buf = ByteBuffer.allocateDirect(cellSizeInBytes * writeLengthInCells);
-                    buf.order(byteOrder);
-                    FloatBuffer fb = buf.asFloatBuffer();
-                    fb.put(fa);
-                    fb = null;
-                    fa = null;
-                    outChannel.write(buf);
-                } else if (dataType == DataType.INTEGER) { //.equals("integer")) {
-                    short[] ia = new short[writeLengthInCells];
-                    for (int j = 0; j < writeLengthInCells; j++) {
-                        ia[j] = (short) grid[j];
-                    }
-                    buf = ByteBuffer.allocate(cellSizeInBytes * writeLengthInCells);
-                    buf.order(byteOrder);
-                    ShortBuffer ib = buf.asShortBuffer();
-                    ib.put(ia);
-                    ib = null;
-                    ia = null;
-                    outChannel.write(buf);
-                } else if (dataType == DataType.BYTE) { //.equals("byte")) {
-                    byte[] ba = new byte[writeLengthInCells];
-                    for (int j = 0; j < writeLengthInCells; j++) {
-                        ba[j] = (byte) grid[j];
-                    }
-                    buf = ByteBuffer.wrap(ba);
-                    ba = null;
-                    outChannel.write(buf);
+    /**
+     * Writes a block to the data file, updating the minimum and maximum
+     * values and the statistics. This is normally called by the thread
+     * writing in the background.
+     *
+     * @param block The block.
+     * @param startingCell The cell number of the block's first cell.
+     * @param before The summary of the block's contents before it was first
+     * modified, or null if it isn't known.
+     * @throws IOException
+     */
+    private void writeBlock(CellBuffer block, long startingCell, RasterStatistics before)
+            throws IOException {
+        // update the minimum and maximum values
+        double min = Double.MAX_VALUE;
+        double max = Double.MIN_VALUE;
+        if (before != null) {
+            // the block's statistics replace its old contribution
+            RasterStatistics blockStats = statistics.blockWritten(block, startingCell, before);
+            min = blockStats.getMinimum();
+            max = blockStats.getMaximum();
+        } else {
+            double z;
+            for (int i = 0; i < block.length(); i++) {
+                z = block.get(i);
+                if (z < min && z != noDataValue) {
+                    min = z;
                 }
-
-            } catch (Exception e) {
-                System.err.println("Caught exception: " + e.toString());
-                System.err.println(e.getStackTrace());
-            } finally {
-                buf = null;
-                if (rOut != null) {
-                    try {
-                        rOut.close();
-                    } catch (Exception e) {
-                    }
+                if (z > max && z != noDataValue) {
+                    max = z;
                 }
-                if (outChannel != null) {
-                    try {
-                        outChannel.force(false);
-                        outChannel.close();
-                    } catch (Exception e) {
-                    }
+            }
+        }
+        recordExtremes(min, max);
+
+        int writeLengthInCells = block.length();
+        int chunkInCells = Math.min(writeLengthInCells, IO_CHUNK_SIZE / cellSizeInBytes);
+        ByteBuffer buf = ByteBuffer.allocate(cellSizeInBytes * chunkInCells);
+        buf.order(byteOrder);
+        try (DataFileChannel.Handle out = openDataChannel(true)) {
+            for (int offset = 0; offset < writeLengthInCells; offset += chunkInCells) {
+                int n = Math.min(chunkInCells, writeLengthInCells - offset);
+                buf.clear();
+                block.write(buf, offset, n);
+                buf.flip();
+                long pos = (startingCell + offset) * cellSizeInBytes;
+                while (buf.hasRemaining()) {
+                    out.channel.write(buf, pos + buf.position());
                 }
-                isDirty = false;
-                numberOfDataFileWrites++;
             }
-        } catch (Exception e) {
+        }
+    }
+
+    /**
+     * Waits for any blocks and rows being written in the background to reach
+     * the data file, and reports any error raised while writing them.
+     */
+    @Override
+    protected void awaitPendingWrites() {
+        writes.awaitAll();
+        Throwable t = writes.takeError();
+        if (t != null) {
             if (communicator != null) {
-                communicator.logException("WhiteboxRaster error", e);
+                communicator.logThrowable("WhiteboxRaster error", t);
+            } else {
+                System.err.println("Caught exception: " + t.toString());
             }
         }
     }
 
+    /**
+     * Writes a value directly to the data file. The statistics of a new
+     * raster can't be kept up to date through this method, and so they are
+     * found by reading the data file when the raster is closed.
+     *
+     * @param row The zero-based row number.
+     * @param column The zero-based column number.
+     * @param value The value to place in the grid cell.
+     */
+    @Override
+    public void setPixelValue(int row, int column, double value) {
+        if (deferDataFile) {
+            setValue(row, column, value);
+            return;
+        }
+        if (statistics != null) {
+            statistics.invalidate();
+        }
+        awaitPendingWrites();
+        super.setPixelValue(row, column, value);
+    }
+
+    private StreamingStatistics statistics = null;
+
+    /**
+     * Starts keeping the statistics of a new raster as its data are written,
+     * so that close() can write the .wstat file without another pass over
+     * the data.
+     */
+    private void startStatistics() {
+        if (saveChanges && numberStacks <= 1 && numberRows > 0 && numberColumns > 0) {
+            statistics = new StreamingStatistics(dataType, noDataValue, initialValue,
+                    numberRows, numberColumns, DEFAULT_TILE_SIZE);
+        }
+    }
+
     /**
      * Used to perform closing functionality when a whiteboxRaster is no longer
      * needed.
      */
     @Override
     public void close() {
+        if (tileCache != null) {
+            if (isTemporaryFile) {
+                tileCache.discard();
+            } else {
+                tileCache.close(saveChanges);
+            }
+            tileCache = null;
+        }
+        RasterMemoryManager.getInstance().unregister(this);
         if (this.isTemporaryFile) {
-            File f1 = new File(this.headerFile);
-            f1.delete();
-            f1 = new File(this.dataFile);
-            f1.delete();
+            awaitPendingWrites();
+            releaseDataChannel();
+            if (compression != Compression.GEOTIFF) {
+                // a GeoTIFF raster's header and data file are the user's
+                // GeoTIFF, and a mosaic has no data file of its own
+                File f1 = new File(this.headerFile);
+                f1.delete();
+                if (compression != Compression.MOSAIC) {
+                    f1 = new File(this.dataFile);
+                    f1.delete();
+                }
+            }
         } else {
             if (saveChanges) {
                 if (isDirty) {
                     writeDataBlock();
                 }
-                findMinAndMaxVals();
+                awaitPendingWrites();
+                if (statistics != null && statistics.isValid(dataType, noDataValue)) {
+                    // the statistics were kept up to date as the data were
+                    // written, and so the data file needn't be read again
+                    RasterStatistics stats = statistics.getTotals();
+                    if (stats.areExtremesExact()) {
+                        minimumValue = stats.getMinimum();
+                        maximumValue = stats.getMaximum();
+                    } else {
+                        findMinAndMaxVals();
+                    }
+                    if (dataScale != DataScale.RGB) {
+                        writeStatsFile(stats);
+                    }
+                } else {
+                    findMinAndMaxVals();
+                }
                 writeHeaderFile();
             }
+            releaseDataChannel();
         }
         grid = null;
     }
@@ -20,7 +20,16 @@ import java.io.*;
 import java.nio.*;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import whitebox.interfaces.Communicator;
+import whitebox.utilities.NamedThreadFactory;
 
 /**
  * The base class serving the WhiteboxRaster and WhiteboxRasterInfo
@@ -136,6 +145,7 @@ public class WhiteboxRasterBase {
      * @return The minimum value.
      */
     public double getMinimumValue() {
+        findGeoTiffExtremes();
         return this.minimumValue;
     }
 
@@ -156,6 +166,7 @@ public class WhiteboxRasterBase {
      * @return The maximum value.
      */
     public double getMaximumValue() {
+        findGeoTiffExtremes();
         return maximumValue;
     }
 
@@ -282,6 +293,42 @@ public class WhiteboxRasterBase {
         return numberStacks;
     }
 
+    /**
+     * The order in which the stacks (e.g. the bands of a multispectral image)
+     * of a multi-stack raster are held in the data file. BSQ (band
+     * sequential) holds each stack in turn and is the usual layout. BIP (band
+     * interleaved by pixel) holds the values of every stack for the first
+     * cell, then every stack for the second cell, and so on, which suits
+     * tools that work on the vector of values at each cell. The layout has no
+     * effect on a single-stack raster.
+     */
+    public enum Interleave {
+
+        BSQ, BIP;
+    }
+
+    protected Interleave interleave = Interleave.BSQ;
+
+    /**
+     * Retrieves the order in which the stacks are held in the data file.
+     *
+     * @return The layout.
+     */
+    public Interleave getInterleave() {
+        return interleave;
+    }
+
+    /**
+     * Used to determine whether the data file holds the stacks interleaved by
+     * pixel, in which case a row of a single stack isn't contiguous in the
+     * file.
+     *
+     * @return true if the stacks are interleaved.
+     */
+    protected boolean isPixelInterleaved() {
+        return interleave == Interleave.BIP && numberStacks > 1;
+    }
+
     public enum DataScale {
 
         CONTINUOUS, CATEGORICAL, BOOLEAN, RGB;
@@ -361,6 +408,43 @@ public class WhiteboxRasterBase {
         }
     }
 
+    /**
+     * The layout of the data file. NONE is the usual uncompressed row-major
+     * layout. A compressed data file holds square tiles that are compressed
+     * independently with either deflate or a fast LZ-style codec, followed by
+     * an index of the tiles' positions, the location of which is recorded in
+     * the header file. The sparse layout is tiled in the same way but leaves
+     * the tiles uncompressed. In every tiled layout, a tile whose cells all
+     * hold one value, e.g. NoData, is stored as a flag in the index only.
+     * MOSAIC marks a virtual mosaic, which has no data file of its own and
+     * is read from the source rasters listed in its header (see
+     * VirtualMosaic). GEOTIFF marks a raster opened directly on a GeoTIFF
+     * file, which is read-only and has no header file of its own.
+     */
+    public enum Compression {
+
+        NONE, DEFLATE, LZ, SPARSE, MOSAIC, GEOTIFF;
+    }
+
+    protected Compression compression = Compression.NONE;
+    protected int compressedTileSize = 256;
+    // the position of the tile index within a compressed data file
+    long tileIndexOffset = -1;
+    private ConcurrentTileCache compressedReader = null;
+    // the source rasters of a virtual mosaic
+    ArrayList<VirtualMosaic.Source> mosaicSources = null;
+
+    /**
+     * Retrieves the layout of the data file.
+     *
+     * @return Compression.NONE for an uncompressed file, Compression.MOSAIC
+     * for a virtual mosaic, Compression.GEOTIFF for a GeoTIFF, otherwise the
+     * codec used to compress the tiles.
+     */
+    public Compression getCompression() {
+        return compression;
+    }
+
     protected String zUnits = "not specified";
 
     /**
@@ -429,6 +513,9 @@ public class WhiteboxRasterBase {
      * @return Display minimum.
      */
     public double getDisplayMinimum() {
+        if (compression == Compression.GEOTIFF && displayMinimum == largeValue) {
+            displayMinimum = getMinimumValue();
+        }
         return displayMinimum;
     }
 
@@ -449,6 +536,9 @@ public class WhiteboxRasterBase {
      * @return Display maximum.
      */
     public double getDisplayMaximum() {
+        if (compression == Compression.GEOTIFF && displayMaximum == smallValue) {
+            displayMaximum = getMaximumValue();
+        }
         return displayMaximum;
     }
 
@@ -529,6 +619,22 @@ public class WhiteboxRasterBase {
             noDataValue = -32768;
         }
         noDataValue = value;
+        fitNoDataValueToDataType();
+    }
+
+    /**
+     * Brings the NoData value within the range of an INTEGER or BYTE raster,
+     * the cells of which saturate at the ends of that range, so that a cell
+     * set to NoData still reads back as NoData. A BYTE raster given the usual
+     * NoData value of -32768 therefore uses 0. A NaN NoData value, which these
+     * types can't hold, is treated as -32768.
+     */
+    protected void fitNoDataValueToDataType() {
+        if (dataType == DataType.INTEGER) {
+            noDataValue = CellBuffer.toShort(Double.isNaN(noDataValue) ? -32768 : noDataValue);
+        } else if (dataType == DataType.BYTE) {
+            noDataValue = CellBuffer.toByte(noDataValue);
+        }
     }
 
     protected double cellSizeX = 0;
@@ -742,7 +848,7 @@ public class WhiteboxRasterBase {
         containsFractionalData = false;
         for (int stack = 0; stack < numberStacks; stack++) {
             for (int row = 0; row < numberRows; row++) {
-                data = getRowValues(row, stack);
+                data = getRowValues(row, stack, data);
                 for (int col = 0; col < numberColumns; col++) {
                     if (data[col] != noDataValue) {
                         z = Math.floor(data[col]);
@@ -761,6 +867,10 @@ public class WhiteboxRasterBase {
      * Whitebox grid.
      */
     protected final void readHeaderFile() {
+        if (isGeoTiffFile(headerFile)) {
+            readGeoTiffHeader();
+            return;
+        }
         DataInputStream in = null;
         BufferedReader br = null;
         boolean byteOrderRead = false;
@@ -788,7 +898,34 @@ public class WhiteboxRasterBase {
                         }
                     }
                     int dataCol = str.length - 1;
-                    if (str[0].toLowerCase().contains("min:") && (!str[0].toLowerCase().contains("display"))) {
+                    if (str[0].toLowerCase().contains("mosaic source")) {
+                        if (this.mosaicSources == null) {
+                            this.mosaicSources = new ArrayList<>();
+                        }
+                        this.mosaicSources.add(VirtualMosaic.Source.parse(str));
+                    } else if (str[0].toLowerCase().contains("interleave")) {
+                        if (str[dataCol].toLowerCase().contains("bip")) {
+                            this.interleave = Interleave.BIP;
+                        } else {
+                            this.interleave = Interleave.BSQ;
+                        }
+                    } else if (str[0].toLowerCase().contains("compression")) {
+                        if (str[dataCol].toLowerCase().contains("deflate")) {
+                            this.compression = Compression.DEFLATE;
+                        } else if (str[dataCol].toLowerCase().contains("lz")) {
+                            this.compression = Compression.LZ;
+                        } else if (str[dataCol].toLowerCase().contains("sparse")) {
+                            this.compression = Compression.SPARSE;
+                        } else if (str[dataCol].toLowerCase().contains("mosaic")) {
+                            this.compression = Compression.MOSAIC;
+                        } else {
+                            this.compression = Compression.NONE;
+                        }
+                    } else if (str[0].toLowerCase().contains("tile size")) {
+                        this.compressedTileSize = Integer.parseInt(str[dataCol]);
+                    } else if (str[0].toLowerCase().contains("tile index offset")) {
+                        this.tileIndexOffset = Long.parseLong(str[dataCol]);
+                    } else if (str[0].toLowerCase().contains("min:") && (!str[0].toLowerCase().contains("display"))) {
                         this.minimumValue = Float.parseFloat(str[dataCol]);
                     } else if (str[0].toLowerCase().contains("max:") && (!str[0].toLowerCase().contains("display"))) {
                         this.maximumValue = Float.parseFloat(str[dataCol]);
@@ -889,6 +1026,88 @@ public class WhiteboxRasterBase {
         }
     }
 
+    /**
+     * Determines whether a file name is that of a GeoTIFF, which can be
+     * opened in place of a raster's header file (see Compression.GEOTIFF).
+     *
+     * @param fileName The file name.
+     * @return true for a .tif or .tiff file.
+     */
+    public static boolean isGeoTiffFile(String fileName) {
+        if (fileName == null) {
+            return false;
+        }
+        String name = fileName.toLowerCase();
+        return name.endsWith(".tif") || name.endsWith(".tiff");
+    }
+
+    /**
+     * Fills the properties of a raster opened directly on a GeoTIFF from the
+     * file's tags. The raster is read-only. Its minimum and maximum values
+     * are found by scanning the data the first time they're asked for.
+     */
+    private void readGeoTiffHeader() {
+        dataFile = headerFile;
+        // the statistics are kept beside the GeoTIFF, e.g. image.tif.wstat
+        statsFile = headerFile + ".wstat";
+        saveChanges = false;
+        compression = Compression.GEOTIFF;
+        byteOrder = ByteOrder.nativeOrder();
+        GeoTiff gt = new GeoTiff(headerFile);
+        try {
+            gt.read();
+            numberRows = gt.getNumberRows();
+            numberColumns = gt.getNumberColumns();
+            north = gt.getNorth();
+            south = gt.getSouth();
+            east = gt.getEast();
+            west = gt.getWest();
+            numberStacks = 1;
+            double noData = gt.hasNoDataTag() ? gt.getNoData() : -32768;
+            if (Double.isNaN(noData) || Double.isInfinite(noData)) {
+                noData = -32768;
+            }
+            noDataValue = noData;
+            // the tile cache needs a power-of-two tile size, whereas a TIFF
+            // tile may be any multiple of 16, and so other files are read
+            // through the GeoTIFF's row cache
+            if (gt.isTiled() && gt.getTileWidth() == gt.getTileLength()
+                    && Integer.bitCount(gt.getTileWidth()) == 1) {
+                compressedTileSize = gt.getTileWidth();
+            } else {
+                compressedTileSize = WhiteboxRaster.DEFAULT_TILE_SIZE;
+            }
+            int bits = gt.getNumberBitsPerSample();
+            int format = gt.getSampleFormat();
+            if (gt.getPhotometricInterpretation() == 2) {
+                // colours are packed into a 32-bit integer, held exactly
+                setDataScale(DataScale.RGB);
+                setDataType(DataType.DOUBLE);
+            } else if (format == 3) {
+                setDataType(bits == 64 ? DataType.DOUBLE : DataType.FLOAT);
+            } else if (bits == 8 && format != 2 && noData >= 0 && noData <= 255) {
+                setDataType(DataType.BYTE);
+            } else if (bits <= 16 && !(bits == 16 && format != 2)
+                    && noData >= Short.MIN_VALUE && noData <= Short.MAX_VALUE) {
+                setDataType(DataType.INTEGER);
+            } else if (bits <= 16) {
+                setDataType(DataType.FLOAT);
+            } else {
+                setDataType(DataType.DOUBLE);
+            }
+            gt.close();
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+
+    private void findGeoTiffExtremes() {
+        if (compression == Compression.GEOTIFF && minimumValue == largeValue
+                && maximumValue == smallValue) {
+            findMinAndMaxVals();
+        }
+    }
+
     public void resetDisplayMinMaxValues() {
         this.displayMaximum = this.maximumValue;
         this.displayMinimum = this.minimumValue;
@@ -898,6 +1117,10 @@ public class WhiteboxRasterBase {
      * Writes the whiteboxRaster header file (.dep) to disc.
      */
     public void writeHeaderFile() {
+        if (compression == Compression.GEOTIFF) {
+            // the GeoTIFF is the raster's only file
+            return;
+        }
         String str1 = null;
         File file = new File(this.headerFile);
         FileWriter fw = null;
@@ -941,6 +1164,10 @@ public class WhiteboxRasterBase {
             out.println(str1);
             str1 = "Stacks:\t" + Integer.toString(this.numberStacks);
             out.println(str1);
+            if (interleave != Interleave.BSQ) {
+                str1 = "Interleave:\t" + this.interleave;
+                out.println(str1);
+            }
             str1 = "Data Type:\t" + this.dataType;
             out.println(str1);
             str1 = "Z Units:\t" + this.zUnits;
@@ -980,6 +1207,19 @@ public class WhiteboxRasterBase {
             out.println(str1);
             str1 = "Palette Nonlinearity:\t" + this.nonlinearity;
             out.println(str1);
+            if (compression != Compression.NONE) {
+                str1 = "Compression:\t" + this.compression;
+                out.println(str1);
+                str1 = "Tile Size:\t" + this.compressedTileSize;
+                out.println(str1);
+                str1 = "Tile Index Offset:\t" + this.tileIndexOffset;
+                out.println(str1);
+            }
+            if (compression == Compression.MOSAIC && mosaicSources != null) {
+                for (VirtualMosaic.Source source : mosaicSources) {
+                    out.println(source.toHeaderEntry());
+                }
+            }
 
             // Write the metadata entries to the file
             if (metadata.size() > 0) {
@@ -1004,6 +1244,23 @@ public class WhiteboxRasterBase {
 
     protected void setPropertiesUsingAnotherRaster(String BaseRasterHeader, DataType dataType) {
         setDataType(dataType);
+        if (isGeoTiffFile(BaseRasterHeader)) {
+            WhiteboxRasterBase base = new WhiteboxRasterBase(BaseRasterHeader);
+            north = base.north;
+            south = base.south;
+            east = base.east;
+            west = base.west;
+            numberColumns = base.numberColumns;
+            numberRows = base.numberRows;
+            setDataScale(base.dataScale);
+            xyUnits = base.xyUnits;
+            projection = base.projection;
+            noDataValue = base.noDataValue;
+            preferredPalette = base.preferredPalette;
+            fitNoDataValueToDataType();
+            this.writeHeaderFile();
+            return;
+        }
         String delimiter = "\t";
         // Set the properties of this WhiteboxRaster to those of the base raster.
         DataInputStream in = null;
@@ -1084,6 +1341,7 @@ public class WhiteboxRasterBase {
 
         }
 
+        fitNoDataValueToDataType();
         // Save the header file.
         this.writeHeaderFile();
     }
@@ -1112,95 +1370,646 @@ public class WhiteboxRasterBase {
      * row.
      */
     public double[] getRowValues(int row, int stack) {
-        double[] retVals = new double[numberColumns];
+        return getRowValues(row, stack, new double[numberColumns]);
+    }
 
-        if (row < 0 || row >= numberRows) {
-            for (int i = 0; i < numberColumns; i++) {
-                retVals[i] = noDataValue;
-            }
-            return retVals;
+    /**
+     * Reads a row into a caller-supplied array. No memory is allocated if the
+     * array is large enough to hold the row, which makes this the preferred
+     * way of scanning through a raster row by row.
+     *
+     * @param row An int stating the zero-based row to be returned.
+     * @param dest An array in which to place the row, or null.
+     * @return The array containing the row values.
+     */
+    public double[] getRowValues(int row, double[] dest) {
+        return getRowValues(row, 0, dest);
+    }
+
+    /**
+     * Reads a row of a specified stack into a caller-supplied array. No
+     * memory is allocated if the array is large enough to hold the row.
+     *
+     * @param row An int stating the zero-based row to be returned.
+     * @param stack An int stating the zero-based stack in which the row is located.
+     * @param dest An array in which to place the row, or null.
+     * @return The array containing the row values.
+     */
+    public double[] getRowValues(int row, int stack, double[] dest) {
+        if (dest == null || dest.length < numberColumns) {
+            dest = new double[numberColumns];
         }
 
-        RandomAccessFile rIn = null;
-        ByteBuffer buf = null;
+        if (row < 0 || row >= numberRows) {
+            Arrays.fill(dest, 0, numberColumns, noDataValue);
+            return dest;
+        }
 
         try {
 
             // See if the data file exists.
             File file = new File(dataFile);
-            if (!file.exists()) {
-                return null;
+            if (!file.exists() && compression != Compression.MOSAIC) {
+                Arrays.fill(dest, 0, numberColumns, 0);
+                return dest;
             }
 
-            // what is the starting and ending cell?
-            long startingCell = (long) (row) * numberColumns;
-            long endingCell = (long) (startingCell) + numberColumns - 1;
-            
-            int readLengthInCells = (int) (endingCell - startingCell + 1);
-            buf = ByteBuffer.allocate((int) (readLengthInCells * cellSizeInBytes));
+            decodeRow(readRowBytes(row, stack), dest);
 
-            rIn = new RandomAccessFile(dataFile, "r");
+        } catch (IOException e) {
+            System.err.println("Caught exception: " + e.toString());
+            System.err.println(e.getStackTrace());
+        }
+        return dest;
+    }
 
-            FileChannel inChannel = rIn.getChannel();
+    private void decodeRow(ByteBuffer buf, double[] dest) {
+        decodeCells(buf, dest, numberColumns);
+    }
 
-            long numCellsPerStack = numberColumns * numberRows;
-            inChannel.position(startingCell * cellSizeInBytes + (numCellsPerStack * stack));
-            inChannel.read(buf);
+    private void decodeCells(ByteBuffer buf, double[] dest, int length) {
+        switch (dataType) {
+            case DOUBLE:
+                buf.asDoubleBuffer().get(dest, 0, length);
+                break;
+            case FLOAT:
+                for (int j = 0; j < length; j++) {
+                    dest[j] = buf.getFloat();
+                }
+                break;
+            case INTEGER:
+                for (int j = 0; j < length; j++) {
+                    dest[j] = buf.getShort();
+                }
+                break;
+            case BYTE:
+                for (int j = 0; j < length; j++) {
+                    dest[j] = buf.get() & 0xFF;
+                }
+                break;
+        }
+    }
 
-            // Check the byte order.
-            buf.order(byteOrder);
+    /**
+     * Reads a row of every stack into a single caller-supplied array, with
+     * the values of the stacks interleaved by pixel, i.e. the value of stack
+     * s at column c is held in element c * numberStacks + s. This allows the
+     * vector of values at each cell, e.g. of a multispectral image's bands, to
+     * be worked on without gathering it from one array per stack. If the data
+     * file is itself interleaved by pixel (see Interleave) the row is read
+     * with a single contiguous read. No memory is allocated if the array is
+     * large enough to hold the row.
+     *
+     * @param row An int stating the zero-based row to be returned.
+     * @param dest An array of numberColumns * numberStacks elements in which
+     * to place the row, or null.
+     * @return The array containing the row values.
+     */
+    public double[] getInterleavedRowValues(int row, double[] dest) {
+        int length = numberColumns * numberStacks;
+        if (dest == null || dest.length < length) {
+            dest = new double[length];
+        }
+        if (row < 0 || row >= numberRows) {
+            Arrays.fill(dest, 0, length, noDataValue);
+            return dest;
+        }
+        if (!isPixelInterleaved()) {
+            double[] data = new double[numberColumns];
+            for (int stack = 0; stack < numberStacks; stack++) {
+                getRowValues(row, stack, data);
+                for (int col = 0, i = stack; col < numberColumns; col++, i += numberStacks) {
+                    dest[i] = data[col];
+                }
+            }
+            return dest;
+        }
+        try {
+            if (!new File(dataFile).exists()) {
+                Arrays.fill(dest, 0, length, 0);
+                return dest;
+            }
+            decodeCells(readInterleavedRowBytes(row), dest, length);
+        } catch (IOException e) {
+            System.err.println("Caught exception: " + e.toString());
+        }
+        return dest;
+    }
 
-            if (dataType == DataType.DOUBLE) { //.equals("double")) {
-                buf.rewind();
-                DoubleBuffer db = buf.asDoubleBuffer();
-                retVals = new double[readLengthInCells];
-                db.get(retVals);
-                db = null;
-                buf = null;
-            } else if (dataType == DataType.FLOAT) { //.equals("float")) {
-                buf.rewind();
-                FloatBuffer fb = buf.asFloatBuffer();
-                float[] fa = new float[readLengthInCells];
-                fb.get(fa);
-                fb = null;
-                buf = null;
-                retVals = new double[readLengthInCells];
-                for (int j = 0; j < readLengthInCells; j++) {
-                    retVals[j] = fa[j];
+    // A buffer for each thread holding a row of all stacks of a
+    // pixel-interleaved data file.
+    private final ThreadLocal<ByteBuffer> interleavedRowByteBuffer = new ThreadLocal<>();
+
+    /**
+     * Reads a row of all stacks from a pixel-interleaved data file. The
+     * returned buffer is owned by the calling thread and is only valid until
+     * its next read.
+     */
+    private ByteBuffer readInterleavedRowBytes(int row) throws IOException {
+        int rowSizeInBytes = numberColumns * numberStacks * cellSizeInBytes;
+        ByteBuffer buf = interleavedRowByteBuffer.get();
+        if (buf == null || buf.capacity() < rowSizeInBytes) {
+            buf = ByteBuffer.allocateDirect(rowSizeInBytes);
+            interleavedRowByteBuffer.set(buf);
+        }
+        buf.clear();
+        buf.limit(rowSizeInBytes);
+        buf.order(byteOrder);
+        long pos = (long) row * rowSizeInBytes;
+        try (DataFileChannel.Handle in = openDataChannel(false)) {
+            while (buf.hasRemaining()) {
+                if (in.channel.read(buf, pos + buf.position()) < 0) {
+                    break;
                 }
-                fa = null;
-            } else if (dataType == DataType.INTEGER) { //.equals("integer")) {
-                buf.rewind();
-                ShortBuffer ib = buf.asShortBuffer();
-                short[] ia = new short[readLengthInCells];
-                ib.get(ia);
-                ib = null;
-                buf = null;
-                retVals = new double[readLengthInCells];
-                for (int j = 0; j < readLengthInCells; j++) {
-                    retVals[j] = ia[j];
+            }
+        }
+        while (buf.hasRemaining()) {
+            // the file is shorter than expected
+            buf.put((byte) 0);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Stacks a set of single-stack rasters of the same dimensions, e.g. the
+     * bands of a multispectral image, into a new multi-stack raster. The new
+     * raster takes its extent, NoData value and other properties from the
+     * first band and the widest of the bands' data types. Each band's NoData
+     * cells become NoData cells of the stack.
+     *
+     * @param headerFile The name of the new raster's header file (.dep).
+     * @param bandHeaders The header files of the bands, in stack order.
+     * @param interleave The layout of the new raster's data file.
+     * @throws IOException
+     */
+    public static void createStack(String headerFile, String[] bandHeaders, Interleave interleave) throws IOException {
+        int numBands = bandHeaders.length;
+        if (numBands == 0) {
+            throw new IllegalArgumentException("A stack needs at least one band.");
+        }
+        WhiteboxRasterBase[] bands = new WhiteboxRasterBase[numBands];
+        try {
+            DataType dataType = DataType.BYTE;
+            for (int b = 0; b < numBands; b++) {
+                if (!new File(bandHeaders[b]).exists()) {
+                    throw new IOException("The raster " + bandHeaders[b] + " could not be found.");
                 }
-                ia = null;
-            } else if (dataType == DataType.BYTE) { //.equals("byte")) {
-                buf.rewind();
-                retVals = new double[readLengthInCells];
-                for (int j = 0; j < readLengthInCells; j++) {
-                    retVals[j] = whitebox.utilities.Unsigned.getUnsignedByte(buf, j); //ba[j]);
+                bands[b] = new WhiteboxRasterBase(bandHeaders[b]);
+                bands[b].setFileAccess("r");
+                if (bands[b].numberRows != bands[0].numberRows
+                        || bands[b].numberColumns != bands[0].numberColumns) {
+                    throw new IllegalArgumentException("All bands must have the same dimensions (rows and columns).");
+                }
+                // the data types are listed from widest to narrowest
+                if (bands[b].dataType.ordinal() < dataType.ordinal()) {
+                    dataType = bands[b].dataType;
+                }
+            }
+
+            WhiteboxRasterBase first = bands[0];
+            WhiteboxRasterBase stack = new WhiteboxRasterBase();
+            stack.headerFile = headerFile;
+            stack.dataFile = headerFile.replace(".dep", ".tas");
+            stack.statsFile = headerFile.replace(".dep", ".wstat");
+            new File(stack.statsFile).delete();
+            stack.north = first.north;
+            stack.south = first.south;
+            stack.east = first.east;
+            stack.west = first.west;
+            stack.numberRows = first.numberRows;
+            stack.numberColumns = first.numberColumns;
+            stack.numberStacks = numBands;
+            stack.interleave = interleave;
+            stack.setDataType(dataType);
+            stack.dataScale = first.dataScale;
+            stack.zUnits = first.zUnits;
+            stack.xyUnits = first.xyUnits;
+            stack.projection = first.projection;
+            stack.preferredPalette = first.preferredPalette;
+            stack.noDataValue = first.noDataValue;
+
+            int rows = first.numberRows;
+            int cols = first.numberColumns;
+            double noData = first.noDataValue;
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            // a BIP file is written a row of all bands at a time and a BSQ
+            // file a row of one band at a time
+            boolean bip = interleave == Interleave.BIP;
+            int bandsPerWrite = bip ? numBands : 1;
+            int cellsPerWrite = cols * bandsPerWrite;
+            CellBuffer cells = CellBuffer.create(dataType, cellsPerWrite);
+            ByteBuffer buf = ByteBuffer.allocateDirect(cellsPerWrite * stack.cellSizeInBytes);
+            buf.order(stack.byteOrder);
+            double[] data = new double[cols];
+            DataFileChannel.invalidate(stack.dataFile);
+            try (RandomAccessFile out = new RandomAccessFile(stack.dataFile, "rw")) {
+                out.setLength(0);
+                FileChannel channel = out.getChannel();
+                int numWrites = bip ? rows : rows * numBands;
+                for (int w = 0; w < numWrites; w++) {
+                    int row = bip ? w : w % rows;
+                    int firstBand = bip ? 0 : w / rows;
+                    for (int s = 0; s < bandsPerWrite; s++) {
+                        WhiteboxRasterBase band = bands[firstBand + s];
+                        band.getRowValues(row, data);
+                        for (int col = 0, i = s; col < cols; col++, i += bandsPerWrite) {
+                            double z = data[col];
+                            if (z == band.noDataValue) {
+                                z = noData;
+                            } else {
+                                min = Math.min(min, z);
+                                max = Math.max(max, z);
+                            }
+                            cells.set(i, z);
+                        }
+                    }
+                    buf.clear();
+                    cells.write(buf, 0, cellsPerWrite);
+                    buf.flip();
+                    while (buf.hasRemaining()) {
+                        channel.write(buf);
+                    }
+                }
+            }
+            stack.minimumValue = min;
+            stack.maximumValue = max;
+            stack.displayMinimum = min;
+            stack.displayMaximum = max;
+            stack.writeHeaderFile();
+        } finally {
+            for (WhiteboxRasterBase band : bands) {
+                if (band != null) {
+                    band.close();
                 }
             }
+        }
+    }
 
+    /**
+     * Reads a row of the data file into a float array without widening the
+     * values to doubles. No memory is allocated if the supplied array is large
+     * enough to hold the row.
+     *
+     * @param row An int stating the zero-based row to be returned.
+     * @param dest An array in which to place the row, or null.
+     * @return The array containing the row values.
+     */
+    public float[] getFloatRow(int row, float[] dest) {
+        if (dest == null || dest.length < numberColumns) {
+            dest = new float[numberColumns];
+        }
+        if (row < 0 || row >= numberRows) {
+            Arrays.fill(dest, 0, numberColumns, (float) noDataValue);
+            return dest;
+        }
+        try {
+            ByteBuffer buf = readRowBytes(row, 0);
+            switch (dataType) {
+                case DOUBLE:
+                    for (int j = 0; j < numberColumns; j++) {
+                        dest[j] = (float) buf.getDouble();
+                    }
+                    break;
+                case FLOAT:
+                    buf.asFloatBuffer().get(dest, 0, numberColumns);
+                    break;
+                case INTEGER:
+                    for (int j = 0; j < numberColumns; j++) {
+                        dest[j] = buf.getShort();
+                    }
+                    break;
+                case BYTE:
+                    for (int j = 0; j < numberColumns; j++) {
+                        dest[j] = buf.get() & 0xFF;
+                    }
+                    break;
+            }
         } catch (IOException e) {
             System.err.println("Caught exception: " + e.toString());
-            System.err.println(e.getStackTrace());
-        } finally {
-            if (rIn != null) {
-                try {
-                    rIn.close();
-                } catch (IOException e) {
+        }
+        return dest;
+    }
+
+    /**
+     * Reads a row of the data file into a short array. This is the native
+     * width of INTEGER rasters; values of other data types are cast. No memory
+     * is allocated if the supplied array is large enough to hold the row.
+     *
+     * @param row An int stating the zero-based row to be returned.
+     * @param dest An array in which to place the row, or null.
+     * @return The array containing the row values.
+     */
+    public short[] getShortRow(int row, short[] dest) {
+        if (dest == null || dest.length < numberColumns) {
+            dest = new short[numberColumns];
+        }
+        if (row < 0 || row >= numberRows) {
+            Arrays.fill(dest, 0, numberColumns, (short) noDataValue);
+            return dest;
+        }
+        try {
+            ByteBuffer buf = readRowBytes(row, 0);
+            switch (dataType) {
+                case DOUBLE:
+                    for (int j = 0; j < numberColumns; j++) {
+                        dest[j] = (short) buf.getDouble();
+                    }
+                    break;
+                case FLOAT:
+                    for (int j = 0; j < numberColumns; j++) {
+                        dest[j] = (short) buf.getFloat();
+                    }
+                    break;
+                case INTEGER:
+                    buf.asShortBuffer().get(dest, 0, numberColumns);
+                    break;
+                case BYTE:
+                    for (int j = 0; j < numberColumns; j++) {
+                        dest[j] = (short) (buf.get() & 0xFF);
+                    }
+                    break;
+            }
+        } catch (IOException e) {
+            System.err.println("Caught exception: " + e.toString());
+        }
+        return dest;
+    }
+
+    /**
+     * Reads a row of the data file into a byte array. This is the native
+     * width of BYTE rasters, whose values are unsigned (0-255) and should be
+     * read using (b &amp; 0xFF); values of other data types are cast. No
+     * memory is allocated if the supplied array is large enough to hold the
+     * row.
+     *
+     * @param row An int stating the zero-based row to be returned.
+     * @param dest An array in which to place the row, or null.
+     * @return The array containing the row values.
+     */
+    public byte[] getByteRow(int row, byte[] dest) {
+        if (dest == null || dest.length < numberColumns) {
+            dest = new byte[numberColumns];
+        }
+        if (row < 0 || row >= numberRows) {
+            Arrays.fill(dest, 0, numberColumns, (byte) noDataValue);
+            return dest;
+        }
+        try {
+            ByteBuffer buf = readRowBytes(row, 0);
+            switch (dataType) {
+                case DOUBLE:
+                    for (int j = 0; j < numberColumns; j++) {
+                        dest[j] = (byte) buf.getDouble();
+                    }
+                    break;
+                case FLOAT:
+                    for (int j = 0; j < numberColumns; j++) {
+                        dest[j] = (byte) buf.getFloat();
+                    }
+                    break;
+                case INTEGER:
+                    for (int j = 0; j < numberColumns; j++) {
+                        dest[j] = (byte) buf.getShort();
+                    }
+                    break;
+                case BYTE:
+                    buf.get(dest, 0, numberColumns);
+                    break;
+            }
+        } catch (IOException e) {
+            System.err.println("Caught exception: " + e.toString());
+        }
+        return dest;
+    }
+
+    // A row-sized read buffer for each thread, so that row reads neither
+    // allocate nor interfere with one another when a raster is shared.
+    private final ThreadLocal<ByteBuffer> rowByteBuffer = new ThreadLocal<>();
+
+    /**
+     * Retrieves the calling thread's row buffer, cleared, limited to the
+     * length of a row and set to the file's byte order.
+     *
+     * @return The buffer.
+     */
+    protected ByteBuffer getRowByteBuffer() {
+        int rowSizeInBytes = numberColumns * cellSizeInBytes;
+        ByteBuffer buf = rowByteBuffer.get();
+        if (buf == null || buf.capacity() < rowSizeInBytes) {
+            buf = ByteBuffer.allocateDirect(rowSizeInBytes);
+            rowByteBuffer.set(buf);
+        }
+        buf.clear();
+        buf.limit(rowSizeInBytes);
+        buf.order(byteOrder);
+        return buf;
+    }
+
+    /**
+     * Reads the raw bytes of a row from the data file. The returned buffer is
+     * owned by the calling thread and is only valid until its next row read.
+     *
+     * @param row The zero-based row.
+     * @param stack The zero-based stack in which the row is located.
+     * @return A buffer positioned at the start of the row, in the file's byte
+     * order.
+     * @throws IOException
+     */
+    protected ByteBuffer readRowBytes(int row, int stack) throws IOException {
+        ByteBuffer buf = getRowByteBuffer();
+        if (isPixelInterleaved()) {
+            // gather the stack's cells out of the row of all stacks
+            ByteBuffer src = readInterleavedRowBytes(row);
+            int stride = numberStacks * cellSizeInBytes;
+            for (int pos = stack * cellSizeInBytes; pos < src.limit(); pos += stride) {
+                for (int k = 0; k < cellSizeInBytes; k++) {
+                    buf.put(src.get(pos + k));
                 }
             }
-            return retVals.clone();
+            buf.flip();
+            return buf;
+        }
+        long fileRow = (long) stack * numberRows + row;
+        RowReadAhead ra = getRowReadAhead();
+        if (ra != null && ra.take(fileRow, buf)) {
+            buf.flip();
+        } else {
+            readRowFromFile(fileRow, buf);
+        }
+        return buf;
+    }
+
+    /**
+     * Called before the data file is read directly, other than through
+     * readRowBytes. A raster that writes to its data file in the background
+     * waits here for those writes to finish.
+     */
+    protected void awaitPendingWrites() {
+    }
+
+    /**
+     * Reads a row from the data file into a buffer, filling it from its
+     * position to its limit, and flips the buffer. Any part of the row lying
+     * beyond the end of the file is read as zeros.
+     *
+     * @param fileRow The row's position in the file, i.e. stack * numberRows +
+     * row.
+     * @param buf The buffer to fill.
+     * @throws IOException
+     */
+    void readRowFromFile(long fileRow, ByteBuffer buf) throws IOException {
+        if (compression != Compression.NONE) {
+            buf.order(byteOrder);
+            getCompressedReader().getRowBytes((int) fileRow, buf);
+            buf.flip();
+            return;
+        }
+        long pos = fileRow * numberColumns * cellSizeInBytes - buf.position();
+        try (DataFileChannel.Handle in = openDataChannel(false)) {
+            while (buf.hasRemaining()) {
+                if (in.channel.read(buf, pos + buf.position()) < 0) {
+                    break;
+                }
+            }
+        }
+        while (buf.hasRemaining()) {
+            // the file is shorter than expected
+            buf.put((byte) 0);
+        }
+        buf.flip();
+    }
+
+    /**
+     * Retrieves a read-only tile cache on a compressed data file, used to
+     * serve row reads. It holds a single band of tiles, which is all that a
+     * row scan needs.
+     */
+    private synchronized ConcurrentTileCache getCompressedReader() throws IOException {
+        if (compressedReader == null) {
+            RasterTileStore store = openTileStore(false);
+            int numTileColumns = (numberColumns + compressedTileSize - 1) / compressedTileSize;
+            compressedReader = new ConcurrentTileCache(store, dataType, numberRows, numberColumns,
+                    numTileColumns + 1);
+        }
+        return compressedReader;
+    }
+
+    /**
+     * Opens the store serving the tiles of a compressed data file or of a
+     * virtual mosaic.
+     *
+     * @param writable Set to true if tiles will be written.
+     * @return The store.
+     * @throws IOException
+     */
+    RasterTileStore openTileStore(boolean writable) throws IOException {
+        if (compression == Compression.MOSAIC) {
+            return new MosaicTileStore(this, compressedTileSize);
+        }
+        if (compression == Compression.GEOTIFF) {
+            return new GeoTiffTileStore(this, compressedTileSize);
+        }
+        return new CompressedTileStore(this, writable);
+    }
+
+    private volatile DataFileChannel dataChannel = null;
+
+    /**
+     * Opens the channel on the data file for a read or write. The channel is
+     * shared with any other rasters that have the same file open and stays
+     * open until the raster is closed. Only positional reads and writes
+     * should be used on it, and the handle must be closed once they're done,
+     * e.g. with try-with-resources.
+     *
+     * @param forWriting Set to true if the channel will be written to.
+     * @return A handle on the channel.
+     * @throws IOException
+     */
+    DataFileChannel.Handle openDataChannel(boolean forWriting) throws IOException {
+        DataFileChannel dfc = dataChannel;
+        if (dfc == null) {
+            synchronized (this) {
+                dfc = dataChannel;
+                if (dfc == null) {
+                    dfc = DataFileChannel.acquire(dataFile);
+                    dataChannel = dfc;
+                }
+            }
+        }
+        return dfc.open(forWriting);
+    }
+
+    /**
+     * Releases the raster's hold on the shared data file channel and stops
+     * any row read-ahead. This should be called when the raster is closed and
+     * before its data file is deleted.
+     */
+    protected void releaseDataChannel() {
+        RowReadAhead ra;
+        DataFileChannel dfc;
+        ConcurrentTileCache reader;
+        synchronized (this) {
+            ra = rowReadAhead;
+            rowReadAhead = null;
+            dfc = dataChannel;
+            dataChannel = null;
+            reader = compressedReader;
+            compressedReader = null;
+        }
+        if (ra != null) {
+            ra.cancel();
+        }
+        if (reader != null) {
+            reader.close(false);
+        }
+        if (dfc != null) {
+            dfc.release();
+        }
+    }
+
+    /**
+     * The default number of rows read ahead of a sequential row scan.
+     */
+    public static final int DEFAULT_READ_AHEAD_DEPTH = 8;
+    private int readAheadDepth = DEFAULT_READ_AHEAD_DEPTH;
+    private RowReadAhead rowReadAhead = null;
+
+    /**
+     * Retrieves the number of rows that are read in the background ahead of a
+     * sequential row scan.
+     *
+     * @return The read-ahead depth.
+     */
+    public int getReadAheadDepth() {
+        return readAheadDepth;
+    }
+
+    /**
+     * Sets the number of rows that are read in the background ahead of a
+     * sequential row scan using getRowValues. Read-ahead is only used for
+     * rasters that are opened for read-only access, since rows read ahead of
+     * time would not reflect later changes.
+     *
+     * @param depth The number of rows. Set to zero to disable read-ahead.
+     */
+    public synchronized void setReadAheadDepth(int depth) {
+        readAheadDepth = Math.max(0, depth);
+        if (rowReadAhead != null) {
+            rowReadAhead.cancel();
+            rowReadAhead = null;
+        }
+    }
+
+    private synchronized RowReadAhead getRowReadAhead() {
+        if (saveChanges || readAheadDepth <= 0) {
+            return null;
         }
+        if (rowReadAhead == null) {
+            rowReadAhead = new RowReadAhead(this, (long) numberRows * Math.max(1, numberStacks), readAheadDepth);
+        }
+        return rowReadAhead;
     }
 
     /**
@@ -1223,6 +2032,16 @@ public class WhiteboxRasterBase {
             return retVals;
         }
 
+        if (compression != Compression.NONE || isPixelInterleaved()) {
+            // the cells of a column are spread across every tile column
+            double[] data = new double[numberColumns];
+            for (int i = 0; i < numberRows; i++) {
+                retVals[i] = getRowValues(i, 0, data)[col];
+            }
+            return retVals;
+        }
+        awaitPendingWrites();
+
         RandomAccessFile rIn = null;
         ByteBuffer buf = null;
 
@@ -1313,7 +2132,16 @@ public class WhiteboxRasterBase {
      */
     public double[] getPixelValues(int stack) {
         double[] retVals = new double[numberRows * numberColumns];
-        
+
+        if (compression != Compression.NONE || isPixelInterleaved()) {
+            double[] data = new double[numberColumns];
+            for (int i = 0; i < numberRows; i++) {
+                System.arraycopy(getRowValues(i, stack, data), 0, retVals, i * numberColumns, numberColumns);
+            }
+            return retVals;
+        }
+        awaitPendingWrites();
+
         RandomAccessFile rIn = null;
         ByteBuffer buf = null;
 
@@ -1336,8 +2164,8 @@ public class WhiteboxRasterBase {
 
             FileChannel inChannel = rIn.getChannel();
 
-            long numCellsPerStack = numberColumns * numberRows;
-            inChannel.position(startingCell * cellSizeInBytes + (numCellsPerStack * stack));
+            long numCellsPerStack = (long) numberColumns * numberRows;
+            inChannel.position((startingCell + numCellsPerStack * stack) * cellSizeInBytes);
             inChannel.read(buf);
 
             // Check the byte order.
@@ -1409,6 +2237,12 @@ public class WhiteboxRasterBase {
      * @param value Pixel value to set.
      */
     public void setPixelValue(int row, int column, double value) {
+        if (compression != Compression.NONE) {
+            throw new UnsupportedOperationException("setPixelValue cannot be used with a compressed raster.");
+        }
+        if (isPixelInterleaved()) {
+            throw new UnsupportedOperationException("setPixelValue cannot be used with a pixel-interleaved raster.");
+        }
         // update the minimum and maximum values
         if (value < minimumValue && value != noDataValue) {
             minimumValue = value;
@@ -1489,13 +2323,13 @@ public class WhiteboxRasterBase {
      * and maximumValue fields.
      */
     public void findMinAndMaxVals() {
-        double[] data;
+        double[] data = null;
         double min = Double.MAX_VALUE;
         double max = -Double.MAX_VALUE;
         double z;
         for (int stack = 0; stack < numberStacks; stack++) {
             for (int row = 0; row < numberRows; row++) {
-                data = getRowValues(row, stack);
+                data = getRowValues(row, stack, data);
                 for (int col = 0; col < numberColumns; col++) {
                     z = data[col];
                     if (z != noDataValue) {
@@ -1514,27 +2348,37 @@ public class WhiteboxRasterBase {
     }
 
     protected double[] cumulativeHisto = null;
+    // the values of the quantile sketch stored with the statistics of a FLOAT
+    // or DOUBLE raster, or of the fine histogram kept as a new raster was
+    // written, sorted, and the number of cells up to the middle of each
+    // value's share; null if there is no sketch
+    protected double[] quantileValues = null;
+    protected double[] quantileRanks = null;
 
+    /**
+     * Estimates the value below which a given percentage of the valid cells
+     * fall. For a FLOAT or DOUBLE raster the estimate comes from the quantile
+     * sketch stored with the raster's statistics, which is accurate to within
+     * a small fraction of a percent in rank whatever the shape of the
+     * distribution; otherwise it is interpolated from the histogram.
+     *
+     * @param percentile The percentage, from 0 to 100.
+     * @return The value.
+     */
     public double getPercentileValue(double percentile) {
         if (mean == noDataValue || mean == -32768d) {
             readStatsFile();
         }
+        if (quantileValues != null && quantileValues.length > 0) {
+            double retVal = getQuantileValue(percentile / 100);
+            return Math.max(minimumValue, Math.min(maximumValue, retVal));
+        }
         percentile = percentile / 100;
         double retVal = 0;
         double x1, x2;
         double y1, y2;
 
-        if (cumulativeHisto == null) {
-            cumulativeHisto = new double[histo.length];
-
-            cumulativeHisto[0] = histo[0];
-            for (int i = 1; i < histo.length; i++) {
-                cumulativeHisto[i] = histo[i] + cumulativeHisto[i - 1];
-            }
-            for (int i = 0; i < histo.length; i++) {
-                cumulativeHisto[i] = cumulativeHisto[i] / numValidCells;
-            }
-        }
+        buildCumulativeHisto();
         for (int i = 0; i < histo.length; i++) {
             if (cumulativeHisto[i] >= percentile) { // find the first bin with a value greater than percentile.
                 if (i > 0) {
@@ -1563,6 +2407,99 @@ public class WhiteboxRasterBase {
         return retVal;
     }
 
+    private void buildCumulativeHisto() {
+        if (cumulativeHisto == null) {
+            cumulativeHisto = new double[histo.length];
+
+            cumulativeHisto[0] = histo[0];
+            for (int i = 1; i < histo.length; i++) {
+                cumulativeHisto[i] = histo[i] + cumulativeHisto[i - 1];
+            }
+            for (int i = 0; i < histo.length; i++) {
+                cumulativeHisto[i] = cumulativeHisto[i] / numValidCells;
+            }
+        }
+    }
+
+    private double getQuantileValue(double fraction) {
+        int m = quantileValues.length;
+        double rank = fraction * numValidCells;
+        if (rank <= quantileRanks[0]) {
+            return quantileValues[0];
+        }
+        if (rank >= quantileRanks[m - 1]) {
+            return quantileValues[m - 1];
+        }
+        int i = Arrays.binarySearch(quantileRanks, rank);
+        if (i >= 0) {
+            return quantileValues[i];
+        }
+        i = -i - 2;
+        return quantileValues[i] + (rank - quantileRanks[i]) / (quantileRanks[i + 1] - quantileRanks[i])
+                * (quantileValues[i + 1] - quantileValues[i]);
+    }
+
+    /**
+     * Estimates the fraction of the valid cells with values less than or
+     * equal to a given value, i.e. the empirical cumulative distribution
+     * function. This is the inverse of getPercentileValue, and is used, for
+     * example, to equalize the histogram of an image without a pass over its
+     * data to count values.
+     *
+     * @param value The value.
+     * @return The fraction, from 0 to 1.
+     */
+    public double getCumulativeProbability(double value) {
+        if (mean == noDataValue || mean == -32768d) {
+            readStatsFile();
+        }
+        if (numValidCells <= 0) {
+            return 0;
+        }
+        if (quantileValues != null && quantileValues.length > 0) {
+            int m = quantileValues.length;
+            if (value < quantileValues[0]) {
+                return 0;
+            }
+            if (value >= quantileValues[m - 1]) {
+                return 1;
+            }
+            int i = Arrays.binarySearch(quantileValues, value);
+            double rank;
+            if (i >= 0) {
+                rank = quantileRanks[i];
+            } else {
+                i = -i - 2;
+                rank = quantileRanks[i] + (value - quantileValues[i]) / (quantileValues[i + 1] - quantileValues[i])
+                        * (quantileRanks[i + 1] - quantileRanks[i]);
+            }
+            return Math.max(0, Math.min(1, rank / numValidCells));
+        }
+        if (histo == null || histo.length == 0) {
+            return value < minimumValue ? 0 : 1;
+        }
+        buildCumulativeHisto();
+        if (value < minimumValue) {
+            return 0;
+        }
+        int bin = binWidth > 0 ? (int) Math.floor((value - minimumValue) / binWidth) : 0;
+        return cumulativeHisto[Math.min(histo.length - 1, bin)];
+    }
+
+    /**
+     * Sets the quantile lookup from the values of a quantile sketch and their
+     * weights.
+     */
+    private void setQuantiles(double[] values, double[] weights) {
+        quantileValues = values;
+        quantileRanks = new double[values.length];
+        double total = 0;
+        for (int i = 0; i < values.length; i++) {
+            quantileRanks[i] = total + weights[i] / 2;
+            total += weights[i];
+        }
+    }
+
     public void deleteStatsFile() {
         File file = new File(statsFile);
         if (file.exists()) {
@@ -1581,8 +2518,15 @@ public class WhiteboxRasterBase {
         BufferedReader br = null;
         boolean statsFlag = false;
         boolean histoFlag = false;
+        boolean quantileFlag = false;
         int i = 0;
+        int q = 0;
+        double[] qValues = null;
+        double[] qWeights = null;
         long histoVal = 0;
+        cumulativeHisto = null;
+        quantileValues = null;
+        quantileRanks = null;
         try {
             // Open the file that is the first command line parameter
             FileInputStream fstream = new FileInputStream(statsFile);
@@ -1609,6 +2553,17 @@ public class WhiteboxRasterBase {
                     if (str[0].toLowerCase().contains("end_histo")) {
                         histoFlag = false;
                     }
+                    if (str[0].toLowerCase().contains("start_quantiles")) {
+                        quantileFlag = true;
+                        continue;
+                    }
+                    if (str[0].toLowerCase().contains("end_quantiles")) {
+                        quantileFlag = false;
+                        if (qValues != null && q == qValues.length) {
+                            setQuantiles(qValues, qWeights);
+                        }
+                        continue;
+                    }
                     if (statsFlag) {
                         if (str[0].toLowerCase().contains("mean")) {
                             this.mean = Double.parseDouble(str[1]);
@@ -1631,6 +2586,16 @@ public class WhiteboxRasterBase {
                             histo[i] = Long.parseLong(str[0]);
                             i++;
                         }
+                    } else if (quantileFlag) {
+                        if (str[0].toLowerCase().contains("num_quantiles")) {
+                            qValues = new double[Integer.parseInt(str[1])];
+                            qWeights = new double[qValues.length];
+                            q = 0;
+                        } else if (qValues != null && q < qValues.length) {
+                            qValues[q] = Double.parseDouble(str[0]);
+                            qWeights[q] = Double.parseDouble(str[1]);
+                            q++;
+                        }
                     }
 
                 }
@@ -1660,159 +2625,246 @@ public class WhiteboxRasterBase {
      * Creates a .wst file to store information about the statistical
      * distribution of the raster, including the min, max, mean, mode, stdev,
      * and the histogram. These data are used for clipping the tails of the
-     * distribution for enhanced visualization.
+     * distribution for enhanced visualization. No file is written if the
+     * raster can't be read.
+     *
+     * @throws IllegalStateException if the raster couldn't be read.
      */
     public void createStatsFile() {
         File file = new File(statsFile);
         if (file.exists()) {
             file.delete();
         }
+        if (dataScale != DataScale.RGB) { //DATA_SCALE_RGB) {
+            RasterStatistics stats = computeStatistics();
+            maximumValue = stats.getMaximum();
+            minimumValue = stats.getMinimum();
+            writeStatsFile(stats);
+        }
+    }
 
-        mean = 0;
-        mode = 0;
-        long n = 0;
-        double[] data;
-        double imageTotalDeviation = 0;
-        double min = Double.MAX_VALUE;
-        double max = -Double.MAX_VALUE;
-        double z;
-        double[] rowMedians = new double[numberRows];
-
-        binWidth = 0;
-        int binNum = 0;
-        int numberOfBins = 0;
+    /**
+     * Returns true if rows may be read directly from the data file by several
+     * threads at once, i.e. if none of the raster's data are held in memory
+     * in a modified state.
+     *
+     * @return boolean
+     */
+    protected boolean canReadRowsInParallel() {
+        return true;
+    }
 
-        if (dataScale != DataScale.RGB) { //DATA_SCALE_RGB) {
+    // the number of rows handed to a statistics thread at a time
+    private static final int STATISTICS_BAND_SIZE = 256;
 
-            // calculate the mean, min and max.
+    /**
+     * Summarizes the raster's values in a single pass. Unless some of its
+     * data may be held in memory, the raster is read in bands of rows by
+     * several threads at once, each keeping its own summary, and the
+     * summaries are then merged.
+     *
+     * @return The summary.
+     * @throws IllegalStateException if a thread failed to read its rows.
+     */
+    RasterStatistics computeStatistics() {
+        final int numBands = (numberRows + STATISTICS_BAND_SIZE - 1) / STATISTICS_BAND_SIZE;
+        int numThreads = Math.min(Runtime.getRuntime().availableProcessors(), numBands * numberStacks);
+        if (!canReadRowsInParallel() || compression != Compression.NONE || isPixelInterleaved()
+                || !new File(dataFile).exists()) {
+            // rows of a compressed raster are read through a single band of
+            // tiles, which threads reading different bands would thrash
+            numThreads = 1;
+        }
+        if (numThreads <= 1) {
+            RasterStatistics stats = new RasterStatistics(dataType, noDataValue, noDataValue);
+            double[] data = null;
             for (int stack = 0; stack < numberStacks; stack++) {
                 for (int row = 0; row < numberRows; row++) {
-                    data = getRowValues(row, stack);
+                    data = getRowValues(row, stack, data);
                     for (int col = 0; col < numberColumns; col++) {
-                        z = data[col];
-                        if (z != noDataValue) {
-                            mean += z;
-                            n++;
-                            if (z < min) {
-                                min = z;
-                            }
-                            if (z > max) {
-                                max = z;
-                            }
-                        }
+                        stats.add(data[col]);
                     }
                 }
             }
+            return stats;
+        }
 
-            maximumValue = max;
-            minimumValue = min;
-            mean = mean / n;
-            numValidCells = n;
-
-            if (dataType == DataType.INTEGER) { //.equals("integer")) {
-                numberOfBins = (int) (max - min + 1);
-                binWidth = 1;
-            } else if (dataType == DataType.FLOAT || dataType == DataType.DOUBLE) { //.equals("float") || dataType.equals("double")) {
-                if ((max - min) < 512) {
-                    numberOfBins = 512;
-                } else if ((max - min) < 1024) {
-                    numberOfBins = 1024;
-                } else if ((max - min) < 2048) {
-                    numberOfBins = 2048;
-                } else if ((max - min) < 4096) {
-                    numberOfBins = 4096;
+        final AtomicInteger nextBand = new AtomicInteger(0);
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads,
+                new NamedThreadFactory("RasterStatistics"));
+        List<Future<RasterStatistics>> results = new ArrayList<>();
+        for (int t = 0; t < numThreads; t++) {
+            results.add(executor.submit(new Callable<RasterStatistics>() {
+                @Override
+                public RasterStatistics call() throws IOException {
+                    RasterStatistics stats = new RasterStatistics(dataType, noDataValue, noDataValue);
+                    double[] data = new double[numberColumns];
+                    int band;
+                    while ((band = nextBand.getAndIncrement()) < numBands * numberStacks) {
+                        int stack = band / numBands;
+                        int startRow = (band % numBands) * STATISTICS_BAND_SIZE;
+                        int endRow = Math.min(numberRows, startRow + STATISTICS_BAND_SIZE);
+                        for (int row = startRow; row < endRow; row++) {
+                            // read directly, since the threads' interleaved
+                            // requests would defeat the row read-ahead
+                            ByteBuffer buf = getRowByteBuffer();
+                            readRowFromFile((long) stack * numberRows + row, buf);
+                            decodeRow(buf, data);
+                            for (int col = 0; col < numberColumns; col++) {
+                                stats.add(data[col]);
+                            }
+                        }
+                    }
+                    return stats;
+                }
+            }));
+        }
+        executor.shutdown();
+        RasterStatistics stats = null;
+        try {
+            for (Future<RasterStatistics> result : results) {
+                if (stats == null) {
+                    stats = result.get();
                 } else {
-                    numberOfBins = 8196;
+                    stats.merge(result.get());
                 }
-                binWidth = (max - min) / (numberOfBins - 1);
             }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("The statistics of " + headerFile + " were interrupted", e);
+        } catch (ExecutionException e) {
+            // a partial summary mustn't be mistaken for the raster's
+            executor.shutdownNow();
+            throw new IllegalStateException("Unable to compute the statistics of " + headerFile, e.getCause());
+        }
+        return stats;
+    }
 
-            histo = new long[numberOfBins];
+    /**
+     * Sets the statistics and histogram from a summary of the raster's values
+     * and writes them to the .wstat file. The minimum and maximum values must
+     * already be set.
+     *
+     * @param stats The summary.
+     */
+    void writeStatsFile(RasterStatistics stats) {
+        File file = new File(statsFile);
+        double min = minimumValue;
+        double max = maximumValue;
+        long n = stats.getNumValidCells();
+        mean = stats.getMean();
+        numValidCells = n;
+        stdDeviation = stats.getStandardDeviation();
 
-            // figure out how many bins should be in the histogram
-            for (int stack = 0; stack < numberStacks; stack++) {
-                for (int row = 0; row < numberRows; row++) {
-                    data = getRowValues(row, stack);
-                    for (int col = 0; col < numberColumns; col++) {
-                        z = data[col];
-                        if (z != noDataValue) {
-                            imageTotalDeviation += (z - mean) * (z - mean);
-                            binNum = (int) (Math.floor((z - min) / binWidth));
-                            histo[binNum]++;
-                        }
-                    }
-                }
+        int numberOfBins = 0;
+        binWidth = 0;
+        if (n == 0) {
+            numberOfBins = 0;
+        } else if (dataType == DataType.INTEGER || dataType == DataType.BYTE) { //.equals("integer")) {
+            numberOfBins = (int) (max - min + 1);
+            binWidth = 1;
+        } else if (dataType == DataType.FLOAT || dataType == DataType.DOUBLE) { //.equals("float") || dataType.equals("double")) {
+            if ((max - min) < 512) {
+                numberOfBins = 512;
+            } else if ((max - min) < 1024) {
+                numberOfBins = 1024;
+            } else if ((max - min) < 2048) {
+                numberOfBins = 2048;
+            } else if ((max - min) < 4096) {
+                numberOfBins = 4096;
+            } else {
+                numberOfBins = 8196;
             }
+            binWidth = (max - min) / (numberOfBins - 1);
+        }
 
-            stdDeviation = Math.sqrt(imageTotalDeviation / (n - 1));
+        histo = stats.getHistogram(min, numberOfBins, binWidth);
+        cumulativeHisto = null;
+        double[][] quantileItems = stats.getQuantileItems();
+        if (quantileItems != null && n > 0) {
+            setQuantiles(quantileItems[0], quantileItems[1]);
+        } else {
+            quantileValues = null;
+            quantileRanks = null;
+        }
 
-            long highestVal = 0;
-            int highestBin = 0;
-            for (int i = 0; i < histo.length; i++) {
-                if (histo[i] > highestVal) {
-                    highestVal = histo[i];
-                    highestBin = i;
-                }
+        long highestVal = 0;
+        int highestBin = 0;
+        for (int i = 0; i < histo.length; i++) {
+            if (histo[i] > highestVal) {
+                highestVal = histo[i];
+                highestBin = i;
             }
+        }
 
-            mode = highestBin * binWidth;
-            median = getPercentileValue(50.0d);
+        mode = highestBin * binWidth;
+        median = n > 0 ? getPercentileValue(50.0d) : noDataValue;
 
-            String str = null;
-            FileWriter fw = null;
-            BufferedWriter bw = null;
-            PrintWriter out = null;
-            try {
-                fw = new FileWriter(file, false);
-                bw = new BufferedWriter(fw);
-                out = new PrintWriter(bw, true);
+        String str = null;
+        FileWriter fw = null;
+        BufferedWriter bw = null;
+        PrintWriter out = null;
+        try {
+            fw = new FileWriter(file, false);
+            bw = new BufferedWriter(fw);
+            out = new PrintWriter(bw, true);
 
-                str = "START_STATS:";
-                out.println(str);
-                str = "MIN: \t" + Double.toString(this.minimumValue);
-                out.println(str);
-                str = "MAX: \t" + Double.toString(this.maximumValue);
-                out.println(str);
-                str = "MEAN: \t" + Double.toString(mean);
-                out.println(str);
-                str = "MEDIAN: \t" + Double.toString(median);
-                out.println(str);
-                str = "MODE: \t" + Double.toString(mode);
-                out.println(str);
-                str = "STD_DEV: \t" + Double.toString(stdDeviation);
-                out.println(str);
-                str = "NUM_VALID_CELLS: \t" + Long.toString(n);
-                out.println(str);
-                str = "END_STATS";
+            str = "START_STATS:";
+            out.println(str);
+            str = "MIN: \t" + Double.toString(this.minimumValue);
+            out.println(str);
+            str = "MAX: \t" + Double.toString(this.maximumValue);
+            out.println(str);
+            str = "MEAN: \t" + Double.toString(mean);
+            out.println(str);
+            str = "MEDIAN: \t" + Double.toString(median);
+            out.println(str);
+            str = "MODE: \t" + Double.toString(mode);
+            out.println(str);
+            str = "STD_DEV: \t" + Double.toString(stdDeviation);
+            out.println(str);
+            str = "NUM_VALID_CELLS: \t" + Long.toString(n);
+            out.println(str);
+            str = "END_STATS";
+            out.println(str);
+
+            str = "START_HISTO";
+            out.println(str);
+            str = "BIN_WIDTH: \t" + binWidth;
+            out.println(str);
+            str = "NUM_BINS: \t" + numberOfBins;
+            out.println(str);
+            for (int i = 0; i < histo.length; i++) {
+                str = String.valueOf(histo[i]);
                 out.println(str);
+            }
+            str = "END_HISTO";
+            out.println(str);
 
-                str = "START_HISTO";
-                out.println(str);
-                str = "BIN_WIDTH: \t" + binWidth;
+            if (quantileValues != null) {
+                str = "START_QUANTILES";
                 out.println(str);
-                str = "NUM_BINS: \t" + numberOfBins;
+                str = "NUM_QUANTILES: \t" + quantileValues.length;
                 out.println(str);
-                for (int i = 0; i < histo.length; i++) {
-                    str = String.valueOf(histo[i]);
+                for (int i = 0; i < quantileValues.length; i++) {
+                    str = quantileValues[i] + "\t" + (long) quantileItems[1][i];
                     out.println(str);
                 }
-                str = "END_HISTO";
+                str = "END_QUANTILES";
                 out.println(str);
+            }
 
-            } catch (java.io.IOException e) {
-                System.err.println("Error: " + e.getMessage());
-            } catch (Exception e) { //Catch exception if any
-                System.err.println("Error: " + e.getMessage());
-            } finally {
-                if (out != null || bw != null) {
-                    out.flush();
-                    out.close();
-                }
-
+        } catch (java.io.IOException e) {
+            System.err.println("Error: " + e.getMessage());
+        } catch (Exception e) { //Catch exception if any
+            System.err.println("Error: " + e.getMessage());
+        } finally {
+            if (out != null || bw != null) {
+                out.flush();
+                out.close();
             }
 
-        } else {
-            numberOfBins = 256;
         }
     }
 
@@ -1883,6 +2935,7 @@ public class WhiteboxRasterBase {
     }
 
     public void close() {
+        releaseDataChannel();
         if (saveChanges) {
             if (isDirty) {
                 writeHeaderFile();
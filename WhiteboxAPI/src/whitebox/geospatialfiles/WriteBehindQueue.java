@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2015 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.geospatialfiles;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import whitebox.utilities.NamedThreadFactory;
+
+/**
+ * Writes a raster's modified blocks and rows to its data file in the
+ * background, so that converting the cells to bytes and writing them overlaps
+ * with the computation that produces the next block. Writes are carried out
+ * in the order in which they are submitted, by a single I/O thread shared by
+ * all rasters.
+ *
+ * The data held by writes that haven't finished are limited to a number of
+ * bytes; submitting a write beyond the limit waits for the oldest to finish.
+ * A read of a part of the data file must first wait for any pending writes
+ * overlapping it, and flushing or closing the raster waits for all of them.
+ * A queue is used by a single thread, i.e. the one working on the raster.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+final class WriteBehindQueue {
+
+    private static final ExecutorService writer = Executors.newSingleThreadExecutor(
+            new NamedThreadFactory("WriteBehindQueue"));
+
+    private static final class PendingWrite {
+
+        final long startingCell;
+        final long endingCell;
+        final long bytes;
+        final Future<?> future;
+
+        PendingWrite(long startingCell, long endingCell, long bytes, Future<?> future) {
+            this.startingCell = startingCell;
+            this.endingCell = endingCell;
+            this.bytes = bytes;
+            this.future = future;
+        }
+    }
+
+    private final ArrayDeque<PendingWrite> pending = new ArrayDeque<>();
+    private volatile long pendingBytes = 0;
+    private long byteLimit;
+    private Throwable error = null;
+
+    /**
+     * Class constructor.
+     *
+     * @param byteLimit The most data that may be waiting to be written.
+     */
+    WriteBehindQueue(long byteLimit) {
+        this.byteLimit = byteLimit;
+    }
+
+    /**
+     * Sets the most data that may be waiting to be written. A single write
+     * larger than the limit is still allowed when nothing else is pending.
+     */
+    void setByteLimit(long byteLimit) {
+        this.byteLimit = byteLimit;
+    }
+
+    /**
+     * Retrieves the number of bytes held by writes that haven't been waited
+     * for. This may be called from any thread.
+     */
+    long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * Queues a write of a range of cells.
+     *
+     * @param startingCell The first cell written.
+     * @param endingCell The last cell written.
+     * @param bytes The memory held by the write until it has finished.
+     * @param task The write. Any exception it throws is kept and may be
+     * retrieved with takeError.
+     */
+    void submit(long startingCell, long endingCell, long bytes, Callable<?> task) {
+        retireFinished();
+        while (!pending.isEmpty() && pendingBytes + bytes > byteLimit) {
+            retire(pending.peekFirst());
+        }
+        pending.addLast(new PendingWrite(startingCell, endingCell, bytes, writer.submit(task)));
+        pendingBytes += bytes;
+    }
+
+    /**
+     * Waits for any pending writes that overlap a range of cells.
+     *
+     * @param startingCell The first cell of the range.
+     * @param endingCell The last cell of the range.
+     */
+    void await(long startingCell, long endingCell) {
+        // writes are carried out in order, so waiting for the last
+        // overlapping write waits for all those before it
+        PendingWrite last = null;
+        for (PendingWrite pw : pending) {
+            if (pw.startingCell <= endingCell && pw.endingCell >= startingCell) {
+                last = pw;
+            }
+        }
+        if (last != null) {
+            while (!pending.isEmpty()) {
+                PendingWrite pw = pending.peekFirst();
+                retire(pw);
+                if (pw == last) {
+                    break;
+                }
+            }
+        }
+        retireFinished();
+    }
+
+    /**
+     * Waits for all pending writes.
+     */
+    void awaitAll() {
+        while (!pending.isEmpty()) {
+            retire(pending.peekFirst());
+        }
+    }
+
+    /**
+     * Retrieves and clears the first error raised by a write since the last
+     * call, or returns null if there was none.
+     */
+    Throwable takeError() {
+        Throwable t = error;
+        error = null;
+        return t;
+    }
+
+    private void retireFinished() {
+        Iterator<PendingWrite> it = pending.iterator();
+        while (it.hasNext()) {
+            PendingWrite pw = it.next();
+            if (!pw.future.isDone()) {
+                break;
+            }
+            it.remove();
+            pendingBytes -= pw.bytes;
+            check(pw);
+        }
+    }
+
+    private void retire(PendingWrite pw) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                pw.future.get();
+                break;
+            } catch (InterruptedException e) {
+                // the write must finish before its data can be relied on
+                interrupted = true;
+            } catch (ExecutionException e) {
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        pending.remove(pw);
+        pendingBytes -= pw.bytes;
+        check(pw);
+    }
+
+    private void check(PendingWrite pw) {
+        try {
+            pw.future.get();
+        } catch (ExecutionException e) {
+            if (error == null) {
+                error = e.getCause();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.structures;
+
+import java.io.File;
+import java.io.IOException;
+import whitebox.utilities.BitOps;
+
+/**
+ * This class is used to create a 1-D array of booleans, stored as individual
+ * bits outside of the Java heap and indexed by a long, e.g. the cell number of
+ * a grid with more than 2^31 cells. It may be held in direct memory or mapped
+ * from a temporary file, and must be released once it is no longer needed.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public class OffHeapBooleanBitArray1D {
+
+    private final long length;
+    private final OffHeapStorage data;
+
+    /**
+     * Class constructor. The array is held in direct memory and initialized
+     * to false.
+     *
+     * @param size The number of elements.
+     */
+    public OffHeapBooleanBitArray1D(long size) {
+        length = size;
+        data = new OffHeapStorage((size + 7) / 8);
+    }
+
+    /**
+     * Class constructor. The array is mapped from a temporary file and
+     * initialized to false.
+     *
+     * @param size The number of elements.
+     * @param directory The directory in which to create the temporary file.
+     * @throws IOException
+     */
+    public OffHeapBooleanBitArray1D(long size, File directory) throws IOException {
+        length = size;
+        data = new OffHeapStorage((size + 7) / 8, directory);
+    }
+
+    public void setValue(long location, boolean value) {
+        if (location < 0 || location >= length) {
+            return;
+        }
+        // which byte will it be in?
+        long pos = location / 8;
+        byte colOffset = (byte) (location % 8);
+
+        byte val = data.get(pos);
+        if (value) {
+            val = BitOps.setBit(val, colOffset);
+        } else {
+            val = BitOps.clearBit(val, colOffset);
+        }
+        data.put(pos, val);
+    }
+
+    public boolean getValue(long location) {
+        if (location < 0 || location >= length) {
+            return false;
+        }
+        // which byte will it be in?
+        long pos = location / 8;
+        int colOffset = (int) (location % 8);
+
+        return BitOps.checkBit(data.get(pos), colOffset);
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Frees the memory held by the array, and deletes any temporary file. The
+     * array can't be used afterwards.
+     */
+    public void release() {
+        data.release();
+    }
+}
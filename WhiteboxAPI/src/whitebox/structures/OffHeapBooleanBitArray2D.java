@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2015 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.structures;
+
+import java.io.File;
+import java.io.IOException;
+import whitebox.utilities.BitOps;
+
+/**
+ * This class is used to create a 2-D array of booleans, stored as individual
+ * bits outside of the Java heap. It is the counterpart of BooleanBitArray2D
+ * for grids of more than 2^31 cells. It may be held in direct memory or mapped
+ * from a temporary file, and must be released once it is no longer needed.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public class OffHeapBooleanBitArray2D {
+
+    private final int rows;
+    private final int columns;
+    private final long columnsInBytes;
+    private final OffHeapStorage data;
+
+    /**
+     * Class constructor. The array is held in direct memory and initialized
+     * to false.
+     *
+     * @param rows The number of rows.
+     * @param columns The number of columns.
+     */
+    public OffHeapBooleanBitArray2D(int rows, int columns) {
+        this.rows = rows;
+        this.columns = columns;
+        columnsInBytes = (columns + 7) / 8;
+        data = new OffHeapStorage(rows * columnsInBytes);
+    }
+
+    /**
+     * Class constructor. The array is mapped from a temporary file and
+     * initialized to false.
+     *
+     * @param rows The number of rows.
+     * @param columns The number of columns.
+     * @param directory The directory in which to create the temporary file.
+     * @throws IOException
+     */
+    public OffHeapBooleanBitArray2D(int rows, int columns, File directory) throws IOException {
+        this.rows = rows;
+        this.columns = columns;
+        columnsInBytes = (columns + 7) / 8;
+        data = new OffHeapStorage(rows * columnsInBytes, directory);
+    }
+
+    public int getNumberRows() {
+        return rows;
+    }
+
+    public int getNumberColumns() {
+        return columns;
+    }
+
+    public void setValue(int row, int column, boolean value) {
+        if (row < 0 || row >= rows || column < 0 || column >= columns) {
+            return;
+        }
+        // which byte will it be in?
+        long pos = row * columnsInBytes + column / 8;
+        byte colOffset = (byte) (column % 8);
+
+        byte val = data.get(pos);
+        if (value) {
+            val = BitOps.setBit(val, colOffset);
+        } else {
+            val = BitOps.clearBit(val, colOffset);
+        }
+        data.put(pos, val);
+    }
+
+    public boolean getValue(int row, int column) {
+        if (row < 0 || row >= rows || column < 0 || column >= columns) {
+            return false;
+        }
+        // which byte will it be in?
+        long pos = row * columnsInBytes + column / 8;
+        int colOffset = column % 8;
+
+        return BitOps.checkBit(data.get(pos), colOffset);
+    }
+
+    /**
+     * Frees the memory held by the array, and deletes any temporary file. The
+     * array can't be used afterwards.
+     */
+    public void release() {
+        data.release();
+    }
+}
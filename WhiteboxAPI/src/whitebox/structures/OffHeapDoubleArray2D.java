@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2015 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.structures;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * This class is used to create a 2-D array of 64-bit floating-point values
+ * (doubles) held outside of the Java heap. Unlike DoubleArray2D, the number of
+ * cells isn't limited to 2^31 and the array doesn't add to garbage collection
+ * pauses. It may be held in direct memory or mapped from a temporary file, and
+ * must be released once it is no longer needed.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public class OffHeapDoubleArray2D {
+
+    private final int rows;
+    private final int columns;
+    private final long numCells;
+    private final double noData;
+    private final OffHeapStorage data;
+
+    /**
+     * Class constructor. The array is held in direct memory.
+     *
+     * @param rows The number of rows.
+     * @param columns The number of columns.
+     * @param noData The value returned for cells outside of the array, and to
+     * which all cells are initialized.
+     */
+    public OffHeapDoubleArray2D(int rows, int columns, double noData) {
+        this.rows = rows;
+        this.columns = columns;
+        this.noData = noData;
+        numCells = (long) rows * columns;
+        data = new OffHeapStorage(numCells * 8);
+        initialize();
+    }
+
+    /**
+     * Class constructor. The array is mapped from a temporary file, and so it
+     * may be larger than physical memory.
+     *
+     * @param rows The number of rows.
+     * @param columns The number of columns.
+     * @param noData The value returned for cells outside of the array, and to
+     * which all cells are initialized.
+     * @param directory The directory in which to create the temporary file.
+     * @throws IOException
+     */
+    public OffHeapDoubleArray2D(int rows, int columns, double noData, File directory) throws IOException {
+        this.rows = rows;
+        this.columns = columns;
+        this.noData = noData;
+        numCells = (long) rows * columns;
+        data = new OffHeapStorage(numCells * 8, directory);
+        initialize();
+    }
+
+    private void initialize() {
+        long bits = Double.doubleToRawLongBits(noData);
+        byte[] pattern = new byte[8];
+        ByteBuffer.wrap(pattern).order(ByteOrder.nativeOrder()).putLong(bits);
+        data.fill(pattern);
+    }
+
+    public int getNumberRows() {
+        return rows;
+    }
+
+    public int getNumberColumns() {
+        return columns;
+    }
+
+    public long getNumberCells() {
+        return numCells;
+    }
+
+    public double getNoDataValue() {
+        return noData;
+    }
+
+    public void setValue(int row, int column, double value) {
+        if (row < 0 || row >= rows || column < 0 || column >= columns) {
+            return;
+        }
+        long cellNum = (long) row * columns + column;
+        data.putDouble(cellNum << 3, value);
+    }
+
+    public void incrementValue(int row, int column, double value) {
+        if (row < 0 || row >= rows || column < 0 || column >= columns) {
+            return;
+        }
+        long pos = ((long) row * columns + column) << 3;
+        data.putDouble(pos, data.getDouble(pos) + value);
+    }
+
+    public void decrementValue(int row, int column, double value) {
+        if (row < 0 || row >= rows || column < 0 || column >= columns) {
+            return;
+        }
+        long pos = ((long) row * columns + column) << 3;
+        data.putDouble(pos, data.getDouble(pos) - value);
+    }
+
+    public double getValue(int row, int column) {
+        if (row < 0 || row >= rows || column < 0 || column >= columns) {
+            return noData;
+        }
+        long cellNum = (long) row * columns + column;
+        return data.getDouble(cellNum << 3);
+    }
+
+    /**
+     * Sets the value of a cell given its row-major index.
+     *
+     * @param cellNum The cell index, i.e. row * columns + column.
+     * @param value The value.
+     */
+    public void setValue(long cellNum, double value) {
+        if (cellNum < 0 || cellNum >= numCells) {
+            return;
+        }
+        data.putDouble(cellNum << 3, value);
+    }
+
+    /**
+     * Retrieves the value of a cell given its row-major index.
+     *
+     * @param cellNum The cell index, i.e. row * columns + column.
+     * @return The value, or the NoData value if the cell is outside the array.
+     */
+    public double getValue(long cellNum) {
+        if (cellNum < 0 || cellNum >= numCells) {
+            return noData;
+        }
+        return data.getDouble(cellNum << 3);
+    }
+
+    /**
+     * Copies a row of the array into a Java array, e.g. to write it to a
+     * raster.
+     *
+     * @param row The row.
+     * @param dest An array of at least as many elements as there are columns.
+     */
+    public void getRow(int row, double[] dest) {
+        if (row < 0 || row >= rows) {
+            Arrays.fill(dest, 0, columns, noData);
+            return;
+        }
+        data.getDoubles(((long) row * columns) << 3, dest, 0, columns);
+    }
+
+    /**
+     * Copies a Java array into a row of the array, e.g. when reading it from a
+     * raster.
+     *
+     * @param row The row.
+     * @param src An array of at least as many elements as there are columns.
+     */
+    public void setRow(int row, double[] src) {
+        if (row < 0 || row >= rows) {
+            return;
+        }
+        data.putDoubles(((long) row * columns) << 3, src, 0, columns);
+    }
+
+    /**
+     * Frees the memory held by the array, and deletes any temporary file. The
+     * array can't be used afterwards.
+     */
+    public void release() {
+        data.release();
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2015 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.structures;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * This class is used to create a 2-D array of 32-bit integers held outside of
+ * the Java heap. Unlike IntArray2D, the number of cells isn't limited to 2^31.
+ * It may be held in direct memory or mapped from a temporary file, and must be
+ * released once it is no longer needed.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public class OffHeapIntArray2D {
+
+    private final int rows;
+    private final int columns;
+    private final long numCells;
+    private final int noData;
+    private final OffHeapStorage data;
+
+    /**
+     * Class constructor. The array is held in direct memory.
+     *
+     * @param rows The number of rows.
+     * @param columns The number of columns.
+     * @param noData The value returned for cells outside of the array, and to
+     * which all cells are initialized.
+     */
+    public OffHeapIntArray2D(int rows, int columns, int noData) {
+        this.rows = rows;
+        this.columns = columns;
+        this.noData = noData;
+        numCells = (long) rows * columns;
+        data = new OffHeapStorage(numCells * 4);
+        initialize();
+    }
+
+    /**
+     * Class constructor. The array is mapped from a temporary file, and so it
+     * may be larger than physical memory.
+     *
+     * @param rows The number of rows.
+     * @param columns The number of columns.
+     * @param noData The value returned for cells outside of the array, and to
+     * which all cells are initialized.
+     * @param directory The directory in which to create the temporary file.
+     * @throws IOException
+     */
+    public OffHeapIntArray2D(int rows, int columns, int noData, File directory) throws IOException {
+        this.rows = rows;
+        this.columns = columns;
+        this.noData = noData;
+        numCells = (long) rows * columns;
+        data = new OffHeapStorage(numCells * 4, directory);
+        initialize();
+    }
+
+    private void initialize() {
+        byte[] pattern = new byte[4];
+        ByteBuffer.wrap(pattern).order(ByteOrder.nativeOrder()).putInt(noData);
+        data.fill(pattern);
+    }
+
+    public int getNumberRows() {
+        return rows;
+    }
+
+    public int getNumberColumns() {
+        return columns;
+    }
+
+    public long getNumberCells() {
+        return numCells;
+    }
+
+    public int getNoDataValue() {
+        return noData;
+    }
+
+    public void incrementValue(int row, int column, int value) {
+        if (row < 0 || row >= rows || column < 0 || column >= columns) {
+            return;
+        }
+        long pos = ((long) row * columns + column) << 2;
+        data.putInt(pos, data.getInt(pos) + value);
+    }
+
+    public void incrementValue(int row, int column) {
+        incrementValue(row, column, 1);
+    }
+
+    public void decrementValue(int row, int column, int value) {
+        if (row < 0 || row >= rows || column < 0 || column >= columns) {
+            return;
+        }
+        long pos = ((long) row * columns + column) << 2;
+        data.putInt(pos, data.getInt(pos) - value);
+    }
+
+    public void decrementValue(int row, int column) {
+        decrementValue(row, column, 1);
+    }
+
+    public void setValue(int row, int column, int value) {
+        if (row < 0 || row >= rows || column < 0 || column >= columns) {
+            return;
+        }
+        long cellNum = (long) row * columns + column;
+        data.putInt(cellNum << 2, value);
+    }
+
+    public int getValue(int row, int column) {
+        if (row < 0 || row >= rows || column < 0 || column >= columns) {
+            return noData;
+        }
+        long cellNum = (long) row * columns + column;
+        return data.getInt(cellNum << 2);
+    }
+
+    /**
+     * Sets the value of a cell given its row-major index.
+     *
+     * @param cellNum The cell index, i.e. row * columns + column.
+     * @param value The value.
+     */
+    public void setValue(long cellNum, int value) {
+        if (cellNum < 0 || cellNum >= numCells) {
+            return;
+        }
+        data.putInt(cellNum << 2, value);
+    }
+
+    /**
+     * Retrieves the value of a cell given its row-major index.
+     *
+     * @param cellNum The cell index, i.e. row * columns + column.
+     * @return The value, or the NoData value if the cell is outside the array.
+     */
+    public int getValue(long cellNum) {
+        if (cellNum < 0 || cellNum >= numCells) {
+            return noData;
+        }
+        return data.getInt(cellNum << 2);
+    }
+
+    /**
+     * Frees the memory held by the array, and deletes any temporary file. The
+     * array can't be used afterwards.
+     */
+    public void release() {
+        data.release();
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2015 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.structures;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import whitebox.utilities.BufferUtilities;
+
+/**
+ * A block of memory outside of the Java heap, addressed by a long byte offset
+ * so that it may exceed the 2 GB limit of a single buffer. It is made up of
+ * segments of 2^30 bytes, each either a direct buffer or a memory-mapped
+ * region of a temporary file. A file-backed store can be much larger than
+ * physical memory, with the operating system paging it in and out. The memory
+ * is given back as soon as release is called, rather than whenever the
+ * garbage collector gets around to it.
+ *
+ * Values are stored in the platform's native byte order at offsets that are
+ * multiples of their size, so that none straddles two segments.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+final class OffHeapStorage {
+
+    static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+    private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+    private static final int FILL_CHUNK_SIZE = 65536;
+    private final long size;
+    private ByteBuffer[] segments;
+    private File backingFile = null;
+
+    /**
+     * Class constructor. The store is allocated in direct memory, which is
+     * zeroed.
+     *
+     * @param size The size in bytes.
+     */
+    OffHeapStorage(long size) {
+        this.size = checkSize(size);
+        segments = new ByteBuffer[numSegments(size)];
+        try {
+            for (int s = 0; s < segments.length; s++) {
+                segments[s] = ByteBuffer.allocateDirect((int) segmentLength(s));
+                segments[s].order(ByteOrder.nativeOrder());
+            }
+        } catch (OutOfMemoryError e) {
+            release();
+            throw e;
+        }
+    }
+
+    /**
+     * Class constructor. The store is mapped from a temporary file, which is
+     * deleted when the store is released or the JVM exits.
+     *
+     * @param size The size in bytes.
+     * @param directory The directory in which to create the temporary file.
+     * @throws IOException
+     */
+    OffHeapStorage(long size, File directory) throws IOException {
+        this.size = checkSize(size);
+        segments = new ByteBuffer[numSegments(size)];
+        backingFile = File.createTempFile("whitebox", ".mem", directory);
+        backingFile.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(backingFile, "rw")) {
+            raf.setLength(size);
+            FileChannel channel = raf.getChannel();
+            for (int s = 0; s < segments.length; s++) {
+                // a mapping remains valid once the channel is closed
+                segments[s] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        (long) s << SEGMENT_SHIFT, segmentLength(s));
+                segments[s].order(ByteOrder.nativeOrder());
+            }
+        } catch (IOException | RuntimeException e) {
+            release();
+            throw e;
+        }
+    }
+
+    private static long checkSize(long size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("The size must not be negative.");
+        }
+        return size;
+    }
+
+    private static int numSegments(long size) {
+        return (int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+    }
+
+    private long segmentLength(int s) {
+        return Math.min(SEGMENT_SIZE, size - ((long) s << SEGMENT_SHIFT));
+    }
+
+    /**
+     * Retrieves the size in bytes.
+     */
+    long size() {
+        return size;
+    }
+
+    private ByteBuffer segment(long pos) {
+        ByteBuffer[] segs = segments;
+        if (segs == null) {
+            throw new IllegalStateException("The array has been released.");
+        }
+        return segs[(int) (pos >>> SEGMENT_SHIFT)];
+    }
+
+    byte get(long pos) {
+        return segment(pos).get((int) (pos & SEGMENT_MASK));
+    }
+
+    void put(long pos, byte value) {
+        segment(pos).put((int) (pos & SEGMENT_MASK), value);
+    }
+
+    int getInt(long pos) {
+        return segment(pos).getInt((int) (pos & SEGMENT_MASK));
+    }
+
+    void putInt(long pos, int value) {
+        segment(pos).putInt((int) (pos & SEGMENT_MASK), value);
+    }
+
+    double getDouble(long pos) {
+        return segment(pos).getDouble((int) (pos & SEGMENT_MASK));
+    }
+
+    void putDouble(long pos, double value) {
+        segment(pos).putDouble((int) (pos & SEGMENT_MASK), value);
+    }
+
+    /**
+     * Copies a run of doubles out of the store.
+     *
+     * @param pos The byte offset of the first value.
+     * @param dest The array into which the values are copied.
+     * @param offset The position in the array of the first value.
+     * @param length The number of values.
+     */
+    void getDoubles(long pos, double[] dest, int offset, int length) {
+        while (length > 0) {
+            ByteBuffer seg = segment(pos).duplicate();
+            seg.order(ByteOrder.nativeOrder());
+            int start = (int) (pos & SEGMENT_MASK);
+            int n = Math.min(length, (seg.capacity() - start) / 8);
+            seg.position(start);
+            seg.asDoubleBuffer().get(dest, offset, n);
+            pos += (long) n * 8;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Copies a run of doubles into the store.
+     *
+     * @param pos The byte offset of the first value.
+     * @param src The array from which the values are copied.
+     * @param offset The position in the array of the first value.
+     * @param length The number of values.
+     */
+    void putDoubles(long pos, double[] src, int offset, int length) {
+        while (length > 0) {
+            ByteBuffer seg = segment(pos).duplicate();
+            seg.order(ByteOrder.nativeOrder());
+            int start = (int) (pos & SEGMENT_MASK);
+            int n = Math.min(length, (seg.capacity() - start) / 8);
+            seg.position(start);
+            seg.asDoubleBuffer().put(src, offset, n);
+            pos += (long) n * 8;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Fills the whole store with a repeating pattern of bytes.
+     *
+     * @param pattern The pattern, whose length must divide 2^30.
+     */
+    void fill(byte[] pattern) {
+        boolean zero = true;
+        for (byte b : pattern) {
+            if (b != 0) {
+                zero = false;
+            }
+        }
+        if (zero && backingFile == null) {
+            // direct memory is zeroed when it is allocated
+            return;
+        }
+        byte[] chunk = new byte[FILL_CHUNK_SIZE];
+        for (int i = 0; i < chunk.length; i++) {
+            chunk[i] = pattern[i % pattern.length];
+        }
+        for (ByteBuffer s : segments) {
+            ByteBuffer seg = s.duplicate();
+            seg.clear();
+            while (seg.hasRemaining()) {
+                seg.put(chunk, 0, Math.min(chunk.length, seg.remaining()));
+            }
+        }
+    }
+
+    /**
+     * Gives back the memory, and deletes any backing file. The store can't be
+     * used afterwards.
+     */
+    void release() {
+        ByteBuffer[] segs = segments;
+        segments = null;
+        if (segs != null) {
+            for (ByteBuffer seg : segs) {
+                if (seg != null) {
+                    BufferUtilities.free(seg);
+                }
+            }
+        }
+        if (backingFile != null) {
+            backingFile.delete();
+            backingFile = null;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2015 Dr. John Lindsay <jlindsay@uoguelph.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package whitebox.utilities;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * Operations on NIO buffers that aren't part of the public API.
+ *
+ * @author Dr. John Lindsay <jlindsay@uoguelph.ca>
+ */
+public final class BufferUtilities {
+
+    private static Method invokeCleaner = null;
+    private static Object unsafe = null;
+    private static boolean cleanerLookedUp = false;
+
+    private BufferUtilities() {
+    }
+
+    /**
+     * Frees a direct or mapped buffer immediately. A mapped buffer is unmapped,
+     * so that its file may be deleted or truncated, which on Windows fails
+     * while any part of it is mapped. The means of doing so isn't part of the
+     * public API and differs between Java versions, and so if it can't be
+     * found the buffer is left to the garbage collector. The buffer, and any
+     * views of it, must not be used afterwards.
+     *
+     * @param buf The buffer.
+     */
+    public static void free(ByteBuffer buf) {
+        try {
+            synchronized (BufferUtilities.class) {
+                if (!cleanerLookedUp) {
+                    cleanerLookedUp = true;
+                    try {
+                        // Java 9 and later
+                        Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                        Field f = unsafeClass.getDeclaredField("theUnsafe");
+                        f.setAccessible(true);
+                        unsafe = f.get(null);
+                        invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                    } catch (ReflectiveOperationException e) {
+                        invokeCleaner = null;
+                    }
+                }
+            }
+            if (invokeCleaner != null) {
+                invokeCleaner.invoke(unsafe, buf);
+            } else {
+                // Java 8
+                Method cleanerMethod = buf.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buf);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // the buffer is freed once it is garbage collected
+        }
+    }
+}